@@ -0,0 +1,187 @@
+/*******************************************************************************
+ * Copyright (c) 2014 The University of Reading
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+
+package uk.ac.rdg.resc;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import org.joda.time.DateTime;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import uk.ac.rdg.resc.edal.dataset.Dataset;
+import uk.ac.rdg.resc.edal.dataset.cdm.CdmGridDatasetFactory;
+import uk.ac.rdg.resc.edal.exceptions.EdalException;
+import uk.ac.rdg.resc.edal.feature.DiscreteFeature;
+import uk.ac.rdg.resc.edal.feature.MapFeature;
+import uk.ac.rdg.resc.edal.geometry.BoundingBox;
+import uk.ac.rdg.resc.edal.geometry.BoundingBoxImpl;
+import uk.ac.rdg.resc.edal.metadata.GridVariableMetadata;
+import uk.ac.rdg.resc.edal.util.Array2D;
+import uk.ac.rdg.resc.edal.util.CollectionUtils;
+import uk.ac.rdg.resc.edal.util.GISUtils;
+import uk.ac.rdg.resc.edal.util.PlottingDomainParams;
+
+/**
+ * Compares reading a block of tiles from a dataset on disk one tile at a
+ * time against reading the region covering them in one extraction and
+ * slicing it into tiles, as {@link EdalGridDataLayer} does for pending tiles.
+ * The number of extractions per block falls from the number of tiles to one.
+ * 
+ * This needs a real dataset, so the path of a gridded file which the CDM
+ * reader can open and the ID of a variable in it must be given, e.g.
+ * "mvn -Pbenchmark test-compile exec:exec
+ * -Djmh.args='TileBatchBenchmark -p path=/data/sst.nc -p varId=sst'"
+ * 
+ * The block covers the whole grid, at the elevation nearest the surface and
+ * the time nearest now. Both paths give the values of each tile as an array
+ * of floats.
+ * 
+ * @author Guy Griffiths
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = { "-Xmx4g" })
+public class TileBatchBenchmark {
+    /** The location of the dataset */
+    @Param({ "" })
+    public String path;
+
+    /** The ID of the gridded variable to read */
+    @Param({ "" })
+    public String varId;
+
+    /** The width and height of each tile */
+    @Param({ "256" })
+    public int tileSize;
+
+    /** The number of tiles along each side of the block */
+    @Param({ "2", "4" })
+    public int tilesPerSide;
+
+    private Dataset dataset;
+    private BoundingBox bbox;
+    private Double z;
+    private DateTime time;
+    private float[][] tileValues;
+
+    @Setup
+    public void setUp() throws Exception {
+        if (path.isEmpty() || varId.isEmpty()) {
+            throw new IllegalArgumentException(
+                    "A dataset must be given with \"-p path=<file> -p varId=<variable>\"");
+        }
+        dataset = new CdmGridDatasetFactory().createDataset("benchmark", path);
+        GridVariableMetadata metadata = (GridVariableMetadata) dataset
+                .getVariableMetadata(varId);
+        bbox = metadata.getHorizontalDomain().getBoundingBox();
+        if (metadata.getVerticalDomain() != null) {
+            z = GISUtils.getClosestElevationToSurface(metadata.getVerticalDomain());
+        }
+        if (metadata.getTemporalDomain() != null) {
+            time = GISUtils.getClosestToCurrentTime(metadata.getTemporalDomain());
+        }
+        tileValues = new float[tilesPerSide * tilesPerSide][tileSize * tileSize];
+    }
+
+    /**
+     * Reads each tile with its own extraction, as before
+     */
+    @Benchmark
+    public float[][] perTile() throws EdalException {
+        double tileWidth = (bbox.getMaxX() - bbox.getMinX()) / tilesPerSide;
+        double tileHeight = (bbox.getMaxY() - bbox.getMinY()) / tilesPerSide;
+        for (int row = 0; row < tilesPerSide; row++) {
+            for (int col = 0; col < tilesPerSide; col++) {
+                BoundingBox tileBbox = new BoundingBoxImpl(bbox.getMinX() + col * tileWidth,
+                        bbox.getMinY() + row * tileHeight, bbox.getMinX() + (col + 1)
+                                * tileWidth, bbox.getMinY() + (row + 1) * tileHeight,
+                        bbox.getCoordinateReferenceSystem());
+                read(tileSize, tileSize, tileBbox, tileValues[row * tilesPerSide + col]);
+            }
+        }
+        return tileValues;
+    }
+
+    /**
+     * Reads the block with one extraction and slices it into tiles
+     */
+    @Benchmark
+    public float[][] batched() throws EdalException {
+        int regionSize = tilesPerSide * tileSize;
+        float[] regionValues = new float[regionSize * regionSize];
+        read(regionSize, regionSize, bbox, regionValues);
+        for (int row = 0; row < tilesPerSide; row++) {
+            for (int col = 0; col < tilesPerSide; col++) {
+                float[] values = tileValues[row * tilesPerSide + col];
+                for (int j = 0; j < tileSize; j++) {
+                    System.arraycopy(regionValues, (row * tileSize + j) * regionSize + col
+                            * tileSize, values, j * tileSize, tileSize);
+                }
+            }
+        }
+        return tileValues;
+    }
+
+    /**
+     * Extracts a grid of values from the dataset, as
+     * {@link VideoWallCatalogue} does for data which is not in memory
+     */
+    private void read(int width, int height, BoundingBox readBbox, float[] values)
+            throws EdalException {
+        Arrays.fill(values, Float.NaN);
+        for (DiscreteFeature<?, ?> feature : dataset.extractMapFeatures(
+                CollectionUtils.setOf(varId), new PlottingDomainParams(width, height, readBbox,
+                        null, null, null, z, time))) {
+            if (feature instanceof MapFeature) {
+                Array2D<Number> featureValues = ((MapFeature) feature).getValues(varId);
+                for (int j = 0; j < height; j++) {
+                    for (int i = 0; i < width; i++) {
+                        Number value = featureValues.get(j, i);
+                        if (value != null) {
+                            values[j * width + i] = value.floatValue();
+                        }
+                    }
+                }
+            }
+        }
+    }
+}
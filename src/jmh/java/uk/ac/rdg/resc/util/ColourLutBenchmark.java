@@ -0,0 +1,169 @@
+/*******************************************************************************
+ * Copyright (c) 2014 The University of Reading
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+
+package uk.ac.rdg.resc.util;
+
+import java.awt.Color;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.geotoolkit.referencing.crs.DefaultGeographicCRS;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import uk.ac.rdg.resc.edal.domain.MapDomainImpl;
+import uk.ac.rdg.resc.edal.exceptions.EdalException;
+import uk.ac.rdg.resc.edal.feature.MapFeature;
+import uk.ac.rdg.resc.edal.geometry.BoundingBoxImpl;
+import uk.ac.rdg.resc.edal.graphics.style.ColourScheme;
+import uk.ac.rdg.resc.edal.graphics.style.MapImage;
+import uk.ac.rdg.resc.edal.graphics.style.RasterLayer;
+import uk.ac.rdg.resc.edal.graphics.style.ScaleRange;
+import uk.ac.rdg.resc.edal.graphics.style.SegmentColourScheme;
+import uk.ac.rdg.resc.edal.graphics.style.util.FeatureCatalogue;
+import uk.ac.rdg.resc.edal.metadata.Parameter;
+import uk.ac.rdg.resc.edal.util.Array2D;
+import uk.ac.rdg.resc.edal.util.CollectionUtils;
+import uk.ac.rdg.resc.edal.util.Extents;
+import uk.ac.rdg.resc.edal.util.PlottingDomainParams;
+import uk.ac.rdg.resc.edal.util.ValuesArray2D;
+
+/**
+ * Compares drawing a raster tile with a {@link ColourLut} against drawing it
+ * with the {@link MapImage} which was used before.
+ * 
+ * Both draw the same synthetic field, which has a band of missing data.
+ * Reading the data is the same for both paths, so it is excluded: the
+ * {@link MapImage} is given a {@link MapFeature} which has already been
+ * created, and the {@link ColourLut} an array of values.
+ * 
+ * Run with "mvn -Pbenchmark test-compile exec:exec -Djmh.args=ColourLutBenchmark"
+ * 
+ * @author Guy Griffiths
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ColourLutBenchmark {
+    private static final String VAR_ID = "field";
+    private static final float MIN = -2f;
+    private static final float MAX = 32f;
+
+    /** The width and height of the tile */
+    @Param({ "256", "512" })
+    public int size;
+
+    @Param({ "false", "true" })
+    public boolean logScale;
+
+    @Param({ "250" })
+    public int nBands;
+
+    private float[] values;
+    private ColourLut lut;
+
+    private MapImage mapImage;
+    private PlottingDomainParams params;
+    private FeatureCatalogue catalogue;
+
+    @Setup
+    public void setUp() throws EdalException {
+        float min = logScale ? 0.1f : MIN;
+        values = new float[size * size];
+        ValuesArray2D featureValues = new ValuesArray2D(size, size);
+        for (int j = 0; j < size; j++) {
+            for (int i = 0; i < size; i++) {
+                /*
+                 * A smooth field over the whole range, with a band of missing
+                 * data such as land would give
+                 */
+                float value = (float) (min + (MAX - min)
+                        * (0.5 + 0.5 * Math.sin(i * 0.05) * Math.cos(j * 0.03)));
+                if (i > size / 3 && i < size / 2) {
+                    value = Float.NaN;
+                }
+                values[j * size + i] = value;
+                featureValues.set(Float.isNaN(value) ? null : value, j, i);
+            }
+        }
+
+        ColourScheme colourScheme = new SegmentColourScheme(new ScaleRange(min, MAX, logScale),
+                Color.black, Color.white, new Color(0, 0, 0, 0), "default", nBands);
+        lut = new ColourLut(colourScheme, Extents.newExtent(min, MAX), logScale, nBands);
+
+        params = new PlottingDomainParams(size, size, new BoundingBoxImpl(-40.0, -20.0, 0.0,
+                20.0, DefaultGeographicCRS.WGS84), null, null, null, null, null);
+        Map<String, Parameter> parameters = new HashMap<>();
+        parameters.put(VAR_ID, new Parameter(VAR_ID, "Field", "", "", null));
+        Map<String, Array2D<Number>> valuesMap = new HashMap<>();
+        valuesMap.put(VAR_ID, featureValues);
+        final MapFeature feature = new MapFeature(VAR_ID, VAR_ID, "", new MapDomainImpl(
+                params.getImageGrid(), null, null, null), parameters, valuesMap);
+        catalogue = new FeatureCatalogue() {
+            @Override
+            public FeaturesAndMemberName getFeaturesForLayer(String id,
+                    PlottingDomainParams params) {
+                return new FeaturesAndMemberName(CollectionUtils.setOf(feature), VAR_ID);
+            }
+        };
+        mapImage = new MapImage();
+        mapImage.getLayers().add(new RasterLayer(VAR_ID, colourScheme));
+    }
+
+    /**
+     * Draws the tile as raster tiles are drawn, colouring straight into the
+     * pixels of a new image
+     */
+    @Benchmark
+    public BufferedImage colourLut() {
+        BufferedImage image = new BufferedImage(size, size, BufferedImage.TYPE_INT_ARGB);
+        lut.colourGrid(values, size, size,
+                ((DataBufferInt) image.getRaster().getDataBuffer()).getData());
+        return image;
+    }
+
+    @Benchmark
+    public BufferedImage mapImage() throws EdalException {
+        return mapImage.drawImage(params, catalogue);
+    }
+}
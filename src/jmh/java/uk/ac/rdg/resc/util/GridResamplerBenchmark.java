@@ -0,0 +1,172 @@
+/*******************************************************************************
+ * Copyright (c) 2014 The University of Reading
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+
+package uk.ac.rdg.resc.util;
+
+import java.util.concurrent.TimeUnit;
+
+import net.sf.ehcache.Cache;
+import net.sf.ehcache.CacheManager;
+import net.sf.ehcache.config.CacheConfiguration;
+import net.sf.ehcache.config.MemoryUnit;
+
+import org.joda.time.DateTime;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import uk.ac.rdg.resc.edal.dataset.Dataset;
+import uk.ac.rdg.resc.edal.dataset.cdm.CdmGridDatasetFactory;
+import uk.ac.rdg.resc.edal.feature.GridFeature;
+import uk.ac.rdg.resc.edal.feature.MapFeature;
+import uk.ac.rdg.resc.edal.geometry.BoundingBox;
+import uk.ac.rdg.resc.edal.grid.GridDomain;
+import uk.ac.rdg.resc.edal.util.Array2D;
+import uk.ac.rdg.resc.edal.util.CollectionUtils;
+import uk.ac.rdg.resc.edal.util.GISUtils;
+import uk.ac.rdg.resc.edal.util.PlottingDomainParams;
+
+/**
+ * Compares reading a tile from an in-memory {@link GridFeature} with a
+ * {@link GridResampler} against reading it with
+ * {@link GridFeature#extractMapFeature}, which was used before.
+ * 
+ * This needs a real dataset, so the path of a gridded file which the CDM
+ * reader can open and the ID of a variable in it must be given, e.g.
+ * "mvn -Pbenchmark test-compile exec:exec
+ * -Djmh.args='GridResamplerBenchmark -p path=/data/sst.nc -p varId=sst'"
+ * 
+ * The tile covers the whole grid, at the elevation nearest the surface and
+ * the time nearest now. Both paths give an array of floats. As in the
+ * application, grids which are not lat-lon are given a {@link GridPointIndex}.
+ * 
+ * @author Guy Griffiths
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = { "-Xmx4g" })
+public class GridResamplerBenchmark {
+    /** The location of the dataset */
+    @Param({ "" })
+    public String path;
+
+    /** The ID of the gridded variable to read */
+    @Param({ "" })
+    public String varId;
+
+    /** The width and height of the tile */
+    @Param({ "256", "512" })
+    public int size;
+
+    /**
+     * Whether the index maps of the {@link GridResampler} are kept between
+     * reads, as they are when the same tiles are drawn at another time or
+     * elevation
+     */
+    @Param({ "true", "false" })
+    public boolean cachedIndices;
+
+    private GridFeature feature;
+    private GridResampler resampler;
+    private BoundingBox bbox;
+    private Double z;
+    private DateTime time;
+    private float[] values;
+
+    @Setup
+    public void setUp() throws Exception {
+        if (path.isEmpty() || varId.isEmpty()) {
+            throw new IllegalArgumentException(
+                    "A dataset must be given with \"-p path=<file> -p varId=<variable>\"");
+        }
+        CacheManager cacheManager = CacheManager.create();
+        if (!cacheManager.cacheExists(GridResampler.INDEX_CACHE_NAME)) {
+            cacheManager.addCache(new Cache(new CacheConfiguration(
+                    GridResampler.INDEX_CACHE_NAME, 0).eternal(true).maxBytesLocalHeap(32,
+                    MemoryUnit.MEGABYTES)));
+        }
+
+        Dataset dataset = new CdmGridDatasetFactory().createDataset("benchmark", path);
+        feature = (GridFeature) dataset.readFeature(varId);
+        resampler = GridResampler.forFeature(feature, varId);
+        if (resampler.needsPointIndex()) {
+            resampler.setPointIndex(GridPointIndex.build(resampler.getGrid()));
+        }
+
+        GridDomain domain = feature.getDomain();
+        bbox = domain.getHorizontalGrid().getBoundingBox();
+        if (domain.getVerticalAxis() != null) {
+            z = GISUtils.getClosestElevationToSurface(domain.getVerticalAxis());
+        }
+        if (domain.getTimeAxis() != null) {
+            time = GISUtils.getClosestToCurrentTime(domain.getTimeAxis());
+        }
+        values = new float[size * size];
+    }
+
+    @Setup(Level.Invocation)
+    public void clearIndices() {
+        if (!cachedIndices) {
+            CacheManager.create().getCache(GridResampler.INDEX_CACHE_NAME).removeAll();
+        }
+    }
+
+    @Benchmark
+    public float[] gridResampler() {
+        resampler.resample(size, size, bbox, z, time, values);
+        return values;
+    }
+
+    @Benchmark
+    public float[] extractMapFeature() {
+        PlottingDomainParams params = new PlottingDomainParams(size, size, bbox, null, null,
+                null, z, time);
+        MapFeature mapFeature = feature.extractMapFeature(CollectionUtils.setOf(varId),
+                params.getImageGrid(), z, time);
+        Array2D<Number> featureValues = mapFeature.getValues(varId);
+        for (int j = 0; j < size; j++) {
+            for (int i = 0; i < size; i++) {
+                Number value = featureValues.get(j, i);
+                values[j * size + i] = value == null ? Float.NaN : value.floatValue();
+            }
+        }
+        return values;
+    }
+}
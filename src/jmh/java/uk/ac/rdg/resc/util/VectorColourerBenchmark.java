@@ -0,0 +1,123 @@
+/*******************************************************************************
+ * Copyright (c) 2014 The University of Reading
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+
+package uk.ac.rdg.resc.util;
+
+import java.awt.Color;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import uk.ac.rdg.resc.edal.graphics.style.ScaleRange;
+import uk.ac.rdg.resc.edal.graphics.style.SegmentColourScheme;
+import uk.ac.rdg.resc.edal.util.Extents;
+import uk.ac.rdg.resc.util.ColourLut.RowColourer;
+
+/**
+ * Compares colouring a tile with the scalar code in {@link ColourLut} against
+ * colouring it with the Vector API implementation, to decide whether the
+ * VectorColouring setting is worth enabling on a given machine.
+ * 
+ * The Vector API implementation is only present in builds made with the
+ * "vector" profile, so run with
+ * "mvn -Pvector,benchmark test-compile exec:exec -Djmh.args=VectorColourerBenchmark"
+ * 
+ * @author Guy Griffiths
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = { "--add-modules", "jdk.incubator.vector" })
+public class VectorColourerBenchmark {
+    /** The width and height of the tile */
+    @Param({ "64", "256", "512" })
+    public int size;
+
+    /** The fraction of values which are missing */
+    @Param({ "0.0", "0.3" })
+    public double noDataFraction;
+
+    private float[] values;
+    private int[] pixels;
+    private ColourLut lut;
+    private RowColourer vectorColourer;
+
+    @Setup
+    public void setUp() throws ReflectiveOperationException {
+        vectorColourer = (RowColourer) Class.forName("uk.ac.rdg.resc.util.VectorColourer")
+                .newInstance();
+
+        float min = -2f;
+        float max = 32f;
+        lut = new ColourLut(new SegmentColourScheme(new ScaleRange(min, max, false),
+                Color.black, Color.white, new Color(0, 0, 0, 0), "default", 250),
+                Extents.newExtent(min, max), false, 250);
+
+        /*
+         * Random values with a fixed seed, some of them out of range, so
+         * that branches can't be predicted
+         */
+        Random random = new Random(42L);
+        values = new float[size * size];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = random.nextDouble() < noDataFraction ? Float.NaN : min - 2f
+                    + random.nextFloat() * (max - min + 4f);
+        }
+        pixels = new int[size * size];
+    }
+
+    @Benchmark
+    public int[] scalar() {
+        for (int j = 0; j < size; j++) {
+            lut.colourRow(values, j * size, pixels, (size - 1 - j) * size, size);
+        }
+        return pixels;
+    }
+
+    @Benchmark
+    public int[] vector() {
+        for (int j = 0; j < size; j++) {
+            vectorColourer.colourRow(lut, values, j * size, pixels, (size - 1 - j) * size,
+                    size);
+        }
+        return pixels;
+    }
+}
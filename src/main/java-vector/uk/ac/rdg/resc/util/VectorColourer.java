@@ -0,0 +1,100 @@
+/*******************************************************************************
+ * Copyright (c) 2014 The University of Reading
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+
+package uk.ac.rdg.resc.util;
+
+import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * Colours rows of values for a {@link ColourLut} using the JDK Vector API.
+ * Values are quantised to band indices, out-of-range values are clamped and
+ * NaNs are masked for as many values at a time as the hardware allows (e.g. 8
+ * with AVX2, 16 with AVX-512).
+ * 
+ * This is only compiled by the "vector" build profile, and is loaded by
+ * {@link ColourLut} if it is present, the VectorColouring setting is enabled,
+ * and the jdk.incubator.vector module is available (i.e. the JVM was started
+ * with <code>--add-modules jdk.incubator.vector</code>).
+ * 
+ * Band positions are calculated in single precision, so values within
+ * rounding error of a band boundary may fall into the neighbouring band
+ * compared to the scalar implementation.
+ * 
+ * @author Guy Griffiths
+ */
+public class VectorColourer implements ColourLut.RowColourer {
+    private static final VectorSpecies<Float> FLOATS = FloatVector.SPECIES_PREFERRED;
+    private static final VectorSpecies<Integer> INTS = IntVector.SPECIES_PREFERRED;
+    /** Working space for the band indices, which must be in an array to gather */
+    private static final ThreadLocal<int[]> INDICES = new ThreadLocal<int[]>() {
+        @Override
+        protected int[] initialValue() {
+            return new int[INTS.length()];
+        }
+    };
+
+    @Override
+    public void colourRow(ColourLut lut, float[] values, int valueOffset, int[] pixels,
+            int pixelOffset, int count) {
+        float min = (float) lut.min;
+        float max = (float) lut.max;
+        float bandsPerUnit = (float) lut.bandsPerUnit;
+        int nBands = lut.nBands;
+        int[] colours = lut.colours;
+        int[] indices = INDICES.get();
+
+        int i = 0;
+        int upperBound = FLOATS.loopBound(count);
+        for (; i < upperBound; i += FLOATS.length()) {
+            FloatVector v = FloatVector.fromArray(FLOATS, values, valueOffset + i);
+            VectorMask<Integer> nan = v.test(VectorOperators.IS_NAN).cast(INTS);
+            VectorMask<Integer> below = v.lt(min).cast(INTS);
+            VectorMask<Integer> above = v.compare(VectorOperators.GT, max).cast(INTS);
+
+            /*
+             * Band index, offset by one for the below-min entry. Out-of-range
+             * values and NaNs are then pointed at valid entries.
+             */
+            IntVector index = ((IntVector) v.sub(min).mul(bandsPerUnit)
+                    .convert(VectorOperators.F2I, 0)).add(1).min(nBands);
+            index = index.blend(nBands + 1, above).blend(0, below).blend(0, nan);
+            index.intoArray(indices, 0);
+
+            IntVector colour = IntVector.fromArray(INTS, colours, 0, indices, 0);
+            colour.blend(lut.noData, nan).intoArray(pixels, pixelOffset + i);
+        }
+        /*
+         * Any remainder which doesn't fill a vector
+         */
+        lut.colourRow(values, valueOffset + i, pixels, pixelOffset + i, count - i);
+    }
+}
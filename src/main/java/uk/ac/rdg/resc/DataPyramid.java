@@ -0,0 +1,341 @@
+/*******************************************************************************
+ * Copyright (c) 2014 The University of Reading
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+
+package uk.ac.rdg.resc;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+
+import uk.ac.rdg.resc.edal.geometry.BoundingBox;
+
+/**
+ * A memory-mapped, on-disk pyramid of the values of a single elevation/time
+ * of a gridded layer, for drawing low-zoom tiles without reading the whole
+ * grid at full resolution.
+ * 
+ * The base of the pyramid is the layer resampled onto a regular lat-lon grid
+ * at its native resolution. This is not stored: each stored level halves the
+ * resolution of the one before, taking the mean of the non-missing values of
+ * each 2x2 block, until a level fits in a single tile. Tiles which need the
+ * native resolution are read from the source data as usual.
+ * 
+ * File layout (big-endian):
+ * 
+ * <pre>
+ * int MAGIC, int VERSION, int sourceKeyLength, byte[] sourceKey (UTF-8),
+ * double minX, double minY, double baseDx, double baseDy, int nLevels,
+ * nLevels * (int width, int height),
+ * nLevels * float[width * height] values (row-major, southernmost row first)
+ * </pre>
+ * 
+ * @author Guy Griffiths
+ */
+class DataPyramid {
+    private static final int MAGIC = 0x45445059;
+    private static final int VERSION = 1;
+
+    /*
+     * The position and cell size of the (unstored) base level. Level i has
+     * cells 2^(i+1) times the size.
+     */
+    private final double minX;
+    private final double minY;
+    private final double baseDx;
+    private final double baseDy;
+    /** Whether the base grid covers all longitudes, so should wrap */
+    private final boolean global;
+
+    private final int[] widths;
+    private final int[] heights;
+    private final FloatBuffer[] levels;
+
+    /**
+     * Opens an existing pyramid file
+     * 
+     * @param file
+     *            The pyramid file
+     * @param sourceKey
+     *            A description of the data the pyramid was built from
+     * @return The {@link DataPyramid}, or <code>null</code> if it was built
+     *         from different source data
+     * @throws IOException
+     *             If the file cannot be read, or is not a valid pyramid file
+     */
+    static DataPyramid open(File file, String sourceKey) throws IOException {
+        MappedByteBuffer buffer;
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r");
+                FileChannel channel = raf.getChannel()) {
+            /*
+             * The mapping remains valid once the channel is closed
+             */
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+            throw new IOException(file + " is not a data pyramid file of version " + VERSION);
+        }
+        byte[] key = new byte[buffer.getInt()];
+        buffer.get(key);
+        if (!sourceKey.equals(new String(key, StandardCharsets.UTF_8))) {
+            return null;
+        }
+        return new DataPyramid(buffer);
+    }
+
+    private DataPyramid(ByteBuffer buffer) throws IOException {
+        minX = buffer.getDouble();
+        minY = buffer.getDouble();
+        baseDx = buffer.getDouble();
+        baseDy = buffer.getDouble();
+        int nLevels = buffer.getInt();
+        widths = new int[nLevels];
+        heights = new int[nLevels];
+        for (int i = 0; i < nLevels; i++) {
+            widths[i] = buffer.getInt();
+            heights[i] = buffer.getInt();
+        }
+        levels = new FloatBuffer[nLevels];
+        int position = buffer.position();
+        for (int i = 0; i < nLevels; i++) {
+            int length = 4 * widths[i] * heights[i];
+            if (position + length > buffer.capacity()) {
+                throw new IOException("Data pyramid file is truncated");
+            }
+            ByteBuffer duplicate = buffer.duplicate();
+            duplicate.position(position);
+            duplicate.limit(position + length);
+            levels[i] = duplicate.slice().asFloatBuffer();
+            position += length;
+        }
+        global = nLevels > 0 && baseDx * 2 * widths[0] >= 359.999;
+    }
+
+    /**
+     * Builds a pyramid and writes it to a file
+     * 
+     * @param file
+     *            The file to write. This is written atomically
+     * @param sourceKey
+     *            A description of the data the pyramid is built from, which
+     *            must match when it is opened
+     * @param base
+     *            The values on the base grid, in row-major order starting from
+     *            the south-west corner. Missing data is represented by
+     *            {@link Float#NaN}. This is used as working space.
+     * @param width
+     *            The width of the base grid
+     * @param height
+     *            The height of the base grid
+     * @param bbox
+     *            The {@link BoundingBox} of the base grid, in WGS84
+     * @param tileSize
+     *            The size of a tile. Levels are added until one fits within
+     *            this.
+     * @return The {@link DataPyramid}
+     * @throws IOException
+     *             If the file cannot be written
+     */
+    static DataPyramid create(File file, String sourceKey, float[] base, int width, int height,
+            BoundingBox bbox, int tileSize) throws IOException {
+        List<int[]> sizes = new ArrayList<>();
+        file.getParentFile().mkdirs();
+        File tempFile = new File(file.getPath() + ".tmp");
+        byte[] key = sourceKey.getBytes(StandardCharsets.UTF_8);
+
+        /*
+         * Each level is downsampled in place from the one before it, and
+         * written in a second pass once all of the sizes are known
+         */
+        int w = width;
+        int h = height;
+        while (w > tileSize || h > tileSize) {
+            int nextW = (w + 1) / 2;
+            int nextH = (h + 1) / 2;
+            sizes.add(new int[] { nextW, nextH });
+            w = nextW;
+            h = nextH;
+        }
+
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(tempFile)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(key.length);
+            out.write(key);
+            out.writeDouble(bbox.getMinX());
+            out.writeDouble(bbox.getMinY());
+            out.writeDouble((bbox.getMaxX() - bbox.getMinX()) / width);
+            out.writeDouble((bbox.getMaxY() - bbox.getMinY()) / height);
+            out.writeInt(sizes.size());
+            for (int[] size : sizes) {
+                out.writeInt(size[0]);
+                out.writeInt(size[1]);
+            }
+            w = width;
+            h = height;
+            for (int[] size : sizes) {
+                downsample(base, w, h, size[0], size[1]);
+                w = size[0];
+                h = size[1];
+                for (int i = 0; i < w * h; i++) {
+                    out.writeFloat(base[i]);
+                }
+            }
+        }
+        Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+        return open(file, sourceKey);
+    }
+
+    /**
+     * Halves the resolution of a grid in place, taking the mean of the
+     * non-missing values in each 2x2 block
+     */
+    private static void downsample(float[] values, int width, int height, int newWidth,
+            int newHeight) {
+        for (int j = 0; j < newHeight; j++) {
+            int row0 = 2 * j * width;
+            int row1 = 2 * j + 1 < height ? row0 + width : -1;
+            for (int i = 0; i < newWidth; i++) {
+                int col0 = 2 * i;
+                boolean hasCol1 = col0 + 1 < width;
+                float sum = 0f;
+                int n = 0;
+                float value = values[row0 + col0];
+                if (!Float.isNaN(value)) {
+                    sum += value;
+                    n++;
+                }
+                if (hasCol1) {
+                    value = values[row0 + col0 + 1];
+                    if (!Float.isNaN(value)) {
+                        sum += value;
+                        n++;
+                    }
+                }
+                if (row1 >= 0) {
+                    value = values[row1 + col0];
+                    if (!Float.isNaN(value)) {
+                        sum += value;
+                        n++;
+                    }
+                    if (hasCol1) {
+                        value = values[row1 + col0 + 1];
+                        if (!Float.isNaN(value)) {
+                            sum += value;
+                            n++;
+                        }
+                    }
+                }
+                /*
+                 * Rows of the new grid are written before they are read
+                 * again, since j * newWidth + i <= 2 * j * width + 2 * i
+                 */
+                values[j * newWidth + i] = n == 0 ? Float.NaN : sum / n;
+            }
+        }
+    }
+
+    /**
+     * Resamples a regular lat-lon grid from the coarsest level of the pyramid
+     * which is at least as fine as the grid
+     * 
+     * @param width
+     *            The number of cells in the longitude direction
+     * @param height
+     *            The number of cells in the latitude direction
+     * @param bbox
+     *            The {@link BoundingBox} of the target grid, in WGS84
+     * @param values
+     *            An array of at least width*height elements to read the values
+     *            into, in row-major order starting from the south-west corner.
+     *            Missing data is represented by {@link Float#NaN}
+     * @return <code>true</code> if the values were read, or
+     *         <code>false</code> if the grid needs the native resolution and
+     *         should be read from the source data
+     */
+    boolean resample(int width, int height, BoundingBox bbox, float[] values) {
+        double dx = (bbox.getMaxX() - bbox.getMinX()) / width;
+        double dy = (bbox.getMaxY() - bbox.getMinY()) / height;
+        int level = -1;
+        for (int i = levels.length - 1; i >= 0; i--) {
+            double scale = 1 << (i + 1);
+            if (baseDx * scale <= dx && baseDy * scale <= dy) {
+                level = i;
+                break;
+            }
+        }
+        if (level < 0) {
+            return false;
+        }
+
+        FloatBuffer levelValues = levels[level];
+        int levelWidth = widths[level];
+        int levelHeight = heights[level];
+        double cellDx = baseDx * (1 << (level + 1));
+        double cellDy = baseDy * (1 << (level + 1));
+
+        int[] cols = new int[width];
+        for (int i = 0; i < width; i++) {
+            double lon = bbox.getMinX() + (i + 0.5) * dx - minX;
+            if (global) {
+                lon = ((lon % 360.0) + 360.0) % 360.0;
+            }
+            int col = (int) Math.floor(lon / cellDx);
+            cols[i] = col < 0 || col >= levelWidth ? -1 : col;
+        }
+        for (int j = 0; j < height; j++) {
+            int row = (int) Math.floor((bbox.getMinY() + (j + 0.5) * dy - minY) / cellDy);
+            int rowStart = j * width;
+            if (row < 0 || row >= levelHeight) {
+                for (int i = 0; i < width; i++) {
+                    values[rowStart + i] = Float.NaN;
+                }
+                continue;
+            }
+            int levelRowStart = row * levelWidth;
+            for (int i = 0; i < width; i++) {
+                values[rowStart + i] = cols[i] < 0 ? Float.NaN : levelValues.get(levelRowStart
+                        + cols[i]);
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,199 @@
+/*******************************************************************************
+ * Copyright (c) 2014 The University of Reading
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+
+package uk.ac.rdg.resc;
+
+import java.util.Arrays;
+
+import uk.ac.rdg.resc.edal.geometry.BoundingBox;
+
+/**
+ * A coarse summary of a single elevation/time of a gridded layer: the range
+ * of the values in each block of a global lat-lon grid, and whether any of
+ * the block has no data.
+ * 
+ * This is used to tell when a tile will be uniform (e.g. entirely no-data, or
+ * entirely above the colour scale) without reading it. To make sure that this
+ * is never wrong, regions are expanded by the sample spacing of the values
+ * the summary was built from before they are summarised.
+ * 
+ * @author Guy Griffiths
+ */
+class DataSummary {
+    /** The size of the summary blocks, in degrees */
+    static final double BLOCK_SIZE = 1.0;
+    private static final int X_BLOCKS = (int) (360 / BLOCK_SIZE);
+    private static final int Y_BLOCKS = (int) (180 / BLOCK_SIZE);
+
+    /*
+     * The range of the valid values in each block (NaN if there are none),
+     * and whether the block has any missing data
+     */
+    private final float[] mins;
+    private final float[] maxs;
+    private final boolean[] incomplete;
+    /** Whether any values have been added to each block */
+    private final boolean[] covered;
+    /** The distance to expand regions by before summarising them */
+    private final double margin;
+
+    /**
+     * Creates an empty summary, to be filled in with
+     * {@link #add(float[], int, int, BoundingBox)}. Blocks with no values
+     * added are treated as having no data.
+     * 
+     * @param sampleSpacing
+     *            The spacing (in degrees) of the values which will be added
+     */
+    DataSummary(double sampleSpacing) {
+        mins = new float[X_BLOCKS * Y_BLOCKS];
+        maxs = new float[X_BLOCKS * Y_BLOCKS];
+        incomplete = new boolean[X_BLOCKS * Y_BLOCKS];
+        covered = new boolean[X_BLOCKS * Y_BLOCKS];
+        Arrays.fill(mins, Float.NaN);
+        Arrays.fill(maxs, Float.NaN);
+        Arrays.fill(incomplete, true);
+        margin = 2 * sampleSpacing;
+    }
+
+    /**
+     * Adds a regular lat-lon grid of values to the summary. Each value is
+     * added to the block containing its centre.
+     * 
+     * @param values
+     *            The values, in row-major order starting from the south-west
+     *            corner. Missing data is represented by {@link Float#NaN}
+     * @param width
+     *            The width of the grid
+     * @param height
+     *            The height of the grid
+     * @param bbox
+     *            The {@link BoundingBox} of the grid, in WGS84
+     */
+    void add(float[] values, int width, int height, BoundingBox bbox) {
+        double dx = (bbox.getMaxX() - bbox.getMinX()) / width;
+        double dy = (bbox.getMaxY() - bbox.getMinY()) / height;
+        int[] xBlocks = new int[width];
+        for (int i = 0; i < width; i++) {
+            xBlocks[i] = getXBlock(bbox.getMinX() + (i + 0.5) * dx);
+        }
+        for (int j = 0; j < height; j++) {
+            int yBlock = getYBlock(bbox.getMinY() + (j + 0.5) * dy);
+            int rowStart = j * width;
+            for (int i = 0; i < width; i++) {
+                int block = yBlock * X_BLOCKS + xBlocks[i];
+                if (!covered[block]) {
+                    /*
+                     * Blocks start out incomplete, since they may not be
+                     * covered at all. Once any value is added to a block, it
+                     * is incomplete only if a missing value is.
+                     */
+                    covered[block] = true;
+                    incomplete[block] = false;
+                }
+                float value = values[rowStart + i];
+                if (Float.isNaN(value)) {
+                    incomplete[block] = true;
+                } else {
+                    if (!(value >= mins[block])) {
+                        mins[block] = value;
+                    }
+                    if (!(value <= maxs[block])) {
+                        maxs[block] = value;
+                    }
+                }
+            }
+        }
+    }
+
+    private static int getXBlock(double lon) {
+        lon = ((lon + 180.0) % 360.0 + 360.0) % 360.0;
+        return Math.min((int) (lon / BLOCK_SIZE), X_BLOCKS - 1);
+    }
+
+    private static int getYBlock(double lat) {
+        int block = (int) Math.floor((lat + 90.0) / BLOCK_SIZE);
+        return block < 0 ? 0 : (block >= Y_BLOCKS ? Y_BLOCKS - 1 : block);
+    }
+
+    /**
+     * Summarises the values in a region
+     * 
+     * @param bbox
+     *            The {@link BoundingBox} of the region, in WGS84
+     * @return A {@link Region} summarising any values which may be drawn in
+     *         the region
+     */
+    Region getRegion(BoundingBox bbox) {
+        int minYBlock = getYBlock(bbox.getMinY() - margin);
+        int maxYBlock = getYBlock(bbox.getMaxY() + margin);
+        double minX = bbox.getMinX() - margin;
+        double maxX = bbox.getMaxX() + margin;
+        int nXBlocks = maxX - minX >= 360.0 ? X_BLOCKS
+                : (int) (Math.floor((maxX + 180.0) / BLOCK_SIZE) - Math
+                        .floor((minX + 180.0) / BLOCK_SIZE)) + 1;
+        int firstXBlock = getXBlock(minX);
+
+        float min = Float.NaN;
+        float max = Float.NaN;
+        boolean complete = true;
+        for (int y = minYBlock; y <= maxYBlock; y++) {
+            for (int x = 0; x < nXBlocks; x++) {
+                int block = y * X_BLOCKS + (firstXBlock + x) % X_BLOCKS;
+                complete &= !incomplete[block];
+                float blockMin = mins[block];
+                if (!Float.isNaN(blockMin)) {
+                    if (!(blockMin >= min)) {
+                        min = blockMin;
+                    }
+                    if (!(maxs[block] <= max)) {
+                        max = maxs[block];
+                    }
+                }
+            }
+        }
+        return new Region(min, max, complete);
+    }
+
+    /**
+     * The summary of a region
+     */
+    static class Region {
+        /** The range of the values in the region. NaN if there are none */
+        final float min;
+        final float max;
+        /** Whether the region has no missing data */
+        final boolean complete;
+
+        Region(float min, float max, boolean complete) {
+            this.min = min;
+            this.max = max;
+            this.complete = complete;
+        }
+    }
+}
@@ -40,15 +40,27 @@ import gov.nasa.worldwind.layers.LayerList;
 import gov.nasa.worldwind.layers.TextureTile;
 import gov.nasa.worldwind.layers.TiledImageLayer;
 import gov.nasa.worldwind.render.DrawContext;
+import gov.nasa.worldwind.util.Level;
 import gov.nasa.worldwind.util.LevelSet;
 import gov.nasa.worldwind.util.Logging;
 
 import java.awt.Color;
 import java.awt.Graphics2D;
 import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
 import java.io.Serializable;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import net.sf.ehcache.Cache;
 import net.sf.ehcache.CacheManager;
@@ -56,6 +68,7 @@ import net.sf.ehcache.Element;
 
 import org.geotoolkit.referencing.crs.DefaultGeographicCRS;
 import org.joda.time.DateTime;
+import org.opengis.metadata.extent.GeographicBoundingBox;
 
 import uk.ac.rdg.resc.edal.domain.Extent;
 import uk.ac.rdg.resc.edal.exceptions.EdalException;
@@ -65,6 +78,7 @@ import uk.ac.rdg.resc.edal.graphics.style.MapImage;
 import uk.ac.rdg.resc.edal.graphics.style.util.EnhancedVariableMetadata;
 import uk.ac.rdg.resc.edal.graphics.style.util.PlottingStyleParameters;
 import uk.ac.rdg.resc.edal.graphics.style.util.SldTemplateStyleCatalogue;
+import uk.ac.rdg.resc.edal.grid.HorizontalGrid;
 import uk.ac.rdg.resc.edal.grid.TimeAxis;
 import uk.ac.rdg.resc.edal.grid.VerticalAxis;
 import uk.ac.rdg.resc.edal.metadata.GridVariableMetadata;
@@ -72,6 +86,7 @@ import uk.ac.rdg.resc.edal.metadata.VariableMetadata;
 import uk.ac.rdg.resc.edal.util.GISUtils;
 import uk.ac.rdg.resc.edal.util.PlottingDomainParams;
 import uk.ac.rdg.resc.logging.RescLogging;
+import uk.ac.rdg.resc.util.ColourLut;
 
 import com.jogamp.opengl.util.texture.TextureData;
 import com.jogamp.opengl.util.texture.awt.AWTTextureIO;
@@ -82,8 +97,59 @@ import com.jogamp.opengl.util.texture.awt.AWTTextureIO;
  * @author Guy Griffiths
  */
 public class EdalGridDataLayer extends TiledImageLayer implements EdalDataLayer {
+    /**
+     * The name of the default style for scalar fields. This is a plain
+     * raster, so tiles in this style are coloured directly rather than via a
+     * {@link MapImage}
+     */
+    private static final String RASTER_STYLE = "default-scalar";
+    /** Working space for reading tile values, one per tile loading thread */
+    private static final ThreadLocal<float[]> TILE_VALUES = new ThreadLocal<float[]>() {
+        @Override
+        protected float[] initialValue() {
+            return new float[0];
+        }
+    };
+
+    /** Single-colour tile images, keyed by colour and size */
+    private static final Map<Long, BufferedImage> SOLID_TILES = new ConcurrentHashMap<>();
+
+    /*
+     * Raster tiles are read in aligned groups of up to BATCH_SIZE x BATCH_SIZE
+     * tiles. Loading threads lock on their group (or one which shares its
+     * lock) while reading it.
+     */
+    private static final int BATCH_SIZE = 4;
+    private static final int N_BATCH_LOCKS = 64;
+    /**
+     * The time (in ms) after which a requested tile which has not been loaded
+     * is no longer considered to be pending
+     */
+    private static final long PENDING_TIMEOUT = 2000L;
+    /**
+     * The time (in ms) after which a tile which has not been requested is no
+     * longer worth reading ahead for
+     */
+    private static final long PREFETCH_TIMEOUT = 10000L;
+    /** The number of time steps after the current one to read tiles ahead for */
+    private static final int PREFETCH_STEPS = Configuration.getIntegerValue(
+            "uk.ac.rdg.resc.edal.multiglobe.TimePrefetchSteps", 3);
+    /**
+     * Reads tiles at future time steps. This is a single thread so that
+     * prefetching never competes much with reading the tiles which are in
+     * view.
+     */
+    private static final ExecutorService PREFETCHER = Executors.newSingleThreadExecutor();
+
     static int gridLayerNumber = 0;
 
+    /*
+     * The size (in degrees) of level-zero tiles, and the maximum number of
+     * levels, for data which is not on a lat-lon grid
+     */
+    private static final double LEVEL_ZERO_DELTA = 60.0;
+    private static final int MAX_LEVELS = 10;
+
     /** The ID of the layer in the EDAL system */
     private final String layerName;
     /** The {@link VideoWallCatalogue} containing the layer */
@@ -117,12 +183,42 @@ public class EdalGridDataLayer extends TiledImageLayer implements EdalDataLayer
 
     /** The {@link MapImage} which will be used to generate the images */
     private MapImage mapImage;
+    /**
+     * The current colour scale, with a lookup table of its colours for
+     * colouring data values without going through the {@link MapImage}
+     */
+    private volatile Colouring colouring;
 
     /**
      * Cache for generated images
      */
     private Cache imageCache;
     private String plotStyleName;
+    /**
+     * The first level whose pixels are no bigger than the data's grid cells.
+     * Tiles on deeper levels are magnified from their ancestor on this level.
+     */
+    private final int nativeLevel;
+    /**
+     * The tiles which have been requested but not yet loaded, with the time
+     * they were last requested
+     */
+    private final Map<TextureTile, Long> pendingTiles = new ConcurrentHashMap<>();
+    /**
+     * The locks for reading groups of tiles. These belong to the layer, so
+     * that other layers (and the same layer in other panels) never wait for
+     * this one's reads.
+     */
+    private final Object[] batchLocks = new Object[N_BATCH_LOCKS];
+    /**
+     * The tiles which have been requested, with the time they were last
+     * requested, so that tiles which have gone out of view are not read
+     * ahead
+     */
+    private final Map<TextureTile, Long> requestedTiles = new ConcurrentHashMap<>();
+    /** The keys of the images which are waiting to be read ahead */
+    private final Set<CacheKey> prefetching = Collections
+            .newSetFromMap(new ConcurrentHashMap<CacheKey, Boolean>());
 
     private SldTemplateStyleCatalogue styleCatalogue;
 
@@ -157,6 +253,7 @@ public class EdalGridDataLayer extends TiledImageLayer implements EdalDataLayer
          * been done in makeLevelSet
          */
         metadata = (GridVariableMetadata) catalogue.getVariableMetadataForLayer(layerName);
+        nativeLevel = getNativeLevel(getLevels(), metadata.getHorizontalDomain());
 
         zAxis = metadata.getVerticalDomain();
         tAxis = metadata.getTemporalDomain();
@@ -211,6 +308,9 @@ public class EdalGridDataLayer extends TiledImageLayer implements EdalDataLayer
 
         setForceLevelZeroLoads(true);
         setRetainLevelZeroTiles(true);
+        for (int i = 0; i < batchLocks.length; i++) {
+            batchLocks[i] = new Object();
+        }
     }
 
     @Override
@@ -307,6 +407,8 @@ public class EdalGridDataLayer extends TiledImageLayer implements EdalDataLayer
     }
 
     private void mapImageChanged() {
+        PlottingStyleParameters plottingParams = getPlottingMetadata();
+        colouring = new Colouring(plottingParams, new ColourLut(plottingParams));
         try {
             mapImage = styleCatalogue.getMapImageFromStyle(plotStyleName, getPlottingMetadata(),
                     catalogue.getVariableMetadataForLayer(layerName),
@@ -365,40 +467,586 @@ public class EdalGridDataLayer extends TiledImageLayer implements EdalDataLayer
 
         int width = tile.getLevel().getTileWidth();
         int height = tile.getLevel().getTileHeight();
-        Sector s = tile.getSector();
-        BoundingBox bbox = new BoundingBoxImpl(s.getMinLongitude().degrees,
-                s.getMinLatitude().degrees, s.getMaxLongitude().degrees,
-                s.getMaxLatitude().degrees, DefaultGeographicCRS.WGS84);
+        BoundingBox bbox = getBbox(tile.getSector());
+        /*
+         * The time, elevation or colour scale may change while the tile is
+         * being drawn, so the whole tile is drawn (and cached) for the values
+         * they have now
+         */
+        Double tileElevation = elevation;
+        DateTime tileTime = time;
+        Colouring tileColouring = colouring;
+
+        try {
+            if (RASTER_STYLE.equals(plotStyleName)) {
+                BufferedImage uniformTile = getUniformTile(width, height, bbox, tileElevation,
+                        tileTime, tileColouring.lut);
+                if (uniformTile != null) {
+                    return uniformTile;
+                }
+                if (tile.getLevelNumber() > nativeLevel) {
+                    return drawOverzoomTile(tile, tileElevation, tileTime, tileColouring);
+                }
+                if (!catalogue.isInMemory(layerName)) {
+                    return getBatchedTileImage(tile, tileElevation, tileTime, tileColouring);
+                }
+            }
+            return getTileImage(width, height, bbox, tileElevation, tileTime, tileColouring);
+        } catch (EdalException e) {
+            /*
+             * Problem generating an image. Log and return a standard image
+             */
+            String message = RescLogging.getMessage("resc.DataReadingProblem");
+            Logging.logger().warning(message);
+            return missingImage(tile);
+        }
+    }
 
+    /**
+     * Gets the image for a tile from the cache, or draws it if it is not
+     * cached
+     * 
+     * @param width
+     *            The width of the tile
+     * @param height
+     *            The height of the tile
+     * @param bbox
+     *            The {@link BoundingBox} of the tile
+     * @param tileElevation
+     *            The elevation to draw the tile at
+     * @param tileTime
+     *            The time to draw the tile at
+     * @param tileColouring
+     *            The colour scale to draw the tile with
+     * @return The tile image
+     * @throws EdalException
+     *             If there is a problem reading the data
+     */
+    private BufferedImage getTileImage(int width, int height, BoundingBox bbox,
+            Double tileElevation, DateTime tileTime, Colouring tileColouring)
+            throws EdalException {
         PlottingDomainParams params = new PlottingDomainParams(width, height, bbox, null, null,
-                null, elevation, time);
+                null, tileElevation, tileTime);
 
-        CacheKey key = new CacheKey(layerName, params, scaleRange, palette, underColor, overColor,
-                logScale, numColorBands);
-        BufferedImage image;
+        CacheKey key = getCacheKey(params, tileColouring);
         Element element = imageCache.get(key);
         if (element != null && element.getObjectValue() != null) {
-            image = (BufferedImage) element.getObjectValue();
+            return (BufferedImage) element.getObjectValue();
+        }
+        BufferedImage image;
+        if (RASTER_STYLE.equals(plotStyleName)) {
+            image = drawRasterTile(params, tileColouring.lut);
         } else {
-            try {
-                image = mapImage.drawImage(params, catalogue);
-                imageCache.put(new Element(key, image));
-            } catch (EdalException e) {
+            image = mapImage.drawImage(params, catalogue);
+        }
+        imageCache.put(new Element(key, image));
+        return image;
+    }
+
+    private CacheKey getCacheKey(PlottingDomainParams params, Colouring tileColouring) {
+        PlottingStyleParameters style = tileColouring.params;
+        return new CacheKey(layerName, params, style.getColorScaleRange(), style.getPalette(),
+                style.getBelowMinColour(), style.getAboveMaxColour(), style.isLogScaling(),
+                style.getNumColorBands());
+    }
+
+    /**
+     * Gets the image for a raster tile, reading it together with the other
+     * pending tiles in its group. Tiles on each level are grouped into aligned
+     * blocks of {@link EdalGridDataLayer#BATCH_SIZE} x
+     * {@link EdalGridDataLayer#BATCH_SIZE}. The first tile of a group to be
+     * loaded reads the smallest region covering all of the group's pending
+     * tiles in a single extraction, and caches all of their images, so that
+     * the rest are loaded from the cache. The same tiles at the next few time
+     * steps are then read in the background, whether or not this one was
+     * cached.
+     * 
+     * @param tile
+     *            The {@link TextureTile} to draw
+     * @param tileElevation
+     *            The elevation to draw the tile at
+     * @param tileTime
+     *            The time to draw the tile at
+     * @param tileColouring
+     *            The colour scale to draw the tile with
+     * @return The tile image
+     * @throws EdalException
+     *             If there is a problem reading the data
+     */
+    private BufferedImage getBatchedTileImage(TextureTile tile, Double tileElevation,
+            DateTime tileTime, Colouring tileColouring) throws EdalException {
+        int levelNumber = tile.getLevelNumber();
+        int groupRow = tile.getRow() / BATCH_SIZE;
+        int groupCol = tile.getColumn() / BATCH_SIZE;
+        Object lock = batchLocks[Math.abs((31 * (31 * levelNumber + groupRow) + groupCol)
+                % N_BATCH_LOCKS)];
+        synchronized (lock) {
+            /*
+             * Another tile of this group may have read this one already
+             */
+            Sector s = tile.getSector();
+            int width = tile.getLevel().getTileWidth();
+            int height = tile.getLevel().getTileHeight();
+            Element element = imageCache.get(getCacheKey(tile, tileElevation, tileTime,
+                    tileColouring));
+            if (element != null && element.getObjectValue() != null) {
+                /*
+                 * Read ahead for tiles found in the cache too, since when
+                 * animating these are usually ones which were read ahead
+                 */
+                prefetchTimes(Collections.singletonList(tile), tile.getRow(), tile.getColumn(),
+                        width, height, getBbox(s), tileElevation, tileTime, tileColouring);
+                return (BufferedImage) element.getObjectValue();
+            }
+
+            List<TextureTile> batch = new ArrayList<>();
+            batch.add(tile);
+            long now = System.currentTimeMillis();
+            for (Entry<TextureTile, Long> pending : pendingTiles.entrySet()) {
+                TextureTile other = pending.getKey();
+                if (now - pending.getValue() > PENDING_TIMEOUT) {
+                    /*
+                     * No longer being requested, so probably out of view
+                     */
+                    pendingTiles.remove(other, pending.getValue());
+                } else if (other.getLevelNumber() == levelNumber
+                        && other.getRow() / BATCH_SIZE == groupRow
+                        && other.getColumn() / BATCH_SIZE == groupCol && !other.equals(tile)) {
+                    batch.add(other);
+                }
+            }
+            int minRow = tile.getRow();
+            int maxRow = minRow;
+            int minCol = tile.getColumn();
+            int maxCol = minCol;
+            double minLon = s.getMinLongitude().degrees;
+            double maxLon = s.getMaxLongitude().degrees;
+            double minLat = s.getMinLatitude().degrees;
+            double maxLat = s.getMaxLatitude().degrees;
+            for (TextureTile other : batch) {
+                Sector otherSector = other.getSector();
+                minRow = Math.min(minRow, other.getRow());
+                maxRow = Math.max(maxRow, other.getRow());
+                minCol = Math.min(minCol, other.getColumn());
+                maxCol = Math.max(maxCol, other.getColumn());
+                minLon = Math.min(minLon, otherSector.getMinLongitude().degrees);
+                maxLon = Math.max(maxLon, otherSector.getMaxLongitude().degrees);
+                minLat = Math.min(minLat, otherSector.getMinLatitude().degrees);
+                maxLat = Math.max(maxLat, otherSector.getMaxLatitude().degrees);
+            }
+            int regionWidth = (maxCol - minCol + 1) * width;
+            int regionHeight = (maxRow - minRow + 1) * height;
+            BoundingBox regionBbox = new BoundingBoxImpl(minLon, minLat, maxLon, maxLat,
+                    DefaultGeographicCRS.WGS84);
+            float[] regionValues = new float[regionWidth * regionHeight];
+            catalogue.readValues(layerName, regionWidth, regionHeight, regionBbox,
+                    tileElevation, tileTime, regionValues);
+            if (batch.size() > 1) {
+                Logging.logger().fine(
+                        RescLogging.getMessage("resc.TileBatchRead", batch.size(), layerName,
+                                regionWidth, regionHeight));
+            }
+
+            List<BufferedImage> images = sliceTiles(batch, minRow, minCol, regionWidth,
+                    regionValues, tileColouring.lut);
+            for (int i = 0; i < batch.size(); i++) {
+                imageCache.put(new Element(getCacheKey(batch.get(i), tileElevation, tileTime,
+                        tileColouring), images.get(i)));
+            }
+            prefetchTimes(batch, minRow, minCol, regionWidth, regionHeight, regionBbox,
+                    tileElevation, tileTime, tileColouring);
+            return images.get(0);
+        }
+    }
+
+    /**
+     * Slices the values of a region into tile images
+     * 
+     * @param tiles
+     *            The tiles to slice out of the region
+     * @param minRow
+     *            The row of the southernmost tiles in the region
+     * @param minCol
+     *            The column of the westernmost tiles in the region
+     * @param regionWidth
+     *            The width of the region
+     * @param regionValues
+     *            The values of the region, in row-major order starting from
+     *            the south-west corner
+     * @param lut
+     *            The {@link ColourLut} to colour the values with
+     * @return The image of each tile, in the same order as the tiles
+     */
+    private static List<BufferedImage> sliceTiles(List<TextureTile> tiles, int minRow,
+            int minCol, int regionWidth, float[] regionValues, ColourLut lut) {
+        List<BufferedImage> images = new ArrayList<>();
+        float[] values = null;
+        for (TextureTile tile : tiles) {
+            int width = tile.getLevel().getTileWidth();
+            int height = tile.getLevel().getTileHeight();
+            if (values == null) {
+                values = new float[width * height];
+            }
+            /*
+             * Rows are numbered northwards, as are the rows of values
+             */
+            int xOffset = (tile.getColumn() - minCol) * width;
+            int yOffset = (tile.getRow() - minRow) * height;
+            for (int j = 0; j < height; j++) {
+                System.arraycopy(regionValues, (yOffset + j) * regionWidth + xOffset, values, j
+                        * width, width);
+            }
+            BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+            lut.colourGrid(values, width, height,
+                    ((DataBufferInt) image.getRaster().getDataBuffer()).getData());
+            images.add(image);
+        }
+        return images;
+    }
+
+    /**
+     * Reads the same tiles at the next few time steps in the background, and
+     * caches their images. This means that stepping forward through time
+     * (e.g. when animating) finds the tiles already drawn. Steps whose images
+     * are all cached or already waiting to be read are skipped.
+     * 
+     * By the time the read runs the view may have moved on, so it checks
+     * again what is still needed. It is dropped if the elevation or colour
+     * scale has changed, and it skips steps which are no longer after the
+     * current time, steps which have been cached since, and tiles which have
+     * not been requested recently.
+     * 
+     * @param tiles
+     *            The tiles which have just been drawn at the current time
+     * @param minRow
+     *            The row of the southernmost tiles
+     * @param minCol
+     *            The column of the westernmost tiles
+     * @param regionWidth
+     *            The width of the region covering the tiles
+     * @param regionHeight
+     *            The height of the region covering the tiles
+     * @param regionBbox
+     *            The {@link BoundingBox} of the region
+     * @param z
+     *            The elevation the tiles were drawn at
+     * @param tileTime
+     *            The time the tiles were drawn at
+     * @param tileColouring
+     *            The colour scale the tiles were drawn with
+     */
+    private void prefetchTimes(final List<TextureTile> tiles, final int minRow,
+            final int minCol, final int regionWidth, final int regionHeight,
+            final BoundingBox regionBbox, final Double z, DateTime tileTime,
+            final Colouring tileColouring) {
+        if (PREFETCH_STEPS <= 0 || tAxis == null || tileTime == null) {
+            return;
+        }
+        int tIndex = tAxis.findIndexOf(tileTime);
+        if (tIndex < 0) {
+            return;
+        }
+        /*
+         * The cache keys are taken now, for the colour scale the images will
+         * be drawn with
+         */
+        final List<DateTime> times = new ArrayList<>();
+        final List<List<CacheKey>> keys = new ArrayList<>();
+        final List<CacheKey> claimed = new ArrayList<>();
+        int lastIndex = Math.min(tIndex + PREFETCH_STEPS, tAxis.getCoordinateValues().size() - 1);
+        for (int i = tIndex + 1; i <= lastIndex; i++) {
+            DateTime stepTime = tAxis.getCoordinateValue(i);
+            List<CacheKey> stepKeys = new ArrayList<>();
+            boolean needed = false;
+            for (TextureTile tile : tiles) {
+                CacheKey key = getCacheKey(tile, z, stepTime, tileColouring);
+                needed |= !imageCache.isKeyInCache(key) && !prefetching.contains(key);
+                stepKeys.add(key);
+            }
+            if (needed) {
+                for (CacheKey key : stepKeys) {
+                    if (prefetching.add(key)) {
+                        claimed.add(key);
+                    }
+                }
+                times.add(stepTime);
+                keys.add(stepKeys);
+            }
+        }
+        if (times.isEmpty()) {
+            return;
+        }
+        PREFETCHER.submit(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    readAhead();
+                } catch (EdalException e) {
+                    /*
+                     * The tiles will be read if they are needed
+                     */
+                    String message = RescLogging.getMessage("resc.DataReadingProblem");
+                    Logging.logger().fine(message);
+                } finally {
+                    prefetching.removeAll(claimed);
+                }
+            }
+
+            private void readAhead() throws EdalException {
+                DateTime currentTime = time;
+                boolean sameElevation = z == null ? elevation == null : z.equals(elevation);
+                if (tileColouring != colouring || !sameElevation || currentTime == null) {
+                    return;
+                }
+                /*
+                 * Only the tiles which are still being requested
+                 */
+                long now = System.currentTimeMillis();
+                Iterator<Long> requestTimes = requestedTiles.values().iterator();
+                while (requestTimes.hasNext()) {
+                    if (now - requestTimes.next() > PREFETCH_TIMEOUT) {
+                        requestTimes.remove();
+                    }
+                }
+                List<Integer> tileIndices = new ArrayList<>();
+                List<TextureTile> inView = new ArrayList<>();
+                for (int j = 0; j < tiles.size(); j++) {
+                    if (requestedTiles.containsKey(tiles.get(j))) {
+                        tileIndices.add(j);
+                        inView.add(tiles.get(j));
+                    }
+                }
+                if (inView.isEmpty()) {
+                    return;
+                }
+                /*
+                 * Only the steps which are still ahead and not yet cached
+                 */
+                List<DateTime> stepTimes = new ArrayList<>();
+                List<List<CacheKey>> stepKeys = new ArrayList<>();
+                for (int i = 0; i < times.size(); i++) {
+                    if (!times.get(i).isAfter(currentTime)) {
+                        continue;
+                    }
+                    List<CacheKey> tileKeys = new ArrayList<>();
+                    boolean cached = true;
+                    for (int j : tileIndices) {
+                        CacheKey key = keys.get(i).get(j);
+                        cached &= imageCache.isKeyInCache(key);
+                        tileKeys.add(key);
+                    }
+                    if (!cached) {
+                        stepTimes.add(times.get(i));
+                        stepKeys.add(tileKeys);
+                    }
+                }
+                if (stepTimes.isEmpty()) {
+                    return;
+                }
+
                 /*
-                 * Problem generating an image. Log and return a standard image
+                 * Each step is a separate read, since the datasets only
+                 * extract one time at a time. Between reads, stop if the
+                 * colouring or elevation has changed, and skip steps which the
+                 * layer has already reached.
                  */
-                String message = RescLogging.getMessage("resc.DataReadingProblem");
-                Logging.logger().warning(message);
-                return missingImage(tile);
+                float[] values = new float[regionWidth * regionHeight];
+                for (int i = 0; i < stepTimes.size(); i++) {
+                    if (i > 0) {
+                        sameElevation = z == null ? elevation == null : z.equals(elevation);
+                        if (tileColouring != colouring || !sameElevation) {
+                            return;
+                        }
+                        currentTime = time;
+                        if (currentTime != null && !stepTimes.get(i).isAfter(currentTime)) {
+                            continue;
+                        }
+                    }
+                    catalogue.readValues(layerName, regionWidth, regionHeight, regionBbox, z,
+                            stepTimes.get(i), values);
+                    List<BufferedImage> images = sliceTiles(inView, minRow, minCol,
+                            regionWidth, values, tileColouring.lut);
+                    for (int j = 0; j < inView.size(); j++) {
+                        imageCache.put(new Element(stepKeys.get(i).get(j), images.get(j)));
+                    }
+                }
+            }
+        });
+    }
+
+    private CacheKey getCacheKey(TextureTile tile, Double tileElevation, DateTime tileTime,
+            Colouring tileColouring) {
+        return getCacheKey(new PlottingDomainParams(tile.getLevel().getTileWidth(), tile
+                .getLevel().getTileHeight(), getBbox(tile.getSector()), null, null, null,
+                tileElevation, tileTime), tileColouring);
+    }
+
+    private static BoundingBox getBbox(Sector s) {
+        return new BoundingBoxImpl(s.getMinLongitude().degrees, s.getMinLatitude().degrees,
+                s.getMaxLongitude().degrees, s.getMaxLatitude().degrees,
+                DefaultGeographicCRS.WGS84);
+    }
+
+    /**
+     * Gets the image for a raster tile without reading any data, if the
+     * summary of the layer shows that it is a single colour (usually because
+     * it contains no data at all, e.g. over land for ocean data).
+     * 
+     * @param width
+     *            The width of the tile
+     * @param height
+     *            The height of the tile
+     * @param bbox
+     *            The {@link BoundingBox} of the tile
+     * @param tileElevation
+     *            The elevation to draw the tile at
+     * @param tileTime
+     *            The time to draw the tile at
+     * @param lut
+     *            The {@link ColourLut} to colour the tile with
+     * @return The tile image, or <code>null</code> if the tile needs to be
+     *         drawn from the data
+     */
+    private BufferedImage getUniformTile(int width, int height, BoundingBox bbox,
+            Double tileElevation, DateTime tileTime, ColourLut lut) {
+        DataSummary summary = catalogue.getSummary(layerName, tileElevation, tileTime);
+        if (summary == null || lut == null) {
+            return null;
+        }
+        DataSummary.Region region = summary.getRegion(bbox);
+        int colour;
+        if (Float.isNaN(region.min)) {
+            colour = lut.getNoDataColour();
+        } else if (region.complete && lut.isUniform(region.min, region.max)) {
+            colour = lut.getColour(region.min);
+        } else {
+            return null;
+        }
+        /*
+         * Uniform tiles are never modified, so they can be shared
+         */
+        Long key = (colour & 0xffffffffL) << 32 | width << 16 | height;
+        BufferedImage image = SOLID_TILES.get(key);
+        if (image == null) {
+            image = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+            Arrays.fill(((DataBufferInt) image.getRaster().getDataBuffer()).getData(), colour);
+            SOLID_TILES.put(key, image);
+        }
+        return image;
+    }
+
+    /**
+     * Draws a tile which is beyond the native resolution of the data, by
+     * nearest-neighbour magnification of its ancestor on the native level. The
+     * ancestor is cached, so it is only extracted once for all of its
+     * descendants.
+     * 
+     * This is only used for the raster style, since other styles (e.g.
+     * arrows) do not magnify well.
+     * 
+     * @param tile
+     *            The {@link TextureTile} to draw
+     * @param tileElevation
+     *            The elevation to draw the tile at
+     * @param tileTime
+     *            The time to draw the tile at
+     * @param tileColouring
+     *            The colour scale to draw the tile with
+     * @return The tile image
+     * @throws EdalException
+     *             If there is a problem reading the data
+     */
+    private BufferedImage drawOverzoomTile(TextureTile tile, Double tileElevation,
+            DateTime tileTime, Colouring tileColouring) throws EdalException {
+        Level level = getLevels().getLevel(nativeLevel);
+        double deltaLat = level.getTileDelta().getLatitude().degrees;
+        double deltaLon = level.getTileDelta().getLongitude().degrees;
+        LatLon origin = getLevels().getTileOrigin();
+        Sector s = tile.getSector();
+        int row = (int) Math.floor((s.getCentroid().getLatitude().degrees - origin
+                .getLatitude().degrees) / deltaLat);
+        int col = (int) Math.floor((s.getCentroid().getLongitude().degrees - origin
+                .getLongitude().degrees) / deltaLon);
+        double minLat = origin.getLatitude().degrees + row * deltaLat;
+        double minLon = origin.getLongitude().degrees + col * deltaLon;
+
+        int parentWidth = level.getTileWidth();
+        int parentHeight = level.getTileHeight();
+        BufferedImage parent = getTileImage(parentWidth, parentHeight, new BoundingBoxImpl(
+                minLon, minLat, minLon + deltaLon, minLat + deltaLat, DefaultGeographicCRS.WGS84),
+                tileElevation, tileTime, tileColouring);
+        int[] parentPixels = parent.getRGB(0, 0, parentWidth, parentHeight, null, 0,
+                parentWidth);
+
+        int width = tile.getLevel().getTileWidth();
+        int height = tile.getLevel().getTileHeight();
+        /*
+         * The parent column of each column of the tile, and the parent row of
+         * each row. Images have their first row at the top.
+         */
+        int[] parentCols = new int[width];
+        double lonStep = s.getDeltaLonDegrees() / width;
+        for (int i = 0; i < width; i++) {
+            double lon = s.getMinLongitude().degrees + (i + 0.5) * lonStep;
+            parentCols[i] = clamp((int) ((lon - minLon) / deltaLon * parentWidth), parentWidth);
+        }
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+        int[] pixels = ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+        double latStep = s.getDeltaLatDegrees() / height;
+        for (int j = 0; j < height; j++) {
+            double lat = s.getMaxLatitude().degrees - (j + 0.5) * latStep;
+            int parentRow = clamp((int) ((minLat + deltaLat - lat) / deltaLat * parentHeight),
+                    parentHeight);
+            int parentRowStart = parentRow * parentWidth;
+            int rowStart = j * width;
+            for (int i = 0; i < width; i++) {
+                pixels[rowStart + i] = parentPixels[parentRowStart + parentCols[i]];
             }
         }
         return image;
     }
 
+    private static int clamp(int index, int size) {
+        return index < 0 ? 0 : (index >= size ? size - 1 : index);
+    }
+
+    /**
+     * Draws a tile in the raster style by reading the values into a primitive
+     * array and colouring them straight into the image's pixels
+     * 
+     * @param params
+     *            The {@link PlottingDomainParams} of the tile, which the cache
+     *            key for the tile was made from
+     * @param lut
+     *            The {@link ColourLut} of the colour scale which the cache key
+     *            was made from
+     * @return The tile image
+     * @throws EdalException
+     *             If there is a problem reading the data
+     */
+    private BufferedImage drawRasterTile(PlottingDomainParams params, ColourLut lut)
+            throws EdalException {
+        int width = params.getWidth();
+        int height = params.getHeight();
+        float[] values = TILE_VALUES.get();
+        if (values.length < width * height) {
+            values = new float[width * height];
+            TILE_VALUES.set(values);
+        }
+        catalogue.readValues(layerName, width, height, params.getBbox(), params.getTargetZ(),
+                params.getTargetT(), values);
+
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+        int[] pixels = ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+        lut.colourGrid(values, width, height, pixels);
+        return image;
+    }
+
     protected void loadTexture(final TextureTile tile) {
         TextureData textureData;
 
         BufferedImage tileImage = createTileImage(tile);
+        pendingTiles.remove(tile);
 
         textureData = AWTTextureIO.newTextureData(Configuration.getMaxCompatibleGLProfile(),
                 tileImage, isUseMipMaps());
@@ -432,6 +1080,9 @@ public class EdalGridDataLayer extends TiledImageLayer implements EdalDataLayer
         if (referencePoint != null)
             tile.setPriority(centroid.distanceTo3(referencePoint));
 
+        long now = System.currentTimeMillis();
+        pendingTiles.put(tile, now);
+        requestedTiles.put(tile, now);
         RequestTask task = new RequestTask(tile, this);
         this.getRequestQ().add(task);
     }
@@ -542,6 +1193,20 @@ public class EdalGridDataLayer extends TiledImageLayer implements EdalDataLayer
     }
 
     @SuppressWarnings({ "serial" })
+    /**
+     * A colour scale, together with the {@link ColourLut} built from it, so
+     * that the two can be read together while the scale is being changed
+     */
+    private static class Colouring {
+        private final PlottingStyleParameters params;
+        private final ColourLut lut;
+
+        public Colouring(PlottingStyleParameters params, ColourLut lut) {
+            this.params = params;
+            this.lut = lut;
+        }
+    }
+
     /**
      * Class to be used as a key for the image cache. Combines
      * {@link PlottingDomainParams} with all of the scale parameters.
@@ -730,11 +1395,23 @@ public class EdalGridDataLayer extends TiledImageLayer implements EdalDataLayer
             params.setValue(AVKey.LEVEL_ZERO_TILE_DELTA,
                     new LatLon(Angle.fromDegrees(180d), Angle.fromDegrees(360d)));
         } else {
-            params.setValue(AVKey.NUM_LEVELS, 10);
+            /*
+             * For other grids, estimate the native resolution and only add
+             * levels until their pixels are that size. Beyond the last level,
+             * its tiles are magnified rather than new ones being extracted.
+             */
+            double resolution = getNativeResolution(metadata.getHorizontalDomain());
+            int nLevels = MAX_LEVELS;
+            if (resolution > 0) {
+                nLevels = 1 + (int) Math.ceil(Math.log(LEVEL_ZERO_DELTA / (256 * resolution))
+                        / Math.log(2));
+                nLevels = Math.max(1, Math.min(nLevels, MAX_LEVELS));
+            }
+            params.setValue(AVKey.NUM_LEVELS, nLevels);
             params.setValue(AVKey.TILE_WIDTH, 256);
             params.setValue(AVKey.TILE_HEIGHT, 256);
-            params.setValue(AVKey.LEVEL_ZERO_TILE_DELTA,
-                    new LatLon(Angle.fromDegrees(60d), Angle.fromDegrees(60d)));
+            params.setValue(AVKey.LEVEL_ZERO_TILE_DELTA, new LatLon(
+                    Angle.fromDegrees(LEVEL_ZERO_DELTA), Angle.fromDegrees(LEVEL_ZERO_DELTA)));
         }
 
         params.setValue(AVKey.SERVICE, "*");
@@ -744,4 +1421,66 @@ public class EdalGridDataLayer extends TiledImageLayer implements EdalDataLayer
 
         return new LevelSet(params);
     }
+
+    /**
+     * Finds the first level whose pixels are no bigger than the grid cells of
+     * the data
+     * 
+     * @param levels
+     *            The {@link LevelSet} of the layer
+     * @param grid
+     *            The {@link HorizontalGrid} of the data
+     * @return The number of the native level. This is the last level if the
+     *         resolution cannot be estimated or no level is fine enough.
+     */
+    private static int getNativeLevel(LevelSet levels, HorizontalGrid grid) {
+        double resolution = getNativeResolution(grid);
+        int lastLevel = levels.getLastLevel().getLevelNumber();
+        if (resolution <= 0) {
+            return lastLevel;
+        }
+        for (int i = 0; i <= lastLevel; i++) {
+            Level level = levels.getLevel(i);
+            double pixelSize = Math.max(level.getTileDelta().getLatitude().degrees
+                    / level.getTileHeight(), level.getTileDelta().getLongitude().degrees
+                    / level.getTileWidth());
+            if (pixelSize <= resolution) {
+                return i;
+            }
+        }
+        return lastLevel;
+    }
+
+    /**
+     * Estimates the resolution of a grid. For lat-lon grids this is the
+     * smaller of the mean cell sizes along each axis, so irregular axes may
+     * have smaller cells. For others it is the size of a square cell which
+     * would cover the grid's geographic extent with the same number of cells.
+     * 
+     * @param grid
+     *            The {@link HorizontalGrid}
+     * @return The approximate size of a grid cell in degrees, or 0 if it
+     *         cannot be estimated
+     */
+    static double getNativeResolution(HorizontalGrid grid) {
+        if (GISUtils.isWgs84LonLat(grid.getCoordinateReferenceSystem())) {
+            BoundingBox bbox = grid.getBoundingBox();
+            return Math.min((bbox.getMaxX() - bbox.getMinX()) / grid.getXSize(),
+                    (bbox.getMaxY() - bbox.getMinY()) / grid.getYSize());
+        }
+        GeographicBoundingBox bbox = grid.getGeographicBoundingBox();
+        long nCells = (long) grid.getXSize() * grid.getYSize();
+        if (bbox == null || nCells == 0) {
+            return 0;
+        }
+        double lonSpan = bbox.getEastBoundLongitude() - bbox.getWestBoundLongitude();
+        if (lonSpan <= 0) {
+            /*
+             * Crosses the date line
+             */
+            lonSpan += 360;
+        }
+        double latSpan = bbox.getNorthBoundLatitude() - bbox.getSouthBoundLatitude();
+        return Math.sqrt(lonSpan * latSpan / nCells);
+    }
 }
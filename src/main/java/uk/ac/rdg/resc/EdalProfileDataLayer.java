@@ -28,13 +28,13 @@
 
 package uk.ac.rdg.resc;
 
-import gov.nasa.worldwind.event.SelectEvent;
-import gov.nasa.worldwind.event.SelectListener;
-import gov.nasa.worldwind.geom.Angle;
-import gov.nasa.worldwind.geom.LatLon;
+import gov.nasa.worldwind.Configuration;
+import gov.nasa.worldwind.View;
 import gov.nasa.worldwind.geom.Position;
+import gov.nasa.worldwind.geom.Sector;
 import gov.nasa.worldwind.layers.LayerList;
 import gov.nasa.worldwind.layers.MarkerLayer;
+import gov.nasa.worldwind.render.DrawContext;
 import gov.nasa.worldwind.render.Material;
 import gov.nasa.worldwind.render.markers.BasicMarker;
 import gov.nasa.worldwind.render.markers.BasicMarkerAttributes;
@@ -46,9 +46,17 @@ import gov.nasa.worldwind.util.Logging;
 import java.awt.Color;
 import java.awt.image.BufferedImage;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
-import java.util.concurrent.Executors;
+import java.util.Map;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
+import org.geotoolkit.referencing.crs.DefaultGeographicCRS;
 import org.joda.time.DateTime;
 
 import uk.ac.rdg.resc.edal.dataset.Dataset;
@@ -58,6 +66,7 @@ import uk.ac.rdg.resc.edal.domain.VerticalDomain;
 import uk.ac.rdg.resc.edal.exceptions.EdalException;
 import uk.ac.rdg.resc.edal.exceptions.VariableNotFoundException;
 import uk.ac.rdg.resc.edal.feature.ProfileFeature;
+import uk.ac.rdg.resc.edal.geometry.BoundingBox;
 import uk.ac.rdg.resc.edal.geometry.BoundingBoxImpl;
 import uk.ac.rdg.resc.edal.graphics.style.ColourScheme;
 import uk.ac.rdg.resc.edal.graphics.style.ScaleRange;
@@ -70,15 +79,45 @@ import uk.ac.rdg.resc.edal.util.Extents;
 import uk.ac.rdg.resc.edal.util.GISUtils;
 import uk.ac.rdg.resc.edal.util.PlottingDomainParams;
 import uk.ac.rdg.resc.logging.RescLogging;
+import uk.ac.rdg.resc.util.ColourLut;
+import uk.ac.rdg.resc.util.PointBuffer;
+import uk.ac.rdg.resc.util.PointPickIndex;
+import uk.ac.rdg.resc.util.PointRenderer;
 
 /**
  * Class for handling profile EDAL data and displaying it
  * 
  * @author Guy Griffiths
  */
-public class EdalProfileDataLayer extends MarkerLayer implements EdalDataLayer, SelectListener {
+public class EdalProfileDataLayer extends MarkerLayer implements EdalDataLayer {
     private static final Color TRANSPARENT = new Color(0, true);
     private static final double MARKER_SIZE = 5.0;
+    /** How long (in seconds) an idle extraction thread is kept for */
+    private static final long EXTRACTOR_KEEP_ALIVE = 30L;
+    /*
+     * Profiles are loaded in cells of this size (in degrees) covering the
+     * visible area
+     */
+    static final double CELL_SIZE = 5.0;
+    static final int CELLS_X = (int) (360 / CELL_SIZE);
+    static final int CELLS_Y = (int) (180 / CELL_SIZE);
+    /** The margin around the visible area to load, as a fraction of its size */
+    private static final double VIEW_MARGIN = 0.25;
+    /**
+     * The most cells to keep profiles loaded for, so that panning back to an
+     * area does not extract its profiles again. Cells in view are always
+     * kept, even beyond this.
+     */
+    private static final int MAX_LOADED_CELLS = Configuration.getIntegerValue(
+            "uk.ac.rdg.resc.edal.multiglobe.ProfileCellCacheSize", 648);
+    /*
+     * When zoomed out, profiles are clustered into cells roughly this many
+     * pixels across, and each cluster is drawn as a single larger marker
+     */
+    private static final double CLUSTER_PIXELS = 12.0;
+    private static final double CLUSTER_MARKER_SIZE = 8.0;
+    /** How far outside a point the cursor can be and still pick it, in pixels */
+    private static final double PICK_TOLERANCE = 3.0;
 
     /** The ID of the layer in the EDAL system */
     private final String layerName;
@@ -86,6 +125,11 @@ public class EdalProfileDataLayer extends MarkerLayer implements EdalDataLayer,
     private VideoWallCatalogue catalogue;
     /** The {@link RescWorldWindow} which will display the layer */
     private RescWorldWindow wwd;
+    /**
+     * Extracts profiles in the background. A single thread is used so that
+     * time window changes are applied in order.
+     */
+    private final ThreadPoolExecutor extractor;
 
     /** The current elevation */
     private Double elevation;
@@ -119,27 +163,86 @@ public class EdalProfileDataLayer extends MarkerLayer implements EdalDataLayer,
     
     /** The {@link ColourScheme} to use for this layer */
     private SegmentColourScheme colourScheme;
+    /** A lookup table of the colours of colourScheme, for fast colouring */
+    private volatile ColourLut colourLut;
     /**
-     * A list of {@link ProfileFeature}s which have values in the given time
-     * range
+     * The profiles which have values in the given time range, stored in
+     * primitive arrays
+     */
+    private volatile ProfileStore profiles = null;
+    /** The time range which the loaded profiles cover */
+    private volatile Extent<DateTime> loadedTimeRange = null;
+    /**
+     * The cells which the loaded profiles cover. This includes cells which
+     * have been in view recently, as well as those which are in view now.
+     */
+    private volatile BitSet loadedCells = new BitSet();
+    /** The cells covering the visible area */
+    private volatile BitSet requestedCells = null;
+    /**
+     * When each cell was last in view, as a count of views, so that the least
+     * recently viewed loaded cells can be dropped. Guarded by itself.
+     */
+    private final long[] cellLastViewed = new long[CELLS_X * CELLS_Y];
+    private long viewCount = 0L;
+    /** The last visible {@link Sector}, to avoid recalculating cells */
+    private Sector lastVisibleSector = null;
+    /**
+     * Incremented every time new profiles are requested, so that superseded
+     * requests can be skipped
+     */
+    private volatile int extractionRequest = 0;
+    /**
+     * A pool of {@link Marker}s. These are reused each time the layer is
+     * redrawn, so that we only ever have as many {@link Marker}s as there are
+     * profiles visible at once.
      */
-    private List<ProfileFeature> features;
+    private List<ProfileMarker> markerPool;
     /**
-     * A list of {@link Marker}s which representing {@link ProfileFeature}s
-     * which are available for the given time range
+     * {@link MarkerAttributes} for each colour currently in use. Markers of the
+     * same colour share attributes, so there are only as many of these as
+     * there are colour bands.
      */
-    private List<Marker> markers;
+    private Map<Integer, MarkerAttributes> attributesPool;
+    /** As attributesPool, but for cluster markers */
+    private Map<Integer, MarkerAttributes> clusterAttributesPool;
+    /** Whether to cluster profiles when zoomed out */
+    private final boolean clustering;
+    /** How to combine the values of clustered profiles */
+    private final ClusterValue clusterValue;
     /**
-     * A list of {@link Marker}s which representing {@link ProfileFeature}s
-     * which are available for the given time range AND which intersect the
-     * currently-selected elevation range
+     * The quadtree level at which profiles are currently clustered, or -1 to
+     * show individual profiles
      */
-    private List<Marker> activeMarkers;
+    private volatile int clusterLevel = -1;
     /** The ID of the variable being plotted */
     private String varId;
+    /**
+     * Whether to draw profiles as batched points, rather than as individual
+     * markers
+     */
+    private final boolean pointRendering;
+    /*
+     * Redrawing fills the back set of points, which is then swapped with the
+     * front set used for picking (and for drawing in point rendering mode)
+     */
+    private final Object pointLock = new Object();
+    private PointSet frontPoints = new PointSet();
+    private PointSet backPoints = new PointSet();
+    /** The approximate size of a pixel at the last render, in degrees */
+    private volatile double degreesPerPixel = 0.0;
 
-    /** Keep track of the last marker to be highlighted so that we can make it bigger */
-    private Marker lastHighlit = null;
+    /*
+     * The profile or cluster under the cursor is drawn again on top of the
+     * others at a larger size. Attributes are shared between markers, so this
+     * is a separate marker rather than a change to the pooled one.
+     */
+    private final PointBuffer highlightPoint = new PointBuffer();
+    private final BasicMarker highlightMarker = new BasicMarker(Position.ZERO,
+            ProfileMarker.UNASSIGNED);
+    /** The colour and size which the highlight attributes were created for */
+    private int highlightColour = 0;
+    private double highlightSize = 0.0;
 
     /**
      * Instantiate a new {@link EdalProfileDataLayer}
@@ -163,6 +266,15 @@ public class EdalProfileDataLayer extends MarkerLayer implements EdalDataLayer,
         this.catalogue = catalogue;
         this.wwd = wwd;
 
+        /*
+         * Each layer has its own extraction thread, so that a slow layer does
+         * not hold up the other panels. The thread stops when it is idle, so
+         * layers which are no longer displayed don't keep one.
+         */
+        extractor = new ThreadPoolExecutor(1, 1, EXTRACTOR_KEEP_ALIVE, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>());
+        extractor.allowCoreThreadTimeOut(true);
+
         metadata = catalogue.getVariableMetadataForLayer(layerName);
 
         zDomain = metadata.getVerticalDomain();
@@ -205,16 +317,25 @@ public class EdalProfileDataLayer extends MarkerLayer implements EdalDataLayer,
         underColor = new Color(underColor.getRed(), underColor.getGreen(), underColor.getBlue(), 64);
         overColor = new Color(overColor.getRed(), overColor.getGreen(), overColor.getBlue(), 64);
 
+        markerPool = new ArrayList<>();
+        attributesPool = new HashMap<>();
+        clusterAttributesPool = new HashMap<>();
+
+        clustering = Configuration.getBooleanValue(
+                "uk.ac.rdg.resc.edal.multiglobe.ProfileClustering", true);
+        clusterValue = ClusterValue.fromString(Configuration.getStringValue(
+                "uk.ac.rdg.resc.edal.multiglobe.ProfileClusterValue", "mean"));
+        pointRendering = "points".equalsIgnoreCase(Configuration.getStringValue(
+                "uk.ac.rdg.resc.edal.multiglobe.ProfileRendering", "markers"));
+
         colourSchemeChanged();
-        
-        features = new ArrayList<>();
-        markers = new ArrayList<>();
-        activeMarkers = new ArrayList<>();
 
         setName(layerName);
-        setPickEnabled(true);
-
-        wwd.addSelectListener(this);
+        /*
+         * Profiles are picked with a spatial index (see getPickedProfile)
+         * rather than by rendering pick colours for every marker
+         */
+        setPickEnabled(false);
 
         extractNewProfiles();
     }
@@ -306,6 +427,11 @@ public class EdalProfileDataLayer extends MarkerLayer implements EdalDataLayer,
         ScaleRange colourScale = new ScaleRange(scaleRange, logScale);
         colourScheme = new SegmentColourScheme(colourScale, underColor, overColor, bgColor,
                 palette, numColorBands);
+        colourLut = new ColourLut(colourScheme, scaleRange, logScale, numColorBands);
+        synchronized (this) {
+            attributesPool.clear();
+            clusterAttributesPool.clear();
+        }
     }
 
     @Override
@@ -325,30 +451,246 @@ public class EdalProfileDataLayer extends MarkerLayer implements EdalDataLayer,
                 new Color(0, 0, 0, 150));
     }
 
+    @Override
+    protected void doRender(DrawContext dc) {
+        /*
+         * Work out which cells cover the visible area, and load any which we
+         * don't yet have
+         */
+        Sector visibleSector = dc.getVisibleSector();
+        if (visibleSector == null) {
+            visibleSector = Sector.FULL_SPHERE;
+        }
+        if (!visibleSector.equals(lastVisibleSector)) {
+            lastVisibleSector = visibleSector;
+            BitSet cells = getCells(visibleSector);
+            if (!cells.equals(requestedCells)) {
+                requestedCells = cells;
+                synchronized (cellLastViewed) {
+                    viewCount++;
+                    for (int c = cells.nextSetBit(0); c >= 0; c = cells.nextSetBit(c + 1)) {
+                        cellLastViewed[c] = viewCount;
+                    }
+                }
+                BitSet missing = (BitSet) cells.clone();
+                missing.andNot(loadedCells);
+                if (!missing.isEmpty()) {
+                    extractNewProfiles();
+                } else {
+                    /*
+                     * Everything in view is loaded, but only the profiles in
+                     * view are drawn
+                     */
+                    redrawExistingProfiles();
+                }
+            }
+        }
+        degreesPerPixel = getDegreesPerPixel(dc);
+        if (clustering) {
+            int level = getClusterLevel();
+            if (level != clusterLevel) {
+                clusterLevel = level;
+                redrawExistingProfiles();
+            }
+        }
+        super.doRender(dc);
+        synchronized (pointLock) {
+            if (pointRendering) {
+                PointRenderer.render(dc, frontPoints.profilePoints, (float) (2 * MARKER_SIZE));
+                PointRenderer.render(dc, frontPoints.clusterPoints,
+                        (float) (2 * CLUSTER_MARKER_SIZE));
+            }
+            drawHighlight(dc);
+        }
+    }
+
+    /**
+     * Highlights the profile or cluster nearest the cursor by drawing it again
+     * at a larger size. It is found using the pick index, so no pick render
+     * pass is needed as the mouse moves. Must be called with pointLock held.
+     * 
+     * @param dc
+     *            The current {@link DrawContext}
+     */
+    private void drawHighlight(DrawContext dc) {
+        Position cursor = wwd.getCurrentPosition();
+        if (cursor == null) {
+            return;
+        }
+        double lat = cursor.getLatitude().degrees;
+        double lon = cursor.getLongitude().degrees;
+        PointBuffer picked = frontPoints.profilePoints;
+        double size = MARKER_SIZE;
+        int i = frontPoints.profileIndex.findNearest(lat, lon, getPickRadius(size));
+        if (i < 0) {
+            picked = frontPoints.clusterPoints;
+            size = CLUSTER_MARKER_SIZE;
+            i = frontPoints.clusterIndex.findNearest(lat, lon, getPickRadius(size));
+        }
+        if (i < 0) {
+            return;
+        }
+        size *= 1.5;
+        if (pointRendering) {
+            highlightPoint.clear();
+            highlightPoint.add(picked.getLatitude(i), picked.getLongitude(i),
+                    picked.getColour(i), i);
+            PointRenderer.render(dc, highlightPoint, (float) (2 * size));
+        } else {
+            int argb = picked.getColour(i);
+            if (argb != highlightColour || size != highlightSize) {
+                highlightColour = argb;
+                highlightSize = size;
+                MarkerAttributes attrs = new BasicMarkerAttributes(new Material(new Color(argb,
+                        true)), BasicMarkerShape.SPHERE, 1.0);
+                attrs.setMarkerPixels(size);
+                highlightMarker.setAttributes(attrs);
+            }
+            highlightMarker.setPosition(Position.fromDegrees(picked.getLatitude(i),
+                    picked.getLongitude(i), 0.0));
+            getMarkerRenderer().render(dc, Collections.<Marker> singletonList(highlightMarker));
+        }
+    }
+
+    /**
+     * Finds the individual profile drawn at a position, using the pick index
+     * 
+     * @param position
+     *            The {@link Position} which has been selected
+     * @return The {@link ProfileFeature} drawn at the given position, or
+     *         <code>null</code> if there is none (including if the position is
+     *         on a cluster of profiles)
+     */
+    public ProfileFeature getPickedProfile(Position position) {
+        synchronized (pointLock) {
+            int i = frontPoints.profileIndex.findNearest(position.getLatitude().degrees,
+                    position.getLongitude().degrees, getPickRadius(MARKER_SIZE));
+            if (i < 0) {
+                return null;
+            }
+            return frontPoints.profiles.getFeature(frontPoints.profilePoints.getId(i));
+        }
+    }
+
+    /**
+     * @param markerSize
+     *            The size of the marker being picked, in pixels
+     * @return The distance from a marker which the cursor can be and still
+     *         pick it, in degrees
+     */
+    private double getPickRadius(double markerSize) {
+        return (markerSize + PICK_TOLERANCE) * degreesPerPixel;
+    }
+
     /**
      * Does the actual drawing of the layer. This gets called when something has
      * changed and the layer needs redrawing.
+     * 
+     * Profiles are kept in memory for the current time range and for the
+     * cells covering the visible area, plus up to {@link #MAX_LOADED_CELLS}
+     * cells in total which have been in view recently. When either of these
+     * changes, only the profiles from newly-exposed cells, and from the parts
+     * of the new time range which weren't previously covered, are extracted.
+     * Profiles outside the new time range are dropped, as are those in the
+     * least recently viewed cells once there are too many. When the time range
+     * changes, cells which are out of view are dropped rather than extended to
+     * the new range.
      */
     private void extractNewProfiles() {
-        features = new ArrayList<>();
-        markers = new ArrayList<>();
-        activeMarkers = new ArrayList<>();
-
+        final BitSet targetCells = requestedCells;
+        if (targetCells == null) {
+            /*
+             * We haven't been drawn yet, so don't know what is visible. We
+             * will be called again once we do.
+             */
+            return;
+        }
+        final int request = ++extractionRequest;
+        final Extent<DateTime> targetRange = timeRange;
+        final DateTime targetTime = time;
         /*
-         * Start the feature extraction in a new thread, so that we don't get a
-         * pause
+         * Run the feature extraction in a background thread, so that we don't
+         * get a pause
          */
-        Executors.newSingleThreadExecutor().submit(new Runnable() {
+        extractor.submit(new Runnable() {
             @Override
             public void run() {
-                List<? extends ProfileFeature> profileFeatures;
+                if (request != extractionRequest) {
+                    /*
+                     * The time or view has changed again since this was
+                     * requested. The later request will load what is needed.
+                     */
+                    return;
+                }
+                ProfileStore currentProfiles = profiles;
+                Extent<DateTime> currentRange = loadedTimeRange;
+                BitSet currentCells = loadedCells;
+                ProfileStore newProfiles;
+                BitSet newLoadedCells = (BitSet) targetCells.clone();
                 try {
                     Dataset dataset = catalogue.getDatasetFromLayerName(layerName);
                     varId = catalogue.getVariableMetadataForLayer(layerName).getId();
-                    profileFeatures = dataset.extractProfileFeatures(CollectionUtils.setOf(varId),
-                            new PlottingDomainParams(1, 1, BoundingBoxImpl.global(),
-                                    getVariableMetadata().getVerticalDomain().getExtent(),
-                                    timeRange, null, elevation, time));
+
+                    boolean timesOverlap = (currentRange == null && targetRange == null)
+                            || (currentRange != null && targetRange != null && currentRange
+                                    .intersects(targetRange));
+                    List<ProfileFeature> added = new ArrayList<>();
+                    if (currentProfiles == null || !timesOverlap) {
+                        /*
+                         * Nothing useful loaded, so extract everything. The
+                         * features are copied into primitive arrays, after
+                         * which they can be garbage collected.
+                         */
+                        extractProfiles(dataset, targetCells, targetRange, targetTime, null,
+                                added);
+                        newProfiles = new ProfileStore(added, varId);
+                    } else {
+                        /*
+                         * Cells which are loaded and still needed only need
+                         * the parts of the new time range which we don't
+                         * already have
+                         */
+                        BitSet keptCells = (BitSet) currentCells.clone();
+                        if (targetRange == null ? currentRange != null : !targetRange
+                                .equals(currentRange)) {
+                            keptCells.and(targetCells);
+                        }
+                        synchronized (cellLastViewed) {
+                            dropLeastRecentCells(keptCells, targetCells, cellLastViewed,
+                                    MAX_LOADED_CELLS);
+                        }
+                        if (targetRange != null && !keptCells.isEmpty()) {
+                            if (targetRange.getLow().isBefore(currentRange.getLow())) {
+                                extractProfiles(dataset, keptCells, Extents.newExtent(
+                                        targetRange.getLow(), currentRange.getLow()),
+                                        targetTime, currentRange, added);
+                            }
+                            if (targetRange.getHigh().isAfter(currentRange.getHigh())) {
+                                extractProfiles(dataset, keptCells, Extents.newExtent(
+                                        currentRange.getHigh(), targetRange.getHigh()),
+                                        targetTime, currentRange, added);
+                            }
+                        }
+                        /*
+                         * Newly-exposed cells need the entire time range
+                         */
+                        BitSet newCells = (BitSet) targetCells.clone();
+                        newCells.andNot(currentCells);
+                        extractProfiles(dataset, newCells, targetRange, targetTime, null, added);
+
+                        /*
+                         * Drop profiles which have left the time range or
+                         * whose cells are no longer kept
+                         */
+                        boolean[] retain = new boolean[currentProfiles.size()];
+                        for (int i = 0; i < retain.length; i++) {
+                            retain[i] = keptCells.get(getCell(currentProfiles.getLatitude(i),
+                                    currentProfiles.getLongitude(i)))
+                                    && isInTimeRange(currentProfiles.getTime(i), targetRange);
+                        }
+                        newProfiles = currentProfiles.update(retain, added);
+                        newLoadedCells.or(keptCells);
+                    }
                 } catch (VariableNotFoundException e) {
                     String message = RescLogging.getMessage("resc.NoLayer", layerName);
                     Logging.logger().severe(message);
@@ -359,26 +701,263 @@ public class EdalProfileDataLayer extends MarkerLayer implements EdalDataLayer,
                     return;
                 }
 
-                for (ProfileFeature profile : profileFeatures) {
-                    MarkerAttributes attrs = new BasicMarkerAttributes(new Material(TRANSPARENT),
-                            BasicMarkerShape.SPHERE, 1.0);
-                    attrs.setMarkerPixels(MARKER_SIZE);
-
-                    Marker marker = new BasicMarker(new Position(new LatLon(Angle
-                            .fromDegrees(profile.getHorizontalPosition().getY()), Angle
-                            .fromDegrees(profile.getHorizontalPosition().getX())), 0.0), attrs);
-
-                    features.add(profile);
-                    markers.add(marker);
-                }
+                Logging.logger().fine(
+                        RescLogging.getMessage("resc.ProfilesLoaded", layerName,
+                                newProfiles.size(), currentProfiles == null ? 0
+                                        : currentProfiles.size()));
+                profiles = newProfiles;
+                loadedTimeRange = targetRange;
+                loadedCells = newLoadedCells;
                 redrawExistingProfiles();
+                wwd.redraw();
             }
         });
-        this.setPickEnabled(true);
-        wwd.addSelectListener(this);
         wwd.redraw();
     }
 
+    /**
+     * Extracts the profiles of this layer within a set of cells and a time
+     * range
+     * 
+     * @param dataset
+     *            The {@link Dataset} containing the layer
+     * @param cells
+     *            The cells to extract profiles from
+     * @param tRange
+     *            The time range to extract
+     * @param targetTime
+     *            The target time
+     * @param exclude
+     *            A time range which has already been loaded. Profiles in this
+     *            range (e.g. on its boundary) will not be returned. May be
+     *            <code>null</code>
+     * @param profiles
+     *            The {@link List} to add the extracted {@link ProfileFeature}s
+     *            to
+     * @throws EdalException
+     *             If there is a problem reading the data
+     */
+    private void extractProfiles(Dataset dataset, BitSet cells, Extent<DateTime> tRange,
+            DateTime targetTime, Extent<DateTime> exclude, List<ProfileFeature> profiles)
+            throws EdalException {
+        ProfileFileCache cache = catalogue.getProfileCache(layerName);
+        for (BoundingBox bbox : getBoundingBoxes(cells)) {
+            List<? extends ProfileFeature> extracted;
+            if (cache != null) {
+                /*
+                 * Read from the on-disk cache rather than the source files
+                 */
+                extracted = cache.extractProfiles(bbox, getVariableMetadata()
+                        .getVerticalDomain().getExtent(), tRange, targetTime);
+            } else {
+                extracted = dataset.extractProfileFeatures(CollectionUtils.setOf(varId),
+                        new PlottingDomainParams(1, 1, bbox, getVariableMetadata()
+                                .getVerticalDomain().getExtent(), tRange, null, elevation,
+                                targetTime));
+            }
+            for (ProfileFeature profile : extracted) {
+                /*
+                 * Bounding boxes include their edges, so profiles on the edge
+                 * between two cells could be extracted twice. We only keep
+                 * profiles which are actually in one of the requested cells.
+                 */
+                if (!cells.get(getCell(profile.getHorizontalPosition().getY(), profile
+                        .getHorizontalPosition().getX()))) {
+                    continue;
+                }
+                if (exclude != null
+                        && (profile.getTime() == null || exclude.contains(profile.getTime()))) {
+                    continue;
+                }
+                profiles.add(profile);
+            }
+        }
+    }
+
+    /**
+     * @param dc
+     *            The current {@link DrawContext}
+     * @return The approximate size of a pixel on the ground, in degrees
+     */
+    private static double getDegreesPerPixel(DrawContext dc) {
+        View view = dc.getView();
+        double metresPerPixel = view.computePixelSizeAtDistance(view.getEyePosition()
+                .getElevation());
+        return Math.toDegrees(metresPerPixel / dc.getGlobe().getRadius());
+    }
+
+    /**
+     * Chooses the quadtree level to cluster profiles at, so that clusters are
+     * roughly {@link EdalProfileDataLayer#CLUSTER_PIXELS} across on screen
+     * 
+     * @return The level to cluster profiles at, or -1 if we are zoomed in far
+     *         enough to show individual profiles
+     */
+    private int getClusterLevel() {
+        int level = (int) Math.floor(Math.log(360.0 / (CLUSTER_PIXELS * degreesPerPixel))
+                / Math.log(2.0));
+        if (level >= ProfileStore.CLUSTER_LEVELS) {
+            return -1;
+        }
+        return Math.max(0, level);
+    }
+
+    /**
+     * @param time
+     *            A profile time, as stored in a {@link ProfileStore}
+     * @param range
+     *            The time range. May be <code>null</code>
+     * @return Whether the time is in the range. Profiles with no time, and
+     *         all profiles when there is no range, are always in range.
+     */
+    private static boolean isInTimeRange(long time, Extent<DateTime> range) {
+        return range == null || time == ProfileStore.NO_TIME
+                || (time >= range.getLow().getMillis() && time <= range.getHigh().getMillis());
+    }
+
+    /**
+     * Drops the least recently viewed cells from a set of loaded cells, so
+     * that together with the cells in view there are no more than a given
+     * number. Cells in view are never dropped.
+     * 
+     * @param kept
+     *            The loaded cells to keep. Cells are removed from this
+     * @param visible
+     *            The cells in view
+     * @param lastViewed
+     *            When each cell was last in view, with larger values for more
+     *            recent views
+     * @param maxCells
+     *            The most cells to keep, including those in view
+     */
+    static void dropLeastRecentCells(BitSet kept, BitSet visible, long[] lastViewed,
+            int maxCells) {
+        BitSet all = (BitSet) kept.clone();
+        all.or(visible);
+        int excess = all.cardinality() - maxCells;
+        if (excess <= 0) {
+            return;
+        }
+        BitSet hidden = (BitSet) kept.clone();
+        hidden.andNot(visible);
+        /*
+         * Sort the hidden cells by when they were last viewed, with the cell
+         * index in the low bits so that a primitive sort can be used
+         */
+        long[] order = new long[hidden.cardinality()];
+        int n = 0;
+        for (int c = hidden.nextSetBit(0); c >= 0; c = hidden.nextSetBit(c + 1)) {
+            order[n++] = (lastViewed[c] << 12) | c;
+        }
+        Arrays.sort(order);
+        for (int i = 0; i < Math.min(excess, order.length); i++) {
+            kept.clear((int) (order[i] & 0xFFF));
+        }
+    }
+
+    /**
+     * Gets the cells covering a {@link Sector}, plus a margin so that small
+     * pans do not require any new profiles to be loaded
+     * 
+     * @param sector
+     *            The {@link Sector} to cover
+     * @return A {@link BitSet} with a bit set for each required cell
+     */
+    static BitSet getCells(Sector sector) {
+        double latMargin = Math.max(CELL_SIZE, sector.getDeltaLatDegrees() * VIEW_MARGIN);
+        double lonMargin = Math.max(CELL_SIZE, sector.getDeltaLonDegrees() * VIEW_MARGIN);
+        int minX = getCellX(sector.getMinLongitude().degrees - lonMargin);
+        int maxX = getCellX(sector.getMaxLongitude().degrees + lonMargin);
+        int minY = getCellY(sector.getMinLatitude().degrees - latMargin);
+        int maxY = getCellY(sector.getMaxLatitude().degrees + latMargin);
+        if (sector.getMinLongitude().degrees - lonMargin <= -180.0
+                || sector.getMaxLongitude().degrees + lonMargin >= 180.0) {
+            /*
+             * The margin crosses the date line. Rather than wrapping, just
+             * load the whole longitude range.
+             */
+            minX = 0;
+            maxX = CELLS_X - 1;
+        }
+        BitSet cells = new BitSet(CELLS_X * CELLS_Y);
+        for (int y = minY; y <= maxY; y++) {
+            cells.set(y * CELLS_X + minX, y * CELLS_X + maxX + 1);
+        }
+        return cells;
+    }
+
+    /**
+     * Converts a set of cells into a small number of {@link BoundingBox}es
+     * which cover them exactly. Runs of cells in each row are found, and runs
+     * with the same extent in adjacent rows are merged.
+     * 
+     * @param cells
+     *            The cells to cover
+     * @return A {@link List} of {@link BoundingBox}es covering the cells
+     */
+    static List<BoundingBox> getBoundingBoxes(BitSet cells) {
+        List<BoundingBox> bboxes = new ArrayList<>();
+        /*
+         * Rectangles which can still be extended into the next row, as {minX,
+         * maxX, minY}
+         */
+        List<int[]> open = new ArrayList<>();
+        for (int y = 0; y <= CELLS_Y; y++) {
+            List<int[]> stillOpen = new ArrayList<>();
+            List<int[]> runs = new ArrayList<>();
+            if (y < CELLS_Y) {
+                int x = cells.nextSetBit(y * CELLS_X);
+                while (x >= 0 && x < (y + 1) * CELLS_X) {
+                    int end = cells.nextClearBit(x);
+                    end = Math.min(end, (y + 1) * CELLS_X);
+                    runs.add(new int[] { x - y * CELLS_X, end - 1 - y * CELLS_X });
+                    x = cells.nextSetBit(end);
+                }
+            }
+            for (int[] rectangle : open) {
+                boolean extended = false;
+                for (int[] run : runs) {
+                    if (run[0] == rectangle[0] && run[1] == rectangle[1]) {
+                        runs.remove(run);
+                        stillOpen.add(rectangle);
+                        extended = true;
+                        break;
+                    }
+                }
+                if (!extended) {
+                    bboxes.add(new BoundingBoxImpl(rectangle[0] * CELL_SIZE - 180.0, rectangle[2]
+                            * CELL_SIZE - 90.0, (rectangle[1] + 1) * CELL_SIZE - 180.0, y
+                            * CELL_SIZE - 90.0, DefaultGeographicCRS.WGS84));
+                }
+            }
+            for (int[] run : runs) {
+                stillOpen.add(new int[] { run[0], run[1], y });
+            }
+            open = stillOpen;
+        }
+        return bboxes;
+    }
+
+    /**
+     * @return The index of the cell containing the given position
+     */
+    static int getCell(double latitude, double longitude) {
+        return getCellY(latitude) * CELLS_X + getCellX(longitude);
+    }
+
+    private static int getCellX(double longitude) {
+        /*
+         * Wrap into the range [-180, 180)
+         */
+        double wrapped = ((longitude + 180.0) % 360.0 + 360.0) % 360.0;
+        return Math.min((int) (wrapped / CELL_SIZE), CELLS_X - 1);
+    }
+
+    private static int getCellY(double latitude) {
+        int y = (int) ((latitude + 90.0) / CELL_SIZE);
+        return Math.max(0, Math.min(y, CELLS_Y - 1));
+    }
+
     /**
      * This method refreshes the colours of any profiles which are plotted on
      * the map. Because the entirety of each profile is extracted when a layer
@@ -387,69 +966,372 @@ public class EdalProfileDataLayer extends MarkerLayer implements EdalDataLayer,
      * {@link EdalProfileDataLayer} change, new features need to be extracted,
      * so calling this method will not do anything.
      */
-    private void redrawExistingProfiles() {
-        activeMarkers.clear();
+    private synchronized void redrawExistingProfiles() {
+        ProfileStore currentProfiles = profiles;
         /*
-         * Go through map of profiles -> markers and set the colour
+         * Profiles are kept for cells which are out of view, but only those in
+         * view are drawn
          */
-        for (int i = 0; i < features.size(); i++) {
-            ProfileFeature profile = features.get(i);
+        BitSet visible = requestedCells;
+        List<Marker> activeMarkers = new ArrayList<>();
+        backPoints.clear(currentProfiles);
+        int level = clusterLevel;
+        if (currentProfiles != null && elevation != null && elevationRange != null
+                && level >= 0) {
+            drawClusters(currentProfiles, visible, level, activeMarkers);
+        } else if (currentProfiles != null && elevation != null && elevationRange != null) {
+            double minElevation = elevationRange.getLow();
+            double maxElevation = elevationRange.getHigh();
+            /*
+             * Only profiles which intersect the elevation range get a marker,
+             * taken from the pool. Profiles whose minimum elevation is above the
+             * range are skipped without being looked at.
+             */
+            int nCandidates = currentProfiles.getCandidateCount(maxElevation);
+            for (int c = 0; c < nCandidates; c++) {
+                int i = currentProfiles.getCandidate(c);
+                if (!isVisible(currentProfiles, i, visible)) {
+                    continue;
+                }
+                int zLevel = currentProfiles.getClosestLevel(i, elevation, minElevation,
+                        maxElevation);
+                if (zLevel >= 0) {
+                    addProfile(currentProfiles, i, currentProfiles.getValue(zLevel),
+                            activeMarkers);
+                }
+            }
+        }
+        backPoints.buildIndices();
+        synchronized (pointLock) {
+            PointSet drawn = frontPoints;
+            frontPoints = backPoints;
+            backPoints = drawn;
+        }
+        setMarkers(activeMarkers);
+    }
 
-            int zIndex = GISUtils.getIndexOfClosestElevationTo(elevation, profile.getDomain());
+    /**
+     * @return Whether a profile is in one of the given cells, or
+     *         <code>true</code> if the cells are <code>null</code>
+     */
+    private static boolean isVisible(ProfileStore currentProfiles, int i, BitSet visible) {
+        return visible == null
+                || visible.get(getCell(currentProfiles.getLatitude(i),
+                        currentProfiles.getLongitude(i)));
+    }
 
-            Color markerColor;
-            if (profile.getDomain().getExtent().intersects(elevationRange) && zIndex >= 0) {
-                /*
-                 * We want to draw this marker.
-                 */
-                Number value = profile.getValues(varId).get(zIndex);
-                markerColor = colourScheme.getColor(value);
-                if (markerColor.getAlpha() == 0) {
-                    /*
-                     * We don't want transparent markers to be 100% transparent
-                     * (as in gridded fields), so we set the colour to be ~25%
-                     * instead
-                     */
-                    markerColor = new Color(markerColor.getRed(), markerColor.getGreen(),
-                            markerColor.getBlue(), 64);
+    /**
+     * Adds a single profile to be drawn, either as a marker or as a point
+     * depending on the rendering mode. Either way, it is added to the pick
+     * index.
+     * 
+     * @param currentProfiles
+     *            The {@link ProfileStore} containing the profile
+     * @param i
+     *            The index of the profile in the store
+     * @param value
+     *            The value to colour the profile with
+     * @param activeMarkers
+     *            The {@link List} to add a marker to
+     */
+    private void addProfile(ProfileStore currentProfiles, int i, float value,
+            List<Marker> activeMarkers) {
+        backPoints.profilePoints.add(currentProfiles.getLatitude(i),
+                currentProfiles.getLongitude(i), getColour(value), i);
+        if (!pointRendering) {
+            ProfileMarker marker = getPooledMarker(activeMarkers.size());
+            marker.setProfile(currentProfiles, i);
+            marker.setAttributes(getMarkerAttributes(value));
+            activeMarkers.add(marker);
+        }
+    }
+
+    /**
+     * Adds a cluster of profiles to be drawn, either as a marker or as a
+     * point depending on the rendering mode. Either way, it is added to the
+     * pick index.
+     * 
+     * @param latitude
+     *            The latitude of the cluster centre
+     * @param longitude
+     *            The longitude of the cluster centre
+     * @param value
+     *            The value to colour the cluster with
+     * @param activeMarkers
+     *            The {@link List} to add a marker to
+     */
+    private void addCluster(double latitude, double longitude, float value,
+            List<Marker> activeMarkers) {
+        backPoints.clusterPoints.add(latitude, longitude, getColour(value),
+                backPoints.clusterPoints.size());
+        if (!pointRendering) {
+            ProfileMarker marker = getPooledMarker(activeMarkers.size());
+            marker.setCluster(latitude, longitude);
+            marker.setAttributes(getMarkerAttributes(value, clusterAttributesPool,
+                    CLUSTER_MARKER_SIZE));
+            activeMarkers.add(marker);
+        }
+    }
+
+    /**
+     * Assigns markers to clusters of profiles. Each quadtree cell at the given
+     * level which contains more than one profile intersecting the elevation
+     * range gets a single cluster marker, coloured according to the
+     * {@link ClusterValue} setting. Cells with a single profile show that
+     * profile as normal.
+     * 
+     * @param currentProfiles
+     *            The {@link ProfileStore} containing the profiles
+     * @param visible
+     *            The cells in view. Profiles in other cells are not drawn. May
+     *            be <code>null</code> to draw all profiles
+     * @param level
+     *            The quadtree level to cluster at
+     * @param activeMarkers
+     *            The {@link List} to add markers to
+     */
+    private void drawClusters(ProfileStore currentProfiles, BitSet visible, int level,
+            List<Marker> activeMarkers) {
+        double minElevation = elevationRange.getLow();
+        double maxElevation = elevationRange.getHigh();
+        int shift = 2 * (ProfileStore.CLUSTER_LEVELS - level);
+        int size = currentProfiles.size();
+        int k = 0;
+        while (k < size) {
+            /*
+             * Profiles in the same cell are contiguous in Z-order
+             */
+            int cell = currentProfiles.getOrderedCellCode(k) >>> shift;
+            int nActive = 0;
+            int firstProfile = -1;
+            int firstLevel = -1;
+            double latSum = 0.0;
+            double lonSum = 0.0;
+            double valueSum = 0.0;
+            int nValues = 0;
+            float min = Float.NaN;
+            float max = Float.NaN;
+            for (; k < size && (currentProfiles.getOrderedCellCode(k) >>> shift) == cell; k++) {
+                int i = currentProfiles.getCellOrderedProfile(k);
+                if (!isVisible(currentProfiles, i, visible)) {
+                    continue;
                 }
-                if (getOpacity() < 1.0) {
-                    markerColor = new Color(markerColor.getRed(), markerColor.getGreen(),
-                            markerColor.getBlue(), (int) (markerColor.getAlpha() * getOpacity()));
+                int zLevel = currentProfiles.getClosestLevel(i, elevation, minElevation,
+                        maxElevation);
+                if (zLevel < 0) {
+                    continue;
                 }
-                markers.get(i).getAttributes().setMaterial(new Material(markerColor));
-                activeMarkers.add(markers.get(i));
+                if (nActive == 0) {
+                    firstProfile = i;
+                    firstLevel = zLevel;
+                }
+                nActive++;
+                latSum += currentProfiles.getLatitude(i);
+                lonSum += currentProfiles.getLongitude(i);
+                float value = currentProfiles.getValue(zLevel);
+                if (!Float.isNaN(value)) {
+                    valueSum += value;
+                    nValues++;
+                    if (nValues == 1 || value < min) {
+                        min = value;
+                    }
+                    if (nValues == 1 || value > max) {
+                        max = value;
+                    }
+                }
+            }
+
+            if (nActive == 1) {
+                addProfile(currentProfiles, firstProfile, currentProfiles.getValue(firstLevel),
+                        activeMarkers);
+            } else if (nActive > 1) {
+                float value;
+                switch (clusterValue) {
+                case MIN:
+                    value = min;
+                    break;
+                case MAX:
+                    value = max;
+                    break;
+                case MEAN:
+                default:
+                    value = nValues == 0 ? Float.NaN : (float) (valueSum / nValues);
+                    break;
+                }
+                addCluster(latSum / nActive, lonSum / nActive, value, activeMarkers);
             }
         }
-        setMarkers(activeMarkers);
+    }
+
+    /**
+     * Gets a {@link ProfileMarker} from the pool, creating it if required
+     * 
+     * @param index
+     *            The index of the marker in the pool
+     * @return The pooled {@link ProfileMarker}
+     */
+    private ProfileMarker getPooledMarker(int index) {
+        while (markerPool.size() <= index) {
+            markerPool.add(new ProfileMarker());
+        }
+        return markerPool.get(index);
+    }
+
+    /**
+     * Gets the (shared) {@link MarkerAttributes} to use for a data value
+     * 
+     * @param value
+     *            The data value, or {@link Float#NaN} for no data
+     * @return The {@link MarkerAttributes} to use for the given value
+     */
+    private MarkerAttributes getMarkerAttributes(float value) {
+        return getMarkerAttributes(value, attributesPool, MARKER_SIZE);
+    }
+
+    /**
+     * Gets the (shared) {@link MarkerAttributes} to use for a data value
+     * 
+     * @param value
+     *            The data value, or {@link Float#NaN} for no data
+     * @param pool
+     *            The pool of {@link MarkerAttributes} to use
+     * @param markerSize
+     *            The size of marker which the pool is for
+     * @return The {@link MarkerAttributes} to use for the given value
+     */
+    private MarkerAttributes getMarkerAttributes(float value, Map<Integer, MarkerAttributes> pool,
+            double markerSize) {
+        int argb = getColour(value);
+        MarkerAttributes attrs = pool.get(argb);
+        if (attrs == null) {
+            attrs = new BasicMarkerAttributes(new Material(new Color(argb, true)),
+                    BasicMarkerShape.SPHERE, 1.0);
+            attrs.setMarkerPixels(markerSize);
+            pool.put(argb, attrs);
+        }
+        return attrs;
+    }
+
+    /**
+     * Gets the colour to draw a data value in
+     * 
+     * @param value
+     *            The data value, or {@link Float#NaN} for no data
+     * @return The colour, as an ARGB int, including the layer opacity
+     */
+    private int getColour(float value) {
+        int argb = colourLut.getColour(value);
+        int alpha = argb >>> 24;
+        if (alpha == 0) {
+            /*
+             * We don't want transparent markers to be 100% transparent (as in
+             * gridded fields), so we set the colour to be ~25% instead
+             */
+            alpha = 64;
+        }
+        alpha = (int) (alpha * getOpacity());
+        return (alpha << 24) | (argb & 0xFFFFFF);
     }
 
     @Override
     public void setOpacity(double opacity) {
         super.setOpacity(opacity);
+        synchronized (this) {
+            attributesPool.clear();
+            clusterAttributesPool.clear();
+        }
         redrawExistingProfiles();
     }
 
-    @Override
-    public void selected(SelectEvent event) {
-        /*
-         * For profiles, we handle the select events here. This is different to
-         * gridded data, where the Layer is not pickable in the same way
+    /**
+     * A {@link BasicMarker} which keeps track of the profile it represents, so
+     * that it is only moved if it is reassigned to a different one. These are
+     * pooled, and so can be reassigned to different profiles.
+     * 
+     * @author Guy Griffiths
+     */
+    private static class ProfileMarker extends BasicMarker {
+        /** Used until a pooled marker is given its real attributes */
+        private static final MarkerAttributes UNASSIGNED = new BasicMarkerAttributes(
+                new Material(TRANSPARENT), BasicMarkerShape.SPHERE, 1.0);
+
+        private ProfileStore profiles = null;
+        private int index = -1;
+
+        public ProfileMarker() {
+            super(Position.ZERO, UNASSIGNED);
+        }
+
+        /**
+         * Sets the profile which this marker represents
+         * 
+         * @param profiles
+         *            The {@link ProfileStore} containing the profile
+         * @param index
+         *            The index of the profile in the store
          */
-        if (lastHighlit != null
-                && (!event.hasObjects() || !event.getTopObject().equals(lastHighlit))) {
-            lastHighlit.getAttributes().setMarkerPixels(MARKER_SIZE);
-            lastHighlit = null;
-        }
-        if (event.hasObjects()) {
-            Object topObject = event.getTopObject();
-            if (topObject instanceof Marker) {
-                if (event.isRollover()) {
-                    lastHighlit = (Marker) topObject;
-                    lastHighlit.getAttributes().setMarkerPixels(MARKER_SIZE * 1.5);
-                } else if (event.isLeftClick()) {
-                    wwd.getModel().showFeatureInfo(((Marker) topObject).getPosition(), true);
-                }
+        public void setProfile(ProfileStore profiles, int index) {
+            if (this.profiles != profiles || this.index != index) {
+                this.profiles = profiles;
+                this.index = index;
+                setPosition(Position.fromDegrees(profiles.getLatitude(index),
+                        profiles.getLongitude(index), 0.0));
+            }
+        }
+
+        /**
+         * Sets this marker to represent a cluster of profiles
+         * 
+         * @param latitude
+         *            The latitude of the cluster centre
+         * @param longitude
+         *            The longitude of the cluster centre
+         */
+        public void setCluster(double latitude, double longitude) {
+            profiles = null;
+            index = -1;
+            setPosition(Position.fromDegrees(latitude, longitude, 0.0));
+        }
+    }
+
+    /**
+     * The positions and colours of the drawn profiles and clusters, along with
+     * the indices used to pick them
+     * 
+     * @author Guy Griffiths
+     */
+    private static class PointSet {
+        private final PointBuffer profilePoints = new PointBuffer();
+        private final PointBuffer clusterPoints = new PointBuffer();
+        private final PointPickIndex profileIndex = new PointPickIndex();
+        private final PointPickIndex clusterIndex = new PointPickIndex();
+        /** The {@link ProfileStore} which the IDs of profilePoints refer to */
+        private ProfileStore profiles = null;
+
+        private void clear(ProfileStore profiles) {
+            this.profiles = profiles;
+            profilePoints.clear();
+            clusterPoints.clear();
+        }
+
+        private void buildIndices() {
+            profileIndex.build(profilePoints);
+            clusterIndex.build(clusterPoints);
+        }
+    }
+
+    /**
+     * The ways in which the values of clustered profiles can be combined to
+     * colour the cluster marker
+     */
+    private enum ClusterValue {
+        MEAN, MIN, MAX;
+
+        private static ClusterValue fromString(String value) {
+            try {
+                return valueOf(value.trim().toUpperCase());
+            } catch (IllegalArgumentException e) {
+                return MEAN;
             }
         }
     }
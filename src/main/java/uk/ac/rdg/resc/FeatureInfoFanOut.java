@@ -0,0 +1,286 @@
+/*******************************************************************************
+ * Copyright (c) 2014 The University of Reading
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+
+package uk.ac.rdg.resc;
+
+import gov.nasa.worldwind.geom.Position;
+import gov.nasa.worldwind.util.Logging;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+
+import org.joda.time.DateTime;
+
+import uk.ac.rdg.resc.RescModel.FeatureInfoRequest;
+import uk.ac.rdg.resc.edal.domain.Extent;
+import uk.ac.rdg.resc.edal.exceptions.EdalException;
+import uk.ac.rdg.resc.edal.feature.PointSeriesFeature;
+import uk.ac.rdg.resc.edal.feature.ProfileFeature;
+import uk.ac.rdg.resc.edal.util.Array1D;
+import uk.ac.rdg.resc.edal.util.GISUtils;
+import uk.ac.rdg.resc.logging.RescLogging;
+import uk.ac.rdg.resc.widgets.FeatureInfoBalloon;
+
+/**
+ * Coordinates the extraction of feature info for one or more
+ * {@link RescModel}s which have been queried at the same position (e.g. when
+ * views are linked).
+ * 
+ * Requests are grouped by dataset (and by the elevation, time and ranges they
+ * use), so that all of the variables required from a dataset are extracted in
+ * a single read. Panels showing the same variable share the result. The value,
+ * timeseries and profile reads for each group are run concurrently, and the
+ * results are distributed to each panel's {@link FeatureInfoBalloon} as soon as
+ * they are available.
+ * 
+ * @author Guy Griffiths
+ */
+class FeatureInfoFanOut {
+    /** The sensitivity, in degrees, to use when reading data values */
+    private static final double VALUE_SENSITIVITY = 0.5;
+    /** The sensitivity, in degrees, to use when extracting graph features */
+    private static final double GRAPH_SENSITIVITY = 1.0;
+
+    private final VideoWallCatalogue catalogue;
+    private final ExecutorService executor;
+
+    /**
+     * @param catalogue
+     *            The {@link VideoWallCatalogue} to extract data from
+     * @param executor
+     *            The {@link ExecutorService} to run the extraction on
+     */
+    FeatureInfoFanOut(VideoWallCatalogue catalogue, ExecutorService executor) {
+        this.catalogue = catalogue;
+        this.executor = executor;
+    }
+
+    /**
+     * Extracts the data for a number of {@link FeatureInfoRequest}s
+     * 
+     * @param position
+     *            The {@link Position} which has been queried
+     * @param requests
+     *            The {@link FeatureInfoRequest}s to fill in
+     */
+    void extract(Position position, Collection<FeatureInfoRequest> requests) {
+        Map<List<Object>, List<FeatureInfoRequest>> groups = new LinkedHashMap<>();
+        for (FeatureInfoRequest request : requests) {
+            List<Object> key = Arrays.<Object> asList(
+                    catalogue.getDatasetFromLayerName(request.getLayerName()),
+                    request.getElevation(), request.getTime(), request.getElevationRange(),
+                    request.getTimeRange());
+            List<FeatureInfoRequest> group = groups.get(key);
+            if (group == null) {
+                group = new ArrayList<>();
+                groups.put(key, group);
+            }
+            group.add(request);
+        }
+        for (List<FeatureInfoRequest> group : groups.values()) {
+            extractGroup(position, group);
+        }
+    }
+
+    /**
+     * Fills in a {@link FeatureInfoRequest} for a {@link ProfileFeature} which
+     * is already held in memory (e.g. one whose marker has been clicked). The
+     * value and profile graph are generated directly from the feature, without
+     * querying the dataset. Nearby profiles are then extracted in the
+     * background and added to the graph for context.
+     * 
+     * @param position
+     *            The {@link Position} of the feature
+     * @param feature
+     *            The {@link ProfileFeature} to display
+     * @param elevation
+     *            The elevation to read the value at
+     * @param request
+     *            The {@link FeatureInfoRequest} to fill in
+     */
+    void extractPicked(final Position position, final ProfileFeature feature, Double elevation,
+            final FeatureInfoRequest request) {
+        Number value = null;
+        Array1D<Number> values = feature.getValues(request.getVariableId());
+        if (elevation != null && values != null) {
+            int zIndex = GISUtils.getIndexOfClosestElevationTo(elevation, feature.getDomain());
+            if (zIndex >= 0) {
+                value = values.get(zIndex);
+            }
+        }
+        request.valueRead(value);
+
+        executor.submit(new Runnable() {
+            @Override
+            public void run() {
+                request.profilesRead(Collections.singletonList(feature));
+
+                List<? extends ProfileFeature> nearby;
+                try {
+                    nearby = catalogue.getProfiles(request.getLayerName(), position,
+                            GRAPH_SENSITIVITY, request.getElevationRange(),
+                            request.getTimeRange());
+                } catch (EdalException e) {
+                    /*
+                     * We already have a graph of the picked profile, so just
+                     * log this and leave it as it is
+                     */
+                    String message = RescLogging.getMessage("resc.DataReadingProblem");
+                    Logging.logger().warning(message);
+                    return;
+                }
+                /*
+                 * The picked profile goes first, so that it is always plotted
+                 */
+                List<ProfileFeature> profiles = new ArrayList<>();
+                profiles.add(feature);
+                for (ProfileFeature profile : nearby) {
+                    if (!profile.getId().equals(feature.getId())) {
+                        profiles.add(profile);
+                    }
+                }
+                if (profiles.size() > 1) {
+                    request.contextProfilesRead(profiles);
+                }
+            }
+        });
+    }
+
+    /**
+     * Extracts the data for a group of {@link FeatureInfoRequest}s which all
+     * refer to the same dataset, elevation range and time range.
+     * 
+     * @param position
+     *            The {@link Position} which has been queried
+     * @param group
+     *            The {@link FeatureInfoRequest}s to fill in
+     */
+    private void extractGroup(final Position position, final List<FeatureInfoRequest> group) {
+        final Double elevation = group.get(0).getElevation();
+        final DateTime time = group.get(0).getTime();
+        final Extent<Double> elevationRange = group.get(0).getElevationRange();
+        final Extent<DateTime> timeRange = group.get(0).getTimeRange();
+
+        final Set<String> layers = new HashSet<>();
+        final Set<String> timeseriesLayers = new HashSet<>();
+        final Set<String> profileLayers = new HashSet<>();
+        for (FeatureInfoRequest request : group) {
+            layers.add(request.getLayerName());
+            if (request.wantsTimeseries()) {
+                timeseriesLayers.add(request.getLayerName());
+            }
+            if (request.wantsProfiles()) {
+                profileLayers.add(request.getLayerName());
+            }
+        }
+
+        /*
+         * First read the data values
+         */
+        executor.submit(new Runnable() {
+            @Override
+            public void run() {
+                Map<String, Number> values = null;
+                try {
+                    values = catalogue.getLayerValues(layers, position, elevation, time,
+                            elevationRange, timeRange, VALUE_SENSITIVITY);
+                } catch (EdalException e) {
+                    /*
+                     * There is a problem reading the data. We log the error and
+                     * continue. The feature info balloons will give a no-data
+                     * message.
+                     */
+                    String message = RescLogging.getMessage("resc.DataReadingProblem");
+                    Logging.logger().warning(message);
+                    e.printStackTrace();
+                }
+                for (FeatureInfoRequest request : group) {
+                    request.valueRead(values == null ? null : values.get(request.getLayerName()));
+                }
+            }
+        });
+
+        if (!timeseriesLayers.isEmpty()) {
+            executor.submit(new Runnable() {
+                @Override
+                public void run() {
+                    Map<String, List<? extends PointSeriesFeature>> timeseries;
+                    try {
+                        timeseries = catalogue.getTimeseries(timeseriesLayers, position,
+                                GRAPH_SENSITIVITY, elevationRange, timeRange);
+                    } catch (Exception e) {
+                        for (FeatureInfoRequest request : group) {
+                            if (request.wantsTimeseries()) {
+                                request.graphFailed(e);
+                            }
+                        }
+                        return;
+                    }
+                    for (FeatureInfoRequest request : group) {
+                        if (request.wantsTimeseries()) {
+                            request.timeseriesRead(timeseries.get(request.getLayerName()));
+                        }
+                    }
+                }
+            });
+        }
+
+        if (!profileLayers.isEmpty()) {
+            executor.submit(new Runnable() {
+                @Override
+                public void run() {
+                    Map<String, List<? extends ProfileFeature>> profiles;
+                    try {
+                        profiles = catalogue.getProfiles(profileLayers, position,
+                                GRAPH_SENSITIVITY, elevationRange, timeRange);
+                    } catch (Exception e) {
+                        for (FeatureInfoRequest request : group) {
+                            if (request.wantsProfiles()) {
+                                request.graphFailed(e);
+                            }
+                        }
+                        return;
+                    }
+                    for (FeatureInfoRequest request : group) {
+                        if (request.wantsProfiles()) {
+                            request.profilesRead(profiles.get(request.getLayerName()));
+                        }
+                    }
+                }
+            });
+        }
+    }
+}
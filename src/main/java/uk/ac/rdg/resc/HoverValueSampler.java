@@ -0,0 +1,256 @@
+/*******************************************************************************
+ * Copyright (c) 2014 The University of Reading
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+
+package uk.ac.rdg.resc;
+
+import gov.nasa.worldwind.util.Logging;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.joda.time.DateTime;
+
+import uk.ac.rdg.resc.edal.grid.HorizontalGrid;
+import uk.ac.rdg.resc.edal.metadata.GridVariableMetadata;
+import uk.ac.rdg.resc.edal.metadata.VariableMetadata;
+import uk.ac.rdg.resc.logging.RescLogging;
+
+/**
+ * Answers value lookups for the hover readout of a {@link RescModel}.
+ * 
+ * The values of the displayed layer at the current time and elevation are
+ * read once (in the background) onto a regular global grid. Lookups then only
+ * involve some index arithmetic and an array access, so they can be done on
+ * every frame without allocating anything.
+ * 
+ * @author Guy Griffiths
+ */
+class HoverValueSampler {
+    /*
+     * Limits on the size of the sampling grid. The upper limit keeps the
+     * memory use to around 16MB per panel (2880x1440 floats).
+     */
+    private static final int MIN_WIDTH = 360;
+    private static final int MAX_WIDTH = 2880;
+    private static final int DEFAULT_WIDTH = 1440;
+
+    /** Reads the sampling grids. Shared between all panels */
+    private static final ExecutorService LOADER = Executors.newSingleThreadExecutor();
+
+    private final VideoWallCatalogue catalogue;
+    private final Runnable loadedCallback;
+
+    /*
+     * The slice which has most recently been requested
+     */
+    private String layerName = null;
+    private Double elevation = null;
+    private DateTime time = null;
+    private int generation = 0;
+
+    /** The most recently loaded slice */
+    private volatile Slice slice = null;
+
+    /**
+     * @param catalogue
+     *            The {@link VideoWallCatalogue} to read values from
+     * @param loadedCallback
+     *            Called (on a background thread) whenever a new slice has been
+     *            loaded
+     */
+    public HoverValueSampler(VideoWallCatalogue catalogue, Runnable loadedCallback) {
+        this.catalogue = catalogue;
+        this.loadedCallback = loadedCallback;
+    }
+
+    /**
+     * Sets the layer, elevation and time to sample. If these have changed, the
+     * values are loaded in the background, and {@link #isReady()} will return
+     * <code>false</code> until they are available.
+     * 
+     * This does nothing if the slice has not changed, so it is cheap to call
+     * on every frame.
+     * 
+     * @param layerName
+     *            The name of the layer to sample
+     * @param metadata
+     *            The {@link VariableMetadata} of the layer
+     * @param elevation
+     *            The elevation to sample. May be <code>null</code>
+     * @param time
+     *            The time to sample. May be <code>null</code>
+     */
+    public synchronized void setSlice(final String layerName, VariableMetadata metadata,
+            final Double elevation, final DateTime time) {
+        if (equal(this.layerName, layerName) && equal(this.elevation, elevation)
+                && equal(this.time, time)) {
+            return;
+        }
+        this.layerName = layerName;
+        this.elevation = elevation;
+        this.time = time;
+        final int thisGeneration = ++generation;
+        if (layerName == null) {
+            return;
+        }
+
+        final int width = getSamplingWidth(metadata);
+        final int height = width / 2;
+        LOADER.submit(new Runnable() {
+            @Override
+            public void run() {
+                /*
+                 * If another slice has been requested since this one, don't
+                 * bother reading it
+                 */
+                if (!isCurrent(thisGeneration)) {
+                    return;
+                }
+                try {
+                    float[] values = catalogue.readGlobalValues(layerName, width, height,
+                            elevation, time);
+                    synchronized (HoverValueSampler.this) {
+                        if (thisGeneration != generation) {
+                            return;
+                        }
+                        slice = new Slice(values, width, height, thisGeneration);
+                    }
+                    loadedCallback.run();
+                } catch (Exception e) {
+                    String message = RescLogging.getMessage("resc.HoverReadoutProblem",
+                            layerName);
+                    Logging.logger().warning(message);
+                }
+            }
+        });
+    }
+
+    /**
+     * @return Whether values are available for the most recently requested
+     *         slice
+     */
+    public synchronized boolean isReady() {
+        Slice currentSlice = slice;
+        return currentSlice != null && currentSlice.generation == generation;
+    }
+
+    /**
+     * @return A number which changes whenever a new slice is loaded, or -1 if
+     *         no slice is available
+     */
+    public int getSliceVersion() {
+        Slice currentSlice = slice;
+        return currentSlice == null ? -1 : currentSlice.generation;
+    }
+
+    /**
+     * Samples the current slice. This does not allocate any objects.
+     * 
+     * @param latitude
+     *            The latitude to sample at, in degrees
+     * @param longitude
+     *            The longitude to sample at, in degrees
+     * @return The value at the given position, or {@link Float#NaN} if there
+     *         is no data or the slice is not yet available
+     */
+    public float sample(double latitude, double longitude) {
+        Slice currentSlice = slice;
+        int index = cellIndex(currentSlice, latitude, longitude);
+        return index < 0 ? Float.NaN : currentSlice.values[index];
+    }
+
+    /**
+     * @param latitude
+     *            The latitude, in degrees
+     * @param longitude
+     *            The longitude, in degrees
+     * @return The index of the grid cell which a position falls in, or -1 if
+     *         there is no slice available. This can be used to tell if the
+     *         value under the cursor has changed without comparing values.
+     */
+    public int cellIndex(double latitude, double longitude) {
+        return cellIndex(slice, latitude, longitude);
+    }
+
+    private static int cellIndex(Slice slice, double latitude, double longitude) {
+        if (slice == null || latitude < -90.0 || latitude > 90.0) {
+            return -1;
+        }
+        /*
+         * Wrap longitudes, and clamp latitudes to the grid edge (which is hit
+         * exactly at 90N)
+         */
+        int i = (int) (((longitude + 180.0) / 360.0) * slice.width) % slice.width;
+        if (i < 0) {
+            i += slice.width;
+        }
+        int j = Math.min((int) (((latitude + 90.0) / 180.0) * slice.height), slice.height - 1);
+        return j * slice.width + i;
+    }
+
+    private synchronized boolean isCurrent(int generation) {
+        return this.generation == generation;
+    }
+
+    /**
+     * Chooses the width of the sampling grid so that it roughly matches the
+     * resolution of the source data
+     */
+    private static int getSamplingWidth(VariableMetadata metadata) {
+        if (metadata instanceof GridVariableMetadata) {
+            HorizontalGrid grid = ((GridVariableMetadata) metadata).getHorizontalDomain();
+            double lonExtent = grid.getBoundingBox().getWidth();
+            if (grid.getXSize() > 0 && lonExtent > 0.0) {
+                int width = (int) Math.ceil(360.0 * grid.getXSize() / lonExtent);
+                return Math.max(MIN_WIDTH, Math.min(MAX_WIDTH, width));
+            }
+        }
+        return DEFAULT_WIDTH;
+    }
+
+    private static boolean equal(Object a, Object b) {
+        return a == null ? b == null : a.equals(b);
+    }
+
+    /**
+     * A set of values on a regular global grid
+     */
+    private static final class Slice {
+        private final float[] values;
+        private final int width;
+        private final int height;
+        private final int generation;
+
+        public Slice(float[] values, int width, int height, int generation) {
+            this.values = values;
+            this.width = width;
+            this.height = height;
+            this.generation = generation;
+        }
+    }
+}
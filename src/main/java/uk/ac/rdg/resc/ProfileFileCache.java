@@ -0,0 +1,762 @@
+/*******************************************************************************
+ * Copyright (c) 2014 The University of Reading
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+
+package uk.ac.rdg.resc;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.DoubleBuffer;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+import org.joda.time.DateTime;
+
+import uk.ac.rdg.resc.edal.domain.Extent;
+import uk.ac.rdg.resc.edal.feature.ProfileFeature;
+import uk.ac.rdg.resc.edal.geometry.BoundingBox;
+import uk.ac.rdg.resc.edal.metadata.Parameter;
+import uk.ac.rdg.resc.edal.position.VerticalCrs;
+import uk.ac.rdg.resc.edal.position.VerticalCrsImpl;
+import uk.ac.rdg.resc.util.SourceFile;
+
+/**
+ * A local binary cache of the profiles of a single variable in an observation
+ * dataset, which is read via memory mapping.
+ * 
+ * Observation datasets are often stored as many small records spread across
+ * many files, which makes reading them through the EDAL readers slow. This
+ * converts them once into a single file of columns (times, positions, and the
+ * depths and values of every profile, packed together with an offset per
+ * profile), sorted by time so that a time range maps to a contiguous run of
+ * profiles. Only the header is read into memory - the columns are accessed
+ * directly from the mapped file.
+ * 
+ * The source files which the cache was built from are recorded, so that when
+ * new files appear only those need to be read to update the cache.
+ * 
+ * @author Guy Griffiths
+ */
+class ProfileFileCache {
+    private static final int MAGIC = 0x45445043;
+    private static final int VERSION = 1;
+    /**
+     * The largest cache file which can be mapped. Positions within the file
+     * are ints, so a larger cache is refused rather than split into segments.
+     */
+    static final long MAX_FILE_SIZE = Integer.MAX_VALUE;
+
+    private final String varId;
+    private final Parameter parameter;
+    private final String zAxisName;
+    private final VerticalCrs zCrs;
+    private final List<SourceFile> sources;
+
+    private final MappedByteBuffer buffer;
+    private final int size;
+    /*
+     * Columns, mapped from the file. Profiles with no time have a time of
+     * ProfileStore.NO_TIME, so sort before all others.
+     */
+    private final LongBuffer times;
+    private final DoubleBuffer lats;
+    private final DoubleBuffer lons;
+    /*
+     * The depths/values for profile i are at indices offsets[i] (inclusive) to
+     * offsets[i+1] (exclusive), sorted by depth
+     */
+    private final IntBuffer offsets;
+    private final FloatBuffer depths;
+    private final FloatBuffer values;
+    /*
+     * IDs and names are stored as UTF-8 in a single block, with an offset for
+     * each
+     */
+    private final IntBuffer idOffsets;
+    private final IntBuffer nameOffsets;
+    private final ByteBuffer strings;
+
+    /**
+     * Opens an existing cache file
+     * 
+     * @param file
+     *            The cache file
+     * @throws IOException
+     *             If the file cannot be read, or is not a valid cache file
+     */
+    ProfileFileCache(File file) throws IOException {
+        MappedByteBuffer mapped;
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r");
+                FileChannel channel = raf.getChannel()) {
+            if (channel.size() > MAX_FILE_SIZE) {
+                throw new IOException(file + " is too large to be mapped as a profile cache");
+            }
+            /*
+             * The mapping remains valid once the channel is closed
+             */
+            mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        buffer = mapped;
+        try {
+            if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+                throw new IOException(file + " is not a profile cache file of version " + VERSION);
+            }
+            byte[] header = new byte[buffer.getInt()];
+            buffer.get(header);
+
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(header));
+            varId = in.readUTF();
+            if (in.readBoolean()) {
+                parameter = new Parameter(in.readUTF(), in.readUTF(), in.readUTF(), in.readUTF(),
+                        in.readUTF());
+            } else {
+                parameter = null;
+            }
+            zAxisName = in.readUTF();
+            if (in.readBoolean()) {
+                zCrs = new VerticalCrsImpl(in.readUTF(), in.readBoolean(), in.readBoolean(),
+                        in.readBoolean());
+            } else {
+                zCrs = null;
+            }
+            int nSources = in.readInt();
+            List<SourceFile> sources = new ArrayList<>(nSources);
+            for (int i = 0; i < nSources; i++) {
+                sources.add(new SourceFile(in.readUTF(), in.readLong(), in.readLong()));
+            }
+            this.sources = Collections.unmodifiableList(sources);
+            size = in.readInt();
+            int nLevels = in.readInt();
+            int nStringBytes = in.readInt();
+
+            int position = buffer.position();
+            times = slice(buffer, position, 8 * size).asLongBuffer();
+            position += 8 * size;
+            lats = slice(buffer, position, 8 * size).asDoubleBuffer();
+            position += 8 * size;
+            lons = slice(buffer, position, 8 * size).asDoubleBuffer();
+            position += 8 * size;
+            offsets = slice(buffer, position, 4 * (size + 1)).asIntBuffer();
+            position += 4 * (size + 1);
+            idOffsets = slice(buffer, position, 4 * (size + 1)).asIntBuffer();
+            position += 4 * (size + 1);
+            nameOffsets = slice(buffer, position, 4 * (size + 1)).asIntBuffer();
+            position += 4 * (size + 1);
+            depths = slice(buffer, position, 4 * nLevels).asFloatBuffer();
+            position += 4 * nLevels;
+            values = slice(buffer, position, 4 * nLevels).asFloatBuffer();
+            position += 4 * nLevels;
+            strings = slice(buffer, position, nStringBytes);
+        } catch (IOException | RuntimeException e) {
+            /*
+             * Release the mapping of an invalid file, so that it can be
+             * rebuilt
+             */
+            unmap(mapped);
+            throw e;
+        }
+    }
+
+    private static ByteBuffer slice(ByteBuffer buffer, int position, int length)
+            throws IOException {
+        if (position + length > buffer.capacity()) {
+            throw new IOException("Profile cache file is truncated");
+        }
+        ByteBuffer duplicate = buffer.duplicate();
+        duplicate.position(position);
+        duplicate.limit(position + length);
+        return duplicate.slice();
+    }
+
+    /**
+     * Writes a new cache file holding a batch of profiles, and opens it. The
+     * file is written to a temporary location first, so that an existing cache
+     * remains intact if this fails.
+     * 
+     * @param file
+     *            The cache file to write
+     * @param sources
+     *            The source files which the cache will represent
+     * @param added
+     *            The {@link ProfileFeature}s to include
+     * @param varId
+     *            The ID of the variable to cache
+     * @return The new {@link ProfileFileCache}
+     * @throws IOException
+     *             If there is a problem writing the cache, or if the cache
+     *             would be larger than {@link #MAX_FILE_SIZE}
+     */
+    static ProfileFileCache create(File file, List<SourceFile> sources,
+            List<? extends ProfileFeature> added, String varId) throws IOException {
+        /*
+         * This sorts the levels of the new profiles and drops those with no
+         * depth, exactly as the cached profiles have been
+         */
+        final ProfileStore store = new ProfileStore(added, varId);
+
+        /*
+         * Order the profiles by time. Only a single batch is sorted here, so
+         * boxing is acceptable.
+         */
+        final Integer[] order = new Integer[store.size()];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                return Long.compare(store.getTime(a), store.getTime(b));
+            }
+        });
+
+        File tempFile = new File(file.getPath() + ".tmp");
+        write(tempFile, sources, varId, store.getParameter(), store.getZAxisName(),
+                store.getZCrs(), new Profiles() {
+                    @Override
+                    public int size() {
+                        return order.length;
+                    }
+
+                    @Override
+                    public long getTime(int k) {
+                        return store.getTime(order[k]);
+                    }
+
+                    @Override
+                    public double getLatitude(int k) {
+                        return store.getLatitude(order[k]);
+                    }
+
+                    @Override
+                    public double getLongitude(int k) {
+                        return store.getLongitude(order[k]);
+                    }
+
+                    @Override
+                    public int getLevelStart(int k) {
+                        return store.getLevelStart(order[k]);
+                    }
+
+                    @Override
+                    public int getLevelEnd(int k) {
+                        return store.getLevelEnd(order[k]);
+                    }
+
+                    @Override
+                    public float getDepth(int k, int level) {
+                        return store.getDepth(level);
+                    }
+
+                    @Override
+                    public float getValue(int k, int level) {
+                        return store.getValue(level);
+                    }
+
+                    @Override
+                    public String getId(int k) {
+                        return store.getId(order[k]);
+                    }
+
+                    @Override
+                    public String getName(int k) {
+                        return store.getName(order[k]);
+                    }
+                });
+        Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        return new ProfileFileCache(file);
+    }
+
+    /**
+     * Merges several caches into a new cache file, and opens it. Each cache is
+     * already ordered by time, so they are merged in a single pass rather than
+     * re-sorted. Where profiles have the same time, those from earlier caches
+     * come first.
+     * 
+     * Once the merged cache has been written, the given caches are closed so
+     * that the file can replace one of them. They must not be used after this
+     * returns.
+     * 
+     * @param file
+     *            The cache file to write. This may be the file of one of the
+     *            caches being merged
+     * @param sources
+     *            The source files which the merged cache will represent
+     * @param parts
+     *            The {@link ProfileFileCache}s to merge, all of the same
+     *            variable
+     * @return The merged {@link ProfileFileCache}
+     * @throws IOException
+     *             If there is a problem writing the cache, or if the cache
+     *             would be larger than {@link #MAX_FILE_SIZE}
+     */
+    static ProfileFileCache merge(File file, List<SourceFile> sources,
+            List<ProfileFileCache> parts) throws IOException {
+        final ProfileFileCache[] caches = parts.toArray(new ProfileFileCache[parts.size()]);
+        long totalSize = 0;
+        for (ProfileFileCache cache : caches) {
+            totalSize += cache.size;
+        }
+        if (totalSize > Integer.MAX_VALUE) {
+            throw new IOException("Too many profiles to merge into a profile cache");
+        }
+
+        /*
+         * Take the earliest remaining profile of any cache each time, using a
+         * heap of the caches ordered by their next profile
+         */
+        final int[] next = new int[caches.length];
+        PriorityQueue<Integer> heads = new PriorityQueue<>(Math.max(1, caches.length),
+                new Comparator<Integer>() {
+                    @Override
+                    public int compare(Integer a, Integer b) {
+                        int compare = Long.compare(caches[a].times.get(next[a]),
+                                caches[b].times.get(next[b]));
+                        return compare != 0 ? compare : Integer.compare(a, b);
+                    }
+                });
+        for (int c = 0; c < caches.length; c++) {
+            if (caches[c].size > 0) {
+                heads.add(c);
+            }
+        }
+        final int[] cacheOf = new int[(int) totalSize];
+        final int[] indexOf = new int[(int) totalSize];
+        for (int k = 0; k < cacheOf.length; k++) {
+            int c = heads.poll();
+            cacheOf[k] = c;
+            indexOf[k] = next[c]++;
+            if (next[c] < caches[c].size) {
+                heads.add(c);
+            }
+        }
+
+        String varId = caches.length > 0 ? caches[0].varId : "";
+        Parameter parameter = null;
+        String zAxisName = null;
+        VerticalCrs zCrs = null;
+        for (ProfileFileCache cache : caches) {
+            if (cache.parameter != null) {
+                parameter = cache.parameter;
+                zAxisName = cache.zAxisName;
+                zCrs = cache.zCrs;
+                break;
+            }
+        }
+
+        File tempFile = new File(file.getPath() + ".tmp");
+        write(tempFile, sources, varId, parameter, zAxisName, zCrs, new Profiles() {
+            @Override
+            public int size() {
+                return cacheOf.length;
+            }
+
+            @Override
+            public long getTime(int k) {
+                return caches[cacheOf[k]].times.get(indexOf[k]);
+            }
+
+            @Override
+            public double getLatitude(int k) {
+                return caches[cacheOf[k]].lats.get(indexOf[k]);
+            }
+
+            @Override
+            public double getLongitude(int k) {
+                return caches[cacheOf[k]].lons.get(indexOf[k]);
+            }
+
+            @Override
+            public int getLevelStart(int k) {
+                return caches[cacheOf[k]].offsets.get(indexOf[k]);
+            }
+
+            @Override
+            public int getLevelEnd(int k) {
+                return caches[cacheOf[k]].offsets.get(indexOf[k] + 1);
+            }
+
+            @Override
+            public float getDepth(int k, int level) {
+                return caches[cacheOf[k]].depths.get(level);
+            }
+
+            @Override
+            public float getValue(int k, int level) {
+                return caches[cacheOf[k]].values.get(level);
+            }
+
+            @Override
+            public String getId(int k) {
+                return caches[cacheOf[k]].getId(indexOf[k]);
+            }
+
+            @Override
+            public String getName(int k) {
+                return caches[cacheOf[k]].getName(indexOf[k]);
+            }
+        });
+        /*
+         * A mapped file cannot be replaced on all platforms, so release the
+         * mappings before moving the merged cache into place
+         */
+        for (ProfileFileCache cache : caches) {
+            cache.close();
+        }
+        Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        return new ProfileFileCache(file);
+    }
+
+    /**
+     * The profiles to write to a cache file, in the order they are written.
+     * The levels of profile k are at indices getLevelStart(k) (inclusive) to
+     * getLevelEnd(k) (exclusive).
+     */
+    private interface Profiles {
+        int size();
+
+        long getTime(int k);
+
+        double getLatitude(int k);
+
+        double getLongitude(int k);
+
+        int getLevelStart(int k);
+
+        int getLevelEnd(int k);
+
+        float getDepth(int k, int level);
+
+        float getValue(int k, int level);
+
+        String getId(int k);
+
+        String getName(int k);
+    }
+
+    private static void write(File file, List<SourceFile> sources, String varId,
+            Parameter parameter, String zAxisName, VerticalCrs zCrs, Profiles profiles)
+            throws IOException {
+        int size = profiles.size();
+        long nLevels = 0;
+        long nStringBytes = 0;
+        for (int k = 0; k < size; k++) {
+            nLevels += profiles.getLevelEnd(k) - profiles.getLevelStart(k);
+            nStringBytes += getBytes(profiles.getId(k)).length
+                    + getBytes(profiles.getName(k)).length;
+        }
+
+        ByteArrayOutputStream headerBytes = new ByteArrayOutputStream();
+        DataOutputStream header = new DataOutputStream(headerBytes);
+        header.writeUTF(varId);
+        header.writeBoolean(parameter != null);
+        if (parameter != null) {
+            header.writeUTF(nonNull(parameter.getVariableId()));
+            header.writeUTF(nonNull(parameter.getTitle()));
+            header.writeUTF(nonNull(parameter.getDescription()));
+            header.writeUTF(nonNull(parameter.getUnits()));
+            header.writeUTF(nonNull(parameter.getStandardName()));
+        }
+        header.writeUTF(nonNull(zAxisName));
+        header.writeBoolean(zCrs != null);
+        if (zCrs != null) {
+            header.writeUTF(nonNull(zCrs.getUnits()));
+            header.writeBoolean(zCrs.isPressure());
+            header.writeBoolean(zCrs.isDimensionless());
+            header.writeBoolean(zCrs.isPositiveUpwards());
+        }
+        header.writeInt(sources.size());
+        for (SourceFile source : sources) {
+            header.writeUTF(source.getPath());
+            header.writeLong(source.getLength());
+            header.writeLong(source.getLastModified());
+        }
+        /*
+         * Check the size before writing anything. This also guarantees that
+         * the level and string counts fit in an int.
+         */
+        long fileSize = 24L + header.size() + 24L * size + 12L * (size + 1) + 8L * nLevels
+                + nStringBytes;
+        if (fileSize > MAX_FILE_SIZE) {
+            throw new IOException("A profile cache of " + varId + " would be " + fileSize
+                    + " bytes, which is larger than the limit of " + MAX_FILE_SIZE + " bytes");
+        }
+        header.writeInt(size);
+        header.writeInt((int) nLevels);
+        header.writeInt((int) nStringBytes);
+        header.close();
+
+        file.getParentFile().mkdirs();
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(file)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(headerBytes.size());
+            headerBytes.writeTo(out);
+
+            for (int k = 0; k < size; k++) {
+                out.writeLong(profiles.getTime(k));
+            }
+            for (int k = 0; k < size; k++) {
+                out.writeDouble(profiles.getLatitude(k));
+            }
+            for (int k = 0; k < size; k++) {
+                out.writeDouble(profiles.getLongitude(k));
+            }
+            int offset = 0;
+            out.writeInt(offset);
+            for (int k = 0; k < size; k++) {
+                offset += profiles.getLevelEnd(k) - profiles.getLevelStart(k);
+                out.writeInt(offset);
+            }
+            offset = 0;
+            out.writeInt(offset);
+            for (int k = 0; k < size; k++) {
+                offset += getBytes(profiles.getId(k)).length;
+                out.writeInt(offset);
+            }
+            /*
+             * Names follow the IDs in the string block
+             */
+            out.writeInt(offset);
+            for (int k = 0; k < size; k++) {
+                offset += getBytes(profiles.getName(k)).length;
+                out.writeInt(offset);
+            }
+            for (int k = 0; k < size; k++) {
+                for (int l = profiles.getLevelStart(k); l < profiles.getLevelEnd(k); l++) {
+                    out.writeFloat(profiles.getDepth(k, l));
+                }
+            }
+            for (int k = 0; k < size; k++) {
+                for (int l = profiles.getLevelStart(k); l < profiles.getLevelEnd(k); l++) {
+                    out.writeFloat(profiles.getValue(k, l));
+                }
+            }
+            for (int k = 0; k < size; k++) {
+                out.write(getBytes(profiles.getId(k)));
+            }
+            for (int k = 0; k < size; k++) {
+                out.write(getBytes(profiles.getName(k)));
+            }
+        }
+    }
+
+    /**
+     * Releases the mapping of the cache file, so that the file can be replaced
+     * or deleted. The cache must not be used after this.
+     */
+    void close() {
+        unmap(buffer);
+    }
+
+    /*
+     * There is no public way to unmap a buffer before it is garbage collected,
+     * so this uses the cleaner of the buffer: through Unsafe on Java 9 and
+     * later, and directly on Java 8. If neither is available, the mapping is
+     * left to the garbage collector.
+     */
+    private static void unmap(MappedByteBuffer buffer) {
+        try {
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            Method invokeCleaner;
+            try {
+                invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+            } catch (NoSuchMethodException e) {
+                Method getCleaner = buffer.getClass().getMethod("cleaner");
+                getCleaner.setAccessible(true);
+                Object cleaner = getCleaner.invoke(buffer);
+                if (cleaner != null) {
+                    cleaner.getClass().getMethod("clean").invoke(cleaner);
+                }
+                return;
+            }
+            Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+            theUnsafe.setAccessible(true);
+            invokeCleaner.invoke(theUnsafe.get(null), buffer);
+        } catch (Exception e) {
+            /*
+             * Left to the garbage collector
+             */
+        }
+    }
+
+    private static byte[] getBytes(String string) {
+        return nonNull(string).getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static String nonNull(String string) {
+        return string == null ? "" : string;
+    }
+
+    /**
+     * @return The ID of the variable which this cache holds
+     */
+    public String getVariableId() {
+        return varId;
+    }
+
+    /**
+     * @return The source files which this cache was built from
+     */
+    public List<SourceFile> getSources() {
+        return sources;
+    }
+
+    /**
+     * @return The number of profiles in this cache
+     */
+    public int size() {
+        return size;
+    }
+
+    private String getId(int profile) {
+        return getString(idOffsets.get(profile), idOffsets.get(profile + 1));
+    }
+
+    private String getName(int profile) {
+        return getString(nameOffsets.get(profile), nameOffsets.get(profile + 1));
+    }
+
+    private String getString(int start, int end) {
+        byte[] bytes = new byte[end - start];
+        for (int i = start; i < end; i++) {
+            bytes[i - start] = strings.get(i);
+        }
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Extracts profiles from the cache. This follows the same rules as
+     * extracting profiles from an observation dataset.
+     * 
+     * @param bbox
+     *            The {@link BoundingBox} to extract profiles from. May be
+     *            <code>null</code> for no restriction
+     * @param zExtent
+     *            The elevation range which extracted profiles must intersect.
+     *            May be <code>null</code> for no restriction
+     * @param tExtent
+     *            The time range to extract profiles from. May be
+     *            <code>null</code>
+     * @param targetT
+     *            If tExtent is <code>null</code>, only profiles at exactly this
+     *            time are extracted. May be <code>null</code>, in which case
+     *            profiles are not restricted by time
+     * @return The extracted {@link ProfileFeature}s. Profiles with no time are
+     *         always included.
+     */
+    public List<ProfileFeature> extractProfiles(BoundingBox bbox, Extent<Double> zExtent,
+            Extent<DateTime> tExtent, DateTime targetT) {
+        List<ProfileFeature> profiles = new ArrayList<>();
+        int firstTimed = lowerBound(ProfileStore.NO_TIME + 1);
+        addProfiles(0, firstTimed, bbox, zExtent, profiles);
+        if (tExtent != null) {
+            addProfiles(lowerBound(tExtent.getLow().getMillis()),
+                    lowerBound(tExtent.getHigh().getMillis() + 1), bbox, zExtent, profiles);
+        } else if (targetT != null) {
+            addProfiles(lowerBound(targetT.getMillis()), lowerBound(targetT.getMillis() + 1),
+                    bbox, zExtent, profiles);
+        } else {
+            addProfiles(firstTimed, size, bbox, zExtent, profiles);
+        }
+        return profiles;
+    }
+
+    /**
+     * @return The index of the first profile whose time is not before the
+     *         given time
+     */
+    private int lowerBound(long time) {
+        int low = 0;
+        int high = size;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (times.get(mid) < time) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    private void addProfiles(int start, int end, BoundingBox bbox, Extent<Double> zExtent,
+            List<ProfileFeature> profiles) {
+        for (int i = start; i < end; i++) {
+            double lat = lats.get(i);
+            double lon = lons.get(i);
+            if (bbox != null) {
+                /*
+                 * Wrap the longitude to the bounding box before comparing
+                 */
+                double wrapped = bbox.getMinX() + ((lon - bbox.getMinX()) % 360.0 + 360.0)
+                        % 360.0;
+                if (lat < bbox.getMinY() || lat > bbox.getMaxY() || wrapped > bbox.getMaxX()) {
+                    continue;
+                }
+            }
+            int levelStart = offsets.get(i);
+            int levelEnd = offsets.get(i + 1);
+            if (zExtent != null
+                    && (levelStart == levelEnd || depths.get(levelStart) > zExtent.getHigh()
+                            || depths.get(levelEnd - 1) < zExtent.getLow())) {
+                continue;
+            }
+            float[] profileDepths = new float[levelEnd - levelStart];
+            float[] profileValues = new float[levelEnd - levelStart];
+            for (int l = levelStart; l < levelEnd; l++) {
+                profileDepths[l - levelStart] = depths.get(l);
+                profileValues[l - levelStart] = values.get(l);
+            }
+            profiles.add(ProfileStore.createFeature(getId(i), getName(i), lat, lon,
+                    times.get(i), profileDepths, profileValues, 0, profileDepths.length, varId,
+                    parameter, zAxisName, zCrs));
+        }
+    }
+}
@@ -0,0 +1,587 @@
+/*******************************************************************************
+ * Copyright (c) 2014 The University of Reading
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+
+package uk.ac.rdg.resc;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.geotoolkit.referencing.crs.DefaultGeographicCRS;
+import org.joda.time.DateTime;
+
+import uk.ac.rdg.resc.edal.feature.ProfileFeature;
+import uk.ac.rdg.resc.edal.grid.VerticalAxis;
+import uk.ac.rdg.resc.edal.grid.VerticalAxisImpl;
+import uk.ac.rdg.resc.edal.metadata.Parameter;
+import uk.ac.rdg.resc.edal.position.HorizontalPosition;
+import uk.ac.rdg.resc.edal.position.VerticalCrs;
+import uk.ac.rdg.resc.edal.util.Array1D;
+import uk.ac.rdg.resc.edal.util.ValuesArray1D;
+
+/**
+ * Stores a set of {@link ProfileFeature}s for a single variable in primitive
+ * arrays.
+ * 
+ * Observation datasets can contain hundreds of thousands of profiles, and
+ * holding each of them as a separate {@link ProfileFeature} (along with the
+ * axis, position and value objects which make it up) generates a lot of
+ * garbage every time the displayed time range changes. Here, the positions
+ * and times of the profiles are held in one array each, and the depths and
+ * values of all profiles are packed into two shared arrays, with an offset
+ * array giving the start of each profile.
+ * 
+ * Profiles are also ordered along a Z-order (Morton) curve through a quadtree
+ * of geographic cells, so that the profiles in any cell, at any level of the
+ * quadtree, are contiguous. This allows them to be clustered for display
+ * without any further sorting.
+ * 
+ * The levels of each profile are sorted by depth, so that the closest level
+ * to a given elevation can be found with a binary search. The profiles are
+ * also indexed by their minimum elevation, so that when the elevation changes
+ * only profiles which can intersect the new elevation range are considered.
+ * 
+ * {@link ProfileFeature}s are only recreated when they are actually needed
+ * (e.g. for plotting a graph).
+ * 
+ * @author Guy Griffiths
+ */
+class ProfileStore {
+    /**
+     * The number of levels in the quadtree used to order profiles. At the
+     * finest level, cells are 360/2^CLUSTER_LEVELS degrees wide.
+     */
+    static final int CLUSTER_LEVELS = 12;
+
+    /** The time value used for profiles which have no time */
+    static final long NO_TIME = Long.MIN_VALUE;
+
+    private final String varId;
+    private final Parameter parameter;
+    private final String zAxisName;
+    private final VerticalCrs zCrs;
+
+    private final int size;
+    private final String[] ids;
+    private final String[] names;
+    private final double[] lats;
+    private final double[] lons;
+    private final long[] times;
+    /*
+     * The depths/values for profile i are at indices offsets[i] (inclusive)
+     * to offsets[i+1] (exclusive), sorted by depth. Levels with no depth are
+     * not stored.
+     */
+    private final int[] offsets;
+    private final float[] depths;
+    private final float[] values;
+    /*
+     * Profile indices, ordered by the minimum elevation of each profile, along
+     * with that elevation
+     */
+    private final int[] byMinDepth;
+    private final float[] sortedMinDepths;
+    /*
+     * Profile indices in Z-order, along with the Z-order code of each
+     */
+    private final int[] byCell;
+    private final int[] sortedCells;
+
+    /**
+     * Creates a new {@link ProfileStore}. The supplied features are not
+     * referenced once this has returned.
+     * 
+     * @param features
+     *            The {@link ProfileFeature}s to store
+     * @param varId
+     *            The ID of the variable to store values of
+     */
+    public ProfileStore(List<? extends ProfileFeature> features, String varId) {
+        this(null, null, features, varId);
+    }
+
+    /**
+     * Creates a new {@link ProfileStore} containing some of the profiles of an
+     * existing one, plus some new ones.
+     * 
+     * @param retainFrom
+     *            The {@link ProfileStore} to copy profiles from. May be
+     *            <code>null</code>
+     * @param retain
+     *            Which profiles of <code>retainFrom</code> to copy
+     * @param features
+     *            New {@link ProfileFeature}s to add
+     * @param varId
+     *            The ID of the variable to store values of
+     */
+    private ProfileStore(ProfileStore retainFrom, boolean[] retain,
+            List<? extends ProfileFeature> features, String varId) {
+        this.varId = varId;
+
+        int nRetained = 0;
+        if (retainFrom != null) {
+            for (int i = 0; i < retainFrom.size; i++) {
+                if (retain[i]) {
+                    nRetained++;
+                }
+            }
+        }
+        size = nRetained + features.size();
+
+        ids = new String[size];
+        names = new String[size];
+        lats = new double[size];
+        lons = new double[size];
+        times = new long[size];
+        offsets = new int[size + 1];
+
+        int totalLevels = 0;
+        if (retainFrom != null) {
+            int profile = 0;
+            for (int i = 0; i < retainFrom.size; i++) {
+                if (retain[i]) {
+                    offsets[profile++] = totalLevels;
+                    totalLevels += retainFrom.offsets[i + 1] - retainFrom.offsets[i];
+                }
+            }
+        }
+        for (int i = 0; i < features.size(); i++) {
+            offsets[nRetained + i] = totalLevels;
+            for (Double z : features.get(i).getDomain().getCoordinateValues()) {
+                if (z != null && !z.isNaN()) {
+                    totalLevels++;
+                }
+            }
+        }
+        offsets[size] = totalLevels;
+        depths = new float[totalLevels];
+        values = new float[totalLevels];
+
+        Parameter parameter = null;
+        String zAxisName = null;
+        VerticalCrs zCrs = null;
+        if (retainFrom != null) {
+            parameter = retainFrom.parameter;
+            zAxisName = retainFrom.zAxisName;
+            zCrs = retainFrom.zCrs;
+            /*
+             * Retained profiles are already sorted, so can be copied directly
+             */
+            int profile = 0;
+            for (int i = 0; i < retainFrom.size; i++) {
+                if (retain[i]) {
+                    ids[profile] = retainFrom.ids[i];
+                    names[profile] = retainFrom.names[i];
+                    lats[profile] = retainFrom.lats[i];
+                    lons[profile] = retainFrom.lons[i];
+                    times[profile] = retainFrom.times[i];
+                    int nLevels = retainFrom.offsets[i + 1] - retainFrom.offsets[i];
+                    System.arraycopy(retainFrom.depths, retainFrom.offsets[i], depths,
+                            offsets[profile], nLevels);
+                    System.arraycopy(retainFrom.values, retainFrom.offsets[i], values,
+                            offsets[profile], nLevels);
+                    profile++;
+                }
+            }
+        }
+
+        for (int f = 0; f < features.size(); f++) {
+            int i = nRetained + f;
+            ProfileFeature feature = features.get(f);
+            ids[i] = feature.getId();
+            names[i] = feature.getName();
+            lats[i] = feature.getHorizontalPosition().getY();
+            lons[i] = feature.getHorizontalPosition().getX();
+            times[i] = feature.getTime() == null ? NO_TIME : feature.getTime().getMillis();
+
+            VerticalAxis zAxis = feature.getDomain();
+            Array1D<Number> featureValues = feature.getValues(varId);
+            List<Double> zValues = zAxis.getCoordinateValues();
+            int index = offsets[i];
+            for (int j = 0; j < zValues.size(); j++) {
+                Double z = zValues.get(j);
+                if (z != null && !z.isNaN()) {
+                    depths[index] = z.floatValue();
+                    Number value = featureValues == null ? null : featureValues.get(j);
+                    values[index] = value == null ? Float.NaN : value.floatValue();
+                    index++;
+                }
+            }
+            sortLevels(offsets[i], offsets[i + 1]);
+
+            if (parameter == null) {
+                parameter = feature.getParameter(varId);
+                zAxisName = zAxis.getName();
+                zCrs = zAxis.getVerticalCrs();
+            }
+        }
+        this.parameter = parameter;
+        this.zAxisName = zAxisName;
+        this.zCrs = zCrs;
+
+        /*
+         * Order the profiles by their minimum elevations. We sort a single
+         * array of (depth, index) pairs packed into longs to avoid boxing.
+         */
+        long[] keys = new long[size];
+        for (int i = 0; i < size; i++) {
+            float zMin = offsets[i] == offsets[i + 1] ? Float.POSITIVE_INFINITY
+                    : depths[offsets[i]];
+            keys[i] = ((long) sortableBits(zMin) << 32) | i;
+        }
+        Arrays.sort(keys);
+        byMinDepth = new int[size];
+        sortedMinDepths = new float[size];
+        for (int i = 0; i < size; i++) {
+            int profile = (int) keys[i];
+            byMinDepth[i] = profile;
+            sortedMinDepths[i] = offsets[profile] == offsets[profile + 1]
+                    ? Float.POSITIVE_INFINITY : depths[offsets[profile]];
+        }
+
+        /*
+         * Order the profiles along the Z-order curve
+         */
+        for (int i = 0; i < size; i++) {
+            keys[i] = ((long) getCellCode(lats[i], lons[i]) << 32) | i;
+        }
+        Arrays.sort(keys);
+        byCell = new int[size];
+        sortedCells = new int[size];
+        for (int i = 0; i < size; i++) {
+            byCell[i] = (int) keys[i];
+            sortedCells[i] = (int) (keys[i] >>> 32);
+        }
+    }
+
+    /**
+     * Calculates the Z-order code of the finest quadtree cell containing a
+     * position. The code of the containing cell at level L is this value
+     * shifted right by 2 * (CLUSTER_LEVELS - L) bits.
+     * 
+     * @param latitude
+     *            The latitude of the position
+     * @param longitude
+     *            The longitude of the position
+     * @return The Z-order code
+     */
+    static int getCellCode(double latitude, double longitude) {
+        int n = 1 << CLUSTER_LEVELS;
+        double wrapped = ((longitude + 180.0) % 360.0 + 360.0) % 360.0;
+        int x = Math.min((int) (wrapped / 360.0 * n), n - 1);
+        int y = Math.max(0, Math.min((int) ((latitude + 90.0) / 180.0 * n), n - 1));
+        int code = 0;
+        for (int bit = 0; bit < CLUSTER_LEVELS; bit++) {
+            code |= ((x >> bit) & 1) << (2 * bit);
+            code |= ((y >> bit) & 1) << (2 * bit + 1);
+        }
+        return code;
+    }
+
+    /**
+     * Sorts the levels in the range [start, end) by depth. Profiles are
+     * usually stored in depth order already, so an insertion sort is used,
+     * which is linear for sorted input.
+     */
+    private void sortLevels(int start, int end) {
+        for (int i = start + 1; i < end; i++) {
+            float depth = depths[i];
+            float value = values[i];
+            int j = i - 1;
+            while (j >= start && depths[j] > depth) {
+                depths[j + 1] = depths[j];
+                values[j + 1] = values[j];
+                j--;
+            }
+            depths[j + 1] = depth;
+            values[j + 1] = value;
+        }
+    }
+
+    /**
+     * @return An int whose signed ordering is the same as the ordering of the
+     *         given float
+     */
+    private static int sortableBits(float f) {
+        int bits = Float.floatToIntBits(f);
+        return bits ^ ((bits >> 31) & 0x7fffffff);
+    }
+
+    /**
+     * @return The number of profiles in this store
+     */
+    public int size() {
+        return size;
+    }
+
+    public String getId(int profile) {
+        return ids[profile];
+    }
+
+    public double getLatitude(int profile) {
+        return lats[profile];
+    }
+
+    public double getLongitude(int profile) {
+        return lons[profile];
+    }
+
+    /**
+     * @return The time of the given profile, in milliseconds since the epoch
+     */
+    public long getTime(int profile) {
+        return times[profile];
+    }
+
+    public String getName(int profile) {
+        return names[profile];
+    }
+
+    /**
+     * @return The index of the first level of the given profile
+     */
+    public int getLevelStart(int profile) {
+        return offsets[profile];
+    }
+
+    /**
+     * @return The index after the last level of the given profile
+     */
+    public int getLevelEnd(int profile) {
+        return offsets[profile + 1];
+    }
+
+    public float getDepth(int level) {
+        return depths[level];
+    }
+
+    public Parameter getParameter() {
+        return parameter;
+    }
+
+    public String getZAxisName() {
+        return zAxisName;
+    }
+
+    public VerticalCrs getZCrs() {
+        return zCrs;
+    }
+
+    /**
+     * Creates a new {@link ProfileStore} containing some of the profiles in
+     * this one, plus some new ones. This is used to keep the loaded profiles
+     * up-to-date as the time range or visible area changes, without having to
+     * re-extract profiles which are already loaded.
+     * 
+     * @param retain
+     *            Which profiles to keep from this store
+     * @param added
+     *            New {@link ProfileFeature}s to add. These should not include
+     *            any profiles which are being retained.
+     * @return A new {@link ProfileStore}
+     */
+    public ProfileStore update(boolean[] retain, List<? extends ProfileFeature> added) {
+        return new ProfileStore(this, retain, added, varId);
+    }
+
+    /**
+     * @param k
+     *            The position in the Z-ordering, from 0 to {@link #size()}
+     * @return The index of the k-th profile in Z-order
+     */
+    public int getCellOrderedProfile(int k) {
+        return byCell[k];
+    }
+
+    /**
+     * @param k
+     *            The position in the Z-ordering, from 0 to {@link #size()}
+     * @return The Z-order code of the k-th profile in Z-order
+     */
+    public int getOrderedCellCode(int k) {
+        return sortedCells[k];
+    }
+
+    /**
+     * Profiles which may intersect an elevation range are available through
+     * {@link ProfileStore#getCandidate(int)}, in the range 0 to the value
+     * returned by this method (exclusive). Profiles outside this range cannot
+     * intersect the elevation range.
+     * 
+     * @param maxElevation
+     *            The maximum elevation of the range of interest
+     * @return The number of profiles whose minimum elevation is no greater than
+     *         the given elevation
+     */
+    public int getCandidateCount(double maxElevation) {
+        int low = 0;
+        int high = size;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (sortedMinDepths[mid] <= maxElevation) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * @param candidate
+     *            The index of the candidate, from 0 to the value returned by
+     *            {@link ProfileStore#getCandidateCount(double)}
+     * @return The index of the profile
+     */
+    public int getCandidate(int candidate) {
+        return byMinDepth[candidate];
+    }
+
+    /**
+     * Finds the level of a profile which is closest to a target elevation, if
+     * the profile intersects the given elevation range
+     * 
+     * @param profile
+     *            The index of the profile
+     * @param elevation
+     *            The target elevation
+     * @param minElevation
+     *            The minimum acceptable elevation
+     * @param maxElevation
+     *            The maximum acceptable elevation
+     * @return The index of the closest level (to be used with
+     *         {@link ProfileStore#getValue(int)}), or -1 if the profile does
+     *         not intersect the elevation range
+     */
+    public int getClosestLevel(int profile, double elevation, double minElevation,
+            double maxElevation) {
+        int start = offsets[profile];
+        int end = offsets[profile + 1];
+        if (start == end || depths[end - 1] < minElevation || depths[start] > maxElevation) {
+            return -1;
+        }
+        /*
+         * Find the first level at or below the target elevation, then check
+         * whether the one before it is closer
+         */
+        int low = start;
+        int high = end - 1;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (depths[mid] < elevation) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        if (low > start
+                && Math.abs(depths[low - 1] - elevation) <= Math.abs(depths[low] - elevation)) {
+            return low - 1;
+        }
+        return low;
+    }
+
+    /**
+     * @param level
+     *            The index of the level, as returned by
+     *            {@link ProfileStore#getClosestLevel(int, double, double, double)}
+     * @return The value at that level, or {@link Float#NaN} if there is no
+     *         data
+     */
+    public float getValue(int level) {
+        return values[level];
+    }
+
+    /**
+     * Recreates the {@link ProfileFeature} for a profile
+     * 
+     * @param profile
+     *            The index of the profile
+     * @return A new {@link ProfileFeature} containing the stored variable
+     */
+    public ProfileFeature getFeature(int profile) {
+        return createFeature(ids[profile], names[profile], lats[profile], lons[profile],
+                times[profile], depths, values, offsets[profile], offsets[profile + 1], varId,
+                parameter, zAxisName, zCrs);
+    }
+
+    /**
+     * Creates a {@link ProfileFeature} for a single variable from primitive
+     * values
+     * 
+     * @param id
+     *            The ID of the profile
+     * @param name
+     *            The name of the profile
+     * @param latitude
+     *            The latitude of the profile
+     * @param longitude
+     *            The longitude of the profile
+     * @param time
+     *            The time of the profile, in milliseconds since the epoch, or
+     *            {@link ProfileStore#NO_TIME}
+     * @param depths
+     *            An array containing the depths of the profile levels
+     * @param values
+     *            An array containing the values of the profile levels
+     * @param start
+     *            The index of the first level in depths and values
+     * @param end
+     *            The index after the last level in depths and values
+     * @param varId
+     *            The ID of the variable
+     * @param parameter
+     *            The {@link Parameter} describing the variable
+     * @param zAxisName
+     *            The name of the vertical axis
+     * @param zCrs
+     *            The {@link VerticalCrs} of the vertical axis
+     * @return A new {@link ProfileFeature}
+     */
+    static ProfileFeature createFeature(String id, String name, double latitude,
+            double longitude, long time, float[] depths, float[] values, int start, int end,
+            String varId, Parameter parameter, String zAxisName, VerticalCrs zCrs) {
+        List<Double> zValues = new ArrayList<>(end - start);
+        ValuesArray1D profileValues = new ValuesArray1D(end - start);
+        for (int i = start; i < end; i++) {
+            zValues.add((double) depths[i]);
+            profileValues.set(Float.isNaN(values[i]) ? null : values[i], i - start);
+        }
+
+        Map<String, Parameter> parameters = new HashMap<>();
+        parameters.put(varId, parameter);
+        Map<String, Array1D<Number>> featureValues = new HashMap<>();
+        featureValues.put(varId, profileValues);
+
+        return new ProfileFeature(id, name, "", new VerticalAxisImpl(zAxisName, zValues, zCrs),
+                new HorizontalPosition(longitude, latitude, DefaultGeographicCRS.WGS84),
+                time == NO_TIME ? null : new DateTime(time), parameters, featureValues);
+    }
+}
@@ -29,9 +29,12 @@
 package uk.ac.rdg.resc;
 
 import gov.nasa.worldwind.BasicModel;
+import gov.nasa.worldwind.Configuration;
 import gov.nasa.worldwind.Model;
 import gov.nasa.worldwind.WorldWind;
 import gov.nasa.worldwind.avlist.AVKey;
+import gov.nasa.worldwind.event.RenderingEvent;
+import gov.nasa.worldwind.event.RenderingListener;
 import gov.nasa.worldwind.geom.Position;
 import gov.nasa.worldwind.globes.Earth;
 import gov.nasa.worldwind.globes.EarthFlat;
@@ -43,12 +46,20 @@ import gov.nasa.worldwind.globes.projections.ProjectionModifiedSinusoidal;
 import gov.nasa.worldwind.globes.projections.ProjectionPolarEquidistant;
 import gov.nasa.worldwind.globes.projections.ProjectionSinusoidal;
 import gov.nasa.worldwind.layers.AnnotationLayer;
+import gov.nasa.worldwind.render.AnnotationAttributes;
+import gov.nasa.worldwind.render.ScreenAnnotation;
 import gov.nasa.worldwind.util.Logging;
 
 import java.awt.Color;
+import java.awt.Font;
+import java.awt.Insets;
+import java.awt.Point;
 import java.io.File;
+import java.io.IOException;
 import java.text.DecimalFormat;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 
 import org.geotoolkit.referencing.crs.DefaultGeographicCRS;
@@ -78,6 +89,7 @@ import uk.ac.rdg.resc.edal.position.VerticalCrs;
 import uk.ac.rdg.resc.edal.util.Extents;
 import uk.ac.rdg.resc.edal.util.TimeUtils;
 import uk.ac.rdg.resc.logging.RescLogging;
+import uk.ac.rdg.resc.util.TimeseriesDownsampler;
 import uk.ac.rdg.resc.widgets.FeatureInfoBalloon;
 import uk.ac.rdg.resc.widgets.SliderWidget.SliderWidgetHandler;
 import uk.ac.rdg.resc.widgets.SliderWidgetAnnotation;
@@ -149,6 +161,46 @@ public class RescModel extends BasicModel implements SliderWidgetHandler, CacheL
      */
     private FeatureInfoBalloon balloon = null;
 
+    /**
+     * Runs the separate parts of feature info extraction, so that the data
+     * value and graphs can be generated concurrently
+     */
+    private static final ExecutorService FEATURE_INFO_EXECUTOR = Executors.newCachedThreadPool();
+
+    /*
+     * The size at which preview graphs are generated
+     */
+    private static final int PREVIEW_GRAPH_WIDTH = (int) (FeatureInfoBalloon.TARGET_WIDTH
+            / FeatureInfoBalloon.PREVIEW_SCALE);
+    private static final int PREVIEW_GRAPH_HEIGHT = (int) (FeatureInfoBalloon.TARGET_HEIGHT
+            / FeatureInfoBalloon.PREVIEW_SCALE);
+
+    /**
+     * Extracts feature info for this model and any linked models together
+     */
+    private FeatureInfoFanOut featureInfoFanOut;
+
+    /*
+     * Hover readout of the data value under the cursor. The input handler
+     * only records the cursor position - the value is looked up at most once
+     * per frame, in a rendering listener.
+     */
+    private static final int HOVER_OFFSET = 16;
+    private HoverValueSampler hoverSampler = null;
+    private ScreenAnnotation hoverAnnotation = null;
+    private final Point hoverPoint = new Point();
+    private volatile int hoverX;
+    private volatile int hoverY;
+    private volatile boolean hovering = false;
+    private volatile boolean hoverMoved = false;
+    private boolean hoverShown = false;
+    private boolean hoverPositionValid = false;
+    private double hoverLat;
+    private double hoverLon;
+    private long lastHoverViewState = -1L;
+    private int lastHoverCell = -1;
+    private int lastHoverSliceVersion = -1;
+
     /**
      * Construct a new {@link RescModel}
      * 
@@ -169,6 +221,8 @@ public class RescModel extends BasicModel implements SliderWidgetHandler, CacheL
         this.wwd = wwd;
         this.parent = parent;
 
+        featureInfoFanOut = new FeatureInfoFanOut(catalogue, FEATURE_INFO_EXECUTOR);
+
         globe = new Earth();
         /*
          * Disable terrain elevation - not useful for the data visualisation we
@@ -190,6 +244,39 @@ public class RescModel extends BasicModel implements SliderWidgetHandler, CacheL
 
         fullScreenAnnotationLayer = new AnnotationLayer();
         getLayers().add(fullScreenAnnotationLayer);
+
+        if (Configuration.getBooleanValue("uk.ac.rdg.resc.edal.multiglobe.HoverReadout", true)) {
+            hoverSampler = new HoverValueSampler(catalogue, new Runnable() {
+                @Override
+                public void run() {
+                    /*
+                     * Redraw so that the readout appears once the values are
+                     * available
+                     */
+                    RescModel.this.wwd.redraw();
+                }
+            });
+            hoverAnnotation = new ScreenAnnotation("", hoverPoint);
+            hoverAnnotation.setPickEnabled(false);
+            AnnotationAttributes attribs = hoverAnnotation.getAttributes();
+            attribs.setFont(Font.decode("Arial-BOLD-12"));
+            attribs.setTextColor(Color.WHITE);
+            attribs.setBackgroundColor(new Color(0, 0, 0, 160));
+            attribs.setBorderWidth(0);
+            attribs.setLeader(AVKey.SHAPE_NONE);
+            attribs.setAdjustWidthToText(AVKey.SIZE_FIT_TEXT);
+            attribs.setInsets(new Insets(2, 4, 2, 4));
+            attribs.setDrawOffset(new Point(0, HOVER_OFFSET));
+
+            wwd.addRenderingListener(new RenderingListener() {
+                @Override
+                public void stageChanged(RenderingEvent event) {
+                    if (RenderingEvent.BEFORE_RENDERING.equals(event.getStage())) {
+                        updateHoverReadout();
+                    }
+                }
+            });
+        }
     }
 
     public RescWorldWindow getWorldWindow() {
@@ -345,6 +432,8 @@ public class RescModel extends BasicModel implements SliderWidgetHandler, CacheL
              * any feature info balloons.
              */
             annotationLayer.removeAllAnnotations();
+            hoverShown = false;
+            lastHoverCell = -1;
 
             /*
              * Set the time/elevation sliders
@@ -542,6 +631,106 @@ public class RescModel extends BasicModel implements SliderWidgetHandler, CacheL
                 doubleRange.getHigh().longValue()));
     }
 
+    /**
+     * Updates the position of the hover readout. This is cheap to call on
+     * every mouse/touch movement - the value itself is looked up when the next
+     * frame is drawn.
+     * 
+     * @param x
+     *            The x-coordinate of the cursor on the {@link RescWorldWindow}
+     * @param y
+     *            The y-coordinate of the cursor on the {@link RescWorldWindow}
+     *            (measured from the top)
+     */
+    public void hoverAt(int x, int y) {
+        if (hoverSampler == null) {
+            return;
+        }
+        hoverX = x;
+        hoverY = y;
+        hovering = true;
+        hoverMoved = true;
+        wwd.redraw();
+    }
+
+    /**
+     * Hides the hover readout
+     */
+    public void hoverEnded() {
+        if (hoverSampler == null) {
+            return;
+        }
+        hovering = false;
+        hoverMoved = true;
+        wwd.redraw();
+    }
+
+    /**
+     * Called before each frame is rendered. Looks up the value under the
+     * cursor and updates the readout. The text is only regenerated when the
+     * cursor moves into a different grid cell or the displayed values change.
+     */
+    private void updateHoverReadout() {
+        if (!hovering && !hoverShown) {
+            return;
+        }
+
+        EdalDataLayer dataLayer = edalDataLayer;
+        boolean available = false;
+        if (hovering && dataLayer instanceof EdalGridDataLayer) {
+            hoverSampler.setSlice(edalLayerName, dataLayer.getVariableMetadata(),
+                    dataLayer.getDataElevation(), dataLayer.getTime());
+            long viewStateId = wwd.getView().getViewStateID();
+            if (hoverMoved || viewStateId != lastHoverViewState) {
+                /*
+                 * Only recalculate the position when the cursor or the view
+                 * has moved
+                 */
+                hoverMoved = false;
+                lastHoverViewState = viewStateId;
+                Position position = wwd.getView().computePositionFromScreenPoint(hoverX, hoverY);
+                hoverPositionValid = position != null;
+                if (hoverPositionValid) {
+                    hoverLat = position.latitude.degrees;
+                    hoverLon = position.longitude.degrees;
+                }
+            }
+            available = hoverPositionValid && hoverSampler.isReady();
+        }
+
+        if (!available) {
+            if (hoverShown) {
+                annotationLayer.removeAnnotation(hoverAnnotation);
+                hoverShown = false;
+                lastHoverCell = -1;
+            }
+            return;
+        }
+
+        int cell = hoverSampler.cellIndex(hoverLat, hoverLon);
+        int sliceVersion = hoverSampler.getSliceVersion();
+        if (cell != lastHoverCell || sliceVersion != lastHoverSliceVersion) {
+            float value = hoverSampler.sample(hoverLat, hoverLon);
+            if (Float.isNaN(value)) {
+                hoverAnnotation.setText("No data");
+            } else {
+                hoverAnnotation.setText(FeatureInfoBalloon.NUMBER_3DP.format(value)
+                        + dataLayer.getVariableMetadata().getParameter().getUnits());
+            }
+            lastHoverCell = cell;
+            lastHoverSliceVersion = sliceVersion;
+        }
+        /*
+         * Screen annotations are positioned from the bottom of the viewport
+         */
+        hoverPoint.setLocation(hoverX, wwd.getView().getViewport().height - hoverY);
+        hoverAnnotation.setScreenPoint(hoverPoint);
+        if (!hoverShown) {
+            annotationLayer.addAnnotation(hoverAnnotation);
+            hoverShown = true;
+        }
+    }
+
     /**
      * Displays a {@link FeatureInfoBalloon} with information about the
      * currently-displayed data layer
@@ -560,31 +749,90 @@ public class RescModel extends BasicModel implements SliderWidgetHandler, CacheL
          */
         if (edalLayerName != null && !edalLayerName.equals("")
                 && ((balloon == null || !balloon.isActive()) || replaceExisting)) {
+            if (edalDataLayer instanceof EdalProfileDataLayer) {
+                /*
+                 * Profiles are picked with a spatial index rather than by
+                 * WorldWind, so check whether one has been clicked on here
+                 */
+                ProfileFeature picked = ((EdalProfileDataLayer) edalDataLayer)
+                        .getPickedProfile(position);
+                if (picked != null) {
+                    showProfileFeatureInfo(picked, position);
+                    return;
+                }
+            }
             /*
-             * Delegate the actual work to a private method which can then be
-             * called for all linked models.
-             */
-            doShowFeatureInfo(position);
-            /*
-             * Now if this view is linked with other views, and we have a time
-             * axis, we may want to display feature info on the other views
+             * Create a request for this model. Requests for all linked models
+             * are then passed to the FeatureInfoFanOut, which extracts the
+             * data for all of them together.
              */
-            if (wwd.getView().getLinkedViewState() == LinkedViewState.LINKED
-                    || wwd.getView().getLinkedViewState() == LinkedViewState.ANTILINKED
-                    && timeSlider != null) {
-                for (RescModel model : parent.getAllModels()) {
-                    /*
-                     * If another model has the same time value selected and has
-                     * its view in sync with this one, we want to display
-                     * feature info on it as well
-                     */
-                    if (model != this
-                            && timeSlider != null
-                            && model.timeSlider != null
-                            && model.timeSlider.getSliderValue() == timeSlider.getSliderValue()
-                            && wwd.getView().getLinkedViewState()
-                                    .equals(model.wwd.getView().getLinkedViewState())) {
-                        model.doShowFeatureInfo(position);
+            List<FeatureInfoRequest> requests = new ArrayList<>();
+            FeatureInfoRequest request = newFeatureInfoRequest(position);
+            if (request != null) {
+                requests.add(request);
+            }
+            addLinkedFeatureInfoRequests(position, requests);
+            featureInfoFanOut.extract(position, requests);
+        }
+    }
+
+    /**
+     * Displays feature info for a {@link ProfileFeature} whose marker has been
+     * picked. The feature is already in memory, so the balloon and profile
+     * graph are generated directly from it rather than by searching the
+     * dataset. Linked views are queried as usual.
+     * 
+     * @param feature
+     *            The picked {@link ProfileFeature}
+     * @param position
+     *            The {@link Position} of the picked marker
+     */
+    public void showProfileFeatureInfo(ProfileFeature feature, Position position) {
+        if (edalLayerName == null || edalLayerName.equals("")) {
+            return;
+        }
+        FeatureInfoRequest request = newFeatureInfoRequest(position);
+        if (request != null) {
+            featureInfoFanOut.extractPicked(position, feature, edalDataLayer.getDataElevation(),
+                    request);
+        }
+        List<FeatureInfoRequest> linkedRequests = new ArrayList<>();
+        addLinkedFeatureInfoRequests(position, linkedRequests);
+        featureInfoFanOut.extract(position, linkedRequests);
+    }
+
+    /**
+     * Creates {@link FeatureInfoRequest}s for any other models whose views are
+     * linked to this one
+     * 
+     * @param position
+     *            The {@link Position} being queried
+     * @param requests
+     *            The {@link List} to add the requests to
+     */
+    private void addLinkedFeatureInfoRequests(Position position, List<FeatureInfoRequest> requests) {
+        /*
+         * If this view is linked with other views, and we have a time axis, we
+         * may want to display feature info on the other views
+         */
+        if (wwd.getView().getLinkedViewState() == LinkedViewState.LINKED
+                || wwd.getView().getLinkedViewState() == LinkedViewState.ANTILINKED
+                && timeSlider != null) {
+            for (RescModel model : parent.getAllModels()) {
+                /*
+                 * If another model has the same time value selected and has
+                 * its view in sync with this one, we want to display
+                 * feature info on it as well
+                 */
+                if (model != this
+                        && timeSlider != null
+                        && model.timeSlider != null
+                        && model.timeSlider.getSliderValue() == timeSlider.getSliderValue()
+                        && wwd.getView().getLinkedViewState()
+                                .equals(model.wwd.getView().getLinkedViewState())) {
+                    FeatureInfoRequest linkedRequest = model.newFeatureInfoRequest(position);
+                    if (linkedRequest != null) {
+                        requests.add(linkedRequest);
                     }
                 }
             }
@@ -592,231 +840,454 @@ public class RescModel extends BasicModel implements SliderWidgetHandler, CacheL
     }
 
     /**
-     * Does the work of {@link RescModel#showFeatureInfo(Position, boolean)}
+     * Displays a new {@link FeatureInfoBalloon} and creates a
+     * {@link FeatureInfoRequest} to fill it in.
      * 
      * @param position
      *            The {@link Position} at which to measure data and display the
      *            {@link FeatureInfoBalloon}
+     * @return The new {@link FeatureInfoRequest}, or <code>null</code> if
+     *         there is no data layer to query
      */
-    private void doShowFeatureInfo(final Position position) {
+    private FeatureInfoRequest newFeatureInfoRequest(Position position) {
+        if (edalLayerName == null || edalDataLayer == null) {
+            return null;
+        }
+        /*
+         * Create the balloon with very basic information and display it.
+         */
+        FeatureInfoBalloon infoBalloon = newFeatureInfoBalloon(position);
+        VariableMetadata metadata;
+        try {
+            metadata = catalogue.getVariableMetadataForLayer(edalLayerName);
+        } catch (EdalException e) {
+            /*
+             * Can't find metadata for this layer. No point in continuing
+             */
+            infoBalloon.setInfoText("No data layer selected");
+            e.printStackTrace();
+            return null;
+        }
+        return new FeatureInfoRequest(infoBalloon, metadata);
+    }
+
+    /**
+     * Replaces any existing {@link FeatureInfoBalloon} with a new, empty one
+     * and displays it
+     * 
+     * @param position
+     *            The {@link Position} at which to display the
+     *            {@link FeatureInfoBalloon}
+     * @return The new {@link FeatureInfoBalloon}
+     */
+    private FeatureInfoBalloon newFeatureInfoBalloon(Position position) {
         /*
          * Remove any existing balloons (we only want to show one at a time)
          */
         if (balloon != null) {
             annotationLayer.removeAnnotation(balloon);
         }
-        /*
-         * Create the balloon with very basic information and display it.
-         */
         balloon = new FeatureInfoBalloon(position, wwd, annotationLayer, fullScreenAnnotationLayer);
         annotationLayer.addAnnotation(balloon);
         firePropertyChange(AVKey.LAYER, null, annotationLayer);
+        return balloon;
+    }
+
+    /**
+     * Generates the text describing a data value
+     * 
+     * @param metadata
+     *            The {@link VariableMetadata} of the layer the value was read
+     *            from
+     * @param value
+     *            The value read. May be <code>null</code>
+     * @return The text to display in a {@link FeatureInfoBalloon}
+     */
+    private static String getValueText(VariableMetadata metadata, Number value) {
+        if (value == null || Double.isNaN(value.doubleValue())) {
+            return "No data value here";
+        } else {
+            return "Value of layer " + metadata.getId() + " is "
+                    + FeatureInfoBalloon.NUMBER_3DP.format(value)
+                    + metadata.getParameter().getUnits();
+        }
+    }
+
+    /**
+     * Generates a timeseries graph and saves it (at full size and as a preview)
+     * to the WorldWind data file store
+     * 
+     * @param timeseries
+     *            The extracted {@link PointSeriesFeature}s, nearest first
+     * @param layerName
+     *            The name of the layer they were extracted from
+     * @param dataLayer
+     *            The {@link EdalDataLayer} displaying the layer
+     * @param position
+     *            The {@link Position} which was queried
+     * @param width
+     *            The width of the full-size graph
+     * @param height
+     *            The height of the full-size graph
+     * @return The location of the graph in the data file store, or
+     *         <code>null</code> if there are no features to plot
+     * @throws IOException
+     *             If there is a problem writing the graph
+     */
+    private static String saveTimeseriesGraph(List<? extends PointSeriesFeature> timeseries,
+            String layerName, EdalDataLayer dataLayer, Position position, int width, int height)
+            throws IOException {
+        if (timeseries == null || timeseries.size() == 0) {
+            return null;
+        }
+        if (dataLayer instanceof EdalGridDataLayer) {
+            /*
+             * If we have a gridded feature, we only want a timeseries from the
+             * nearest point plotted.
+             * 
+             * For a profile dataset it is less clear which one we require so
+             * we plot the closest 5
+             */
+            timeseries = timeseries.subList(0, 1);
+        } else {
+            timeseries = timeseries.subList(0, timeseries.size() >= 5 ? 5 : timeseries.size());
+        }
 
         /*
-         * Now extract the value and graphs in their own thread so that the
-         * balloon appears instantly
+         * Very long timeseries take a long time to plot, but a chart can only
+         * show around one point per pixel. We therefore downsample the
+         * features to the width of each chart before plotting them. The
+         * full-size chart is downsampled less than the preview, so that it
+         * keeps all of the detail which can be seen at that size.
          */
-        Executors.newSingleThreadExecutor().submit(new Runnable() {
-            @Override
-            public void run() {
-                VariableMetadata metadata;
-                try {
-                    metadata = catalogue.getVariableMetadataForLayer(edalLayerName);
-                } catch (EdalException e) {
-                    /*
-                     * Can't find metadata for this layer. No point in
-                     * continuing
-                     */
-                    balloon.setInfoText("No data layer selected");
-                    e.printStackTrace();
-                    return;
-                }
-                /*
-                 * First read the data value and display the feature info
-                 * balloon
-                 */
-                Number value = null;
-                try {
-                    value = catalogue.getLayerValue(edalLayerName, position,
-                            edalDataLayer.getDataElevation(), edalDataLayer.getTime(),
-                            elevationSlider == null ? null : elevationSlider.getSliderRange(),
-                            getTimeSliderRange(), 0.5);
-                } catch (EdalException e) {
-                    /*
-                     * There is a problem reading the data. We log the error and
-                     * continue. The feature info balloon will give a no-data
-                     * message.
-                     */
-                    String message = RescLogging.getMessage("resc.DataReadingProblem");
-                    Logging.logger().warning(message);
-                    e.printStackTrace();
-                }
+        HorizontalPosition hPos = new HorizontalPosition(position.longitude.degrees,
+                position.latitude.degrees, DefaultGeographicCRS.WGS84);
+        JFreeChart timeseriesChart = Charting.createTimeSeriesPlot(
+                TimeseriesDownsampler.downsample(timeseries, width), hPos, null);
+        timeseriesChart.setBackgroundPaint(Color.white);
+        JFreeChart previewChart = Charting.createTimeSeriesPlot(
+                TimeseriesDownsampler.downsample(timeseries, PREVIEW_GRAPH_WIDTH), hPos, null);
+        previewChart.setBackgroundPaint(Color.white);
+
+        return saveGraph(timeseriesChart, previewChart, "EDAL/Charts/TS-" + layerName, width,
+                height);
+    }
 
-                String valueText;
-                if (value == null || Double.isNaN(value.doubleValue())) {
-                    valueText = "No data value here";
-                } else {
-                    valueText = "Value of layer " + metadata.getId() + " is "
-                            + FeatureInfoBalloon.NUMBER_3DP.format(value)
-                            + metadata.getParameter().getUnits();
-                }
+    /**
+     * Generates a vertical profile graph and saves it (at full size and as a
+     * preview) to the WorldWind data file store
+     * 
+     * @param profiles
+     *            The extracted {@link ProfileFeature}s, nearest first
+     * @param layerName
+     *            The name of the layer they were extracted from
+     * @param dataLayer
+     *            The {@link EdalDataLayer} displaying the layer
+     * @param position
+     *            The {@link Position} which was queried
+     * @param width
+     *            The width of the full-size graph
+     * @param height
+     *            The height of the full-size graph
+     * @return The location of the graph in the data file store, or
+     *         <code>null</code> if there are no features to plot
+     * @throws IOException
+     *             If there is a problem writing the graph
+     */
+    private static String saveProfileGraph(List<? extends ProfileFeature> profiles,
+            String layerName, EdalDataLayer dataLayer, Position position, int width, int height)
+            throws IOException {
+        if (profiles == null || profiles.size() == 0) {
+            return null;
+        }
+        if (dataLayer instanceof EdalGridDataLayer) {
+            /*
+             * If we have a gridded feature, we only want a profile from the
+             * nearest point plotted.
+             * 
+             * For a profile dataset it is less clear which one we require so
+             * we plot the closest 5
+             */
+            profiles = profiles.subList(0, 1);
+        } else {
+            profiles = profiles.subList(0, profiles.size() >= 5 ? 5 : profiles.size());
+        }
+        JFreeChart profileChart = Charting.createVerticalProfilePlot(profiles,
+                new HorizontalPosition(position.longitude.degrees, position.latitude.degrees,
+                        DefaultGeographicCRS.WGS84), null);
+        profileChart.setBackgroundPaint(Color.white);
 
-                balloon.setInfoText(valueText);
+        return saveGraph(profileChart, profileChart, "EDAL/Charts/PF-" + layerName, width,
+                height);
+    }
 
-                /*
-                 * Get the size of the panel (minus a border) to generate the
-                 * fullscreen graphs
-                 */
-                int width = wwd.getWidth() - 52;
-                int height = wwd.getHeight() - 52;
+    /**
+     * Saves a chart at full size, and a fixed-ratio preview of it, to the
+     * WorldWind data file store
+     * 
+     * @param chart
+     *            The {@link JFreeChart} to save at full size
+     * @param previewChart
+     *            The {@link JFreeChart} to save as a preview. This may be the
+     *            same as <code>chart</code>
+     * @param prefix
+     *            The prefix of the location to save it to
+     * @param width
+     *            The width of the full-size chart
+     * @param height
+     *            The height of the full-size chart
+     * @return The location of the full-size chart. The preview is at this
+     *         location with "-preview" appended
+     * @throws IOException
+     *             If there is a problem writing the chart
+     */
+    private static String saveGraph(JFreeChart chart, JFreeChart previewChart, String prefix,
+            int width, int height) throws IOException {
+        /*
+         * Save the chart at the same size as the panel
+         */
+        String location = prefix + System.currentTimeMillis();
+        File file = WorldWind.getDataFileStore().newFile(location);
+        ChartUtilities.saveChartAsPNG(file, chart, width, height);
+        /*
+         * Now save a fixed-ratio preview chart
+         */
+        File previewFile = WorldWind.getDataFileStore().newFile(location + "-preview");
+        ChartUtilities.saveChartAsPNG(previewFile, previewChart, PREVIEW_GRAPH_WIDTH,
+                PREVIEW_GRAPH_HEIGHT);
+        return location;
+    }
 
-                String profileLocation = null;
-                String timeseriesLocation = null;
-                try {
-                    /*
-                     * Profile data layer has a temporal domain but doesn't
-                     * support timeseries extraction.
-                     * 
-                     * This doesn't cause a problem, but we do get warnings if
-                     * we try it.
-                     */
-                    if (metadata.getTemporalDomain() != null
-                            && !(edalDataLayer instanceof EdalProfileDataLayer)) {
-                        /*
-                         * Generate a timeseries graph
-                         */
-                        double sensitivity = 1;
-                        List<? extends PointSeriesFeature> timeseries = catalogue.getTimeseries(
-                                edalLayerName, position, sensitivity,
-                                elevationSlider == null ? null : elevationSlider.getSliderRange(),
-                                getTimeSliderRange());
-
-                        if (timeseries != null && timeseries.size() > 0) {
-                            if (edalDataLayer instanceof EdalGridDataLayer) {
-                                /*
-                                 * If we have a gridded feature, we only want a
-                                 * profile from the nearest point plotted.
-                                 * 
-                                 * For a profile dataset it is less clear which
-                                 * one we require so we plot the closest 5
-                                 */
-                                timeseries = timeseries.subList(0, 1);
-                            } else {
-                                timeseries = timeseries.subList(0, timeseries.size() >= 5 ? 5
-                                        : timeseries.size());
-                            }
-
-                            JFreeChart timeseriesChart = Charting.createTimeSeriesPlot(timeseries,
-                                    new HorizontalPosition(position.longitude.degrees,
-                                            position.latitude.degrees, DefaultGeographicCRS.WGS84),
-                                    null);
-                            timeseriesChart.setBackgroundPaint(Color.white);
-
-                            /*
-                             * Save the chart at the same size as the panel
-                             */
-                            timeseriesLocation = "EDAL/Charts/TS-" + edalLayerName
-                                    + System.currentTimeMillis();
-                            File timeseriesFile = WorldWind.getDataFileStore().newFile(
-                                    timeseriesLocation);
-                            ChartUtilities.saveChartAsPNG(timeseriesFile, timeseriesChart, width,
-                                    height);
-                            /*
-                             * Now save a fixed-ratio preview chart
-                             */
-                            File timeseriesPreviewFile = WorldWind.getDataFileStore().newFile(
-                                    timeseriesLocation + "-preview");
-                            ChartUtilities
-                                    .saveChartAsPNG(
-                                            timeseriesPreviewFile,
-                                            timeseriesChart,
-                                            (int) (FeatureInfoBalloon.TARGET_WIDTH / FeatureInfoBalloon.PREVIEW_SCALE),
-                                            (int) (FeatureInfoBalloon.TARGET_HEIGHT / FeatureInfoBalloon.PREVIEW_SCALE));
-                        }
-                    }
-                } catch (Exception e) {
-                    /*
-                     * We want to catch any exceptions and log them.
-                     * EdalException and IOException are both possible, but we
-                     * catch Exception to cover all runtime errors too, since
-                     * the solution (log it) is the same.
-                     */
-                    String message = RescLogging.getMessage("resc.GraphProblem");
-                    Logging.logger().warning(message);
-                    e.printStackTrace();
-                }
-                try {
-                    if (metadata.getVerticalDomain() != null) {
-                        /*
-                         * Generate a profile graph
-                         */
-                        double sensitivity = 1;
-                        List<? extends ProfileFeature> profiles = catalogue.getProfiles(
-                                edalLayerName, position, sensitivity,
-                                elevationSlider == null ? null : elevationSlider.getSliderRange(),
-                                getTimeSliderRange());
-                        if (profiles != null && profiles.size() > 0) {
-                            if (edalDataLayer instanceof EdalGridDataLayer) {
-                                /*
-                                 * If we have a gridded feature, we only want a
-                                 * profile from the nearest point plotted.
-                                 * 
-                                 * For a profile dataset it is less clear which
-                                 * one we require so we plot the closest 5
-                                 */
-                                profiles = profiles.subList(0, 1);
-                            } else {
-                                profiles = profiles.subList(0,
-                                        profiles.size() >= 5 ? 5 : profiles.size());
-                            }
-                            JFreeChart profileChart = Charting.createVerticalProfilePlot(profiles,
-                                    new HorizontalPosition(position.longitude.degrees,
-                                            position.latitude.degrees, DefaultGeographicCRS.WGS84),
-                                    null);
-                            profileChart.setBackgroundPaint(Color.white);
-
-                            /*
-                             * Save the chart at the same size as the panel
-                             */
-                            profileLocation = "EDAL/Charts/PF-" + edalLayerName
-                                    + System.currentTimeMillis();
-                            File profileFile = WorldWind.getDataFileStore()
-                                    .newFile(profileLocation);
-                            ChartUtilities.saveChartAsPNG(profileFile, profileChart, width, height);
-                            /*
-                             * Now save a fixed-ratio preview chart
-                             */
-                            File profilePreviewFile = WorldWind.getDataFileStore().newFile(
-                                    profileLocation + "-preview");
-                            ChartUtilities
-                                    .saveChartAsPNG(
-                                            profilePreviewFile,
-                                            profileChart,
-                                            (int) (FeatureInfoBalloon.TARGET_WIDTH / FeatureInfoBalloon.PREVIEW_SCALE),
-                                            (int) (FeatureInfoBalloon.TARGET_HEIGHT / FeatureInfoBalloon.PREVIEW_SCALE));
-                        }
-                    }
-                    /*
-                     * Add the graphs to the balloon
-                     */
-                    balloon.setGraphs(profileLocation, timeseriesLocation);
-                    /*
-                     * Redraw the balloon
-                     */
-                    firePropertyChange(AVKey.LAYER, null, annotationLayer);
-                } catch (Exception e) {
-                    /*
-                     * We want to catch any exceptions and log them.
-                     * EdalException and IOException are both possible, but we
-                     * catch Exception to cover all runtime errors too, since
-                     * the solution (log it) is the same.
-                     */
-                    String message = RescLogging.getMessage("resc.GraphProblem");
-                    Logging.logger().warning(message);
-                    e.printStackTrace();
-                }
+    /**
+     * Holds the state of a {@link RescModel} at the time that feature info was
+     * requested, and fills in the associated {@link FeatureInfoBalloon} as the
+     * value and graphs become available. Taking a copy of the state means that
+     * all of the queries refer to the same layer, elevation and time, even if
+     * these change while the queries are running.
+     *
+     * @author Guy Griffiths
+     */
+    class FeatureInfoRequest {
+        private final FeatureInfoBalloon infoBalloon;
+        private final VariableMetadata metadata;
+        private final String layerName;
+        private final EdalDataLayer dataLayer;
+        private final Double elevation;
+        private final DateTime time;
+        private final Extent<Double> elevationRange;
+        private final Extent<DateTime> timeRange;
+        /*
+         * The size of the panel (minus a border) to generate the fullscreen
+         * graphs
+         */
+        private final int width;
+        private final int height;
+        private final FeatureInfoTimer timer;
+
+        private FeatureInfoRequest(FeatureInfoBalloon infoBalloon, VariableMetadata metadata) {
+            this.infoBalloon = infoBalloon;
+            this.metadata = metadata;
+            layerName = edalLayerName;
+            dataLayer = edalDataLayer;
+            elevation = edalDataLayer.getDataElevation();
+            time = edalDataLayer.getTime();
+            elevationRange = elevationSlider == null ? null : elevationSlider.getSliderRange();
+            timeRange = getTimeSliderRange();
+            width = wwd.getWidth() - 52;
+            height = wwd.getHeight() - 52;
+
+            timer = new FeatureInfoTimer(layerName, 3);
+            if (!wantsTimeseries()) {
+                timer.partReady(null);
+            }
+            if (!wantsProfiles()) {
+                timer.partReady(null);
             }
-        });
+        }
+
+        String getLayerName() {
+            return layerName;
+        }
+
+        String getVariableId() {
+            return metadata.getId();
+        }
+
+        /**
+         * @return The elevation being displayed. May be <code>null</code>
+         */
+        Double getElevation() {
+            return elevation;
+        }
+
+        /**
+         * @return The time being displayed. May be <code>null</code>
+         */
+        DateTime getTime() {
+            return time;
+        }
+
+        Extent<Double> getElevationRange() {
+            return elevationRange;
+        }
+
+        Extent<DateTime> getTimeRange() {
+            return timeRange;
+        }
+
+        /**
+         * @return Whether a timeseries graph should be generated for this
+         *         request
+         */
+        boolean wantsTimeseries() {
+            /*
+             * Profile data layer has a temporal domain but doesn't support
+             * timeseries extraction.
+             * 
+             * This doesn't cause a problem, but we do get warnings if we try
+             * it.
+             */
+            return metadata.getTemporalDomain() != null
+                    && !(dataLayer instanceof EdalProfileDataLayer);
+        }
+
+        /**
+         * @return Whether a profile graph should be generated for this request
+         */
+        boolean wantsProfiles() {
+            return metadata.getVerticalDomain() != null;
+        }
+
+        /**
+         * Called when the data value has been read
+         * 
+         * @param value
+         *            The value, or <code>null</code> if there is no value
+         */
+        void valueRead(Number value) {
+            infoBalloon.setInfoText(getValueText(metadata, value));
+            timer.partReady("value");
+            firePropertyChange(AVKey.LAYER, null, annotationLayer);
+        }
+
+        /**
+         * Called when the timeseries features have been extracted
+         * 
+         * @param timeseries
+         *            The extracted {@link PointSeriesFeature}s, nearest first
+         */
+        void timeseriesRead(List<? extends PointSeriesFeature> timeseries) {
+            try {
+                infoBalloon.setTimeseriesGraph(saveTimeseriesGraph(timeseries, layerName,
+                        dataLayer, infoBalloon.getPosition(), width, height));
+                timer.partReady("timeseries");
+                firePropertyChange(AVKey.LAYER, null, annotationLayer);
+            } catch (Exception e) {
+                graphFailed(e);
+            }
+        }
+
+        /**
+         * Called when the profile features have been extracted
+         * 
+         * @param profiles
+         *            The extracted {@link ProfileFeature}s, nearest first
+         */
+        void profilesRead(List<? extends ProfileFeature> profiles) {
+            try {
+                infoBalloon.setProfileGraph(saveProfileGraph(profiles, layerName, dataLayer,
+                        infoBalloon.getPosition(), width, height));
+                timer.partReady("profile");
+                firePropertyChange(AVKey.LAYER, null, annotationLayer);
+            } catch (Exception e) {
+                graphFailed(e);
+            }
+        }
+
+        /**
+         * Called when profiles have been found near to a profile which was
+         * already displayed. This replaces the profile graph but doesn't count
+         * towards the completion of the request.
+         * 
+         * @param profiles
+         *            The {@link ProfileFeature}s to plot, the original profile
+         *            first
+         */
+        void contextProfilesRead(List<? extends ProfileFeature> profiles) {
+            try {
+                infoBalloon.setProfileGraph(saveProfileGraph(profiles, layerName, dataLayer,
+                        infoBalloon.getPosition(), width, height));
+                firePropertyChange(AVKey.LAYER, null, annotationLayer);
+            } catch (Exception e) {
+                String message = RescLogging.getMessage("resc.GraphProblem");
+                Logging.logger().warning(message);
+            }
+        }
+
+        /**
+         * Called when a graph could not be generated
+         * 
+         * @param e
+         *            The cause of the failure
+         */
+        void graphFailed(Exception e) {
+            /*
+             * We want to catch any exceptions and log them. EdalException and
+             * IOException are both possible, but we catch Exception to cover
+             * all runtime errors too, since the solution (log it) is the same.
+             */
+            String message = RescLogging.getMessage("resc.GraphProblem");
+            Logging.logger().warning(message);
+            e.printStackTrace();
+            timer.partReady(null);
+        }
+    }
+
+    /**
+     * Keeps track of how long the parts of a {@link FeatureInfoBalloon} take to
+     * become available, and logs the latency to the first useful piece of
+     * information and to the complete balloon.
+     *
+     * @author Guy Griffiths
+     */
+    private static class FeatureInfoTimer {
+        private final String layerName;
+        private final long startTime;
+        private int partsRemaining;
+        private boolean firstReported = false;
+
+        /**
+         * @param layerName
+         *            The layer being queried
+         * @param nParts
+         *            The number of parts which will be reported
+         */
+        public FeatureInfoTimer(String layerName, int nParts) {
+            this.layerName = layerName;
+            this.partsRemaining = nParts;
+            startTime = System.currentTimeMillis();
+        }
+
+        /**
+         * Called when a part of the {@link FeatureInfoBalloon} is ready
+         * 
+         * @param part
+         *            The name of the part which is ready, or <code>null</code>
+         *            if the part is not required for this layer
+         */
+        public synchronized void partReady(String part) {
+            long elapsed = System.currentTimeMillis() - startTime;
+            if (part != null && !firstReported) {
+                firstReported = true;
+                Logging.logger().fine(
+                        RescLogging.getMessage("resc.FeatureInfoFirstResult", part, layerName,
+                                elapsed));
+            }
+            if (--partsRemaining == 0) {
+                Logging.logger().fine(
+                        RescLogging.getMessage("resc.FeatureInfoComplete", layerName, elapsed));
+            }
+        }
     }
 
     @Override
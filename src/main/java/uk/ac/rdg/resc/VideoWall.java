@@ -66,6 +66,7 @@ import uk.ac.rdg.resc.edal.dataset.DatasetFactory;
 import uk.ac.rdg.resc.edal.dataset.cdm.CdmGridDatasetFactory;
 import uk.ac.rdg.resc.edal.exceptions.EdalException;
 import uk.ac.rdg.resc.logging.RescLogging;
+import uk.ac.rdg.resc.util.GridResampler;
 
 /**
  * Main class for the multi-globe video wall software.
@@ -256,6 +257,20 @@ public class VideoWall extends JFrame {
         Cache memoryCache = new Cache(config);
         singletonManager.addCache(memoryCache);
 
+        /*
+         * Configure cache of tile pixel-to-grid index maps. Recently-drawn
+         * tiles are the most likely to be drawn again at another time or
+         * elevation.
+         */
+        final int indexCacheSizeMB = Configuration.getIntegerValue(
+                "uk.ac.rdg.resc.edal.multiglobe.IndexCacheSize", 32);
+        CacheConfiguration indexConfig = new CacheConfiguration(GridResampler.INDEX_CACHE_NAME,
+                0).eternal(true).maxBytesLocalHeap(indexCacheSizeMB, MemoryUnit.MEGABYTES)
+                .memoryStoreEvictionPolicy(MemoryStoreEvictionPolicy.LRU)
+                .persistence(new PersistenceConfiguration().strategy(Strategy.NONE))
+                .transactionalMode(TransactionalMode.OFF);
+        singletonManager.addCache(new Cache(indexConfig));
+
         try {
             /*
              * This code sets the X Windows property WM_CLASS to
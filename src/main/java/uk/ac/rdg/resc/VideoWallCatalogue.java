@@ -35,24 +35,36 @@ import gov.nasa.worldwind.util.Logging;
 import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Map.Entry;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import javax.xml.bind.JAXBException;
 
 import org.geotoolkit.referencing.crs.DefaultGeographicCRS;
 import org.joda.time.DateTime;
+import org.opengis.metadata.extent.GeographicBoundingBox;
 
 import uk.ac.rdg.resc.edal.catalogue.DataCatalogue;
 import uk.ac.rdg.resc.edal.catalogue.SimpleLayerNameMapper;
 import uk.ac.rdg.resc.edal.catalogue.jaxb.CatalogueConfig;
+import uk.ac.rdg.resc.edal.catalogue.jaxb.DatasetConfig;
 import uk.ac.rdg.resc.edal.catalogue.jaxb.VariableConfig;
 import uk.ac.rdg.resc.edal.dataset.Dataset;
+import uk.ac.rdg.resc.edal.dataset.DatasetFactory;
 import uk.ac.rdg.resc.edal.dataset.GriddedDataset;
 import uk.ac.rdg.resc.edal.domain.Extent;
+import uk.ac.rdg.resc.edal.domain.MapDomainImpl;
 import uk.ac.rdg.resc.edal.exceptions.EdalException;
 import uk.ac.rdg.resc.edal.exceptions.VariableNotFoundException;
 import uk.ac.rdg.resc.edal.feature.DiscreteFeature;
@@ -66,13 +78,25 @@ import uk.ac.rdg.resc.edal.geometry.BoundingBoxImpl;
 import uk.ac.rdg.resc.edal.graphics.exceptions.EdalLayerNotFoundException;
 import uk.ac.rdg.resc.edal.graphics.style.util.EnhancedVariableMetadata;
 import uk.ac.rdg.resc.edal.graphics.style.util.LayerNameMapper;
+import uk.ac.rdg.resc.edal.grid.HorizontalGrid;
+import uk.ac.rdg.resc.edal.grid.RectilinearGrid;
+import uk.ac.rdg.resc.edal.grid.ReferenceableAxis;
 import uk.ac.rdg.resc.edal.metadata.GridVariableMetadata;
+import uk.ac.rdg.resc.edal.metadata.Parameter;
 import uk.ac.rdg.resc.edal.metadata.VariableMetadata;
 import uk.ac.rdg.resc.edal.position.HorizontalPosition;
+import uk.ac.rdg.resc.edal.position.VerticalCrs;
+import uk.ac.rdg.resc.edal.util.Array1D;
+import uk.ac.rdg.resc.edal.util.Array2D;
 import uk.ac.rdg.resc.edal.util.CollectionUtils;
+import uk.ac.rdg.resc.edal.util.GISUtils;
 import uk.ac.rdg.resc.edal.util.PlottingDomainParams;
+import uk.ac.rdg.resc.edal.util.ValuesArray2D;
 import uk.ac.rdg.resc.godiva.shared.LayerMenuItem;
 import uk.ac.rdg.resc.logging.RescLogging;
+import uk.ac.rdg.resc.util.GridPointIndex;
+import uk.ac.rdg.resc.util.GridResampler;
+import uk.ac.rdg.resc.util.SourceFile;
 
 /**
  * A class to manage all of the datasets available for the video wall software.
@@ -82,11 +106,85 @@ import uk.ac.rdg.resc.logging.RescLogging;
  * @author Guy Griffiths
  */
 public class VideoWallCatalogue extends DataCatalogue {
+    /**
+     * Builds on-disk profile caches. These are slow to build, so a single
+     * background thread is used to avoid competing with data reads.
+     */
+    private static final ExecutorService PROFILE_CACHER = Executors.newSingleThreadExecutor();
+    /** The number of profiles to read before merging them into a profile cache */
+    private static final int PROFILE_CACHE_BATCH_SIZE = 100000;
+    /**
+     * Builds spatial indices of non-lat-lon grids, for the same reason
+     */
+    private static final ExecutorService GRID_INDEXER = Executors.newSingleThreadExecutor();
+    /**
+     * Builds data pyramids, for the same reason
+     */
+    private static final ExecutorService PYRAMID_BUILDER = Executors.newSingleThreadExecutor();
+    /**
+     * Builds data summaries, for the same reason
+     */
+    private static final ExecutorService SUMMARISER = Executors.newSingleThreadExecutor();
+    /** The maximum number of data summaries to keep */
+    private static final int MAX_SUMMARIES = 64;
+    /** The largest grid (in each direction) to read a layer at to summarise it */
+    private static final int MAX_SUMMARY_SIZE = 16384;
+    /**
+     * The number of values to read at a time when reading a whole layer to
+     * summarise it or build a data pyramid
+     */
+    private static final int STRIP_SIZE = 2 * 1024 * 1024;
+    /** The size of the tiles which data pyramids are built down to */
+    private static final int PYRAMID_TILE_SIZE = 256;
+    /** The largest base grid (in each direction) to build a data pyramid from */
+    private static final int MAX_PYRAMID_BASE_SIZE = 8192;
+    /** The maximum number of data pyramids to keep open */
+    private static final int MAX_PYRAMIDS = 64;
+
     /** The root of the layer menu */
     private final LayerMenuItem rootMenuNode;
     /** A cache of gridded features, for fast loading */
     private Map<String, GridFeature> gridFeatures;
 
+    /** Resamplers of the in-memory gridded features, keyed by layer name */
+    private Map<String, GridResampler> resamplers;
+    /** On-disk caches of profile layers, keyed by layer name */
+    private Map<String, ProfileFileCache> profileCaches;
+    /** The directory to store on-disk profile caches in */
+    private final File profileCacheDir;
+    /** Whether to build on-disk profile caches */
+    private final boolean cacheProfiles;
+    /** The directory to store spatial indices of grids in */
+    private final File gridIndexDir;
+    /** Whether to build spatial indices of non-lat-lon grids */
+    private final boolean indexGrids;
+    /**
+     * Data pyramids of gridded layers which are not held in memory, keyed by
+     * layer name and elevation/time
+     */
+    private Map<String, DataPyramid> pyramids;
+    /** The keys of the data pyramids which have been requested */
+    private Set<String> requestedPyramids;
+    /** The directory to store data pyramids in */
+    private final File pyramidDir;
+    /** Whether to build data pyramids */
+    private final boolean buildPyramids;
+    /**
+     * Summaries of the most recently used elevations/times of gridded layers,
+     * keyed by layer name and elevation/time
+     */
+    private Map<String, DataSummary> summaries;
+    /** The keys of the data summaries which have been requested */
+    private Set<String> requestedSummaries;
+    /**
+     * The key of the most recently requested summary of each layer. Requests
+     * for other summaries are dropped, so that the summariser doesn't fall
+     * behind reading slices which have already been passed.
+     */
+    private Map<String, String> latestSummaries;
+    /** Whether to build data summaries */
+    private final boolean summariseLayers;
+
     public VideoWallCatalogue() throws IOException, JAXBException {
         /*
          * Create a catalogue from the config.xml file specified in the
@@ -102,6 +200,60 @@ public class VideoWallCatalogue extends DataCatalogue {
                         + "/.edalVideoWall/config.xml"))), new SimpleLayerNameMapper());
 
         gridFeatures = new HashMap<>();
+        resamplers = new HashMap<>();
+        profileCaches = new ConcurrentHashMap<>();
+        cacheProfiles = Configuration.getBooleanValue(
+                "uk.ac.rdg.resc.edal.multiglobe.ProfileCache", true);
+        profileCacheDir = new File(Configuration.getStringValue(
+                "uk.ac.rdg.resc.edal.multiglobe.ProfileCacheLocation",
+                System.getProperty("user.home") + "/.edalVideoWall/profileCache"));
+        indexGrids = Configuration.getBooleanValue("uk.ac.rdg.resc.edal.multiglobe.GridIndex",
+                true);
+        gridIndexDir = new File(Configuration.getStringValue(
+                "uk.ac.rdg.resc.edal.multiglobe.GridIndexLocation",
+                System.getProperty("user.home") + "/.edalVideoWall/gridIndex"));
+        requestedPyramids = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+        pyramids = Collections.synchronizedMap(new LinkedHashMap<String, DataPyramid>(16,
+                0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Entry<String, DataPyramid> eldest) {
+                if (size() > MAX_PYRAMIDS) {
+                    /*
+                     * It will be reopened from disk if it is needed again
+                     */
+                    requestedPyramids.remove(eldest.getKey());
+                    return true;
+                }
+                return false;
+            }
+        });
+        requestedSummaries = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+        latestSummaries = new ConcurrentHashMap<>();
+        summaries = Collections.synchronizedMap(new LinkedHashMap<String, DataSummary>(16,
+                0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Entry<String, DataSummary> eldest) {
+                if (size() > MAX_SUMMARIES) {
+                    /*
+                     * Allow it to be rebuilt if it is needed again
+                     */
+                    requestedSummaries.remove(eldest.getKey());
+                    return true;
+                }
+                return false;
+            }
+        });
+        summariseLayers = Configuration.getBooleanValue(
+                "uk.ac.rdg.resc.edal.multiglobe.TileSummaries", true);
+        buildPyramids = Configuration.getBooleanValue(
+                "uk.ac.rdg.resc.edal.multiglobe.DataPyramid", false);
+        pyramidDir = new File(Configuration.getStringValue(
+                "uk.ac.rdg.resc.edal.multiglobe.DataPyramidLocation",
+                System.getProperty("user.home") + "/.edalVideoWall/pyramids"));
 
         rootMenuNode = new LayerMenuItem("Datasets", "root", false);
     }
@@ -118,6 +270,7 @@ public class VideoWallCatalogue extends DataCatalogue {
         /*
          * For any variables which map to gridded features, preload into memory
          */
+        final Map<String, GridResampler> datasetResamplers = new HashMap<>();
         for (VariableConfig variable : variables) {
             Class<? extends DiscreteFeature<?, ?>> featureType = dataset.getFeatureType(variable
                     .getId());
@@ -131,6 +284,12 @@ public class VideoWallCatalogue extends DataCatalogue {
                     String layerName = layerNameMapper.getLayerName(dataset.getId(), variable.getId());
                     GridFeature gridFeature = (GridFeature) dataset.readFeature(variable.getId());
                     gridFeatures.put(layerName, gridFeature);
+                    GridResampler resampler = GridResampler.forFeature(gridFeature,
+                            variable.getId());
+                    if (resampler != null) {
+                        resamplers.put(layerName, resampler);
+                        datasetResamplers.put(variable.getId(), resampler);
+                    }
                     Logging.logger().fine(
                             RescLogging.getMessage("resc.GridFeatureInMemory", dataset.getId()));
                 } catch (Exception e) {
@@ -141,19 +300,279 @@ public class VideoWallCatalogue extends DataCatalogue {
                     String message = RescLogging.getMessage("resc.DataReadingProblem");
                     Logging.logger().warning(message);
                 }
-            } else {
+            } else if (cacheProfiles && ProfileFeature.class.isAssignableFrom(featureType)) {
                 /*
-                 * Not a grid feature dataset. Currently no caching is
-                 * implemented (at this level) for non-gridded features.
-                 * 
-                 * If caching is required, implement it here
+                 * Observation profiles are slow to read from their source
+                 * files, so they are converted into an on-disk cache
                  */
+                cacheProfileLayer(dataset,
+                        layerNameMapper.getLayerName(dataset.getId(), variable.getId()),
+                        variable.getId());
             }
         }
+        if (indexGrids) {
+            indexGrids(dataset, datasetResamplers);
+        }
         String message = RescLogging.getMessage("resc.DatasetLoaded", dataset.getId());
         Logging.logger().fine(message);
     }
 
+    /**
+     * Loads (or builds and saves) spatial indices for any grids in a dataset
+     * which are not lat-lon rectilinear, in the background. Until an index is
+     * ready, its grid is searched directly.
+     * 
+     * @param dataset
+     *            The {@link Dataset} containing the grids
+     * @param datasetResamplers
+     *            The {@link GridResampler}s for the dataset's in-memory
+     *            variables, keyed by variable ID
+     */
+    private void indexGrids(final Dataset dataset,
+            final Map<String, GridResampler> datasetResamplers) {
+        final DatasetConfig datasetConfig = config.getDatasetInfo(dataset.getId());
+        GRID_INDEXER.submit(new Runnable() {
+            @Override
+            public void run() {
+                for (Entry<String, GridResampler> entry : datasetResamplers.entrySet()) {
+                    GridResampler resampler = entry.getValue();
+                    /*
+                     * Variables on the same grid share an index, so this will
+                     * be false once the first of them has been indexed
+                     */
+                    if (!resampler.needsPointIndex()) {
+                        continue;
+                    }
+                    try {
+                        List<SourceFile> sources = SourceFile.listSources(datasetConfig
+                                .getLocation());
+                        /*
+                         * If the data is not in local files we can't tell
+                         * whether a saved index is up-to-date, so don't save
+                         * one
+                         */
+                        String sourceKey = sources == null ? null : sources.toString();
+                        File indexFile = new File(new File(gridIndexDir,
+                                getSafeName(dataset.getId())), getSafeName(entry.getKey())
+                                + ".gridindex");
+                        GridPointIndex pointIndex = null;
+                        if (sourceKey != null && indexFile.exists()) {
+                            try {
+                                pointIndex = GridPointIndex.read(indexFile, sourceKey);
+                            } catch (IOException e) {
+                                /*
+                                 * Corrupt or outdated index. It will be
+                                 * rebuilt.
+                                 */
+                                pointIndex = null;
+                            }
+                        }
+                        if (pointIndex == null
+                                || pointIndex.getXSize() != resampler.getGrid().getXSize()
+                                || pointIndex.getYSize() != resampler.getGrid().getYSize()) {
+                            pointIndex = GridPointIndex.build(resampler.getGrid());
+                            if (sourceKey != null) {
+                                pointIndex.write(indexFile, sourceKey);
+                            }
+                            Logging.logger().fine(
+                                    RescLogging.getMessage("resc.GridIndexBuilt",
+                                            dataset.getId(), entry.getKey()));
+                        }
+                        resampler.setPointIndex(pointIndex);
+                    } catch (Exception e) {
+                        /*
+                         * The grid can still be searched directly
+                         */
+                        String message = RescLogging.getMessage("resc.GridIndexProblem",
+                                dataset.getId(), entry.getKey());
+                        Logging.logger().warning(message);
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Builds (or updates) the on-disk cache for a profile layer in the
+     * background, and makes it available once it is ready. If the source files
+     * are unchanged since the cache was built, it is used as-is. If new source
+     * files have been added, only those are read.
+     * 
+     * @param dataset
+     *            The {@link Dataset} containing the layer
+     * @param layerName
+     *            The name of the layer
+     * @param varId
+     *            The ID of the variable within the dataset
+     */
+    private void cacheProfileLayer(final Dataset dataset, final String layerName,
+            final String varId) {
+        final DatasetConfig datasetConfig = config.getDatasetInfo(dataset.getId());
+        final File cacheFile = new File(new File(profileCacheDir, getSafeName(dataset.getId())),
+                getSafeName(varId) + ".profiles");
+        PROFILE_CACHER.submit(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    List<SourceFile> sources = SourceFile.listSources(datasetConfig
+                            .getLocation());
+                    if (sources == null || sources.isEmpty()) {
+                        /*
+                         * Not local files, so we can't tell when the cache
+                         * would need updating
+                         */
+                        return;
+                    }
+                    ProfileFileCache cache = null;
+                    if (cacheFile.exists()) {
+                        try {
+                            cache = new ProfileFileCache(cacheFile);
+                            if (!cache.getVariableId().equals(varId)) {
+                                cache.close();
+                                cache = null;
+                            }
+                        } catch (IOException e) {
+                            /*
+                             * Corrupt or outdated cache. It will be rebuilt.
+                             */
+                            cache = null;
+                        }
+                    }
+
+                    if (cache != null && !cache.getSources().equals(sources)) {
+                        List<SourceFile> newSources = new ArrayList<>(sources);
+                        newSources.removeAll(cache.getSources());
+                        if (sources.containsAll(cache.getSources())) {
+                            /*
+                             * Files have only been added, so read just those
+                             */
+                            cache = addToProfileCache(cacheFile, cache, newSources,
+                                    datasetConfig, dataset.getId(), varId);
+                            Logging.logger().fine(
+                                    RescLogging.getMessage("resc.ProfileCacheUpdated", layerName,
+                                            newSources.size(), cache.size()));
+                        } else {
+                            /*
+                             * Files have been changed or removed
+                             */
+                            cache.close();
+                            cache = null;
+                        }
+                    }
+
+                    if (cache == null) {
+                        cache = addToProfileCache(cacheFile, null, sources, datasetConfig,
+                                dataset.getId(), varId);
+                        Logging.logger().fine(
+                                RescLogging.getMessage("resc.ProfileCacheBuilt", layerName,
+                                        cache.size()));
+                    }
+                    profileCaches.put(layerName, cache);
+                } catch (Exception e) {
+                    /*
+                     * The layer can still be read directly from the dataset
+                     */
+                    String message = RescLogging.getMessage("resc.ProfileCacheProblem",
+                            layerName, e.getMessage());
+                    Logging.logger().warning(message);
+                }
+            }
+        });
+    }
+
+    /**
+     * Adds the profiles of source files to a profile cache. The files are read
+     * one at a time, and whenever {@link #PROFILE_CACHE_BATCH_SIZE} profiles
+     * have been read they are sorted and written to a temporary run file, so
+     * that the whole dataset is never held in memory at once. The runs and the
+     * existing cache are then merged into the cache file in a single pass.
+     * 
+     * @param cacheFile
+     *            The cache file to write
+     * @param cache
+     *            The existing cache to add to. May be <code>null</code>. This
+     *            is closed once the cache has been updated
+     * @param sources
+     *            The source files to add
+     * @param datasetConfig
+     *            The configuration of the dataset the files belong to
+     * @param datasetId
+     *            The ID of the dataset
+     * @param varId
+     *            The ID of the variable to cache
+     * @return The updated {@link ProfileFileCache}
+     */
+    private static ProfileFileCache addToProfileCache(File cacheFile, ProfileFileCache cache,
+            List<SourceFile> sources, DatasetConfig datasetConfig, String datasetId,
+            String varId) throws Exception {
+        DatasetFactory factory = DatasetFactory.forName(datasetConfig.getDataReaderClass());
+        List<SourceFile> cached = new ArrayList<>();
+        List<ProfileFileCache> parts = new ArrayList<>();
+        if (cache != null) {
+            cached.addAll(cache.getSources());
+            parts.add(cache);
+        }
+        List<File> runFiles = new ArrayList<>();
+        List<ProfileFeature> batch = new ArrayList<>();
+        List<SourceFile> batchSources = new ArrayList<>();
+        try {
+            for (int i = 0; i < sources.size(); i++) {
+                SourceFile source = sources.get(i);
+                batch.addAll(extractAllProfiles(
+                        factory.createDataset(datasetId, source.getPath()), varId));
+                batchSources.add(source);
+                if (batch.size() >= PROFILE_CACHE_BATCH_SIZE || i == sources.size() - 1) {
+                    File runFile = new File(cacheFile.getPath() + ".run" + runFiles.size());
+                    runFiles.add(runFile);
+                    parts.add(ProfileFileCache.create(runFile, batchSources, batch, varId));
+                    cached.addAll(batchSources);
+                    batch.clear();
+                    batchSources.clear();
+                }
+            }
+            SourceFile.sortByPath(cached);
+            cache = ProfileFileCache.merge(cacheFile, cached, parts);
+            parts.clear();
+        } finally {
+            /*
+             * Only left open if the merge did not complete
+             */
+            for (ProfileFileCache part : parts) {
+                part.close();
+            }
+            for (File runFile : runFiles) {
+                runFile.delete();
+            }
+        }
+        return cache;
+    }
+
+    private static List<? extends ProfileFeature> extractAllProfiles(Dataset dataset,
+            String varId) throws EdalException {
+        return dataset.extractProfileFeatures(CollectionUtils.setOf(varId),
+                new PlottingDomainParams(1, 1, BoundingBoxImpl.global(), null, null, null, null,
+                        null));
+    }
+
+    /**
+     * @return A version of the given ID which is safe to use as a filename
+     */
+    private static String getSafeName(String id) {
+        return id.replaceAll("[^A-Za-z0-9._-]", "_");
+    }
+
+    /**
+     * Gets the on-disk cache for a profile layer
+     * 
+     * @param layerName
+     *            The name of the layer
+     * @return The {@link ProfileFileCache} for the layer, or <code>null</code>
+     *         if it is not (yet) cached
+     */
+    ProfileFileCache getProfileCache(String layerName) {
+        return profileCaches.get(layerName);
+    }
+
     @Override
     public FeaturesAndMemberName getFeaturesForLayer(String layerName, PlottingDomainParams params)
             throws EdalException {
@@ -168,6 +587,19 @@ public class VideoWallCatalogue extends DataCatalogue {
                     params.getTargetT());
             return new FeaturesAndMemberName(CollectionUtils.setOf(mapFeature), varId);
         } else {
+            /*
+             * If the image is coarse enough, use a data pyramid
+             */
+            BoundingBox bbox = params.getBbox();
+            DataPyramid pyramid = getPyramid(layerName, params.getWidth(), params.getHeight(),
+                    bbox, params.getTargetZ(), params.getTargetT());
+            if (pyramid != null) {
+                float[] values = new float[params.getWidth() * params.getHeight()];
+                if (pyramid.resample(params.getWidth(), params.getHeight(), bbox, values)) {
+                    return new FeaturesAndMemberName(CollectionUtils.setOf(createMapFeature(
+                            layerName, varId, params, values)), varId);
+                }
+            }
             /*
              * We have a non-cached layer, so extract it
              */
@@ -179,29 +611,518 @@ public class VideoWallCatalogue extends DataCatalogue {
         }
     }
 
+    /**
+     * Reads the values of a layer onto a regular global lat-lon grid. This
+     * uses the in-memory grid if one is available.
+     *
+     * @param layerName
+     *            The name of the layer to read
+     * @param width
+     *            The number of cells in the longitude direction
+     * @param height
+     *            The number of cells in the latitude direction
+     * @param z
+     *            The target elevation. May be <code>null</code>
+     * @param time
+     *            The target time. May be <code>null</code>
+     * @return The values, in row-major order starting from the south-west
+     *         corner. Missing data is represented by {@link Float#NaN}
+     * @throws EdalException
+     *             If there is a problem reading the data
+     */
+    public float[] readGlobalValues(String layerName, int width, int height, Double z,
+            DateTime time) throws EdalException {
+        float[] values = new float[width * height];
+        readValues(layerName, width, height, BoundingBoxImpl.global(), z, time, values);
+        return values;
+    }
+
+    /**
+     * Reads the values of a layer onto a regular lat-lon grid. This uses the
+     * in-memory grid if one is available, resampling it with cached
+     * pixel-to-grid index maps.
+     *
+     * @param layerName
+     *            The name of the layer to read
+     * @param width
+     *            The number of cells in the longitude direction
+     * @param height
+     *            The number of cells in the latitude direction
+     * @param bbox
+     *            The {@link BoundingBox} of the grid
+     * @param z
+     *            The target elevation. May be <code>null</code>
+     * @param time
+     *            The target time. May be <code>null</code>
+     * @param values
+     *            An array of at least width*height elements to read the values
+     *            into, in row-major order starting from the south-west corner.
+     *            Missing data is represented by {@link Float#NaN}
+     * @throws EdalException
+     *             If there is a problem reading the data
+     */
+    public void readValues(String layerName, int width, int height, BoundingBox bbox, Double z,
+            DateTime time, float[] values) throws EdalException {
+        GridResampler resampler = resamplers.get(layerName);
+        if (resampler != null) {
+            resampler.resample(width, height, bbox, z, time, values);
+            return;
+        }
+        DataPyramid pyramid = getPyramid(layerName, width, height, bbox, z, time);
+        if (pyramid != null && pyramid.resample(width, height, bbox, values)) {
+            return;
+        }
+        readSourceValues(layerName, width, height, bbox, z, time, values);
+    }
+
+    /**
+     * Reads the values of a layer onto a regular lat-lon grid from the
+     * underlying dataset
+     * 
+     * @see VideoWallCatalogue#readValues(String, int, int, BoundingBox, Double,
+     *      DateTime, float[])
+     */
+    private void readSourceValues(String layerName, int width, int height, BoundingBox bbox,
+            Double z, DateTime time, float[] values) throws EdalException {
+        Arrays.fill(values, 0, width * height, Float.NaN);
+        FeaturesAndMemberName features = getFeaturesForLayer(layerName, new PlottingDomainParams(
+                width, height, bbox, null, null, null, z, time));
+        for (DiscreteFeature<?, ?> feature : features.getFeatures()) {
+            if (feature instanceof MapFeature) {
+                Array2D<Number> featureValues = ((MapFeature) feature).getValues(features
+                        .getMember());
+                if (featureValues == null) {
+                    continue;
+                }
+                /*
+                 * The image grid's y-axis increases northwards, so the first
+                 * row is the southernmost one
+                 */
+                for (int j = 0; j < height; j++) {
+                    int rowStart = j * width;
+                    for (int i = 0; i < width; i++) {
+                        Number value = featureValues.get(j, i);
+                        if (value != null) {
+                            values[rowStart + i] = value.floatValue();
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Reads values from the source data in strips of rows, so that no more
+     * than {@link #STRIP_SIZE} values are read in a single call
+     * 
+     * @see VideoWallCatalogue#readSourceValues(String, int, int, BoundingBox,
+     *      Double, DateTime, float[])
+     */
+    private void readSourceStrips(String layerName, int width, int height, BoundingBox bbox,
+            Double z, DateTime time, float[] values) throws EdalException {
+        int stripHeight = Math.max(1, STRIP_SIZE / width);
+        float[] strip = new float[width * Math.min(stripHeight, height)];
+        double dy = (bbox.getMaxY() - bbox.getMinY()) / height;
+        for (int j = 0; j < height; j += stripHeight) {
+            int rows = Math.min(stripHeight, height - j);
+            readSourceValues(layerName, width, rows, new BoundingBoxImpl(bbox.getMinX(),
+                    bbox.getMinY() + j * dy, bbox.getMaxX(), bbox.getMinY() + (j + rows) * dy,
+                    DefaultGeographicCRS.WGS84), z, time, strip);
+            System.arraycopy(strip, 0, values, j * width, rows * width);
+        }
+    }
+
+    /**
+     * Gets the data pyramid for an elevation/time of a layer, if the layer
+     * should be drawn from one at the given resolution. If there is no
+     * pyramid yet, but the resolution is coarse enough for one to be useful,
+     * it is built in the background.
+     * 
+     * @param layerName
+     *            The name of the layer
+     * @param width
+     *            The number of cells in the longitude direction
+     * @param height
+     *            The number of cells in the latitude direction
+     * @param bbox
+     *            The {@link BoundingBox} of the grid to be read
+     * @param z
+     *            The target elevation. May be <code>null</code>
+     * @param time
+     *            The target time. May be <code>null</code>
+     * @return The {@link DataPyramid}, or <code>null</code> if there is none
+     *         available
+     */
+    private DataPyramid getPyramid(String layerName, int width, int height, BoundingBox bbox,
+            Double z, DateTime time) throws EdalException {
+        if (!buildPyramids || gridFeatures.containsKey(layerName) || bbox == null
+                || !GISUtils.isWgs84LonLat(bbox.getCoordinateReferenceSystem())) {
+            return null;
+        }
+        String key = layerName + "/" + z + "/" + (time == null ? null : time.getMillis());
+        DataPyramid pyramid = pyramids.get(key);
+        if (pyramid != null || requestedPyramids.contains(key)) {
+            return pyramid;
+        }
+
+        VariableMetadata metadata = getVariableMetadataForLayer(layerName);
+        if (!(metadata instanceof GridVariableMetadata)) {
+            return null;
+        }
+        HorizontalGrid grid = ((GridVariableMetadata) metadata).getHorizontalDomain();
+        double resolution = EdalGridDataLayer.getNativeResolution(grid);
+        /*
+         * Only build a pyramid once it would be used, i.e. when drawing at no
+         * more than half the native resolution
+         */
+        if (resolution > 0 && (bbox.getMaxX() - bbox.getMinX()) / width >= 2 * resolution
+                && (bbox.getMaxY() - bbox.getMinY()) / height >= 2 * resolution
+                && requestedPyramids.add(key)) {
+            buildPyramid(key, layerName, grid, resolution, z, time);
+        }
+        return null;
+    }
+
+    /**
+     * Loads (or builds and saves) the data pyramid of an elevation/time of a
+     * layer in the background, and makes it available once it is ready. The
+     * layer is read once, in strips, at its native resolution to do this.
+     */
+    private void buildPyramid(final String key, final String layerName,
+            final HorizontalGrid grid, final double resolution, final Double z,
+            final DateTime time) {
+        PYRAMID_BUILDER.submit(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    Dataset dataset = getDatasetFromLayerName(layerName);
+                    String varId = layerNameMapper.getVariableIdFromLayerName(layerName);
+                    List<SourceFile> sources = SourceFile.listSources(config
+                            .getDatasetInfo(dataset.getId()).getLocation());
+                    if (sources == null || sources.isEmpty()) {
+                        /*
+                         * Not local files, so we can't tell when the pyramid
+                         * would need rebuilding
+                         */
+                        return;
+                    }
+                    String sourceKey = sources.toString();
+                    File file = new File(new File(new File(pyramidDir,
+                            getSafeName(dataset.getId())), getSafeName(varId)), getSafeName(z
+                            + "_" + (time == null ? "" : time.getMillis())) + ".pyramid");
+
+                    DataPyramid pyramid = null;
+                    if (file.exists()) {
+                        try {
+                            pyramid = DataPyramid.open(file, sourceKey);
+                        } catch (IOException e) {
+                            /*
+                             * Corrupt or outdated pyramid. It will be rebuilt.
+                             */
+                            pyramid = null;
+                        }
+                    }
+                    if (pyramid == null) {
+                        GeographicBoundingBox geoBbox = grid.getGeographicBoundingBox();
+                        double west = geoBbox.getWestBoundLongitude();
+                        double east = geoBbox.getEastBoundLongitude();
+                        if (east <= west) {
+                            east += 360;
+                        }
+                        double south = geoBbox.getSouthBoundLatitude();
+                        double north = geoBbox.getNorthBoundLatitude();
+                        int width = Math.min(MAX_PYRAMID_BASE_SIZE,
+                                (int) Math.ceil((east - west) / resolution));
+                        int height = Math.min(MAX_PYRAMID_BASE_SIZE,
+                                (int) Math.ceil((north - south) / resolution));
+                        BoundingBox bbox = new BoundingBoxImpl(west, south, east, north,
+                                DefaultGeographicCRS.WGS84);
+                        float[] base = new float[width * height];
+                        readSourceStrips(layerName, width, height, bbox, z, time, base);
+                        pyramid = DataPyramid.create(file, sourceKey, base, width, height, bbox,
+                                PYRAMID_TILE_SIZE);
+                        Logging.logger().fine(
+                                RescLogging.getMessage("resc.DataPyramidBuilt", layerName, z,
+                                        time));
+                    }
+                    pyramids.put(key, pyramid);
+                } catch (Exception | OutOfMemoryError e) {
+                    /*
+                     * The layer can still be read from the dataset
+                     */
+                    String message = RescLogging.getMessage("resc.DataPyramidProblem",
+                            layerName);
+                    Logging.logger().warning(message);
+                }
+            }
+        });
+    }
+
+    /**
+     * @param layerName
+     *            The name of the layer
+     * @return Whether the layer is held in memory, in which case reading it
+     *         is cheap
+     */
+    boolean isInMemory(String layerName) {
+        return gridFeatures.containsKey(layerName);
+    }
+
+    /**
+     * Gets the summary of an elevation/time of a gridded layer. If it is not
+     * available, it is built in the background.
+     * 
+     * @param layerName
+     *            The name of the layer
+     * @param z
+     *            The elevation. May be <code>null</code>
+     * @param time
+     *            The time. May be <code>null</code>
+     * @return The {@link DataSummary}, or <code>null</code> if it is not (yet)
+     *         available
+     */
+    DataSummary getSummary(String layerName, Double z, DateTime time) {
+        if (!summariseLayers) {
+            return null;
+        }
+        String key = layerName + "/" + z + "/" + (time == null ? null : time.getMillis());
+        DataSummary summary = summaries.get(key);
+        if (summary == null) {
+            latestSummaries.put(layerName, key);
+            if (requestedSummaries.add(key)) {
+                buildSummary(key, layerName, z, time);
+            }
+        }
+        return summary;
+    }
+
+    /**
+     * Builds the summary of an elevation/time of a layer in the background,
+     * and makes it available once it is ready. The layer is read once, in
+     * strips, sampling each axis at its smallest cell size, so that every
+     * grid cell is sampled. Other grids can't guarantee this, so only lat-lon
+     * grids are summarised. Layers which are neither in memory nor in local
+     * files are not summarised, since reading them in full may be slow.
+     * 
+     * If another summary of the layer has been requested since this one,
+     * this one is dropped. It will be requested again if it is still needed.
+     */
+    private void buildSummary(final String key, final String layerName, final Double z,
+            final DateTime time) {
+        SUMMARISER.submit(new Runnable() {
+            @Override
+            public void run() {
+                if (!key.equals(latestSummaries.get(layerName))) {
+                    requestedSummaries.remove(key);
+                    return;
+                }
+                try {
+                    VariableMetadata metadata = getVariableMetadataForLayer(layerName);
+                    if (!(metadata instanceof GridVariableMetadata)) {
+                        return;
+                    }
+                    if (!resamplers.containsKey(layerName)) {
+                        List<SourceFile> sources = SourceFile.listSources(config
+                                .getDatasetInfo(getDatasetFromLayerName(layerName).getId())
+                                .getLocation());
+                        if (sources == null || sources.isEmpty()) {
+                            return;
+                        }
+                    }
+                    HorizontalGrid grid = ((GridVariableMetadata) metadata).getHorizontalDomain();
+                    if (!(grid instanceof RectilinearGrid)
+                            || !GISUtils.isWgs84LonLat(grid.getCoordinateReferenceSystem())) {
+                        return;
+                    }
+                    double xSpacing = getMinCellSize(((RectilinearGrid) grid).getXAxis());
+                    double ySpacing = getMinCellSize(((RectilinearGrid) grid).getYAxis());
+                    if (!(xSpacing > 0) || !(ySpacing > 0)) {
+                        return;
+                    }
+                    GeographicBoundingBox geoBbox = grid.getGeographicBoundingBox();
+                    double west = geoBbox.getWestBoundLongitude();
+                    double east = geoBbox.getEastBoundLongitude();
+                    if (east <= west) {
+                        east += 360;
+                    }
+                    double south = geoBbox.getSouthBoundLatitude();
+                    double north = geoBbox.getNorthBoundLatitude();
+                    int width = (int) Math.ceil((east - west) / xSpacing);
+                    int height = (int) Math.ceil((north - south) / ySpacing);
+                    if (width > MAX_SUMMARY_SIZE || height > MAX_SUMMARY_SIZE) {
+                        return;
+                    }
+                    double dx = (east - west) / width;
+                    double dy = (north - south) / height;
+
+                    DataSummary summary = new DataSummary(Math.max(dx, dy));
+                    int stripHeight = Math.max(1, STRIP_SIZE / width);
+                    float[] values = new float[width * stripHeight];
+                    for (int j = 0; j < height; j += stripHeight) {
+                        int rows = Math.min(stripHeight, height - j);
+                        BoundingBox strip = new BoundingBoxImpl(west, south + j * dy, east, south
+                                + (j + rows) * dy, DefaultGeographicCRS.WGS84);
+                        GridResampler resampler = resamplers.get(layerName);
+                        if (resampler != null) {
+                            resampler.resample(width, rows, strip, z, time, values);
+                        } else {
+                            readSourceValues(layerName, width, rows, strip, z, time, values);
+                        }
+                        summary.add(values, width, rows, strip);
+                    }
+                    summaries.put(key, summary);
+                } catch (Exception e) {
+                    /*
+                     * Tiles will be drawn as normal
+                     */
+                    String message = RescLogging.getMessage("resc.DataSummaryProblem",
+                            layerName);
+                    Logging.logger().warning(message);
+                }
+            }
+        });
+    }
+
+    /**
+     * @param axis
+     *            An axis of a lat-lon grid
+     * @return The size of the smallest cell on the axis
+     */
+    private static double getMinCellSize(ReferenceableAxis<Double> axis) {
+        double minSize = Double.POSITIVE_INFINITY;
+        for (int i = 0; i < axis.size(); i++) {
+            Extent<Double> bounds = axis.getCoordinateBounds(i);
+            minSize = Math.min(minSize, Math.abs(bounds.getHigh() - bounds.getLow()));
+        }
+        return minSize;
+    }
+
+    /**
+     * Creates a {@link MapFeature} from values which have been read onto an
+     * image grid
+     * 
+     * @param layerName
+     *            The name of the layer the values were read from
+     * @param varId
+     *            The ID of the variable the values were read from
+     * @param params
+     *            The {@link PlottingDomainParams} the values were read for
+     * @param values
+     *            The values, in row-major order starting from the south-west
+     *            corner. Missing data is represented by {@link Float#NaN}
+     * @return A new {@link MapFeature}
+     */
+    private MapFeature createMapFeature(String layerName, String varId,
+            PlottingDomainParams params, float[] values) throws EdalException {
+        VariableMetadata metadata = getVariableMetadataForLayer(layerName);
+        int width = params.getWidth();
+        int height = params.getHeight();
+        ValuesArray2D featureValues = new ValuesArray2D(height, width);
+        for (int j = 0; j < height; j++) {
+            for (int i = 0; i < width; i++) {
+                float value = values[j * width + i];
+                featureValues.set(Float.isNaN(value) ? null : value, j, i);
+            }
+        }
+        Map<String, Parameter> parameters = new HashMap<>();
+        parameters.put(varId, metadata.getParameter());
+        Map<String, Array2D<Number>> valuesMap = new HashMap<>();
+        valuesMap.put(varId, featureValues);
+        VerticalCrs zCrs = metadata.getVerticalDomain() == null ? null : metadata
+                .getVerticalDomain().getVerticalCrs();
+        return new MapFeature(layerName, layerName, "", new MapDomainImpl(params.getImageGrid(),
+                params.getTargetZ(), zCrs, params.getTargetT()), parameters, valuesMap);
+    }
+
     public Number getLayerValue(String layerId, Position position, Double z, DateTime time,
             Extent<Double> zRange, Extent<DateTime> tRange, double sensitivity)
             throws EdalException {
-        Dataset dataset = getDatasetFromLayerName(layerId);
-        String varId = layerNameMapper.getVariableIdFromLayerName(layerId);
-        Collection<? extends DiscreteFeature<?, ?>> mapFeatures = dataset.extractMapFeatures(
-                CollectionUtils.setOf(varId), new PlottingDomainParams(1, 1, new BoundingBoxImpl(
-                        position.longitude.degrees - sensitivity, position.latitude.degrees
-                                - sensitivity, position.longitude.degrees + sensitivity,
-                        position.latitude.degrees + sensitivity, DefaultGeographicCRS.WGS84),
-                        zRange, tRange, null, null, null));
-
-        if (!mapFeatures.isEmpty()) {
-            DiscreteFeature<?, ?> feature = mapFeatures.iterator().next();
-            if (feature instanceof MapFeature) {
-                MapFeature mapFeature = (MapFeature) feature;
-                return mapFeature.getValues(varId).get(0, 0);
-            } else if (feature instanceof PointFeature) {
-                PointFeature pointFeature = (PointFeature) feature;
-                return pointFeature.getValues(varId).get(0);
+        return getLayerValues(Collections.singleton(layerId), position, z, time, zRange, tRange,
+                sensitivity).get(layerId);
+    }
+
+    /**
+     * Reads the values of several layers from the same {@link Dataset} at a
+     * given position. All of the variables are extracted in a single read.
+     * 
+     * @param layerIds
+     *            The layers to read. These must all belong to the same
+     *            {@link Dataset}
+     * @param position
+     *            The target {@link Position}
+     * @param z
+     *            The elevation being displayed, which in-memory layers are
+     *            read at. May be <code>null</code>
+     * @param time
+     *            The time being displayed, which in-memory layers are read at.
+     *            May be <code>null</code>
+     * @param zRange
+     *            The elevation range to extract values from
+     * @param tRange
+     *            The time range to extract values from
+     * @param sensitivity
+     *            The range, in degrees, around the target position to extract
+     *            values from
+     * @return A {@link Map} of layer ID to value. Layers with no value at the
+     *         given position will map to <code>null</code>
+     * @throws EdalException
+     *             If there is a problem reading the values
+     */
+    public Map<String, Number> getLayerValues(Collection<String> layerIds, Position position,
+            Double z, DateTime time, Extent<Double> zRange, Extent<DateTime> tRange,
+            double sensitivity) throws EdalException {
+        Map<String, Number> values = new HashMap<>();
+        /*
+         * In-memory gridded layers can be read directly from the grid cell
+         * containing the position
+         */
+        Set<String> unreadLayerIds = new HashSet<>();
+        for (String layerId : layerIds) {
+            GridResampler resampler = resamplers.get(layerId);
+            if (resampler != null) {
+                values.put(layerId, resampler.getValue(position.longitude.degrees,
+                        position.latitude.degrees, z, time));
             } else {
-                return null;
+                unreadLayerIds.add(layerId);
             }
+        }
+        if (unreadLayerIds.isEmpty()) {
+            return values;
+        }
+
+        Dataset dataset = getDatasetForLayers(unreadLayerIds);
+        Map<String, String> layersToVars = getVariableIds(unreadLayerIds);
+        Collection<? extends DiscreteFeature<?, ?>> mapFeatures = dataset.extractMapFeatures(
+                new HashSet<>(layersToVars.values()), new PlottingDomainParams(1, 1,
+                        new BoundingBoxImpl(position.longitude.degrees - sensitivity,
+                                position.latitude.degrees - sensitivity, position.longitude.degrees
+                                        + sensitivity, position.latitude.degrees + sensitivity,
+                                DefaultGeographicCRS.WGS84), zRange, tRange, null, null, null));
+
+        DiscreteFeature<?, ?> feature = mapFeatures.isEmpty() ? null : mapFeatures.iterator()
+                .next();
+        for (Entry<String, String> layerToVar : layersToVars.entrySet()) {
+            values.put(layerToVar.getKey(), getFirstValue(feature, layerToVar.getValue()));
+        }
+        return values;
+    }
+
+    /**
+     * Gets the first value of a variable from an extracted feature
+     * 
+     * @param feature
+     *            The extracted feature. May be <code>null</code>
+     * @param varId
+     *            The ID of the variable to get the value of
+     * @return The value, or <code>null</code> if there is none
+     */
+    private static Number getFirstValue(DiscreteFeature<?, ?> feature, String varId) {
+        if (feature instanceof MapFeature) {
+            Array2D<Number> values = ((MapFeature) feature).getValues(varId);
+            return values == null ? null : values.get(0, 0);
+        } else if (feature instanceof PointFeature) {
+            Array1D<Number> values = ((PointFeature) feature).getValues(varId);
+            return values == null ? null : values.get(0);
         } else {
             return null;
         }
@@ -234,51 +1155,118 @@ public class VideoWallCatalogue extends DataCatalogue {
     public List<? extends ProfileFeature> getProfiles(String layerId, Position position,
             double sensitivity, Extent<Double> elevationRange, Extent<DateTime> timeRange)
             throws EdalException {
-        Dataset dataset = getDatasetFromLayerName(layerId);
-        String varId = layerNameMapper.getVariableIdFromLayerName(layerId);
-        if (!dataset.supportsProfileFeatureExtraction(varId)) {
+        return getProfiles(Collections.singleton(layerId), position, sensitivity, elevationRange,
+                timeRange).get(layerId);
+    }
+
+    /**
+     * Extracts {@link ProfileFeature}s for several layers from the same
+     * {@link Dataset}. All of the variables are extracted in a single read,
+     * and the results are then split so that each returned
+     * {@link ProfileFeature} only contains the variable for its layer.
+     * 
+     * @param layerIds
+     *            The layers to extract from. These must all belong to the same
+     *            {@link Dataset}
+     * @param position
+     *            The target {@link Position} to extract features from
+     * @param sensitivity
+     *            The range, in degrees, around the target position to extract
+     *            features from
+     * @param elevationRange
+     *            An {@link Extent} representing elevation. See
+     *            {@link VideoWallCatalogue#getProfiles(String, Position, double, Extent, Extent)}
+     * @param timeRange
+     *            An {@link Extent} representing time. See
+     *            {@link VideoWallCatalogue#getProfiles(String, Position, double, Extent, Extent)}
+     * @return A {@link Map} of layer ID to the {@link List} of extracted
+     *         features for that layer
+     * @throws EdalException
+     *             If there is a problem extracting the profiles
+     */
+    public Map<String, List<? extends ProfileFeature>> getProfiles(Collection<String> layerIds,
+            Position position, double sensitivity, Extent<Double> elevationRange,
+            Extent<DateTime> timeRange) throws EdalException {
+        Dataset dataset = getDatasetForLayers(layerIds);
+        Map<String, String> layersToVars = getVariableIds(layerIds);
+        Map<String, List<? extends ProfileFeature>> ret = new HashMap<>();
+
+        /*
+         * Extract features from the dataset
+         */
+        DateTime targetT = null;
+        if (timeRange != null && timeRange.getLow().equals(timeRange.getHigh())) {
             /*
-             * Profile features not supported for this dataset/variable
-             * combination, return an empty list
+             * If no range is selected on the time slider, we don't want to
+             * have exact matches only for gridded features, so we nullify the
+             * time range
              */
-            String message = RescLogging.getMessage("resc.UnsupportedProfileExtraction");
-            Logging.logger().warning(message);
-            return new ArrayList<>();
-        } else {
+            targetT = timeRange.getLow();
+            timeRange = null;
+        }
+
+        BoundingBox bbox = null;
+        if (!(dataset instanceof GriddedDataset)) {
             /*
-             * Extract features from the dataset
+             * We want to only use a target position for gridded datasets. For
+             * in-situ, we want to use a bounding box with the given
+             * sensitivity
              */
-            DateTime targetT = null;
-            if (timeRange != null && timeRange.getLow().equals(timeRange.getHigh())) {
+            bbox = new BoundingBoxImpl(position.longitude.degrees - sensitivity,
+                    position.latitude.degrees - sensitivity, position.longitude.degrees
+                            + sensitivity, position.latitude.degrees + sensitivity,
+                    DefaultGeographicCRS.WGS84);
+        }
+
+        Set<String> varIds = new HashSet<>();
+        for (Entry<String, String> layerToVar : layersToVars.entrySet()) {
+            ProfileFileCache cache = profileCaches.get(layerToVar.getKey());
+            if (cache != null && bbox != null) {
                 /*
-                 * If no range is selected on the time slider, we don't want to
-                 * have exact matches only for gridded features, so we nullify
-                 * the time range
+                 * Read from the on-disk cache rather than the source files
                  */
-                targetT = timeRange.getLow();
-                timeRange = null;
-            }
-
-            BoundingBox bbox = null;
-            if (!(dataset instanceof GriddedDataset)) {
+                ret.put(layerToVar.getKey(),
+                        cache.extractProfiles(bbox, elevationRange, timeRange, targetT));
+            } else if (dataset.supportsProfileFeatureExtraction(layerToVar.getValue())) {
+                varIds.add(layerToVar.getValue());
+            } else {
                 /*
-                 * We want to only use a target position for gridded datasets.
-                 * For in-situ, we want to use a bounding box with the given
-                 * sensitivity
+                 * Profile features not supported for this dataset/variable
+                 * combination, return an empty list
                  */
-                bbox = new BoundingBoxImpl(position.longitude.degrees - sensitivity,
-                        position.latitude.degrees - sensitivity, position.longitude.degrees
-                                + sensitivity, position.latitude.degrees + sensitivity,
-                        DefaultGeographicCRS.WGS84);
+                String message = RescLogging.getMessage("resc.UnsupportedProfileExtraction");
+                Logging.logger().warning(message);
+                ret.put(layerToVar.getKey(), new ArrayList<ProfileFeature>());
             }
+        }
+        if (varIds.isEmpty()) {
+            return ret;
+        }
+
+        List<? extends ProfileFeature> profileFeatures = dataset.extractProfileFeatures(varIds,
+                new PlottingDomainParams(1, 1, bbox, elevationRange, timeRange,
+                        new HorizontalPosition(position.longitude.degrees,
+                                position.latitude.degrees, DefaultGeographicCRS.WGS84), null,
+                        targetT));
 
-            List<? extends ProfileFeature> profileFeatures = dataset.extractProfileFeatures(
-                    CollectionUtils.setOf(varId), new PlottingDomainParams(1, 1, bbox,
-                            elevationRange, timeRange, new HorizontalPosition(
-                                    position.longitude.degrees, position.latitude.degrees,
-                                    DefaultGeographicCRS.WGS84), null, targetT));
-            return profileFeatures;
+        for (Entry<String, String> layerToVar : layersToVars.entrySet()) {
+            String varId = layerToVar.getValue();
+            if (!varIds.contains(varId)) {
+                continue;
+            }
+            if (varIds.size() == 1) {
+                ret.put(layerToVar.getKey(), profileFeatures);
+            } else {
+                List<ProfileFeature> layerFeatures = new ArrayList<>();
+                for (ProfileFeature feature : profileFeatures) {
+                    if (feature.getValues(varId) != null) {
+                        layerFeatures.add(subsetProfile(feature, varId));
+                    }
+                }
+                ret.put(layerToVar.getKey(), layerFeatures);
+            }
         }
+        return ret;
     }
 
     /**
@@ -309,43 +1297,182 @@ public class VideoWallCatalogue extends DataCatalogue {
     public List<? extends PointSeriesFeature> getTimeseries(String layerId, Position position,
             double sensitivity, Extent<Double> elevationRange, Extent<DateTime> timeRange)
             throws EdalException {
-        Dataset dataset = getDatasetFromLayerName(layerId);
-        String varId = layerNameMapper.getVariableIdFromLayerName(layerId);
-        if (!dataset.supportsTimeseriesExtraction(varId)) {
-            /*
-             * Timeseries features not supported for this dataset/variable
-             * combination, return an empty list
-             */
-            String message = RescLogging.getMessage("resc.UnsupportedTimeseriesExtraction");
-            Logging.logger().warning(message);
-            return new ArrayList<>();
-        } else {
-            /*
-             * Extract features from the dataset
-             */
-            Double targetZ = null;
-            if (elevationRange != null && elevationRange.getLow().equals(elevationRange.getHigh())) {
+        return getTimeseries(Collections.singleton(layerId), position, sensitivity,
+                elevationRange, timeRange).get(layerId);
+    }
+
+    /**
+     * Extracts {@link PointSeriesFeature}s for several layers from the same
+     * {@link Dataset}. All of the variables are extracted in a single read,
+     * and the results are then split so that each returned
+     * {@link PointSeriesFeature} only contains the variable for its layer.
+     * 
+     * @param layerIds
+     *            The layers to extract from. These must all belong to the same
+     *            {@link Dataset}
+     * @param position
+     *            The target {@link Position} to extract features from
+     * @param sensitivity
+     *            The range, in degrees, around the target position to extract
+     *            features from
+     * @param elevationRange
+     *            An {@link Extent} representing elevation. See
+     *            {@link VideoWallCatalogue#getTimeseries(String, Position, double, Extent, Extent)}
+     * @param timeRange
+     *            An {@link Extent} representing time. See
+     *            {@link VideoWallCatalogue#getTimeseries(String, Position, double, Extent, Extent)}
+     * @return A {@link Map} of layer ID to the {@link List} of extracted
+     *         features for that layer
+     * @throws EdalException
+     *             If there is a problem extracting the timeseries features
+     */
+    public Map<String, List<? extends PointSeriesFeature>> getTimeseries(
+            Collection<String> layerIds, Position position, double sensitivity,
+            Extent<Double> elevationRange, Extent<DateTime> timeRange) throws EdalException {
+        Dataset dataset = getDatasetForLayers(layerIds);
+        Map<String, String> layersToVars = getVariableIds(layerIds);
+        Map<String, List<? extends PointSeriesFeature>> ret = new HashMap<>();
+
+        Set<String> varIds = new HashSet<>();
+        for (Entry<String, String> layerToVar : layersToVars.entrySet()) {
+            if (dataset.supportsTimeseriesExtraction(layerToVar.getValue())) {
+                varIds.add(layerToVar.getValue());
+            } else {
                 /*
-                 * If no range is selected on the time slider, we don't want to
-                 * have exact matches only for gridded features, so we nullify
-                 * the time range
+                 * Timeseries features not supported for this dataset/variable
+                 * combination, return an empty list
                  */
-                targetZ = elevationRange.getLow();
-                elevationRange = null;
+                String message = RescLogging.getMessage("resc.UnsupportedTimeseriesExtraction");
+                Logging.logger().warning(message);
+                ret.put(layerToVar.getKey(), new ArrayList<PointSeriesFeature>());
             }
-            List<? extends PointSeriesFeature> pointseriesFeatures = dataset
-                    .extractTimeseriesFeatures(CollectionUtils.setOf(varId),
-                            new PlottingDomainParams(1, 1, new BoundingBoxImpl(
-                                    position.longitude.degrees - sensitivity,
-                                    position.latitude.degrees - sensitivity,
-                                    position.longitude.degrees + sensitivity,
-                                    position.latitude.degrees + sensitivity,
-                                    DefaultGeographicCRS.WGS84), elevationRange, timeRange,
-                                    new HorizontalPosition(position.longitude.degrees,
-                                            position.latitude.degrees, DefaultGeographicCRS.WGS84),
-                                    targetZ, null));
-            return pointseriesFeatures;
         }
+        if (varIds.isEmpty()) {
+            return ret;
+        }
+
+        /*
+         * Extract features from the dataset
+         */
+        Double targetZ = null;
+        if (elevationRange != null && elevationRange.getLow().equals(elevationRange.getHigh())) {
+            /*
+             * If no range is selected on the time slider, we don't want to
+             * have exact matches only for gridded features, so we nullify the
+             * time range
+             */
+            targetZ = elevationRange.getLow();
+            elevationRange = null;
+        }
+        List<? extends PointSeriesFeature> pointseriesFeatures = dataset
+                .extractTimeseriesFeatures(varIds, new PlottingDomainParams(1, 1,
+                        new BoundingBoxImpl(position.longitude.degrees - sensitivity,
+                                position.latitude.degrees - sensitivity,
+                                position.longitude.degrees + sensitivity,
+                                position.latitude.degrees + sensitivity,
+                                DefaultGeographicCRS.WGS84), elevationRange, timeRange,
+                        new HorizontalPosition(position.longitude.degrees,
+                                position.latitude.degrees, DefaultGeographicCRS.WGS84), targetZ,
+                        null));
+
+        for (Entry<String, String> layerToVar : layersToVars.entrySet()) {
+            String varId = layerToVar.getValue();
+            if (!varIds.contains(varId)) {
+                continue;
+            }
+            if (varIds.size() == 1) {
+                ret.put(layerToVar.getKey(), pointseriesFeatures);
+            } else {
+                List<PointSeriesFeature> layerFeatures = new ArrayList<>();
+                for (PointSeriesFeature feature : pointseriesFeatures) {
+                    if (feature.getValues(varId) != null) {
+                        layerFeatures.add(subsetTimeseries(feature, varId));
+                    }
+                }
+                ret.put(layerToVar.getKey(), layerFeatures);
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * Creates a copy of a {@link ProfileFeature} containing only a single
+     * variable. This is used when several variables have been extracted at
+     * once, since each panel only wants to plot its own variable.
+     * 
+     * @param feature
+     *            The {@link ProfileFeature} to copy
+     * @param varId
+     *            The variable to keep
+     * @return A new {@link ProfileFeature}, sharing the domain and values of
+     *         the original
+     */
+    private static ProfileFeature subsetProfile(ProfileFeature feature, String varId) {
+        Map<String, Parameter> parameters = new HashMap<>();
+        parameters.put(varId, feature.getParameter(varId));
+        Map<String, Array1D<Number>> values = new HashMap<>();
+        values.put(varId, feature.getValues(varId));
+        return new ProfileFeature(feature.getId(), feature.getName(), feature.getDescription(),
+                feature.getDomain(), feature.getHorizontalPosition(), feature.getTime(),
+                parameters, values);
+    }
+
+    /**
+     * Creates a copy of a {@link PointSeriesFeature} containing only a single
+     * variable. This is used when several variables have been extracted at
+     * once, since each panel only wants to plot its own variable.
+     * 
+     * @param feature
+     *            The {@link PointSeriesFeature} to copy
+     * @param varId
+     *            The variable to keep
+     * @return A new {@link PointSeriesFeature}, sharing the domain and values
+     *         of the original
+     */
+    private static PointSeriesFeature subsetTimeseries(PointSeriesFeature feature, String varId) {
+        Map<String, Parameter> parameters = new HashMap<>();
+        parameters.put(varId, feature.getParameter(varId));
+        Map<String, Array1D<Number>> values = new HashMap<>();
+        values.put(varId, feature.getValues(varId));
+        return new PointSeriesFeature(feature.getId(), feature.getName(),
+                feature.getDescription(), feature.getDomain(), feature.getHorizontalPosition(),
+                feature.getVerticalPosition(), parameters, values);
+    }
+
+    /**
+     * Gets the single {@link Dataset} which a group of layers belong to
+     * 
+     * @param layerIds
+     *            The layer IDs
+     * @return The {@link Dataset} containing all of the layers
+     * @throws EdalException
+     *             If the layers do not all belong to the same {@link Dataset}
+     */
+    private Dataset getDatasetForLayers(Collection<String> layerIds) throws EdalException {
+        Dataset dataset = null;
+        for (String layerId : layerIds) {
+            Dataset layerDataset = getDatasetFromLayerName(layerId);
+            if (dataset != null && dataset != layerDataset) {
+                throw new EdalException("Layers " + layerIds
+                        + " do not all belong to the same dataset");
+            }
+            dataset = layerDataset;
+        }
+        return dataset;
+    }
+
+    /**
+     * @param layerIds
+     *            The layer IDs
+     * @return A {@link Map} of layer ID to the ID of the variable it
+     *         represents
+     */
+    private Map<String, String> getVariableIds(Collection<String> layerIds) {
+        Map<String, String> layersToVars = new HashMap<>();
+        for (String layerId : layerIds) {
+            layersToVars.put(layerId, layerNameMapper.getVariableIdFromLayerName(layerId));
+        }
+        return layersToVars;
     }
 
     /**
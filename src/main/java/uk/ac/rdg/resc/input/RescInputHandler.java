@@ -109,6 +109,7 @@ public class RescInputHandler extends AWTInputHandler {
                 @Override
                 public void handle(TouchEvent event) {
                     fingersOn = event.getTouchCount();
+                    rescWorldWindow.getModel().hoverEnded();
                     if (tapping && fingersOn == 1) {
                         tapping = false;
                         Position touchedPos = rescWorldWindow.getView()
@@ -126,7 +127,8 @@ public class RescInputHandler extends AWTInputHandler {
                 @Override
                 public void handle(TouchEvent event) {
                     if (fingersOn == 1) {
-
+                        rescWorldWindow.getModel().hoverAt((int) event.getTouchPoint().getX(),
+                                (int) event.getTouchPoint().getY());
                     }
                 }
             });
@@ -258,6 +260,24 @@ public class RescInputHandler extends AWTInputHandler {
         super.mouseReleased(mouseEvent);
     }
 
+    @Override
+    public void mouseMoved(MouseEvent mouseEvent) {
+        super.mouseMoved(mouseEvent);
+        /*
+         * Touch events also generate mouse movements. These are handled by the
+         * touch handlers
+         */
+        if (fingersOn == 0) {
+            rescWorldWindow.getModel().hoverAt(mouseEvent.getX(), mouseEvent.getY());
+        }
+    }
+
+    @Override
+    public void mouseExited(MouseEvent mouseEvent) {
+        super.mouseExited(mouseEvent);
+        rescWorldWindow.getModel().hoverEnded();
+    }
+
     @Override
     public void mouseDragged(MouseEvent mouseEvent) {
         /*
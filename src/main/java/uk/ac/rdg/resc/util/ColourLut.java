@@ -0,0 +1,287 @@
+/*******************************************************************************
+ * Copyright (c) 2014 The University of Reading
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+
+package uk.ac.rdg.resc.util;
+
+import gov.nasa.worldwind.Configuration;
+import gov.nasa.worldwind.util.Logging;
+
+import java.awt.Color;
+
+import uk.ac.rdg.resc.edal.domain.Extent;
+import uk.ac.rdg.resc.edal.graphics.style.ColourScheme;
+import uk.ac.rdg.resc.edal.graphics.style.ScaleRange;
+import uk.ac.rdg.resc.edal.graphics.style.SegmentColourScheme;
+import uk.ac.rdg.resc.edal.graphics.style.util.PlottingStyleParameters;
+import uk.ac.rdg.resc.logging.RescLogging;
+
+/**
+ * A precompiled colour lookup table for a banded colour scale.
+ * 
+ * Calling {@link ColourScheme#getColor(Number)} for every value involves
+ * scaling (and possibly logarithm) calculations, palette interpolation, and
+ * the creation of a new {@link Color}. Here, the colour of each band is
+ * calculated once, and a value is mapped to its band with a single multiply
+ * and add (of its logarithm, for log scales), giving a packed ARGB int with no
+ * allocation.
+ * 
+ * The band colours are sampled from a {@link SegmentColourScheme}, so they are
+ * identical to those it would return.
+ * 
+ * Where the JDK Vector API is available (see the "vector" build profile) and
+ * the VectorColouring setting is enabled, grids on a linear scale are coloured
+ * several values at a time. This is off by default, since it is not faster on
+ * all hardware.
+ * 
+ * @author Guy Griffiths
+ */
+public class ColourLut {
+    /**
+     * The Vector API implementation of grid colouring, or <code>null</code>
+     * if it is unavailable or disabled
+     */
+    private static final RowColourer VECTOR_COLOURER = loadVectorColourer();
+
+    /*
+     * The colour of each band, preceded by the below-min colour and followed
+     * by the above-max colour, so that out-of-range values can be handled by
+     * clamping the index
+     */
+    final int[] colours;
+    final int nBands;
+    final int noData;
+
+    final boolean logScale;
+    /*
+     * The (possibly log-scaled) limits of the scale
+     */
+    final double min;
+    final double max;
+    /** The number of bands per unit of (possibly log-scaled) value */
+    final double bandsPerUnit;
+
+    /**
+     * Creates a {@link ColourLut} for a set of plotting parameters
+     * 
+     * @param params
+     *            The {@link PlottingStyleParameters} describing the colour scale
+     */
+    public ColourLut(PlottingStyleParameters params) {
+        this(new SegmentColourScheme(new ScaleRange(params.getColorScaleRange(),
+                params.isLogScaling()), params.getBelowMinColour(), params.getAboveMaxColour(),
+                params.getNoDataColour(), params.getPalette(), params.getNumColorBands()), params
+                .getColorScaleRange(), params.isLogScaling(), params.getNumColorBands());
+    }
+
+    /**
+     * Creates a {@link ColourLut} by sampling a {@link ColourScheme}
+     * 
+     * @param colourScheme
+     *            The {@link ColourScheme} to sample
+     * @param scaleRange
+     *            The range of the colour scale
+     * @param logScale
+     *            Whether the colour scale is logarithmic
+     * @param numColourBands
+     *            The number of colour bands in the scale
+     */
+    public ColourLut(ColourScheme colourScheme, Extent<Float> scaleRange, boolean logScale,
+            int numColourBands) {
+        float scaleMin = scaleRange.getLow();
+        float scaleMax = scaleRange.getHigh();
+        /*
+         * A log scale needs positive limits
+         */
+        this.logScale = logScale && scaleMin > 0;
+        min = this.logScale ? Math.log(scaleMin) : scaleMin;
+        max = this.logScale ? Math.log(scaleMax) : scaleMax;
+        nBands = Math.max(1, numColourBands);
+        bandsPerUnit = max > min ? nBands / (max - min) : 0.0;
+
+        /*
+         * Sample the colour scheme at the centre of each band
+         */
+        colours = new int[nBands + 2];
+        for (int band = 0; band < nBands; band++) {
+            double centre = min + (band + 0.5) * (max - min) / nBands;
+            colours[band + 1] = getARGB(colourScheme, (float) (this.logScale ? Math.exp(centre)
+                    : centre));
+        }
+        colours[0] = getARGB(colourScheme, Math.nextDown(scaleMin));
+        colours[nBands + 1] = getARGB(colourScheme, Math.nextUp(scaleMax));
+        noData = getARGB(colourScheme, null);
+    }
+
+    /**
+     * Loads the Vector API colouring implementation, if it is enabled. This
+     * is only compiled by the "vector" build profile, and needs the
+     * jdk.incubator.vector module at runtime, so if either is missing the
+     * scalar implementation is used.
+     */
+    private static RowColourer loadVectorColourer() {
+        if (!Configuration.getBooleanValue("uk.ac.rdg.resc.edal.multiglobe.VectorColouring",
+                false)) {
+            return null;
+        }
+        try {
+            RowColourer colourer = (RowColourer) Class.forName(
+                    "uk.ac.rdg.resc.util.VectorColourer").newInstance();
+            Logging.logger().fine(RescLogging.getMessage("resc.VectorColouring"));
+            return colourer;
+        } catch (ReflectiveOperationException | LinkageError e) {
+            return null;
+        }
+    }
+
+    private static int getARGB(ColourScheme colourScheme, Float value) {
+        Color colour = colourScheme.getColor(value);
+        return colour == null ? 0 : colour.getRGB();
+    }
+
+    /**
+     * @param value
+     *            The data value, or {@link Float#NaN} for no data
+     * @return The colour of the value, as a packed ARGB int
+     */
+    public int getColour(float value) {
+        if (value != value) {
+            return noData;
+        }
+        return colours[getIndex(logScale ? Math.log(value) : value)];
+    }
+
+    /**
+     * Tests whether every value in a range has the same colour. Since the
+     * mapping from value to band is monotonic, this is the case when both
+     * ends of the range are in the same band.
+     * 
+     * @param low
+     *            The lowest value in the range (not NaN)
+     * @param high
+     *            The highest value in the range (not NaN)
+     * @return <code>true</code> if all values in the range have the same
+     *         colour
+     */
+    public boolean isUniform(float low, float high) {
+        return getIndex(logScale ? Math.log(low) : low) == getIndex(logScale ? Math.log(high)
+                : high);
+    }
+
+    /**
+     * @param scaled
+     *            A (possibly log-scaled) value, which is not NaN
+     * @return The index of its colour in {@link ColourLut#colours}
+     */
+    private int getIndex(double scaled) {
+        double position = (scaled - min) * bandsPerUnit;
+        /*
+         * Values exactly at the maximum belong to the top band. Log-scaled
+         * non-positive values are NaN or -Infinity, and are below the minimum.
+         */
+        int index = Math.min((int) position + 1, nBands);
+        index = scaled > max ? nBands + 1 : index;
+        return scaled >= min ? index : 0;
+    }
+
+    /**
+     * Colours a grid of values into packed ARGB pixels. Nothing is allocated,
+     * so this can be used to fill the pixel array of an image directly.
+     * 
+     * @param values
+     *            The values, in row-major order starting from the south-west
+     *            corner (as read from EDAL). {@link Float#NaN} represents no
+     *            data
+     * @param width
+     *            The width of the grid
+     * @param height
+     *            The height of the grid
+     * @param pixels
+     *            The array to write the pixels to, in row-major order starting
+     *            from the north-west corner (as in an image)
+     */
+    public void colourGrid(float[] values, int width, int height, int[] pixels) {
+        /*
+         * There is no fast vector logarithm, so log scales are always
+         * coloured by the scalar code
+         */
+        boolean vector = VECTOR_COLOURER != null && !logScale;
+        for (int j = 0; j < height; j++) {
+            int valueRow = j * width;
+            int pixelRow = (height - 1 - j) * width;
+            if (vector) {
+                VECTOR_COLOURER.colourRow(this, values, valueRow, pixels, pixelRow, width);
+            } else {
+                colourRow(values, valueRow, pixels, pixelRow, width);
+            }
+        }
+    }
+
+    /**
+     * Colours a row of values, one at a time
+     * 
+     * @param values
+     *            The array of values
+     * @param valueOffset
+     *            The index of the first value to colour
+     * @param pixels
+     *            The array of pixels
+     * @param pixelOffset
+     *            The index of the first pixel to write
+     * @param count
+     *            The number of values to colour
+     */
+    void colourRow(float[] values, int valueOffset, int[] pixels, int pixelOffset, int count) {
+        for (int i = 0; i < count; i++) {
+            float value = values[valueOffset + i];
+            int colour = colours[getIndex(logScale ? Math.log(value) : value)];
+            pixels[pixelOffset + i] = value != value ? noData : colour;
+        }
+    }
+
+    /**
+     * Colours rows of values for a {@link ColourLut}. This allows an
+     * implementation using the Vector API to be plugged in where it is
+     * available.
+     */
+    interface RowColourer {
+        /**
+         * Colours a row of values, which are on a linear scale
+         * 
+         * @see ColourLut#colourRow(float[], int, int[], int, int)
+         */
+        void colourRow(ColourLut lut, float[] values, int valueOffset, int[] pixels,
+                int pixelOffset, int count);
+    }
+
+    /**
+     * @return The colour used for missing data, as a packed ARGB int
+     */
+    public int getNoDataColour() {
+        return noData;
+    }
+}
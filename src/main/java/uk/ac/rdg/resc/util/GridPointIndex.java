@@ -0,0 +1,466 @@
+/*******************************************************************************
+ * Copyright (c) 2014 The University of Reading
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+
+package uk.ac.rdg.resc.util;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+import org.geotoolkit.referencing.crs.DefaultGeographicCRS;
+
+import uk.ac.rdg.resc.edal.grid.GridCell2D;
+import uk.ac.rdg.resc.edal.grid.HorizontalGrid;
+import uk.ac.rdg.resc.edal.position.HorizontalPosition;
+import uk.ac.rdg.resc.edal.util.Array2D;
+import uk.ac.rdg.resc.edal.util.GISUtils;
+
+/**
+ * A spatial index over the cell centres of a horizontal grid, for quickly
+ * finding the cell containing a lat-lon position on curvilinear (e.g. ORCA)
+ * and other non-lat-lon grids.
+ * 
+ * Cell centres are stored as points on the unit sphere in an implicit k-d
+ * tree, so that searches work the same way across the date line and near the
+ * poles. A position is in the cell with the nearest centre, as long as it is
+ * no further from it than the furthest of that cell's neighbouring centres.
+ * Positions further than that from every centre are off the grid.
+ * 
+ * Building the index needs the centre of every cell, so it is slow for large
+ * grids. It should be built in the background and saved with
+ * {@link #write(File, String)} for future use.
+ * 
+ * @author Guy Griffiths
+ */
+public class GridPointIndex {
+    private static final int MAGIC = 0x45445049;
+    private static final int VERSION = 1;
+
+    private final int xSize;
+    private final int ySize;
+    private final int size;
+    /*
+     * The cell centres as unit vectors, in k-d tree order: the median (on the
+     * x, y or z axis, depending on depth) of each range is at its middle, with
+     * lower values before it and higher values after it
+     */
+    private final float[] xs;
+    private final float[] ys;
+    private final float[] zs;
+    /** The squared distance within which a position is in each cell */
+    private final float[] reaches;
+    /** The index of each cell in the grid (i.e. y * xSize + x) */
+    private final int[] cells;
+
+    /**
+     * Builds a {@link GridPointIndex} for a {@link HorizontalGrid}
+     * 
+     * @param grid
+     *            The grid to index
+     * @return The new {@link GridPointIndex}
+     */
+    public static GridPointIndex build(HorizontalGrid grid) {
+        int xSize = grid.getXSize();
+        int ySize = grid.getYSize();
+        double[] lons = new double[xSize * ySize];
+        double[] lats = new double[xSize * ySize];
+        Array2D<GridCell2D> gridCells = grid.getDomainObjects();
+        for (int y = 0; y < ySize; y++) {
+            for (int x = 0; x < xSize; x++) {
+                HorizontalPosition centre = gridCells.get(y, x).getCentre();
+                if (!GISUtils.isWgs84LonLat(centre.getCoordinateReferenceSystem())) {
+                    centre = GISUtils.transformPosition(centre, DefaultGeographicCRS.WGS84);
+                }
+                lons[y * xSize + x] = centre.getX();
+                lats[y * xSize + x] = centre.getY();
+            }
+        }
+        return new GridPointIndex(lons, lats, xSize, ySize);
+    }
+
+    /**
+     * Builds a {@link GridPointIndex} from the positions of the cell centres
+     * of a grid
+     * 
+     * @param lons
+     *            The longitude of each cell centre, in row-major order. Cells
+     *            with a non-finite position are not indexed
+     * @param lats
+     *            The latitude of each cell centre, in row-major order
+     * @param xSize
+     *            The size of the grid in the x-direction
+     * @param ySize
+     *            The size of the grid in the y-direction
+     */
+    public GridPointIndex(double[] lons, double[] lats, int xSize, int ySize) {
+        this.xSize = xSize;
+        this.ySize = ySize;
+        int nCells = xSize * ySize;
+        float[] allX = new float[nCells];
+        float[] allY = new float[nCells];
+        float[] allZ = new float[nCells];
+        boolean[] valid = new boolean[nCells];
+        int nValid = 0;
+        for (int i = 0; i < nCells; i++) {
+            if (Double.isNaN(lons[i]) || Double.isNaN(lats[i]) || Double.isInfinite(lons[i])
+                    || Double.isInfinite(lats[i])) {
+                continue;
+            }
+            double lat = Math.toRadians(lats[i]);
+            double lon = Math.toRadians(lons[i]);
+            allX[i] = (float) (Math.cos(lat) * Math.cos(lon));
+            allY[i] = (float) (Math.cos(lat) * Math.sin(lon));
+            allZ[i] = (float) Math.sin(lat);
+            valid[i] = true;
+            nValid++;
+        }
+
+        size = nValid;
+        xs = new float[size];
+        ys = new float[size];
+        zs = new float[size];
+        reaches = new float[size];
+        cells = new int[size];
+        int k = 0;
+        for (int y = 0; y < ySize; y++) {
+            for (int x = 0; x < xSize; x++) {
+                int i = y * xSize + x;
+                if (!valid[i]) {
+                    continue;
+                }
+                /*
+                 * The reach of a cell is the distance to its furthest
+                 * neighbouring centre
+                 */
+                float reach = 0f;
+                if (x > 0 && valid[i - 1]) {
+                    reach = Math.max(reach, distance2(allX, allY, allZ, i, i - 1));
+                }
+                if (x < xSize - 1 && valid[i + 1]) {
+                    reach = Math.max(reach, distance2(allX, allY, allZ, i, i + 1));
+                }
+                if (y > 0 && valid[i - xSize]) {
+                    reach = Math.max(reach, distance2(allX, allY, allZ, i, i - xSize));
+                }
+                if (y < ySize - 1 && valid[i + xSize]) {
+                    reach = Math.max(reach, distance2(allX, allY, allZ, i, i + xSize));
+                }
+                xs[k] = allX[i];
+                ys[k] = allY[i];
+                zs[k] = allZ[i];
+                reaches[k] = reach;
+                cells[k] = i;
+                k++;
+            }
+        }
+        buildTree(0, size, 0);
+    }
+
+    private static float distance2(float[] x, float[] y, float[] z, int i, int j) {
+        float dx = x[i] - x[j];
+        float dy = y[i] - y[j];
+        float dz = z[i] - z[j];
+        return dx * dx + dy * dy + dz * dz;
+    }
+
+    private void buildTree(int start, int end, int depth) {
+        while (end - start > 1) {
+            int mid = (start + end) >>> 1;
+            float[] coords = getAxis(depth);
+            select(coords, start, end - 1, mid);
+            buildTree(start, mid, depth + 1);
+            start = mid + 1;
+            depth++;
+        }
+    }
+
+    private float[] getAxis(int depth) {
+        switch (depth % 3) {
+        case 0:
+            return xs;
+        case 1:
+            return ys;
+        default:
+            return zs;
+        }
+    }
+
+    /**
+     * Partially sorts the points between two indices (inclusive) on one axis,
+     * so that the point at index k is in its sorted position
+     */
+    private void select(float[] coords, int left, int right, int k) {
+        while (right > left) {
+            /*
+             * Median-of-three pivot, moved to the right-hand end
+             */
+            int mid = (left + right) >>> 1;
+            if (coords[mid] < coords[left]) {
+                swap(mid, left);
+            }
+            if (coords[right] < coords[left]) {
+                swap(right, left);
+            }
+            if (coords[mid] < coords[right]) {
+                swap(mid, right);
+            }
+            float pivot = coords[right];
+            int store = left;
+            for (int i = left; i < right; i++) {
+                if (coords[i] < pivot) {
+                    swap(i, store++);
+                }
+            }
+            swap(store, right);
+            if (store == k) {
+                return;
+            } else if (store < k) {
+                left = store + 1;
+            } else {
+                right = store - 1;
+            }
+        }
+    }
+
+    private void swap(int i, int j) {
+        float f = xs[i];
+        xs[i] = xs[j];
+        xs[j] = f;
+        f = ys[i];
+        ys[i] = ys[j];
+        ys[j] = f;
+        f = zs[i];
+        zs[i] = zs[j];
+        zs[j] = f;
+        f = reaches[i];
+        reaches[i] = reaches[j];
+        reaches[j] = f;
+        int c = cells[i];
+        cells[i] = cells[j];
+        cells[j] = c;
+    }
+
+    /**
+     * Finds the grid cell containing a position
+     * 
+     * @param lon
+     *            The longitude of the position, in degrees
+     * @param lat
+     *            The latitude of the position, in degrees
+     * @return The index of the cell in the grid (i.e. y * xSize + x), or -1 if
+     *         the position is off the grid
+     */
+    public int findIndexOf(double lon, double lat) {
+        if (size == 0) {
+            return -1;
+        }
+        double latRad = Math.toRadians(lat);
+        double lonRad = Math.toRadians(lon);
+        Search search = new Search((float) (Math.cos(latRad) * Math.cos(lonRad)),
+                (float) (Math.cos(latRad) * Math.sin(lonRad)), (float) Math.sin(latRad));
+        search(search, 0, size, 0);
+        return search.distance2 <= reaches[search.nearest] ? cells[search.nearest] : -1;
+    }
+
+    private void search(Search search, int start, int end, int depth) {
+        while (start < end) {
+            int mid = (start + end) >>> 1;
+            float dx = xs[mid] - search.x;
+            float dy = ys[mid] - search.y;
+            float dz = zs[mid] - search.z;
+            float distance2 = dx * dx + dy * dy + dz * dz;
+            if (distance2 < search.distance2) {
+                search.distance2 = distance2;
+                search.nearest = mid;
+            }
+            float diff;
+            switch (depth % 3) {
+            case 0:
+                diff = -dx;
+                break;
+            case 1:
+                diff = -dy;
+                break;
+            default:
+                diff = -dz;
+                break;
+            }
+            /*
+             * Search the side containing the position first, and the other
+             * side only if it could hold a closer point
+             */
+            if (diff < 0) {
+                search(search, start, mid, depth + 1);
+                if (diff * diff < search.distance2) {
+                    start = mid + 1;
+                } else {
+                    return;
+                }
+            } else {
+                search(search, mid + 1, end, depth + 1);
+                if (diff * diff < search.distance2) {
+                    end = mid;
+                } else {
+                    return;
+                }
+            }
+            depth++;
+        }
+    }
+
+    /**
+     * @return The size of the indexed grid in the x-direction
+     */
+    public int getXSize() {
+        return xSize;
+    }
+
+    /**
+     * @return The size of the indexed grid in the y-direction
+     */
+    public int getYSize() {
+        return ySize;
+    }
+
+    /**
+     * Saves this index to a file
+     * 
+     * @param file
+     *            The file to write to. This is written atomically
+     * @param sourceKey
+     *            A description of the data the grid was read from, which must
+     *            match when the index is read back
+     * @throws IOException
+     *             If the file cannot be written
+     */
+    public void write(File file, String sourceKey) throws IOException {
+        file.getParentFile().mkdirs();
+        File tempFile = new File(file.getPath() + ".tmp");
+        byte[] key = sourceKey.getBytes(StandardCharsets.UTF_8);
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(tempFile)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(key.length);
+            out.write(key);
+            out.writeInt(xSize);
+            out.writeInt(ySize);
+            out.writeInt(size);
+            for (float[] column : new float[][] { xs, ys, zs, reaches }) {
+                for (float value : column) {
+                    out.writeFloat(value);
+                }
+            }
+            for (int cell : cells) {
+                out.writeInt(cell);
+            }
+        }
+        Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Reads an index which has been saved with {@link #write(File, String)}
+     * 
+     * @param file
+     *            The file to read
+     * @param sourceKey
+     *            The description of the data the grid was read from
+     * @return The {@link GridPointIndex}, or <code>null</code> if it was saved
+     *         for a different source key
+     * @throws IOException
+     *             If the file cannot be read, or is not a valid index file
+     */
+    public static GridPointIndex read(File file, String sourceKey) throws IOException {
+        MappedByteBuffer buffer;
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r");
+                FileChannel channel = raf.getChannel()) {
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+            throw new IOException(file + " is not a grid index file of version " + VERSION);
+        }
+        byte[] key = new byte[buffer.getInt()];
+        buffer.get(key);
+        if (!sourceKey.equals(new String(key, StandardCharsets.UTF_8))) {
+            return null;
+        }
+        int xSize = buffer.getInt();
+        int ySize = buffer.getInt();
+        int size = buffer.getInt();
+        if (buffer.remaining() != 20L * size) {
+            throw new IOException("Grid index file " + file + " is truncated");
+        }
+        float[][] columns = new float[4][size];
+        for (float[] column : columns) {
+            buffer.asFloatBuffer().get(column);
+            buffer.position(buffer.position() + 4 * size);
+        }
+        int[] cells = new int[size];
+        buffer.asIntBuffer().get(cells);
+        return new GridPointIndex(xSize, ySize, columns[0], columns[1], columns[2], columns[3],
+                cells);
+    }
+
+    private GridPointIndex(int xSize, int ySize, float[] xs, float[] ys, float[] zs,
+            float[] reaches, int[] cells) {
+        this.xSize = xSize;
+        this.ySize = ySize;
+        this.size = cells.length;
+        this.xs = xs;
+        this.ys = ys;
+        this.zs = zs;
+        this.reaches = reaches;
+        this.cells = cells;
+    }
+
+    /**
+     * The state of a nearest-neighbour search
+     */
+    private static final class Search {
+        private final float x;
+        private final float y;
+        private final float z;
+        private float distance2 = Float.POSITIVE_INFINITY;
+        private int nearest = -1;
+
+        private Search(float x, float y, float z) {
+            this.x = x;
+            this.y = y;
+            this.z = z;
+        }
+    }
+}
@@ -0,0 +1,497 @@
+/*******************************************************************************
+ * Copyright (c) 2014 The University of Reading
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+
+package uk.ac.rdg.resc.util;
+
+import gov.nasa.worldwind.Configuration;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+
+import net.sf.ehcache.Cache;
+import net.sf.ehcache.CacheManager;
+import net.sf.ehcache.Element;
+
+import org.geotoolkit.referencing.crs.DefaultGeographicCRS;
+import org.joda.time.DateTime;
+
+import uk.ac.rdg.resc.edal.feature.GridFeature;
+import uk.ac.rdg.resc.edal.geometry.BoundingBox;
+import uk.ac.rdg.resc.edal.grid.GridDomain;
+import uk.ac.rdg.resc.edal.grid.HorizontalGrid;
+import uk.ac.rdg.resc.edal.grid.RectilinearGrid;
+import uk.ac.rdg.resc.edal.grid.ReferenceableAxis;
+import uk.ac.rdg.resc.edal.grid.TimeAxis;
+import uk.ac.rdg.resc.edal.grid.VerticalAxis;
+import uk.ac.rdg.resc.edal.position.HorizontalPosition;
+import uk.ac.rdg.resc.edal.util.Array4D;
+import uk.ac.rdg.resc.edal.util.GISUtils;
+import uk.ac.rdg.resc.edal.util.GridCoordinates2D;
+
+/**
+ * Resamples an in-memory {@link GridFeature} onto regular lat-lon grids (i.e.
+ * tiles).
+ * 
+ * The general extraction code finds the grid cell of every output pixel each
+ * time a tile is drawn, even though this only depends on the horizontal grid
+ * and the tile. Here the grid index of each pixel is calculated once per
+ * tile and kept in a shared {@link Cache}, so that it is reused for every
+ * elevation, time and variable on the same grid.
+ * 
+ * On a lat-lon rectilinear grid the x-index of a pixel only depends on its
+ * column and the y-index only on its row, so index maps for these grids are
+ * calculated by searching the axes once per column and once per row. Other
+ * grids use a {@link GridPointIndex} once one has been set for them.
+ * 
+ * The values of recently used elevations/times are unpacked into primitive
+ * arrays, so that gathering them needs no unboxing. These are kept in a
+ * {@link SliceCache} shared by all {@link GridResampler}s, so that panels
+ * showing the same layer at different times don't unpack the whole grid again
+ * for every tile, and the memory used doesn't grow with the number of layers.
+ * 
+ * @author Guy Griffiths
+ */
+public class GridResampler {
+    /** The name of the {@link Cache} used to store pixel-to-grid index maps */
+    public static final String INDEX_CACHE_NAME = "indexCache";
+    /** The largest index map (in pixels) to cache */
+    private static final int MAX_CACHED_MAP_SIZE = 1024 * 1024;
+    /**
+     * The unpacked values of recently used elevations/times of all
+     * {@link GridResampler}s
+     */
+    private static final SliceCache SLICES = new SliceCache(Configuration.getIntegerValue(
+            "uk.ac.rdg.resc.edal.multiglobe.SliceCacheSize", 256) * 1024L * 1024L);
+
+    /*
+     * Every distinct horizontal grid seen so far. A grid's ID is its position
+     * in this list, so that equal grids share index maps without having to be
+     * compared every time a tile is drawn
+     */
+    private static final List<HorizontalGrid> GRIDS = new ArrayList<>();
+    /*
+     * Spatial indices of grids, keyed by grid ID
+     */
+    private static final Map<Integer, GridPointIndex> POINT_INDICES = new ConcurrentHashMap<>();
+
+    private final Array4D<Number> data;
+    private final HorizontalGrid grid;
+    private final int gridId;
+    private final VerticalAxis zAxis;
+    private final TimeAxis tAxis;
+    private final boolean rectilinear;
+    private final int xSize;
+    private final int ySize;
+
+    /**
+     * Creates a {@link GridResampler} for a variable of a {@link GridFeature}
+     * 
+     * @param feature
+     *            The {@link GridFeature} holding the data
+     * @param varId
+     *            The ID of the variable to resample
+     * @return A new {@link GridResampler}, or <code>null</code> if the feature
+     *         does not contain the variable
+     */
+    public static GridResampler forFeature(GridFeature feature, String varId) {
+        Array4D<Number> data = feature.getValues(varId);
+        if (data == null) {
+            return null;
+        }
+        GridDomain domain = feature.getDomain();
+        return new GridResampler(data, domain.getHorizontalGrid(), domain.getVerticalAxis(),
+                domain.getTimeAxis());
+    }
+
+    private GridResampler(Array4D<Number> data, HorizontalGrid grid, VerticalAxis zAxis,
+            TimeAxis tAxis) {
+        this.data = data;
+        this.grid = grid;
+        this.gridId = getGridId(grid);
+        this.zAxis = zAxis;
+        this.tAxis = tAxis;
+        this.rectilinear = grid instanceof RectilinearGrid
+                && GISUtils.isWgs84LonLat(grid.getCoordinateReferenceSystem());
+        this.xSize = grid.getXSize();
+        this.ySize = grid.getYSize();
+    }
+
+    private static int getGridId(HorizontalGrid grid) {
+        synchronized (GRIDS) {
+            for (int i = 0; i < GRIDS.size(); i++) {
+                HorizontalGrid knownGrid = GRIDS.get(i);
+                if (knownGrid == grid || knownGrid.equals(grid)) {
+                    return i;
+                }
+            }
+            GRIDS.add(grid);
+            return GRIDS.size() - 1;
+        }
+    }
+
+    /**
+     * @return The horizontal grid of the data
+     */
+    public HorizontalGrid getGrid() {
+        return grid;
+    }
+
+    /**
+     * @return <code>true</code> if the grid cannot be searched efficiently
+     *         without a {@link GridPointIndex}, and none has been set yet
+     */
+    public boolean needsPointIndex() {
+        return !rectilinear && !POINT_INDICES.containsKey(gridId);
+    }
+
+    /**
+     * Sets the spatial index to use for this grid. This will be used by all
+     * {@link GridResampler}s on the same grid. Index maps found before it was
+     * set are no longer used.
+     * 
+     * @param pointIndex
+     *            The {@link GridPointIndex}. This must have been built for an
+     *            identical grid
+     */
+    public void setPointIndex(GridPointIndex pointIndex) {
+        if (pointIndex.getXSize() != xSize || pointIndex.getYSize() != ySize) {
+            throw new IllegalArgumentException("Spatial index is for a grid of a different size");
+        }
+        POINT_INDICES.put(gridId, pointIndex);
+    }
+
+    /**
+     * Reads the value in the grid cell containing a position
+     * 
+     * @param lon
+     *            The longitude of the position
+     * @param lat
+     *            The latitude of the position
+     * @param z
+     *            The target elevation. May be <code>null</code>
+     * @param time
+     *            The target time. May be <code>null</code>
+     * @return The value, or <code>null</code> if there is none
+     */
+    public Number getValue(double lon, double lat, Double z, DateTime time) {
+        float[] slice = getSlice(getZIndex(z), getTIndex(time));
+        if (slice == null) {
+            return null;
+        }
+        int index;
+        if (rectilinear) {
+            RectilinearGrid rectGrid = (RectilinearGrid) grid;
+            int xIndex = rectGrid.getXAxis().findIndexOf(lon);
+            int yIndex = rectGrid.getYAxis().findIndexOf(lat);
+            index = xIndex < 0 || yIndex < 0 ? -1 : yIndex * xSize + xIndex;
+        } else {
+            index = findIndexOf(POINT_INDICES.get(gridId), lon, lat);
+        }
+        if (index < 0 || Float.isNaN(slice[index])) {
+            return null;
+        }
+        return slice[index];
+    }
+
+    /**
+     * Resamples the data onto a regular lat-lon grid, using the grid cell
+     * containing the centre of each pixel.
+     * 
+     * @param width
+     *            The number of cells in the longitude direction
+     * @param height
+     *            The number of cells in the latitude direction
+     * @param bbox
+     *            The {@link BoundingBox} of the target grid. This must be in
+     *            WGS84
+     * @param z
+     *            The target elevation. May be <code>null</code>
+     * @param time
+     *            The target time. May be <code>null</code>
+     * @param values
+     *            An array of at least width*height elements to read the values
+     *            into, in row-major order starting from the south-west corner.
+     *            Missing data is represented by {@link Float#NaN}
+     */
+    public void resample(int width, int height, BoundingBox bbox, Double z, DateTime time,
+            float[] values) {
+        float[] sliceValues = getSlice(getZIndex(z), getTIndex(time));
+        if (sliceValues == null) {
+            Arrays.fill(values, 0, width * height, Float.NaN);
+            return;
+        }
+        int[] indices = getIndexMap(width, height, bbox);
+        for (int i = 0; i < indices.length; i++) {
+            int index = indices[i];
+            values[i] = index < 0 ? Float.NaN : sliceValues[index];
+        }
+    }
+
+    /**
+     * Gets the index in a slice of the grid cell under each pixel of a tile,
+     * from the cache if possible
+     * 
+     * @return The indices, in row-major order starting from the south-west
+     *         corner. Pixels which are off the grid have an index of -1
+     */
+    private int[] getIndexMap(int width, int height, BoundingBox bbox) {
+        /*
+         * Grids much larger than a tile (e.g. whole-grid reads) are unlikely
+         * to be repeated, and would evict many tile maps, so are not cached
+         */
+        Cache indexCache = width * height > MAX_CACHED_MAP_SIZE ? null : CacheManager.create()
+                .getCache(INDEX_CACHE_NAME);
+        /*
+         * Maps found by searching the grid (before the spatial index was set)
+         * and maps found with the spatial index use different lookups, so they
+         * are cached separately
+         */
+        GridPointIndex pointIndex = rectilinear ? null : POINT_INDICES.get(gridId);
+        IndexKey key = new IndexKey(gridId, pointIndex != null, width, height, bbox);
+        if (indexCache != null) {
+            Element element = indexCache.get(key);
+            if (element != null && element.getObjectValue() != null) {
+                return (int[]) element.getObjectValue();
+            }
+        }
+
+        int[] indices;
+        if (rectilinear) {
+            indices = getRectilinearIndexMap((RectilinearGrid) grid, width, height, bbox);
+        } else {
+            indices = getGeneralIndexMap(pointIndex, width, height, bbox);
+        }
+
+        if (indexCache != null) {
+            indexCache.put(new Element(key, indices));
+        }
+        return indices;
+    }
+
+    /**
+     * Finds the index in a slice of the grid cell under each pixel of a tile,
+     * on a lat-lon rectilinear grid
+     * 
+     * @return The indices, in row-major order starting from the south-west
+     *         corner. Pixels which are off the grid have an index of -1
+     */
+    static int[] getRectilinearIndexMap(RectilinearGrid grid, int width, int height,
+            BoundingBox bbox) {
+        int xSize = grid.getXSize();
+        ReferenceableAxis<Double> xAxis = grid.getXAxis();
+        ReferenceableAxis<Double> yAxis = grid.getYAxis();
+        /*
+         * The x-index of each column, and the offset of the start of each row
+         * in the slice. Cells which are off the grid are -1.
+         */
+        int[] xIndices = new int[width];
+        double dx = (bbox.getMaxX() - bbox.getMinX()) / width;
+        for (int i = 0; i < width; i++) {
+            xIndices[i] = xAxis.findIndexOf(bbox.getMinX() + (i + 0.5) * dx);
+        }
+        int[] rowOffsets = new int[height];
+        double dy = (bbox.getMaxY() - bbox.getMinY()) / height;
+        for (int j = 0; j < height; j++) {
+            int yIndex = yAxis.findIndexOf(bbox.getMinY() + (j + 0.5) * dy);
+            rowOffsets[j] = yIndex < 0 ? -1 : yIndex * xSize;
+        }
+
+        int[] indices = new int[width * height];
+        for (int j = 0; j < height; j++) {
+            int rowStart = j * width;
+            int rowOffset = rowOffsets[j];
+            if (rowOffset < 0) {
+                Arrays.fill(indices, rowStart, rowStart + width, -1);
+                continue;
+            }
+            for (int i = 0; i < width; i++) {
+                int xIndex = xIndices[i];
+                indices[rowStart + i] = xIndex < 0 ? -1 : rowOffset + xIndex;
+            }
+        }
+        return indices;
+    }
+
+    private int[] getGeneralIndexMap(GridPointIndex pointIndex, int width, int height,
+            BoundingBox bbox) {
+        int[] indices = new int[width * height];
+        double dx = (bbox.getMaxX() - bbox.getMinX()) / width;
+        double dy = (bbox.getMaxY() - bbox.getMinY()) / height;
+        for (int j = 0; j < height; j++) {
+            double lat = bbox.getMinY() + (j + 0.5) * dy;
+            for (int i = 0; i < width; i++) {
+                indices[j * width + i] = findIndexOf(pointIndex, bbox.getMinX() + (i + 0.5)
+                        * dx, lat);
+            }
+        }
+        return indices;
+    }
+
+    /**
+     * Finds the index in a slice of the grid cell containing a position on a
+     * non-rectilinear grid, using its spatial index if there is one
+     */
+    private int findIndexOf(GridPointIndex pointIndex, double lon, double lat) {
+        if (pointIndex != null) {
+            return pointIndex.findIndexOf(lon, lat);
+        }
+        GridCoordinates2D coords = grid.findIndexOf(new HorizontalPosition(lon, lat,
+                DefaultGeographicCRS.WGS84));
+        return coords == null ? -1 : coords.getY() * xSize + coords.getX();
+    }
+
+    private int getZIndex(Double z) {
+        if (zAxis == null) {
+            return 0;
+        }
+        if (z == null) {
+            z = GISUtils.getClosestElevationToSurface(zAxis);
+        }
+        return zAxis.findIndexOf(z);
+    }
+
+    private int getTIndex(DateTime time) {
+        if (tAxis == null) {
+            return 0;
+        }
+        if (time == null) {
+            time = GISUtils.getClosestToCurrentTime(tAxis);
+        } else {
+            time = GISUtils.getClosestTimeTo(time, tAxis);
+        }
+        return tAxis.findIndexOf(time);
+    }
+
+    /**
+     * Gets the unpacked values at a given elevation/time, reusing recent ones
+     * if possible
+     * 
+     * @return The values, in row-major order, or <code>null</code> if either
+     *         index is off its axis
+     */
+    private float[] getSlice(final int zIndex, final int tIndex) {
+        if (zIndex < 0 || tIndex < 0) {
+            return null;
+        }
+        return SLICES.get(this, ((long) tIndex << 32) | zIndex, new Callable<float[]>() {
+            @Override
+            public float[] call() {
+                float[] sliceValues = new float[xSize * ySize];
+                for (int y = 0; y < ySize; y++) {
+                    int rowStart = y * xSize;
+                    for (int x = 0; x < xSize; x++) {
+                        Number value = data.get(tIndex, zIndex, y, x);
+                        sliceValues[rowStart + x] = value == null ? Float.NaN : value
+                                .floatValue();
+                    }
+                }
+                return sliceValues;
+            }
+        });
+    }
+
+    /**
+     * Identifies the index map of a tile on a particular grid, and whether
+     * it was found with the grid's spatial index
+     */
+    private static class IndexKey implements Serializable {
+        private final int gridId;
+        private final boolean pointIndexed;
+        private final int width;
+        private final int height;
+        private final double minX;
+        private final double minY;
+        private final double maxX;
+        private final double maxY;
+
+        public IndexKey(int gridId, boolean pointIndexed, int width, int height,
+                BoundingBox bbox) {
+            this.gridId = gridId;
+            this.pointIndexed = pointIndexed;
+            this.width = width;
+            this.height = height;
+            this.minX = bbox.getMinX();
+            this.minY = bbox.getMinY();
+            this.maxX = bbox.getMaxX();
+            this.maxY = bbox.getMaxY();
+        }
+
+        @Override
+        public int hashCode() {
+            final int prime = 31;
+            int result = 1;
+            result = prime * result + gridId;
+            result = prime * result + (pointIndexed ? 1231 : 1237);
+            result = prime * result + height;
+            long temp;
+            temp = Double.doubleToLongBits(maxX);
+            result = prime * result + (int) (temp ^ (temp >>> 32));
+            temp = Double.doubleToLongBits(maxY);
+            result = prime * result + (int) (temp ^ (temp >>> 32));
+            temp = Double.doubleToLongBits(minX);
+            result = prime * result + (int) (temp ^ (temp >>> 32));
+            temp = Double.doubleToLongBits(minY);
+            result = prime * result + (int) (temp ^ (temp >>> 32));
+            result = prime * result + width;
+            return result;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj)
+                return true;
+            if (obj == null)
+                return false;
+            if (getClass() != obj.getClass())
+                return false;
+            IndexKey other = (IndexKey) obj;
+            if (gridId != other.gridId)
+                return false;
+            if (pointIndexed != other.pointIndexed)
+                return false;
+            if (height != other.height)
+                return false;
+            if (width != other.width)
+                return false;
+            if (Double.doubleToLongBits(maxX) != Double.doubleToLongBits(other.maxX))
+                return false;
+            if (Double.doubleToLongBits(maxY) != Double.doubleToLongBits(other.maxY))
+                return false;
+            if (Double.doubleToLongBits(minX) != Double.doubleToLongBits(other.minX))
+                return false;
+            if (Double.doubleToLongBits(minY) != Double.doubleToLongBits(other.minY))
+                return false;
+            return true;
+        }
+    }
+}
@@ -0,0 +1,254 @@
+/*******************************************************************************
+ * Copyright (c) 2014 The University of Reading
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+
+package uk.ac.rdg.resc.util;
+
+import gov.nasa.worldwind.geom.Angle;
+import gov.nasa.worldwind.geom.Vec4;
+import gov.nasa.worldwind.globes.Globe;
+import gov.nasa.worldwind.globes.GlobeStateKey;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.util.Arrays;
+
+/**
+ * Holds a set of coloured points, and packs them into vertex and colour
+ * buffers suitable for drawing in a single call (see {@link PointRenderer}).
+ * 
+ * Points are added with {@link #clear()} followed by
+ * {@link #add(double, double, int, int)}. The buffers are only rebuilt (by
+ * {@link #update(Globe)}) if the positions or colours have actually changed
+ * since the last time they were built, so redrawing an unchanged set of points
+ * costs nothing.
+ * 
+ * This has no dependency on an OpenGL context, so can be used and timed
+ * headlessly.
+ * 
+ * @author Guy Griffiths
+ */
+public class PointBuffer {
+    private static final int INITIAL_CAPACITY = 1024;
+
+    private int size = 0;
+    private double[] lats = new double[INITIAL_CAPACITY];
+    private double[] lons = new double[INITIAL_CAPACITY];
+    private int[] colours = new int[INITIAL_CAPACITY];
+    private int[] ids = new int[INITIAL_CAPACITY];
+
+    /*
+     * Whether the buffers need rebuilding
+     */
+    private boolean positionsChanged = true;
+    private boolean coloursChanged = true;
+    /** The number of points which were present when the buffers were built */
+    private int builtSize = -1;
+    /** The state of the globe which the vertices were calculated for */
+    private GlobeStateKey builtGlobeState = null;
+
+    private FloatBuffer vertexBuffer = null;
+    private ByteBuffer colourBuffer = null;
+    private Vec4 referenceCentre = Vec4.ZERO;
+    /** Working space for the calculation of vertices */
+    private double[] cartesian = new double[0];
+
+    /**
+     * Removes all points. The memory used is retained, and new points are
+     * compared with those previously at the same index so that the buffers are
+     * only rebuilt if necessary.
+     */
+    public void clear() {
+        size = 0;
+    }
+
+    /**
+     * Adds a point
+     * 
+     * @param latitude
+     *            The latitude of the point, in degrees
+     * @param longitude
+     *            The longitude of the point, in degrees
+     * @param argb
+     *            The colour of the point, as an ARGB int
+     * @param id
+     *            An ID which can be used to identify the point (see
+     *            {@link #getId(int)})
+     */
+    public void add(double latitude, double longitude, int argb, int id) {
+        if (size == lats.length) {
+            int capacity = lats.length * 2;
+            lats = Arrays.copyOf(lats, capacity);
+            lons = Arrays.copyOf(lons, capacity);
+            colours = Arrays.copyOf(colours, capacity);
+            ids = Arrays.copyOf(ids, capacity);
+            positionsChanged = true;
+            coloursChanged = true;
+        }
+        if (lats[size] != latitude || lons[size] != longitude) {
+            lats[size] = latitude;
+            lons[size] = longitude;
+            positionsChanged = true;
+        }
+        if (colours[size] != argb) {
+            colours[size] = argb;
+            coloursChanged = true;
+        }
+        ids[size] = id;
+        size++;
+    }
+
+    /**
+     * @return The number of points
+     */
+    public int size() {
+        return size;
+    }
+
+    public double getLatitude(int i) {
+        return lats[i];
+    }
+
+    public double getLongitude(int i) {
+        return lons[i];
+    }
+
+    public int getColour(int i) {
+        return colours[i];
+    }
+
+    public int getId(int i) {
+        return ids[i];
+    }
+
+    /**
+     * Rebuilds the vertex and colour buffers, if the points or the globe have
+     * changed since they were last built
+     * 
+     * @param globe
+     *            The {@link Globe} the points will be drawn on
+     * @return Whether anything was rebuilt
+     */
+    public boolean update(Globe globe) {
+        GlobeStateKey globeState = globe.getGlobeStateKey();
+        boolean rebuildVertices = positionsChanged || size != builtSize
+                || !globeState.equals(builtGlobeState);
+        boolean rebuildColours = coloursChanged || size != builtSize;
+        if (!rebuildVertices && !rebuildColours) {
+            return false;
+        }
+
+        if (vertexBuffer == null || vertexBuffer.capacity() < 3 * size) {
+            int capacity = Math.max(lats.length, size);
+            vertexBuffer = ByteBuffer.allocateDirect(3 * 4 * capacity)
+                    .order(ByteOrder.nativeOrder()).asFloatBuffer();
+            colourBuffer = ByteBuffer.allocateDirect(4 * capacity).order(
+                    ByteOrder.nativeOrder());
+            rebuildVertices = true;
+            rebuildColours = true;
+        }
+
+        if (rebuildVertices) {
+            /*
+             * Vertices are stored relative to a reference centre to keep the
+             * precision of the floats
+             */
+            if (cartesian.length < 3 * size) {
+                cartesian = new double[3 * lats.length];
+            }
+            double x = 0.0;
+            double y = 0.0;
+            double z = 0.0;
+            for (int i = 0; i < size; i++) {
+                Vec4 point = globe.computePointFromPosition(Angle.fromDegreesLatitude(lats[i]),
+                        Angle.fromDegreesLongitude(lons[i]), 0.0);
+                cartesian[3 * i] = point.x;
+                cartesian[3 * i + 1] = point.y;
+                cartesian[3 * i + 2] = point.z;
+                x += point.x;
+                y += point.y;
+                z += point.z;
+            }
+            referenceCentre = size == 0 ? Vec4.ZERO : new Vec4(x / size, y / size, z / size);
+            vertexBuffer.clear();
+            for (int i = 0; i < size; i++) {
+                vertexBuffer.put((float) (cartesian[3 * i] - referenceCentre.x));
+                vertexBuffer.put((float) (cartesian[3 * i + 1] - referenceCentre.y));
+                vertexBuffer.put((float) (cartesian[3 * i + 2] - referenceCentre.z));
+            }
+            vertexBuffer.flip();
+            builtGlobeState = globeState;
+        }
+
+        if (rebuildColours) {
+            colourBuffer.clear();
+            for (int i = 0; i < size; i++) {
+                int argb = colours[i];
+                colourBuffer.put((byte) (argb >> 16));
+                colourBuffer.put((byte) (argb >> 8));
+                colourBuffer.put((byte) argb);
+                colourBuffer.put((byte) (argb >> 24));
+            }
+            colourBuffer.flip();
+        }
+
+        builtSize = size;
+        positionsChanged = false;
+        coloursChanged = false;
+        return true;
+    }
+
+    /**
+     * @return The number of points in the vertex and colour buffers
+     */
+    public int getBuiltSize() {
+        return Math.max(builtSize, 0);
+    }
+
+    /**
+     * @return The vertices of the points as (x,y,z) floats, relative to
+     *         {@link #getReferenceCentre()}
+     */
+    public FloatBuffer getVertexBuffer() {
+        return vertexBuffer;
+    }
+
+    /**
+     * @return The colours of the points, as RGBA bytes
+     */
+    public ByteBuffer getColourBuffer() {
+        return colourBuffer;
+    }
+
+    /**
+     * @return The point which the vertices are relative to
+     */
+    public Vec4 getReferenceCentre() {
+        return referenceCentre;
+    }
+}
@@ -0,0 +1,222 @@
+/*******************************************************************************
+ * Copyright (c) 2014 The University of Reading
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+
+package uk.ac.rdg.resc.util;
+
+import java.util.Arrays;
+
+/**
+ * A grid hash over the points in a {@link PointBuffer}, used to find the point
+ * nearest to a position (e.g. the cursor) without a pick render pass.
+ * 
+ * Points are bucketed into a regular lat-lon grid covering their bounding box,
+ * sized so that there are a few points per cell. A lookup only examines the
+ * cells within the search radius, and does not allocate anything.
+ * 
+ * Longitudes are wrapped into the range [-180, 180), so points given in a
+ * 0-360 range are found from positions given in the -180-180 range, and a
+ * search near the date line also examines the cells on the other side of it.
+ * 
+ * @author Guy Griffiths
+ */
+public class PointPickIndex {
+    /** The target average number of points per grid cell */
+    private static final int POINTS_PER_CELL = 4;
+    /** The maximum number of grid cells */
+    private static final int MAX_CELLS = 1 << 20;
+
+    private PointBuffer points = null;
+    private double minLat;
+    private double minLon;
+    private double cellSize;
+    private int nX;
+    private int nY;
+    /*
+     * The points in cell c are cellItems[cellStart[c]] to
+     * cellItems[cellStart[c + 1] - 1]
+     */
+    private int[] cellStart = new int[0];
+    private int[] cellItems = new int[0];
+
+    /**
+     * (Re)builds the index. The {@link PointBuffer} should not be modified
+     * while the index is in use.
+     * 
+     * @param points
+     *            The {@link PointBuffer} to index
+     */
+    public void build(PointBuffer points) {
+        this.points = points;
+        int size = points.size();
+        if (size == 0) {
+            nX = 0;
+            nY = 0;
+            return;
+        }
+
+        minLat = Double.POSITIVE_INFINITY;
+        minLon = Double.POSITIVE_INFINITY;
+        double maxLat = Double.NEGATIVE_INFINITY;
+        double maxLon = Double.NEGATIVE_INFINITY;
+        for (int i = 0; i < size; i++) {
+            double lon = wrapLongitude(points.getLongitude(i));
+            minLat = Math.min(minLat, points.getLatitude(i));
+            maxLat = Math.max(maxLat, points.getLatitude(i));
+            minLon = Math.min(minLon, lon);
+            maxLon = Math.max(maxLon, lon);
+        }
+        double width = Math.max(maxLon - minLon, 1e-6);
+        double height = Math.max(maxLat - minLat, 1e-6);
+        int targetCells = Math.max(1, Math.min(MAX_CELLS, size / POINTS_PER_CELL));
+        cellSize = Math.sqrt(width * height / targetCells);
+        nX = (int) (width / cellSize) + 1;
+        nY = (int) (height / cellSize) + 1;
+
+        /*
+         * Counting sort of the points into their cells
+         */
+        int nCells = nX * nY;
+        if (cellStart.length < nCells + 1) {
+            cellStart = new int[nCells + 1];
+        } else {
+            Arrays.fill(cellStart, 0, nCells + 1, 0);
+        }
+        if (cellItems.length < size) {
+            cellItems = new int[size];
+        }
+        for (int i = 0; i < size; i++) {
+            cellStart[getCell(points.getLatitude(i), wrapLongitude(points.getLongitude(i))) + 1]++;
+        }
+        for (int c = 0; c < nCells; c++) {
+            cellStart[c + 1] += cellStart[c];
+        }
+        /*
+         * Use the start of each cell as a write cursor. This leaves each entry
+         * pointing at the start of the next cell, so they are then shifted up.
+         */
+        for (int i = 0; i < size; i++) {
+            int cell = getCell(points.getLatitude(i), wrapLongitude(points.getLongitude(i)));
+            cellItems[cellStart[cell]++] = i;
+        }
+        for (int c = nCells; c > 0; c--) {
+            cellStart[c] = cellStart[c - 1];
+        }
+        cellStart[0] = 0;
+    }
+
+    /**
+     * Finds the nearest point to a position
+     * 
+     * @param latitude
+     *            The latitude of the position, in degrees
+     * @param longitude
+     *            The longitude of the position, in degrees
+     * @param radius
+     *            The maximum distance to search, in degrees of latitude
+     * @return The index of the nearest point in the {@link PointBuffer}, or -1
+     *         if there is no point within the search radius
+     */
+    public int findNearest(double latitude, double longitude, double radius) {
+        if (nX == 0 || nY == 0) {
+            return -1;
+        }
+        longitude = wrapLongitude(longitude);
+        /*
+         * Longitude distances are scaled so that the search area is roughly
+         * circular on the ground
+         */
+        double lonScale = Math.max(Math.cos(Math.toRadians(latitude)), 1e-3);
+        double lonRadius = radius / lonScale;
+        int minY = Math.max(0, getIndex(latitude - radius, minLat));
+        int maxY = Math.min(nY - 1, getIndex(latitude + radius, minLat));
+
+        int nearest = -1;
+        double nearestDistanceSq = radius * radius;
+        /*
+         * Where the search area crosses the date line, the columns at the
+         * other side of the index are searched as well, by shifting the
+         * search area by 360 degrees either way
+         */
+        for (int shift = -360; shift <= 360; shift += 360) {
+            int minX;
+            int maxX;
+            if (lonRadius >= 180.0) {
+                if (shift != 0) {
+                    continue;
+                }
+                minX = 0;
+                maxX = nX - 1;
+            } else {
+                minX = Math.max(0, getIndex(longitude - lonRadius + shift, minLon));
+                maxX = Math.min(nX - 1, getIndex(longitude + lonRadius + shift, minLon));
+            }
+            for (int y = minY; y <= maxY; y++) {
+                for (int x = minX; x <= maxX; x++) {
+                    int cell = y * nX + x;
+                    for (int k = cellStart[cell]; k < cellStart[cell + 1]; k++) {
+                        int i = cellItems[k];
+                        double dLat = points.getLatitude(i) - latitude;
+                        double dLon = wrapLongitude(points.getLongitude(i)) - longitude;
+                        if (dLon >= 180.0) {
+                            dLon -= 360.0;
+                        } else if (dLon < -180.0) {
+                            dLon += 360.0;
+                        }
+                        dLon *= lonScale;
+                        double distanceSq = dLat * dLat + dLon * dLon;
+                        if (distanceSq <= nearestDistanceSq) {
+                            nearestDistanceSq = distanceSq;
+                            nearest = i;
+                        }
+                    }
+                }
+            }
+        }
+        return nearest;
+    }
+
+    /**
+     * @return The longitude wrapped into the range [-180, 180)
+     */
+    private static double wrapLongitude(double longitude) {
+        if (longitude >= -180.0 && longitude < 180.0) {
+            return longitude;
+        }
+        return ((longitude + 180.0) % 360.0 + 360.0) % 360.0 - 180.0;
+    }
+
+    private int getIndex(double coordinate, double origin) {
+        return (int) Math.floor((coordinate - origin) / cellSize);
+    }
+
+    private int getCell(double latitude, double longitude) {
+        int x = Math.min(nX - 1, (int) ((longitude - minLon) / cellSize));
+        int y = Math.min(nY - 1, (int) ((latitude - minLat) / cellSize));
+        return y * nX + x;
+    }
+}
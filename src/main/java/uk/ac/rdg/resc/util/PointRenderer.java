@@ -0,0 +1,100 @@
+/*******************************************************************************
+ * Copyright (c) 2014 The University of Reading
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+
+package uk.ac.rdg.resc.util;
+
+import gov.nasa.worldwind.render.DrawContext;
+import gov.nasa.worldwind.util.OGLStackHandler;
+
+import javax.media.opengl.GL;
+import javax.media.opengl.GL2;
+
+/**
+ * Draws the contents of a {@link PointBuffer} as smoothed points, using a
+ * single draw call for the whole buffer.
+ * 
+ * Nothing is drawn in picking mode - points should be picked using a
+ * {@link PointPickIndex}.
+ * 
+ * @author Guy Griffiths
+ */
+public class PointRenderer {
+    private PointRenderer() {
+    }
+
+    /**
+     * Draws a set of points
+     * 
+     * @param dc
+     *            The {@link DrawContext} to draw into
+     * @param points
+     *            The {@link PointBuffer} containing the points to draw
+     * @param pointSize
+     *            The diameter of the points, in pixels
+     */
+    public static void render(DrawContext dc, PointBuffer points, float pointSize) {
+        if (dc.isPickingMode()) {
+            return;
+        }
+        points.update(dc.getGlobe());
+        int count = points.getBuiltSize();
+        if (count == 0) {
+            return;
+        }
+
+        GL2 gl = dc.getGL().getGL2(); // GL initialization checks for GL2
+                                      // compatibility.
+        OGLStackHandler stackHandler = new OGLStackHandler();
+        stackHandler.pushAttrib(gl, GL2.GL_COLOR_BUFFER_BIT | GL2.GL_CURRENT_BIT
+                | GL2.GL_DEPTH_BUFFER_BIT | GL2.GL_POINT_BIT | GL2.GL_ENABLE_BIT);
+        stackHandler.pushClientAttrib(gl, GL2.GL_CLIENT_VERTEX_ARRAY_BIT);
+        try {
+            gl.glEnable(GL.GL_BLEND);
+            gl.glBlendFunc(GL.GL_SRC_ALPHA, GL.GL_ONE_MINUS_SRC_ALPHA);
+            gl.glEnable(GL2.GL_POINT_SMOOTH);
+            gl.glHint(GL2.GL_POINT_SMOOTH_HINT, GL.GL_NICEST);
+            gl.glEnable(GL.GL_DEPTH_TEST);
+            gl.glDepthMask(false);
+            gl.glPointSize(pointSize);
+
+            gl.glEnableClientState(GL2.GL_VERTEX_ARRAY);
+            gl.glEnableClientState(GL2.GL_COLOR_ARRAY);
+            gl.glVertexPointer(3, GL.GL_FLOAT, 0, points.getVertexBuffer().rewind());
+            gl.glColorPointer(4, GL.GL_UNSIGNED_BYTE, 0, points.getColourBuffer().rewind());
+
+            dc.getView().pushReferenceCenter(dc, points.getReferenceCentre());
+            try {
+                gl.glDrawArrays(GL.GL_POINTS, 0, count);
+            } finally {
+                dc.getView().popReferenceCenter(dc);
+            }
+        } finally {
+            stackHandler.pop(gl);
+        }
+    }
+}
@@ -0,0 +1,208 @@
+/*******************************************************************************
+ * Copyright (c) 2014 The University of Reading
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+
+package uk.ac.rdg.resc.util;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map.Entry;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+/**
+ * A least-recently-used cache of unpacked grid slices, with a limit on the
+ * total memory they use.
+ * 
+ * Unpacking a slice reads every cell of a grid, so when the time or
+ * elevation changes many tiles will want the same new slice at once. Only the
+ * first of them unpacks it, and the rest wait for the result.
+ * 
+ * @author Guy Griffiths
+ */
+final class SliceCache {
+    /** The most memory (in bytes) for the cached slices to use */
+    private final long maxBytes;
+    /** The cached slices, in least-recently-used order */
+    private final LinkedHashMap<Key, float[]> slices = new LinkedHashMap<>(16, 0.75f, true);
+    /** The total size (in bytes) of the cached slices */
+    private long bytes = 0L;
+    /** The slices which are being unpacked */
+    private final ConcurrentHashMap<Key, FutureTask<float[]>> unpacking = new ConcurrentHashMap<>();
+
+    /**
+     * @param maxBytes
+     *            The most memory (in bytes) for the cached slices to use. The
+     *            most recently used slice is always kept, however large it is.
+     */
+    SliceCache(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Gets a slice from the cache, unpacking it if it is not there
+     * 
+     * @param owner
+     *            The object which the slice belongs to
+     * @param index
+     *            The index of the slice within its owner
+     * @param unpacker
+     *            Unpacks the slice if it is not cached
+     * @return The values of the slice
+     */
+    float[] get(Object owner, long index, Callable<float[]> unpacker) {
+        Key key = new Key(owner, index);
+        float[] values = getCached(key);
+        if (values != null) {
+            return values;
+        }
+
+        FutureTask<float[]> task = new FutureTask<>(unpacker);
+        FutureTask<float[]> existing = unpacking.putIfAbsent(key, task);
+        if (existing == null) {
+            /*
+             * Another thread may have finished unpacking it since it was
+             * looked for
+             */
+            try {
+                values = getCached(key);
+                if (values == null) {
+                    task.run();
+                    values = getResult(task);
+                    put(key, values);
+                }
+            } finally {
+                unpacking.remove(key, task);
+            }
+            return values;
+        }
+        return getResult(existing);
+    }
+
+    private float[] getCached(Key key) {
+        synchronized (slices) {
+            return slices.get(key);
+        }
+    }
+
+    private void put(Key key, float[] values) {
+        synchronized (slices) {
+            float[] old = slices.put(key, values);
+            if (old != null) {
+                bytes -= 4L * old.length;
+            }
+            bytes += 4L * values.length;
+            Iterator<Entry<Key, float[]>> iterator = slices.entrySet().iterator();
+            while (bytes > maxBytes && iterator.hasNext()) {
+                Entry<Key, float[]> eldest = iterator.next();
+                if (eldest.getKey().equals(key)) {
+                    break;
+                }
+                bytes -= 4L * eldest.getValue().length;
+                iterator.remove();
+            }
+        }
+    }
+
+    private static float[] getResult(FutureTask<float[]> task) {
+        boolean interrupted = false;
+        try {
+            while (true) {
+                try {
+                    return task.get();
+                } catch (InterruptedException e) {
+                    /*
+                     * The slice is still needed, so wait for it and pass the
+                     * interrupt on afterwards
+                     */
+                    interrupted = true;
+                }
+            }
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IllegalStateException(cause);
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * @return The number of cached slices
+     */
+    int size() {
+        synchronized (slices) {
+            return slices.size();
+        }
+    }
+
+    /**
+     * @return The total size (in bytes) of the cached slices
+     */
+    long getBytes() {
+        synchronized (slices) {
+            return bytes;
+        }
+    }
+
+    /**
+     * Identifies a slice of a particular owner
+     */
+    private static final class Key {
+        private final Object owner;
+        private final long index;
+
+        private Key(Object owner, long index) {
+            this.owner = owner;
+            this.index = index;
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * System.identityHashCode(owner) + (int) (index ^ (index >>> 32));
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj)
+                return true;
+            if (!(obj instanceof Key))
+                return false;
+            Key other = (Key) obj;
+            return owner == other.owner && index == other.index;
+        }
+    }
+}
@@ -0,0 +1,172 @@
+/*******************************************************************************
+ * Copyright (c) 2014 The University of Reading
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+
+package uk.ac.rdg.resc.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * A local file which a dataset is read from. On-disk caches of a dataset
+ * (profile caches, grid indices, data pyramids) record the files they were
+ * built from, and if any of these properties change, the cache no longer
+ * represents the files.
+ * 
+ * @author Guy Griffiths
+ */
+public class SourceFile {
+    private final String path;
+    private final long length;
+    private final long lastModified;
+
+    /**
+     * Finds the local files matching a dataset location
+     * 
+     * @param location
+     *            The location of a dataset. This may be a single file, a
+     *            directory, or a glob expression
+     * @return The matching {@link SourceFile}s, sorted by path, or
+     *         <code>null</code> if the location does not refer to local files
+     * @throws IOException
+     *             If there is a problem listing the files
+     */
+    public static List<SourceFile> listSources(String location) throws IOException {
+        if (location == null || location.contains("://")) {
+            return null;
+        }
+        final List<SourceFile> sources = new ArrayList<>();
+        File file = new File(location);
+        if (file.isFile()) {
+            sources.add(new SourceFile(file));
+        } else if (file.isDirectory()) {
+            File[] children = file.listFiles();
+            if (children != null) {
+                for (File child : children) {
+                    if (child.isFile()) {
+                        sources.add(new SourceFile(child));
+                    }
+                }
+            }
+        } else {
+            /*
+             * Treat the location as a glob. Start searching from the deepest
+             * directory with no wildcards in its path.
+             */
+            File root = file.getAbsoluteFile();
+            while (root != null && root.getPath().matches(".*[*?\\[{].*")) {
+                root = root.getParentFile();
+            }
+            if (root == null || !root.isDirectory()) {
+                return null;
+            }
+            final PathMatcher matcher = FileSystems.getDefault().getPathMatcher(
+                    "glob:" + file.getAbsolutePath());
+            Files.walkFileTree(root.toPath(), new SimpleFileVisitor<Path>() {
+                @Override
+                public FileVisitResult visitFile(Path path, BasicFileAttributes attrs) {
+                    if (attrs.isRegularFile() && matcher.matches(path)) {
+                        sources.add(new SourceFile(path.toFile()));
+                    }
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+        }
+        sortByPath(sources);
+        return sources;
+    }
+
+    /**
+     * Sorts {@link SourceFile}s by path, which is the order
+     * {@link #listSources(String)} returns them in
+     * 
+     * @param sources
+     *            The {@link SourceFile}s to sort
+     */
+    public static void sortByPath(List<SourceFile> sources) {
+        Collections.sort(sources, new Comparator<SourceFile>() {
+            @Override
+            public int compare(SourceFile a, SourceFile b) {
+                return a.path.compareTo(b.path);
+            }
+        });
+    }
+
+    public SourceFile(File file) {
+        this(file.getAbsolutePath(), file.length(), file.lastModified());
+    }
+
+    public SourceFile(String path, long length, long lastModified) {
+        this.path = path;
+        this.length = length;
+        this.lastModified = lastModified;
+    }
+
+    public String getPath() {
+        return path;
+    }
+
+    public long getLength() {
+        return length;
+    }
+
+    public long getLastModified() {
+        return lastModified;
+    }
+
+    @Override
+    public String toString() {
+        return path + " (" + length + " bytes, modified " + lastModified + ")";
+    }
+
+    @Override
+    public int hashCode() {
+        return path.hashCode() * 31 + (int) (length ^ (length >>> 32)) * 17
+                + (int) (lastModified ^ (lastModified >>> 32));
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (!(obj instanceof SourceFile)) {
+            return false;
+        }
+        SourceFile other = (SourceFile) obj;
+        return path.equals(other.path) && length == other.length
+                && lastModified == other.lastModified;
+    }
+}
@@ -0,0 +1,230 @@
+/*******************************************************************************
+ * Copyright (c) 2014 The University of Reading
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+
+package uk.ac.rdg.resc.util;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.joda.time.DateTime;
+
+import uk.ac.rdg.resc.edal.feature.PointSeriesFeature;
+import uk.ac.rdg.resc.edal.grid.TimeAxis;
+import uk.ac.rdg.resc.edal.grid.TimeAxisImpl;
+import uk.ac.rdg.resc.edal.metadata.Parameter;
+import uk.ac.rdg.resc.edal.util.Array1D;
+import uk.ac.rdg.resc.edal.util.ValuesArray1D;
+
+/**
+ * Reduces the number of points in a timeseries before it is plotted, using
+ * the Largest-Triangle-Three-Buckets algorithm (Steinarsson, 2013).
+ * 
+ * A chart can only display about one point per horizontal pixel, so for very
+ * long timeseries (e.g. multi-decade hourly data) most of the time taken to
+ * plot a graph is wasted. LTTB picks the points which best preserve the visual
+ * shape of the series, so the resulting chart looks the same as the
+ * full-resolution one but takes a roughly constant time to generate.
+ * 
+ * @author Guy Griffiths
+ */
+public class TimeseriesDownsampler {
+    /**
+     * Downsamples a {@link PointSeriesFeature}. The original feature is not
+     * modified.
+     * 
+     * @param feature
+     *            The {@link PointSeriesFeature} to downsample
+     * @param threshold
+     *            The maximum number of points to keep. This should usually be
+     *            the width of the plot in pixels
+     * @return A {@link PointSeriesFeature} with at most
+     *         <code>threshold</code> points per variable, or the original
+     *         feature if it is already small enough
+     */
+    public static PointSeriesFeature downsample(PointSeriesFeature feature, int threshold) {
+        TimeAxis domain = feature.getDomain();
+        List<DateTime> times = domain.getCoordinateValues();
+        int size = times.size();
+        if (size <= threshold || threshold < 3) {
+            return feature;
+        }
+
+        double[] x = new double[size];
+        for (int i = 0; i < size; i++) {
+            x[i] = times.get(i).getMillis();
+        }
+
+        /*
+         * Each variable may select different points, so we keep the union of
+         * the points selected for all variables in the feature
+         */
+        boolean[] keep = new boolean[size];
+        double[] y = new double[size];
+        for (String varId : feature.getParameterIds()) {
+            Array1D<Number> values = feature.getValues(varId);
+            for (int i = 0; i < size; i++) {
+                Number value = values.get(i);
+                y[i] = value == null ? Double.NaN : value.doubleValue();
+            }
+            for (int index : largestTriangleThreeBuckets(x, y, threshold)) {
+                keep[index] = true;
+            }
+        }
+
+        List<Integer> indices = new ArrayList<>();
+        List<DateTime> keptTimes = new ArrayList<>();
+        for (int i = 0; i < size; i++) {
+            if (keep[i]) {
+                indices.add(i);
+                keptTimes.add(times.get(i));
+            }
+        }
+        if (indices.size() == size) {
+            return feature;
+        }
+
+        Map<String, Parameter> parameters = new HashMap<>();
+        Map<String, Array1D<Number>> keptValues = new HashMap<>();
+        for (String varId : feature.getParameterIds()) {
+            Array1D<Number> values = feature.getValues(varId);
+            ValuesArray1D varValues = new ValuesArray1D(indices.size());
+            for (int i = 0; i < indices.size(); i++) {
+                varValues.set(values.get(indices.get(i)), i);
+            }
+            parameters.put(varId, feature.getParameter(varId));
+            keptValues.put(varId, varValues);
+        }
+
+        return new PointSeriesFeature(feature.getId(), feature.getName(),
+                feature.getDescription(), new TimeAxisImpl(domain.getName(), keptTimes),
+                feature.getHorizontalPosition(), feature.getVerticalPosition(), parameters,
+                keptValues);
+    }
+
+    /**
+     * Downsamples a {@link List} of {@link PointSeriesFeature}s
+     * 
+     * @param features
+     *            The features to downsample
+     * @param threshold
+     *            The maximum number of points to keep in each feature
+     * @return A new {@link List} containing the downsampled features
+     */
+    public static List<PointSeriesFeature> downsample(List<? extends PointSeriesFeature> features,
+            int threshold) {
+        List<PointSeriesFeature> ret = new ArrayList<>();
+        for (PointSeriesFeature feature : features) {
+            ret.add(downsample(feature, threshold));
+        }
+        return ret;
+    }
+
+    /**
+     * Selects the points to keep from a series using the
+     * Largest-Triangle-Three-Buckets algorithm. Missing values (NaNs) are
+     * never selected, since they are not plotted.
+     * 
+     * @param x
+     *            The x-values of the series, in ascending order
+     * @param y
+     *            The y-values of the series. May contain NaNs
+     * @param threshold
+     *            The maximum number of points to select
+     * @return The indices of the selected points, in ascending order
+     */
+    public static int[] largestTriangleThreeBuckets(double[] x, double[] y, int threshold) {
+        /*
+         * Only consider the non-missing points
+         */
+        int[] valid = new int[y.length];
+        int nValid = 0;
+        for (int i = 0; i < y.length; i++) {
+            if (!Double.isNaN(y[i])) {
+                valid[nValid++] = i;
+            }
+        }
+        if (nValid <= threshold || threshold < 3) {
+            int[] ret = new int[nValid];
+            System.arraycopy(valid, 0, ret, 0, nValid);
+            return ret;
+        }
+
+        int[] selected = new int[threshold];
+        int nSelected = 0;
+        /*
+         * Always keep the first point. The remaining points (except the last)
+         * are split into threshold - 2 buckets, and the point from each which
+         * forms the largest triangle with the previously selected point and
+         * the average of the next bucket is kept.
+         */
+        double bucketSize = (double) (nValid - 2) / (threshold - 2);
+        int a = 0;
+        selected[nSelected++] = valid[a];
+        for (int bucket = 0; bucket < threshold - 2; bucket++) {
+            int bucketStart = (int) Math.floor(bucket * bucketSize) + 1;
+            int bucketEnd = (int) Math.floor((bucket + 1) * bucketSize) + 1;
+
+            /*
+             * Average point of the next bucket
+             */
+            int nextStart = bucketEnd;
+            int nextEnd = Math.min((int) Math.floor((bucket + 2) * bucketSize) + 1, nValid);
+            double avgX = 0.0;
+            double avgY = 0.0;
+            for (int i = nextStart; i < nextEnd; i++) {
+                avgX += x[valid[i]];
+                avgY += y[valid[i]];
+            }
+            int nextSize = nextEnd - nextStart;
+            avgX /= nextSize;
+            avgY /= nextSize;
+
+            double aX = x[valid[a]];
+            double aY = y[valid[a]];
+            double maxArea = -1.0;
+            int maxIndex = bucketStart;
+            for (int i = bucketStart; i < bucketEnd; i++) {
+                /*
+                 * Twice the area of the triangle - we only need to compare
+                 */
+                double area = Math.abs((aX - avgX) * (y[valid[i]] - aY) - (aX - x[valid[i]])
+                        * (avgY - aY));
+                if (area > maxArea) {
+                    maxArea = area;
+                    maxIndex = i;
+                }
+            }
+            selected[nSelected++] = valid[maxIndex];
+            a = maxIndex;
+        }
+        selected[nSelected++] = valid[nValid - 1];
+        return selected;
+    }
+}
@@ -202,7 +202,7 @@ public class FeatureInfoBalloon extends DialogAnnotation implements SelectListen
      * @param valueText
      *            The text to set
      */
-    public void setInfoText(String valueText) {
+    public synchronized void setInfoText(String valueText) {
         infoLabel = new ScreenAnnotation(valueText, new Point());
         setupLabel(infoLabel);
         AnnotationAttributes attribs = infoLabel.getAttributes();
@@ -223,7 +223,23 @@ public class FeatureInfoBalloon extends DialogAnnotation implements SelectListen
      *            The path to the timeseries graph (within the WorldWind data
      *            FileStore)
      */
-    public void setGraphs(String profilePath, String timeseriesPath) {
+    public synchronized void setGraphs(String profilePath, String timeseriesPath) {
+        setProfileGraph(profilePath);
+        setTimeseriesGraph(timeseriesPath);
+    }
+
+    /**
+     * Sets the profile graph. This can be called independently of
+     * {@link FeatureInfoBalloon#setTimeseriesGraph(String)}, so that each graph
+     * is displayed as soon as it is available. If the path is
+     * <code>null</code>, it is assumed that no graph is available, so none is
+     * plotted.
+     * 
+     * @param profilePath
+     *            The path to the profile graph (within the WorldWind data
+     *            FileStore)
+     */
+    public synchronized void setProfileGraph(String profilePath) {
         if (profilePath != null) {
             profileFullPath = profilePath;
             /*
@@ -238,7 +254,21 @@ public class FeatureInfoBalloon extends DialogAnnotation implements SelectListen
                 attributes.setImageScale(PREVIEW_SCALE);
                 attributes.setDistanceMinOpacity(0.0);
             }
+            layoutFeatureInfoComponents();
         }
+    }
+
+    /**
+     * Sets the timeseries graph. This can be called independently of
+     * {@link FeatureInfoBalloon#setProfileGraph(String)}, so that each graph is
+     * displayed as soon as it is available. If the path is <code>null</code>,
+     * it is assumed that no graph is available, so none is plotted.
+     * 
+     * @param timeseriesPath
+     *            The path to the timeseries graph (within the WorldWind data
+     *            FileStore)
+     */
+    public synchronized void setTimeseriesGraph(String timeseriesPath) {
         if (timeseriesPath != null) {
             timeseriesFullPath = timeseriesPath;
             /*
@@ -252,14 +282,14 @@ public class FeatureInfoBalloon extends DialogAnnotation implements SelectListen
                 AnnotationAttributes attributes = timeseriesGraph.getAttributes();
                 attributes.setImageScale(PREVIEW_SCALE);
             }
+            layoutFeatureInfoComponents();
         }
-        layoutFeatureInfoComponents();
     }
 
     /**
      * Adds the info label and graphs if they are present
      */
-    protected void layoutFeatureInfoComponents() {
+    protected synchronized void layoutFeatureInfoComponents() {
         featureInfoContent.removeAllChildren();
         if (infoLabel != null) {
             featureInfoContent.addChild(infoLabel);
@@ -0,0 +1,202 @@
+/*******************************************************************************
+ * Copyright (c) 2014 The University of Reading
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+
+package uk.ac.rdg.resc;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import org.geotoolkit.referencing.crs.DefaultGeographicCRS;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import uk.ac.rdg.resc.edal.geometry.BoundingBox;
+import uk.ac.rdg.resc.edal.geometry.BoundingBoxImpl;
+
+/**
+ * Tests building and resampling a {@link DataPyramid}
+ * 
+ * @author Guy Griffiths
+ */
+public class DataPyramidTest {
+    private File file;
+
+    @Before
+    public void setUp() throws IOException {
+        file = File.createTempFile("pyramid", ".pyramid");
+    }
+
+    @After
+    public void tearDown() {
+        file.delete();
+    }
+
+    private static BoundingBox bbox(double minX, double minY, double maxX, double maxY) {
+        return new BoundingBoxImpl(minX, minY, maxX, maxY, DefaultGeographicCRS.WGS84);
+    }
+
+    /**
+     * @return A grid whose values give the position of each cell
+     */
+    private static float[] createGrid(int width, int height) {
+        float[] values = new float[width * height];
+        for (int j = 0; j < height; j++) {
+            for (int i = 0; i < width; i++) {
+                values[j * width + i] = i + 1000f * j;
+            }
+        }
+        return values;
+    }
+
+    @Test
+    public void testLevelSelection() throws IOException {
+        DataPyramid pyramid = DataPyramid.create(file, "key", createGrid(1024, 512), 1024, 512,
+                bbox(-180.0, -90.0, 180.0, 90.0), 256);
+
+        /*
+         * Grids at or finer than the base resolution need the source data
+         */
+        float[] values = new float[2048 * 1024];
+        assertFalse(pyramid.resample(2048, 1024, bbox(-180.0, -90.0, 180.0, 90.0), values));
+        assertFalse(pyramid.resample(1024, 512, bbox(-180.0, -90.0, 180.0, 90.0), values));
+
+        /*
+         * Half the base resolution is the first level, where each cell is the
+         * mean of a 2x2 block
+         */
+        assertTrue(pyramid.resample(512, 256, bbox(-180.0, -90.0, 180.0, 90.0), values));
+        assertEquals(0.5f + 500f, values[0], 0f);
+        assertEquals(2 * 7 + 0.5f + 1000f * (2 * 3 + 0.5f), values[3 * 512 + 7], 0f);
+
+        /*
+         * Anything coarser uses the coarsest level which is fine enough
+         */
+        assertTrue(pyramid.resample(256, 128, bbox(-180.0, -90.0, 180.0, 90.0), values));
+        assertEquals(4 * 7 + 1.5f + 1000f * (4 * 3 + 1.5f), values[3 * 256 + 7], 0f);
+        assertTrue(pyramid.resample(100, 50, bbox(-180.0, -90.0, 180.0, 90.0), values));
+        double cellSize = 360.0 / 256;
+        int col = (int) Math.floor((-180.0 + 7.5 * 3.6 + 180.0) / cellSize);
+        int row = (int) Math.floor((-90.0 + 3.5 * 3.6 + 90.0) / cellSize);
+        assertEquals(4 * col + 1.5f + 1000f * (4 * row + 1.5f), values[3 * 100 + 7], 0f);
+    }
+
+    @Test
+    public void testGlobalGridWraps() throws IOException {
+        DataPyramid pyramid = DataPyramid.create(file, "key", createGrid(360, 180), 360, 180,
+                bbox(-180.0, -90.0, 180.0, 90.0), 64);
+
+        float[] wrapped = new float[10 * 10];
+        float[] unwrapped = new float[10 * 10];
+        assertTrue(pyramid.resample(10, 10, bbox(180.0, 0.0, 220.0, 40.0), wrapped));
+        assertTrue(pyramid.resample(10, 10, bbox(-180.0, 0.0, -140.0, 40.0), unwrapped));
+        for (int i = 0; i < wrapped.length; i++) {
+            assertEquals(unwrapped[i], wrapped[i], 0f);
+        }
+    }
+
+    @Test
+    public void testRegionalGridDoesNotWrap() throws IOException {
+        DataPyramid pyramid = DataPyramid.create(file, "key", createGrid(64, 64), 64, 64,
+                bbox(0.0, 0.0, 64.0, 64.0), 16);
+
+        float[] values = new float[4 * 4];
+        assertTrue(pyramid.resample(4, 4, bbox(-32.0, 32.0, 96.0, 96.0), values));
+        for (int j = 0; j < 4; j++) {
+            for (int i = 0; i < 4; i++) {
+                boolean inside = (i == 1 || i == 2) && j < 2;
+                assertEquals(inside, !Float.isNaN(values[j * 4 + i]));
+            }
+        }
+    }
+
+    @Test
+    public void testOddSizesAndMissingData() throws IOException {
+        float[] base = createGrid(5, 3);
+        base[0] = Float.NaN;
+        DataPyramid pyramid = DataPyramid.create(file, "key", base, 5, 3,
+                bbox(0.0, 0.0, 5.0, 3.0), 1);
+
+        /*
+         * The first level is 3x2, with partial blocks at the edges
+         */
+        float[] values = new float[3 * 2];
+        assertTrue(pyramid.resample(3, 2, bbox(0.0, 0.0, 6.0, 4.0), values));
+        float[] level0 = new float[] { (1f + 1000f + 1001f) / 3, (2f + 3f + 1002f + 1003f) / 4,
+                (4f + 1004f) / 2, (2000f + 2001f) / 2, (2002f + 2003f) / 2, 2004f };
+        for (int i = 0; i < level0.length; i++) {
+            assertEquals(level0[i], values[i], 1e-3f);
+        }
+
+        /*
+         * The second is 2x1
+         */
+        values = new float[2];
+        assertTrue(pyramid.resample(2, 1, bbox(0.0, 0.0, 8.0, 4.0), values));
+        assertEquals((level0[0] + level0[1] + level0[3] + level0[4]) / 4, values[0], 1e-3f);
+        assertEquals((level0[2] + level0[5]) / 2, values[1], 1e-3f);
+    }
+
+    @Test
+    public void testAllMissingBlock() throws IOException {
+        float[] base = new float[] { Float.NaN, Float.NaN, Float.NaN, Float.NaN, 1f, 3f };
+        DataPyramid pyramid = DataPyramid.create(file, "key", base, 2, 3,
+                bbox(0.0, 0.0, 2.0, 3.0), 1);
+
+        float[] values = new float[2];
+        assertTrue(pyramid.resample(1, 2, bbox(0.0, 0.0, 2.0, 4.0), values));
+        assertTrue(Float.isNaN(values[0]));
+        assertEquals(2f, values[1], 0f);
+    }
+
+    @Test
+    public void testReopen() throws IOException {
+        DataPyramid.create(file, "key", createGrid(64, 32), 64, 32, bbox(-180.0, -90.0, 180.0,
+                90.0), 16);
+
+        assertNull(DataPyramid.open(file, "other"));
+        float[] values = new float[32 * 16];
+        assertTrue(DataPyramid.open(file, "key").resample(32, 16,
+                bbox(-180.0, -90.0, 180.0, 90.0), values));
+        assertEquals(0.5f + 500f, values[0], 0f);
+    }
+
+    @Test(expected = IOException.class)
+    public void testRejectsInvalidFile() throws IOException {
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            out.write(new byte[] { 1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12 });
+        }
+        DataPyramid.open(file, "key");
+    }
+}
@@ -0,0 +1,175 @@
+/*******************************************************************************
+ * Copyright (c) 2014 The University of Reading
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+package uk.ac.rdg.resc;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+
+import org.geotoolkit.referencing.crs.DefaultGeographicCRS;
+import org.junit.Test;
+
+import uk.ac.rdg.resc.edal.geometry.BoundingBox;
+import uk.ac.rdg.resc.edal.geometry.BoundingBoxImpl;
+
+/**
+ * Tests summarising regions of a {@link DataSummary}
+ * 
+ * @author Guy Griffiths
+ */
+public class DataSummaryTest {
+    private static BoundingBox bbox(double minX, double minY, double maxX, double maxY) {
+        return new BoundingBoxImpl(minX, minY, maxX, maxY, DefaultGeographicCRS.WGS84);
+    }
+
+    /**
+     * @return A grid of the same value everywhere
+     */
+    private static float[] createGrid(int width, int height, float value) {
+        float[] values = new float[width * height];
+        Arrays.fill(values, value);
+        return values;
+    }
+
+    @Test
+    public void testUntouchedBlocksAreIncomplete() {
+        DataSummary summary = new DataSummary(0.1);
+        DataSummary.Region region = summary.getRegion(bbox(2.0, 2.0, 8.0, 8.0));
+        assertFalse(region.complete);
+        assertTrue(Float.isNaN(region.min));
+        assertTrue(Float.isNaN(region.max));
+
+        summary.add(createGrid(100, 100, 3f), 100, 100, bbox(0.0, 0.0, 10.0, 10.0));
+        region = summary.getRegion(bbox(2.0, 2.0, 8.0, 8.0));
+        assertTrue(region.complete);
+        assertEquals(3f, region.min, 0f);
+        assertEquals(3f, region.max, 0f);
+
+        /*
+         * A region reaching beyond the values added is incomplete, even though
+         * every value which was added is valid
+         */
+        region = summary.getRegion(bbox(5.0, 5.0, 15.0, 8.0));
+        assertFalse(region.complete);
+        assertEquals(3f, region.min, 0f);
+        assertEquals(3f, region.max, 0f);
+    }
+
+    @Test
+    public void testMissingValuesAreIncomplete() {
+        DataSummary summary = new DataSummary(1.0);
+        float[] values = createGrid(20, 20, 3f);
+        values[5 * 20 + 12] = Float.NaN;
+        summary.add(values, 20, 20, bbox(0.0, 0.0, 20.0, 20.0));
+
+        assertFalse(summary.getRegion(bbox(12.2, 5.2, 12.8, 5.8)).complete);
+        assertTrue(summary.getRegion(bbox(16.0, 12.0, 17.0, 13.0)).complete);
+    }
+
+    @Test
+    public void testMarginPadding() {
+        /*
+         * Values one degree apart, so regions are expanded by two degrees
+         * before being summarised. A single high value is in the block from
+         * 12 to 13 degrees east and 5 to 6 degrees north.
+         */
+        DataSummary summary = new DataSummary(1.0);
+        float[] values = createGrid(20, 20, 1f);
+        values[5 * 20 + 12] = 100f;
+        summary.add(values, 20, 20, bbox(0.0, 0.0, 20.0, 20.0));
+
+        assertEquals(100f, summary.getRegion(bbox(12.2, 5.2, 12.8, 5.8)).max, 0f);
+        /*
+         * Within the margin to the east, north, west and south
+         */
+        assertEquals(100f, summary.getRegion(bbox(14.5, 5.2, 15.0, 5.8)).max, 0f);
+        assertEquals(100f, summary.getRegion(bbox(12.2, 7.5, 12.8, 8.0)).max, 0f);
+        assertEquals(100f, summary.getRegion(bbox(10.0, 5.2, 10.5, 5.8)).max, 0f);
+        assertEquals(100f, summary.getRegion(bbox(12.2, 3.0, 12.8, 3.5)).max, 0f);
+        /*
+         * Beyond the margin
+         */
+        assertEquals(1f, summary.getRegion(bbox(15.5, 5.2, 16.0, 5.8)).max, 0f);
+        assertEquals(1f, summary.getRegion(bbox(12.2, 8.5, 12.8, 9.0)).max, 0f);
+        assertEquals(1f, summary.getRegion(bbox(9.0, 5.2, 9.5, 5.8)).max, 0f);
+        assertEquals(1f, summary.getRegion(bbox(12.2, 2.0, 12.8, 2.5)).max, 0f);
+    }
+
+    @Test
+    public void testDateLineWraps() {
+        /*
+         * Values of 1 west of the date line and 5 east of it, added as a grid
+         * which crosses it
+         */
+        DataSummary summary = new DataSummary(1.0);
+        float[] values = new float[20 * 10];
+        for (int j = 0; j < 10; j++) {
+            for (int i = 0; i < 20; i++) {
+                values[j * 20 + i] = i < 10 ? 1f : 5f;
+            }
+        }
+        summary.add(values, 20, 10, bbox(170.0, 0.0, 190.0, 10.0));
+
+        /*
+         * Regions near the date line, or padded across it, see both sides
+         */
+        DataSummary.Region region = summary.getRegion(bbox(178.0, 3.0, 179.5, 7.0));
+        assertTrue(region.complete);
+        assertEquals(1f, region.min, 0f);
+        assertEquals(5f, region.max, 0f);
+        region = summary.getRegion(bbox(-179.5, 3.0, -178.0, 7.0));
+        assertTrue(region.complete);
+        assertEquals(1f, region.min, 0f);
+        assertEquals(5f, region.max, 0f);
+        region = summary.getRegion(bbox(178.0, 3.0, 182.0, 7.0));
+        assertTrue(region.complete);
+        assertEquals(1f, region.min, 0f);
+        assertEquals(5f, region.max, 0f);
+
+        /*
+         * Regions clear of the date line see only their own side
+         */
+        region = summary.getRegion(bbox(173.0, 3.0, 175.0, 7.0));
+        assertTrue(region.complete);
+        assertEquals(1f, region.max, 0f);
+        region = summary.getRegion(bbox(-175.0, 3.0, -173.0, 7.0));
+        assertTrue(region.complete);
+        assertEquals(5f, region.min, 0f);
+
+        /*
+         * A region spanning the globe includes every block, most of which
+         * have no data
+         */
+        region = summary.getRegion(bbox(-180.0, 3.0, 180.0, 7.0));
+        assertFalse(region.complete);
+        assertEquals(1f, region.min, 0f);
+        assertEquals(5f, region.max, 0f);
+    }
+}
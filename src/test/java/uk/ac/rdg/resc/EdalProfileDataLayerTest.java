@@ -0,0 +1,164 @@
+/*******************************************************************************
+ * Copyright (c) 2014 The University of Reading
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+
+package uk.ac.rdg.resc;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import gov.nasa.worldwind.geom.Sector;
+
+import java.util.BitSet;
+import java.util.List;
+
+import org.junit.Test;
+
+import uk.ac.rdg.resc.edal.geometry.BoundingBox;
+
+/**
+ * Tests the cell helpers which {@link EdalProfileDataLayer} uses to decide
+ * which profiles to load
+ * 
+ * @author Guy Griffiths
+ */
+public class EdalProfileDataLayerTest {
+    private static final int CELLS_X = EdalProfileDataLayer.CELLS_X;
+    private static final int CELLS_Y = EdalProfileDataLayer.CELLS_Y;
+    private static final double CELL_SIZE = EdalProfileDataLayer.CELL_SIZE;
+
+    @Test
+    public void testGetCell() {
+        assertEquals(0, EdalProfileDataLayer.getCell(-90.0, -180.0));
+        assertEquals(CELLS_X * CELLS_Y - 1, EdalProfileDataLayer.getCell(90.0, 179.999));
+        assertEquals(EdalProfileDataLayer.getCell(10.0, -180.0),
+                EdalProfileDataLayer.getCell(10.0, 180.0));
+        assertEquals(EdalProfileDataLayer.getCell(10.0, 20.0),
+                EdalProfileDataLayer.getCell(10.0, 380.0));
+        assertEquals(EdalProfileDataLayer.getCell(-90.0, 0.0),
+                EdalProfileDataLayer.getCell(-100.0, 0.0));
+    }
+
+    @Test
+    public void testCellsCoverSector() {
+        Sector sector = Sector.fromDegrees(10.0, 30.0, -20.0, 40.0);
+        BitSet cells = EdalProfileDataLayer.getCells(sector);
+        for (double lat = 10.0; lat <= 30.0; lat += 1.0) {
+            for (double lon = -20.0; lon <= 40.0; lon += 1.0) {
+                assertTrue(cells.get(EdalProfileDataLayer.getCell(lat, lon)));
+            }
+        }
+        /*
+         * The margin is limited, so distant cells are not included
+         */
+        assertFalse(cells.get(EdalProfileDataLayer.getCell(-60.0, 150.0)));
+    }
+
+    @Test
+    public void testCellsAcrossDateLine() {
+        Sector sector = Sector.fromDegrees(0.0, 10.0, 170.0, 179.0);
+        BitSet cells = EdalProfileDataLayer.getCells(sector);
+        for (double lon = -180.0; lon < 180.0; lon += CELL_SIZE) {
+            assertTrue(cells.get(EdalProfileDataLayer.getCell(5.0, lon)));
+        }
+    }
+
+    @Test
+    public void testBoundingBoxesCoverCellsExactly() {
+        BitSet cells = new BitSet(CELLS_X * CELLS_Y);
+        /*
+         * A rectangle, plus an L-shape, plus a single cell
+         */
+        for (int y = 2; y < 6; y++) {
+            cells.set(y * CELLS_X + 3, y * CELLS_X + 8);
+        }
+        for (int y = 10; y < 14; y++) {
+            cells.set(y * CELLS_X + 20);
+        }
+        cells.set(13 * CELLS_X + 21, 13 * CELLS_X + 25);
+        cells.set(CELLS_X * CELLS_Y - 1);
+
+        List<BoundingBox> bboxes = EdalProfileDataLayer.getBoundingBoxes(cells);
+        BitSet covered = new BitSet(CELLS_X * CELLS_Y);
+        for (BoundingBox bbox : bboxes) {
+            double half = CELL_SIZE / 2;
+            for (double lat = bbox.getMinY() + half; lat < bbox.getMaxY(); lat += CELL_SIZE) {
+                for (double lon = bbox.getMinX() + half; lon < bbox.getMaxX(); lon += CELL_SIZE) {
+                    int cell = EdalProfileDataLayer.getCell(lat, lon);
+                    assertFalse(covered.get(cell));
+                    covered.set(cell);
+                }
+            }
+        }
+        assertEquals(cells, covered);
+        /*
+         * The rectangle is a single box, the L-shape two
+         */
+        assertEquals(4, bboxes.size());
+    }
+
+    @Test
+    public void testDropLeastRecentCells() {
+        long[] lastViewed = new long[CELLS_X * CELLS_Y];
+        BitSet kept = new BitSet();
+        for (int c = 0; c < 6; c++) {
+            kept.set(c);
+            lastViewed[c] = 10 - c;
+        }
+        BitSet visible = new BitSet();
+        visible.set(5);
+        visible.set(100);
+
+        /*
+         * Within the limit, nothing is dropped
+         */
+        BitSet unchanged = (BitSet) kept.clone();
+        EdalProfileDataLayer.dropLeastRecentCells(unchanged, visible, lastViewed, 7);
+        assertEquals(kept, unchanged);
+
+        /*
+         * Cells 4 and 3 were viewed least recently, but cell 5 is in view
+         */
+        EdalProfileDataLayer.dropLeastRecentCells(kept, visible, lastViewed, 5);
+        BitSet expected = new BitSet();
+        expected.set(0, 3);
+        expected.set(5);
+        assertEquals(expected, kept);
+
+        /*
+         * Cells in view are kept even if they alone exceed the limit
+         */
+        EdalProfileDataLayer.dropLeastRecentCells(kept, visible, lastViewed, 1);
+        expected.clear(0, 3);
+        assertEquals(expected, kept);
+    }
+
+    @Test
+    public void testBoundingBoxesOfNothing() {
+        assertTrue(EdalProfileDataLayer.getBoundingBoxes(new BitSet()).isEmpty());
+    }
+}
@@ -0,0 +1,280 @@
+/*******************************************************************************
+ * Copyright (c) 2014 The University of Reading
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+
+package uk.ac.rdg.resc;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.geotoolkit.referencing.crs.DefaultGeographicCRS;
+import org.joda.time.DateTime;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import uk.ac.rdg.resc.edal.feature.ProfileFeature;
+import uk.ac.rdg.resc.edal.geometry.BoundingBoxImpl;
+import uk.ac.rdg.resc.edal.metadata.Parameter;
+import uk.ac.rdg.resc.edal.position.VerticalCrsImpl;
+import uk.ac.rdg.resc.edal.util.Extents;
+import uk.ac.rdg.resc.util.SourceFile;
+
+/**
+ * Tests writing, reading and updating a {@link ProfileFileCache}
+ * 
+ * @author Guy Griffiths
+ */
+public class ProfileFileCacheTest {
+    private static final String VAR_ID = "temp";
+    private static final Parameter PARAMETER = new Parameter(VAR_ID, "Temperature", "", "degC",
+            null);
+
+    private File cacheFile;
+    private File runFile;
+
+    @Before
+    public void setUp() throws IOException {
+        cacheFile = File.createTempFile("profiles", ".profiles");
+        runFile = File.createTempFile("profiles", ".run");
+    }
+
+    @After
+    public void tearDown() {
+        cacheFile.delete();
+        runFile.delete();
+    }
+
+    private static ProfileFeature createProfile(String id, double lat, double lon, long time,
+            float[] depths, float[] values) {
+        return ProfileStore.createFeature(id, id, lat, lon, time, depths, values, 0,
+                depths.length, VAR_ID, PARAMETER, "depth", new VerticalCrsImpl("m", false,
+                        false, false));
+    }
+
+    private static ProfileFeature createProfile(String id, long time) {
+        return createProfile(id, 0.0, 0.0, time, new float[] { 10f }, new float[] { 1f });
+    }
+
+    private static List<String> getIds(List<ProfileFeature> profiles) {
+        List<String> ids = new ArrayList<>();
+        for (ProfileFeature profile : profiles) {
+            ids.add(profile.getId());
+        }
+        return ids;
+    }
+
+    @Test
+    public void testRoundTrip() throws IOException {
+        List<SourceFile> sources = Arrays.asList(new SourceFile("/data/a.nc", 100L, 1L),
+                new SourceFile("/data/b.nc", 200L, 2L));
+        List<ProfileFeature> profiles = new ArrayList<>();
+        profiles.add(createProfile("a", 10.0, 20.0, 5000L, new float[] { 30f, 10f, 20f },
+                new float[] { 3f, 1f, Float.NaN }));
+        profiles.add(createProfile("b", -5.0, 170.0, ProfileStore.NO_TIME,
+                new float[] { 5f }, new float[] { 7f }));
+        ProfileFileCache.create(cacheFile, sources, profiles, VAR_ID);
+
+        ProfileFileCache cache = new ProfileFileCache(cacheFile);
+        assertEquals(VAR_ID, cache.getVariableId());
+        assertEquals(sources, cache.getSources());
+        assertEquals(2, cache.size());
+
+        List<ProfileFeature> read = cache.extractProfiles(null, null, null, null);
+        assertEquals(Arrays.asList("b", "a"), getIds(read));
+        assertNull(read.get(0).getTime());
+
+        ProfileFeature profile = read.get(1);
+        assertEquals(5000L, profile.getTime().getMillis());
+        assertEquals(10.0, profile.getHorizontalPosition().getY(), 0.0);
+        assertEquals(20.0, profile.getHorizontalPosition().getX(), 0.0);
+        assertEquals("Temperature", profile.getParameter(VAR_ID).getTitle());
+        /*
+         * Levels are sorted by depth, and missing values are preserved
+         */
+        assertEquals(Arrays.asList(10.0, 20.0, 30.0), profile.getDomain()
+                .getCoordinateValues());
+        assertEquals(1f, profile.getValues(VAR_ID).get(0).floatValue(), 0f);
+        assertNull(profile.getValues(VAR_ID).get(1));
+        assertEquals(3f, profile.getValues(VAR_ID).get(2).floatValue(), 0f);
+    }
+
+    @Test
+    public void testIncrementalMergeIsOrderedByTime() throws IOException {
+        List<SourceFile> first = Arrays.asList(new SourceFile("/data/a.nc", 100L, 1L));
+        ProfileFileCache cache = ProfileFileCache.create(cacheFile, first,
+                Arrays.asList(createProfile("a1", 3000L), createProfile("a2", 1000L)), VAR_ID);
+        ProfileFileCache run = ProfileFileCache.create(runFile,
+                Arrays.asList(new SourceFile("/data/b.nc", 100L, 1L)),
+                Arrays.asList(createProfile("b1", 2000L), createProfile("b2", 500L),
+                        createProfile("b3", ProfileStore.NO_TIME)), VAR_ID);
+
+        /*
+         * The merged cache replaces the file of one of the caches it is
+         * merged from
+         */
+        List<SourceFile> second = Arrays.asList(new SourceFile("/data/a.nc", 100L, 1L),
+                new SourceFile("/data/b.nc", 100L, 1L));
+        cache = ProfileFileCache.merge(cacheFile, second, Arrays.asList(cache, run));
+
+        assertEquals(5, cache.size());
+        assertEquals(second, cache.getSources());
+        assertEquals(Arrays.asList("b3", "b2", "a2", "b1", "a1"),
+                getIds(cache.extractProfiles(null, null, null, null)));
+        /*
+         * Reopening gives the same result
+         */
+        assertEquals(Arrays.asList("b3", "b2", "a2", "b1", "a1"),
+                getIds(new ProfileFileCache(cacheFile).extractProfiles(null, null, null, null)));
+    }
+
+    @Test
+    public void testMergeOfManyRuns() throws IOException {
+        List<ProfileFileCache> runs = new ArrayList<>();
+        List<File> runFiles = new ArrayList<>();
+        try {
+            for (int r = 0; r < 5; r++) {
+                List<ProfileFeature> profiles = new ArrayList<>();
+                for (int i = 0; i < 20; i++) {
+                    /*
+                     * The runs share most of their times, but a few profiles
+                     * of each run are at a time which no other run holds
+                     */
+                    profiles.add(createProfile(r + "-" + i, 1000L * (i * 5 % 20)
+                            + (i % 4 == 0 ? r : 0)));
+                }
+                File file = File.createTempFile("profiles", ".run");
+                runFiles.add(file);
+                runs.add(ProfileFileCache.create(file, new ArrayList<SourceFile>(), profiles,
+                        VAR_ID));
+            }
+            /*
+             * An empty run has no effect
+             */
+            File emptyFile = File.createTempFile("profiles", ".run");
+            runFiles.add(emptyFile);
+            runs.add(ProfileFileCache.create(emptyFile, new ArrayList<SourceFile>(),
+                    new ArrayList<ProfileFeature>(), VAR_ID));
+
+            ProfileFileCache cache = ProfileFileCache.merge(cacheFile,
+                    new ArrayList<SourceFile>(), runs);
+            assertEquals(100, cache.size());
+            List<ProfileFeature> profiles = cache.extractProfiles(null, null, null, null);
+            assertEquals(100, profiles.size());
+            for (int i = 1; i < profiles.size(); i++) {
+                long previous = profiles.get(i - 1).getTime().getMillis();
+                long time = profiles.get(i).getTime().getMillis();
+                assertTrue(previous <= time);
+                if (previous == time) {
+                    /*
+                     * Ties keep the order of the runs
+                     */
+                    assertTrue(profiles.get(i - 1).getId().charAt(0) <= profiles.get(i)
+                            .getId().charAt(0));
+                }
+            }
+        } finally {
+            for (File file : runFiles) {
+                file.delete();
+            }
+        }
+    }
+
+    @Test
+    public void testTimeRangeBounds() throws IOException {
+        ProfileFileCache cache = ProfileFileCache.create(cacheFile, new ArrayList<SourceFile>(),
+                Arrays.asList(createProfile("t1", 1000L), createProfile("t2", 2000L),
+                        createProfile("t3", 3000L), createProfile("t4", 4000L),
+                        createProfile("none", ProfileStore.NO_TIME)), VAR_ID);
+
+        /*
+         * Both ends of the range are inclusive, and untimed profiles are
+         * always included
+         */
+        assertEquals(Arrays.asList("none", "t2", "t3"), getIds(cache.extractProfiles(null,
+                null, Extents.newExtent(new DateTime(2000L), new DateTime(3000L)), null)));
+        assertEquals(Arrays.asList("none"), getIds(cache.extractProfiles(null, null,
+                Extents.newExtent(new DateTime(4001L), new DateTime(9000L)), null)));
+        assertEquals(Arrays.asList("none", "t1", "t2", "t3", "t4"), getIds(cache
+                .extractProfiles(null, null,
+                        Extents.newExtent(new DateTime(0L), new DateTime(9000L)), null)));
+        /*
+         * With no range, only profiles at exactly the target time
+         */
+        assertEquals(Arrays.asList("none", "t3"),
+                getIds(cache.extractProfiles(null, null, null, new DateTime(3000L))));
+        assertEquals(Arrays.asList("none"),
+                getIds(cache.extractProfiles(null, null, null, new DateTime(3001L))));
+    }
+
+    @Test
+    public void testSpatialAndDepthFilters() throws IOException {
+        ProfileFileCache cache = ProfileFileCache.create(cacheFile, new ArrayList<SourceFile>(),
+                Arrays.asList(
+                        createProfile("near", 10.0, 20.0, 1000L, new float[] { 0f, 50f },
+                                new float[] { 1f, 2f }),
+                        createProfile("deep", 10.0, 20.0, 1000L, new float[] { 500f, 900f },
+                                new float[] { 1f, 2f }),
+                        createProfile("wrapped", 10.0, 190.0, 1000L, new float[] { 0f },
+                                new float[] { 1f }),
+                        createProfile("far", 60.0, 20.0, 1000L, new float[] { 0f },
+                                new float[] { 1f })), VAR_ID);
+
+        assertEquals(Arrays.asList("near", "deep"), getIds(cache.extractProfiles(
+                new BoundingBoxImpl(0.0, 0.0, 30.0, 20.0, DefaultGeographicCRS.WGS84), null,
+                null, null)));
+        /*
+         * Longitudes are wrapped into the bounding box
+         */
+        assertEquals(Arrays.asList("wrapped"), getIds(cache.extractProfiles(
+                new BoundingBoxImpl(-180.0, 0.0, -160.0, 20.0, DefaultGeographicCRS.WGS84),
+                null, null, null)));
+        /*
+         * Profiles must intersect the elevation range
+         */
+        assertEquals(Arrays.asList("near", "wrapped", "far"), getIds(cache.extractProfiles(
+                null, Extents.newExtent(0.0, 100.0), null, null)));
+        assertEquals(Arrays.asList("deep"), getIds(cache.extractProfiles(null,
+                Extents.newExtent(600.0, 700.0), null, null)));
+    }
+
+    @Test(expected = IOException.class)
+    public void testRejectsInvalidFile() throws IOException {
+        try (FileOutputStream out = new FileOutputStream(cacheFile)) {
+            out.write(new byte[] { 1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12 });
+        }
+        new ProfileFileCache(cacheFile);
+    }
+}
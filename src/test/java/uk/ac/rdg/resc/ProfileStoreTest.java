@@ -0,0 +1,212 @@
+/*******************************************************************************
+ * Copyright (c) 2014 The University of Reading
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+
+package uk.ac.rdg.resc;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+import uk.ac.rdg.resc.edal.feature.ProfileFeature;
+import uk.ac.rdg.resc.edal.metadata.Parameter;
+import uk.ac.rdg.resc.edal.position.VerticalCrs;
+import uk.ac.rdg.resc.edal.position.VerticalCrsImpl;
+
+/**
+ * Tests the storage and indexing of profiles in {@link ProfileStore}
+ * 
+ * @author Guy Griffiths
+ */
+public class ProfileStoreTest {
+    private static final String VAR_ID = "temp";
+    private static final Parameter PARAMETER = new Parameter(VAR_ID, "Temperature", "", "degC",
+            null);
+    private static final VerticalCrs Z_CRS = new VerticalCrsImpl("m", false, false, false);
+
+    private static ProfileFeature createProfile(String id, double lat, double lon, long time,
+            float[] depths, float[] values) {
+        return ProfileStore.createFeature(id, id, lat, lon, time, depths, values, 0,
+                depths.length, VAR_ID, PARAMETER, "depth", Z_CRS);
+    }
+
+    @Test
+    public void testStoresProfiles() {
+        List<ProfileFeature> features = new ArrayList<>();
+        features.add(createProfile("a", 10.0, 20.0, 1000L, new float[] { 30f, 10f, 20f },
+                new float[] { 3f, 1f, 2f }));
+        features.add(createProfile("b", -5.0, 170.0, ProfileStore.NO_TIME, new float[] { 5f,
+                Float.NaN }, new float[] { 7f, 8f }));
+        ProfileStore store = new ProfileStore(features, VAR_ID);
+
+        assertEquals(2, store.size());
+        assertEquals("a", store.getId(0));
+        assertEquals(10.0, store.getLatitude(0), 0.0);
+        assertEquals(20.0, store.getLongitude(0), 0.0);
+        assertEquals(1000L, store.getTime(0));
+        assertEquals(ProfileStore.NO_TIME, store.getTime(1));
+
+        /*
+         * Levels are sorted by depth, with their values
+         */
+        int start = store.getLevelStart(0);
+        assertEquals(3, store.getLevelEnd(0) - start);
+        for (int i = 0; i < 3; i++) {
+            assertEquals(10f * (i + 1), store.getDepth(start + i), 0f);
+            assertEquals(i + 1f, store.getValue(start + i), 0f);
+        }
+        /*
+         * Levels without a depth are not stored
+         */
+        assertEquals(1, store.getLevelEnd(1) - store.getLevelStart(1));
+    }
+
+    @Test
+    public void testUpdateRetainsAndAdds() {
+        List<ProfileFeature> features = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            features.add(createProfile("p" + i, i, i, i, new float[] { i, i + 1 }, new float[] {
+                    10 * i, 10 * i + 1 }));
+        }
+        ProfileStore store = new ProfileStore(features, VAR_ID);
+
+        List<ProfileFeature> added = Arrays.asList(createProfile("new", 50.0, 50.0, 99L,
+                new float[] { 100f }, new float[] { 42f }));
+        ProfileStore updated = store.update(new boolean[] { true, false, true, false }, added);
+
+        assertEquals(3, updated.size());
+        assertEquals("p0", updated.getId(0));
+        assertEquals("p2", updated.getId(1));
+        assertEquals("new", updated.getId(2));
+        assertEquals(2.0, updated.getLatitude(1), 0.0);
+        assertEquals(20f, updated.getValue(updated.getLevelStart(1)), 0f);
+        assertEquals(21f, updated.getValue(updated.getLevelStart(1) + 1), 0f);
+        assertEquals(42f, updated.getValue(updated.getLevelStart(2)), 0f);
+        assertEquals(99L, updated.getTime(2));
+        assertEquals("depth", updated.getZAxisName());
+    }
+
+    @Test
+    public void testCandidatesByMinDepth() {
+        List<ProfileFeature> features = new ArrayList<>();
+        features.add(createProfile("deep", 0, 0, 0, new float[] { 500f, 600f }, new float[] {
+                1f, 2f }));
+        features.add(createProfile("shallow", 0, 0, 0, new float[] { 0f, 10f }, new float[] {
+                1f, 2f }));
+        features.add(createProfile("mid", 0, 0, 0, new float[] { 100f }, new float[] { 1f }));
+        features.add(createProfile("empty", 0, 0, 0, new float[] { Float.NaN },
+                new float[] { 1f }));
+        ProfileStore store = new ProfileStore(features, VAR_ID);
+
+        assertEquals(0, store.getCandidateCount(-1.0));
+        assertEquals(1, store.getCandidateCount(50.0));
+        assertEquals("shallow", store.getId(store.getCandidate(0)));
+        assertEquals(2, store.getCandidateCount(100.0));
+        assertEquals("mid", store.getId(store.getCandidate(1)));
+        assertEquals(3, store.getCandidateCount(1e6));
+        assertEquals("deep", store.getId(store.getCandidate(2)));
+        /*
+         * Profiles with no levels never intersect an elevation range
+         */
+        assertEquals(3, store.getCandidateCount(Double.MAX_VALUE));
+    }
+
+    @Test
+    public void testClosestLevel() {
+        ProfileStore store = new ProfileStore(Arrays.asList(createProfile("p", 0, 0, 0,
+                new float[] { 0f, 10f, 20f, 40f }, new float[] { 0f, 1f, 2f, 4f })), VAR_ID);
+        int start = store.getLevelStart(0);
+        assertEquals(start + 1, store.getClosestLevel(0, 12.0, -1e9, 1e9));
+        assertEquals(start + 2, store.getClosestLevel(0, 28.0, -1e9, 1e9));
+        assertEquals(start, store.getClosestLevel(0, -100.0, -1e9, 1e9));
+        assertEquals(start + 3, store.getClosestLevel(0, 100.0, -1e9, 1e9));
+        assertEquals(-1, store.getClosestLevel(0, 50.0, 41.0, 60.0));
+        assertEquals(-1, store.getClosestLevel(0, -5.0, -10.0, -1.0));
+    }
+
+    @Test
+    public void testCellCodesNest() {
+        int levels = ProfileStore.CLUSTER_LEVELS;
+        /*
+         * Two positions in the same level-1 quadrant but different level-2
+         * quadrants
+         */
+        int a = ProfileStore.getCellCode(10.0, 10.0);
+        int b = ProfileStore.getCellCode(80.0, 170.0);
+        assertEquals(a >> 2 * (levels - 1), b >> 2 * (levels - 1));
+        assertTrue(a >> 2 * (levels - 2) != b >> 2 * (levels - 2));
+
+        /*
+         * Longitudes wrap
+         */
+        assertEquals(ProfileStore.getCellCode(0.0, -180.0), ProfileStore.getCellCode(0.0,
+                180.0));
+        assertEquals(ProfileStore.getCellCode(0.0, 10.0), ProfileStore.getCellCode(0.0, 370.0));
+        /*
+         * The poles are in the top and bottom rows of cells
+         */
+        assertEquals(ProfileStore.getCellCode(90.0, 0.0), ProfileStore.getCellCode(89.99999,
+                0.0));
+        assertEquals(0, ProfileStore.getCellCode(-90.0, -180.0));
+    }
+
+    @Test
+    public void testZOrderIsContiguous() {
+        List<ProfileFeature> features = new ArrayList<>();
+        for (int i = 0; i < 200; i++) {
+            double lat = ((i * 37) % 180) - 89.5;
+            double lon = ((i * 101) % 360) - 179.5;
+            features.add(createProfile("p" + i, lat, lon, 0, new float[] { 0f },
+                    new float[] { 0f }));
+        }
+        ProfileStore store = new ProfileStore(features, VAR_ID);
+
+        for (int level = 1; level <= ProfileStore.CLUSTER_LEVELS; level++) {
+            int shift = 2 * (ProfileStore.CLUSTER_LEVELS - level);
+            List<Integer> seen = new ArrayList<>();
+            for (int k = 0; k < store.size(); k++) {
+                int profile = store.getCellOrderedProfile(k);
+                int code = store.getOrderedCellCode(k);
+                assertEquals(ProfileStore.getCellCode(store.getLatitude(profile),
+                        store.getLongitude(profile)), code);
+                /*
+                 * Once a cell has been left, it is never returned to
+                 */
+                int cell = code >> shift;
+                if (seen.isEmpty() || seen.get(seen.size() - 1) != cell) {
+                    assertTrue(!seen.contains(cell));
+                    seen.add(cell);
+                }
+            }
+        }
+    }
+}
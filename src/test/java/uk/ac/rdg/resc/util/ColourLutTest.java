@@ -0,0 +1,169 @@
+/*******************************************************************************
+ * Copyright (c) 2014 The University of Reading
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+
+package uk.ac.rdg.resc.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.awt.Color;
+
+import org.junit.Test;
+
+import uk.ac.rdg.resc.edal.graphics.style.ColourScheme;
+import uk.ac.rdg.resc.edal.graphics.style.ScaleRange;
+import uk.ac.rdg.resc.edal.graphics.style.SegmentColourScheme;
+import uk.ac.rdg.resc.edal.util.Extents;
+
+/**
+ * Tests that a {@link ColourLut} gives the same colours as the
+ * {@link SegmentColourScheme} it was sampled from
+ * 
+ * @author Guy Griffiths
+ */
+public class ColourLutTest {
+    private static final Color BELOW_MIN = Color.BLACK;
+    private static final Color ABOVE_MAX = Color.WHITE;
+    private static final Color NO_DATA = new Color(0, 0, 0, 0);
+
+    private static ColourScheme createScheme(float min, float max, boolean logScale,
+            int nBands) {
+        return new SegmentColourScheme(new ScaleRange(min, max, logScale), BELOW_MIN, ABOVE_MAX,
+                NO_DATA, "default", nBands);
+    }
+
+    private static ColourLut createLut(ColourScheme scheme, float min, float max,
+            boolean logScale, int nBands) {
+        return new ColourLut(scheme, Extents.newExtent(min, max), logScale, nBands);
+    }
+
+    @Test
+    public void testLinearBandsMatchColourScheme() {
+        float min = -5f;
+        float max = 35f;
+        int nBands = 250;
+        ColourScheme scheme = createScheme(min, max, false, nBands);
+        ColourLut lut = createLut(scheme, min, max, false, nBands);
+
+        /*
+         * Sample away from the band edges, where float and double rounding
+         * can legitimately disagree
+         */
+        double bandWidth = (max - min) / (double) nBands;
+        for (int band = 0; band < nBands; band++) {
+            for (double fraction : new double[] { 0.1, 0.5, 0.9 }) {
+                float value = (float) (min + (band + fraction) * bandWidth);
+                assertEquals(scheme.getColor(value).getRGB(), lut.getColour(value));
+            }
+        }
+        assertEquals(BELOW_MIN.getRGB(), lut.getColour(-5.001f));
+        assertEquals(ABOVE_MAX.getRGB(), lut.getColour(35.001f));
+    }
+
+    @Test
+    public void testLogBandsMatchColourScheme() {
+        float min = 0.01f;
+        float max = 100f;
+        int nBands = 20;
+        ColourScheme scheme = createScheme(min, max, true, nBands);
+        ColourLut lut = createLut(scheme, min, max, true, nBands);
+
+        double logMin = Math.log(min);
+        double bandWidth = (Math.log(max) - logMin) / nBands;
+        for (int band = 0; band < nBands; band++) {
+            for (double fraction : new double[] { 0.1, 0.5, 0.9 }) {
+                float value = (float) Math.exp(logMin + (band + fraction) * bandWidth);
+                assertEquals(scheme.getColor(value).getRGB(), lut.getColour(value));
+            }
+        }
+        /*
+         * Values which have no logarithm are below the minimum
+         */
+        assertEquals(BELOW_MIN.getRGB(), lut.getColour(0f));
+        assertEquals(BELOW_MIN.getRGB(), lut.getColour(-1f));
+        assertEquals(ABOVE_MAX.getRGB(), lut.getColour(1000f));
+    }
+
+    @Test
+    public void testSpecialValues() {
+        ColourScheme scheme = createScheme(0f, 10f, false, 10);
+        ColourLut lut = createLut(scheme, 0f, 10f, false, 10);
+
+        assertEquals(NO_DATA.getRGB(), lut.getColour(Float.NaN));
+        assertEquals(NO_DATA.getRGB(), lut.getNoDataColour());
+        assertEquals(ABOVE_MAX.getRGB(), lut.getColour(Float.POSITIVE_INFINITY));
+        assertEquals(BELOW_MIN.getRGB(), lut.getColour(Float.NEGATIVE_INFINITY));
+        /*
+         * The limits themselves are in the end bands
+         */
+        assertEquals(scheme.getColor(0f).getRGB(), lut.getColour(0f));
+        assertEquals(scheme.getColor(10f).getRGB(), lut.getColour(10f));
+    }
+
+    @Test
+    public void testEqualLimits() {
+        ColourScheme scheme = createScheme(5f, 5f, false, 10);
+        ColourLut lut = createLut(scheme, 5f, 5f, false, 10);
+
+        assertEquals(scheme.getColor(5f).getRGB(), lut.getColour(5f));
+        assertEquals(BELOW_MIN.getRGB(), lut.getColour(4.999f));
+        assertEquals(ABOVE_MAX.getRGB(), lut.getColour(5.001f));
+        assertEquals(NO_DATA.getRGB(), lut.getColour(Float.NaN));
+        assertTrue(lut.isUniform(5f, 5f));
+        assertFalse(lut.isUniform(4f, 5f));
+    }
+
+    @Test
+    public void testIsUniform() {
+        ColourLut lut = createLut(createScheme(0f, 10f, false, 10), 0f, 10f, false, 10);
+
+        assertTrue(lut.isUniform(2.1f, 2.9f));
+        assertFalse(lut.isUniform(2.9f, 3.1f));
+        assertTrue(lut.isUniform(11f, 100f));
+        assertTrue(lut.isUniform(-100f, -1f));
+        assertFalse(lut.isUniform(-1f, 0.5f));
+    }
+
+    @Test
+    public void testColourGridFlipsRows() {
+        ColourLut lut = createLut(createScheme(0f, 10f, false, 10), 0f, 10f, false, 10);
+        /*
+         * Two rows, with the southern row first
+         */
+        float[] values = new float[] { 0.5f, 1.5f, Float.NaN, 7.5f, 8.5f, 9.5f };
+        int[] pixels = new int[6];
+        lut.colourGrid(values, 3, 2, pixels);
+
+        for (int i = 0; i < 3; i++) {
+            assertEquals(lut.getColour(values[i + 3]), pixels[i]);
+            assertEquals(lut.getColour(values[i]), pixels[i + 3]);
+        }
+        assertEquals(NO_DATA.getRGB(), pixels[5]);
+    }
+}
@@ -0,0 +1,216 @@
+/*******************************************************************************
+ * Copyright (c) 2014 The University of Reading
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+
+package uk.ac.rdg.resc.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Tests that {@link GridPointIndex} finds the same cells as a brute-force
+ * search, including across the date line and near the poles
+ * 
+ * @author Guy Griffiths
+ */
+public class GridPointIndexTest {
+    /*
+     * A distance well below the float precision of the index
+     */
+    private static final double TOLERANCE = 1e-5;
+
+    private static double distance(double lon1, double lat1, double lon2, double lat2) {
+        double phi1 = Math.toRadians(lat1);
+        double phi2 = Math.toRadians(lat2);
+        double lambda1 = Math.toRadians(lon1);
+        double lambda2 = Math.toRadians(lon2);
+        double dx = Math.cos(phi1) * Math.cos(lambda1) - Math.cos(phi2) * Math.cos(lambda2);
+        double dy = Math.cos(phi1) * Math.sin(lambda1) - Math.cos(phi2) * Math.sin(lambda2);
+        double dz = Math.sin(phi1) - Math.sin(phi2);
+        return Math.sqrt(dx * dx + dy * dy + dz * dz);
+    }
+
+    /**
+     * Checks that the cell found by the index is as close to a position as
+     * the nearest cell centre
+     */
+    private static void assertNearest(GridPointIndex index, double[] lons, double[] lats,
+            double lon, double lat) {
+        double nearest = Double.POSITIVE_INFINITY;
+        for (int i = 0; i < lons.length; i++) {
+            nearest = Math.min(nearest, distance(lon, lat, lons[i], lats[i]));
+        }
+        int found = index.findIndexOf(lon, lat);
+        assertTrue("No cell found at " + lon + "," + lat, found >= 0);
+        assertEquals(nearest, distance(lon, lat, lons[found], lats[found]), TOLERANCE);
+    }
+
+    @Test
+    public void testAgreesWithBruteForce() {
+        /*
+         * A distorted global grid, whose longitudes wrap at the date line
+         */
+        int xSize = 72;
+        int ySize = 36;
+        double[] lons = new double[xSize * ySize];
+        double[] lats = new double[xSize * ySize];
+        for (int y = 0; y < ySize; y++) {
+            for (int x = 0; x < xSize; x++) {
+                lons[y * xSize + x] = -180.0 + (x + 0.5) * 5.0 + 1.5 * Math.sin(y * 0.7);
+                lats[y * xSize + x] = -87.5 + y * 5.0 + Math.cos(x * 0.3);
+            }
+        }
+        GridPointIndex index = new GridPointIndex(lons, lats, xSize, ySize);
+        assertEquals(xSize, index.getXSize());
+        assertEquals(ySize, index.getYSize());
+
+        Random random = new Random(1234L);
+        for (int i = 0; i < 2000; i++) {
+            assertNearest(index, lons, lats, random.nextDouble() * 360.0 - 180.0,
+                    random.nextDouble() * 170.0 - 85.0);
+        }
+    }
+
+    @Test
+    public void testAcrossDateLine() {
+        /*
+         * A regional grid from 175E to 176W, with longitudes in [-180,180)
+         */
+        int xSize = 10;
+        int ySize = 5;
+        double[] lons = new double[xSize * ySize];
+        double[] lats = new double[xSize * ySize];
+        for (int y = 0; y < ySize; y++) {
+            for (int x = 0; x < xSize; x++) {
+                double lon = 175.0 + x;
+                lons[y * xSize + x] = lon >= 180.0 ? lon - 360.0 : lon;
+                lats[y * xSize + x] = y;
+            }
+        }
+        GridPointIndex index = new GridPointIndex(lons, lats, xSize, ySize);
+
+        assertEquals(2 * xSize + 5, index.findIndexOf(179.6, 2.0));
+        assertEquals(2 * xSize + 5, index.findIndexOf(-179.6, 2.0));
+        assertEquals(2 * xSize + 5, index.findIndexOf(180.4, 2.0));
+        assertEquals(2 * xSize + 6, index.findIndexOf(-179.3, 2.0));
+        assertEquals(2 * xSize + 4, index.findIndexOf(178.7, 2.0));
+        /*
+         * Positions well away from the grid are not in any cell
+         */
+        assertEquals(-1, index.findIndexOf(170.0, 2.0));
+        assertEquals(-1, index.findIndexOf(-170.0, 2.0));
+        assertEquals(-1, index.findIndexOf(0.0, 2.0));
+    }
+
+    @Test
+    public void testNearPoles() {
+        /*
+         * Rings of cells around both poles
+         */
+        double[] ringLats = new double[] { -89.5, -88.0, -86.5, 86.5, 88.0, 89.5 };
+        int xSize = 36;
+        int ySize = ringLats.length;
+        double[] lons = new double[xSize * ySize];
+        double[] lats = new double[xSize * ySize];
+        for (int y = 0; y < ySize; y++) {
+            for (int x = 0; x < xSize; x++) {
+                lons[y * xSize + x] = x * 10.0;
+                lats[y * xSize + x] = ringLats[y];
+            }
+        }
+        GridPointIndex index = new GridPointIndex(lons, lats, xSize, ySize);
+
+        Random random = new Random(5678L);
+        for (int i = 0; i < 500; i++) {
+            double lon = random.nextDouble() * 360.0 - 180.0;
+            assertNearest(index, lons, lats, lon, 87.0 + random.nextDouble() * 3.0);
+            assertNearest(index, lons, lats, lon, -87.0 - random.nextDouble() * 3.0);
+        }
+        /*
+         * The poles themselves are within reach of the innermost rings
+         */
+        int north = index.findIndexOf(0.0, 90.0);
+        assertEquals(5, north / xSize);
+        int south = index.findIndexOf(0.0, -90.0);
+        assertEquals(0, south / xSize);
+    }
+
+    @Test
+    public void testMissingCentresAreSkipped() {
+        double[] lons = new double[] { 0.0, Double.NaN, 2.0, 0.0, 1.0, 2.0 };
+        double[] lats = new double[] { 0.0, 0.0, 0.0, 1.0, 1.0, Double.POSITIVE_INFINITY };
+        GridPointIndex index = new GridPointIndex(lons, lats, 3, 2);
+
+        assertEquals(0, index.findIndexOf(0.1, 0.1));
+        assertEquals(4, index.findIndexOf(1.0, 0.6));
+        assertEquals(4, index.findIndexOf(1.8, 1.0));
+        /*
+         * A cell with no valid neighbours only reaches its own centre
+         */
+        assertEquals(-1, index.findIndexOf(2.0, 0.2));
+
+        assertEquals(-1, new GridPointIndex(new double[] { Double.NaN },
+                new double[] { Double.NaN }, 1, 1).findIndexOf(0.0, 0.0));
+    }
+
+    @Test
+    public void testWriteAndRead() throws IOException {
+        int xSize = 20;
+        int ySize = 10;
+        double[] lons = new double[xSize * ySize];
+        double[] lats = new double[xSize * ySize];
+        for (int i = 0; i < lons.length; i++) {
+            lons[i] = (i % xSize) * 2.0 - 20.0;
+            lats[i] = (i / xSize) * 2.0;
+        }
+        GridPointIndex index = new GridPointIndex(lons, lats, xSize, ySize);
+
+        File file = File.createTempFile("grid", ".index");
+        try {
+            index.write(file, "source");
+            assertNull(GridPointIndex.read(file, "other"));
+            GridPointIndex read = GridPointIndex.read(file, "source");
+            assertEquals(xSize, read.getXSize());
+            assertEquals(ySize, read.getYSize());
+            Random random = new Random(91011L);
+            for (int i = 0; i < 200; i++) {
+                double lon = random.nextDouble() * 50.0 - 25.0;
+                double lat = random.nextDouble() * 24.0 - 2.0;
+                assertEquals(index.findIndexOf(lon, lat), read.findIndexOf(lon, lat));
+            }
+        } finally {
+            file.delete();
+        }
+    }
+}
@@ -0,0 +1,153 @@
+/*******************************************************************************
+ * Copyright (c) 2014 The University of Reading
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+package uk.ac.rdg.resc.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+
+import org.geotoolkit.referencing.crs.DefaultGeographicCRS;
+import org.junit.Test;
+
+import uk.ac.rdg.resc.edal.geometry.BoundingBox;
+import uk.ac.rdg.resc.edal.geometry.BoundingBoxImpl;
+import uk.ac.rdg.resc.edal.grid.RectilinearGrid;
+import uk.ac.rdg.resc.edal.grid.RectilinearGridImpl;
+import uk.ac.rdg.resc.edal.grid.ReferenceableAxisImpl;
+import uk.ac.rdg.resc.edal.grid.RegularAxisImpl;
+import uk.ac.rdg.resc.edal.position.HorizontalPosition;
+import uk.ac.rdg.resc.edal.util.GridCoordinates2D;
+
+/**
+ * Tests that the index maps which {@link GridResampler} builds for rectilinear
+ * grids match searching the grid for every pixel
+ * 
+ * @author Guy Griffiths
+ */
+public class GridResamplerTest {
+    private static BoundingBox bbox(double minX, double minY, double maxX, double maxY) {
+        return new BoundingBoxImpl(minX, minY, maxX, maxY, DefaultGeographicCRS.WGS84);
+    }
+
+    private static RectilinearGrid regularGrid(double firstLon, double firstLat,
+            double spacing, int xSize, int ySize) {
+        return new RectilinearGridImpl(new RegularAxisImpl("lon", firstLon, spacing, xSize,
+                true), new RegularAxisImpl("lat", firstLat, spacing, ySize, false),
+                DefaultGeographicCRS.WGS84);
+    }
+
+    /**
+     * Checks the index map of a tile against searching the grid for the centre
+     * of each pixel
+     * 
+     * @return The number of pixels which are off the grid
+     */
+    private static int assertMatchesFindIndexOf(RectilinearGrid grid, int width, int height,
+            BoundingBox bbox) {
+        int[] indices = GridResampler.getRectilinearIndexMap(grid, width, height, bbox);
+        assertEquals(width * height, indices.length);
+        double dx = (bbox.getMaxX() - bbox.getMinX()) / width;
+        double dy = (bbox.getMaxY() - bbox.getMinY()) / height;
+        int offGrid = 0;
+        for (int j = 0; j < height; j++) {
+            for (int i = 0; i < width; i++) {
+                GridCoordinates2D coords = grid.findIndexOf(new HorizontalPosition(bbox
+                        .getMinX() + (i + 0.5) * dx, bbox.getMinY() + (j + 0.5) * dy,
+                        DefaultGeographicCRS.WGS84));
+                int expected = coords == null ? -1 : coords.getY() * grid.getXSize()
+                        + coords.getX();
+                assertEquals(expected, indices[j * width + i]);
+                if (expected < 0) {
+                    offGrid++;
+                }
+            }
+        }
+        return offGrid;
+    }
+
+    @Test
+    public void testRegionalGridWithOffGridPixels() {
+        /*
+         * A grid from 10W to 10E and 40N to 50N, in a tile which extends
+         * beyond it on every side
+         */
+        RectilinearGrid grid = regularGrid(-9.75, 40.25, 0.5, 40, 20);
+        int offGrid = assertMatchesFindIndexOf(grid, 64, 32, bbox(-20.0, 35.0, 20.0, 55.0));
+        assertTrue(offGrid > 0);
+        assertTrue(offGrid < 64 * 32);
+
+        /*
+         * Entirely off the grid
+         */
+        assertEquals(16 * 16, assertMatchesFindIndexOf(grid, 16, 16,
+                bbox(30.0, 0.0, 40.0, 10.0)));
+        /*
+         * Entirely on the grid, at a higher resolution than it
+         */
+        assertEquals(0, assertMatchesFindIndexOf(grid, 50, 30, bbox(-5.0, 42.0, 5.0, 48.0)));
+    }
+
+    @Test
+    public void testIrregularAxis() {
+        RectilinearGrid grid = new RectilinearGridImpl(new RegularAxisImpl("lon", 0.5, 1.0,
+                20, true), new ReferenceableAxisImpl("lat", Arrays.asList(0.0, 1.0, 3.0, 7.0,
+                15.0, 31.0), false), DefaultGeographicCRS.WGS84);
+        int offGrid = assertMatchesFindIndexOf(grid, 30, 45, bbox(-5.0, -5.0, 25.0, 40.0));
+        assertTrue(offGrid > 0);
+    }
+
+    @Test
+    public void testBboxAcrossDateLine() {
+        /*
+         * Global grids with longitudes from -180 to 180 and from 0 to 360, in
+         * tiles which cross the date line either way
+         */
+        RectilinearGrid grid180 = regularGrid(-179.5, -89.5, 1.0, 360, 180);
+        RectilinearGrid grid360 = regularGrid(0.5, -89.5, 1.0, 360, 180);
+        for (RectilinearGrid grid : Arrays.asList(grid180, grid360)) {
+            assertEquals(0, assertMatchesFindIndexOf(grid, 40, 20, bbox(170.0, -10.0, 190.0,
+                    10.0)));
+            assertEquals(0, assertMatchesFindIndexOf(grid, 40, 20, bbox(-190.0, -10.0,
+                    -170.0, 10.0)));
+            assertEquals(0, assertMatchesFindIndexOf(grid, 40, 20, bbox(350.0, -10.0, 370.0,
+                    10.0)));
+        }
+
+        /*
+         * Both sides of the date line are read from the correct columns
+         */
+        int[] indices = GridResampler.getRectilinearIndexMap(grid180, 4, 1,
+                bbox(178.0, 0.0, 182.0, 1.0));
+        int rowOffset = 90 * 360;
+        assertEquals(rowOffset + 358, indices[0]);
+        assertEquals(rowOffset + 359, indices[1]);
+        assertEquals(rowOffset + 0, indices[2]);
+        assertEquals(rowOffset + 1, indices[3]);
+    }
+}
@@ -0,0 +1,152 @@
+/*******************************************************************************
+ * Copyright (c) 2014 The University of Reading
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+
+package uk.ac.rdg.resc.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import gov.nasa.worldwind.geom.Angle;
+import gov.nasa.worldwind.geom.Vec4;
+import gov.nasa.worldwind.globes.Earth;
+import gov.nasa.worldwind.globes.EllipsoidalGlobe;
+import gov.nasa.worldwind.globes.Globe;
+import gov.nasa.worldwind.terrain.ZeroElevationModel;
+
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests the buffer layout and change tracking of {@link PointBuffer}
+ * 
+ * @author Guy Griffiths
+ */
+public class PointBufferTest {
+    private Globe globe;
+
+    @Before
+    public void setUp() {
+        globe = new EllipsoidalGlobe(Earth.WGS84_EQUATORIAL_RADIUS, Earth.WGS84_POLAR_RADIUS,
+                Earth.WGS84_ES, new ZeroElevationModel());
+    }
+
+    @Test
+    public void testLayout() {
+        PointBuffer points = new PointBuffer();
+        double[][] positions = new double[][] { { 10.0, 20.0 }, { -30.0, 150.0 },
+                { 89.0, -179.0 } };
+        int[] colours = new int[] { 0x80112233, 0xff445566, 0x00778899 };
+        for (int i = 0; i < positions.length; i++) {
+            points.add(positions[i][0], positions[i][1], colours[i], 100 + i);
+        }
+        assertTrue(points.update(globe));
+        assertEquals(3, points.getBuiltSize());
+        assertEquals(101, points.getId(1));
+
+        FloatBuffer vertices = points.getVertexBuffer();
+        assertEquals(9, vertices.limit());
+        Vec4 centre = points.getReferenceCentre();
+        for (int i = 0; i < positions.length; i++) {
+            Vec4 expected = globe.computePointFromPosition(
+                    Angle.fromDegreesLatitude(positions[i][0]),
+                    Angle.fromDegreesLongitude(positions[i][1]), 0.0);
+            /*
+             * Floats relative to the centre are accurate to well under a
+             * metre
+             */
+            assertEquals(expected.x, vertices.get(3 * i) + centre.x, 1.0);
+            assertEquals(expected.y, vertices.get(3 * i + 1) + centre.y, 1.0);
+            assertEquals(expected.z, vertices.get(3 * i + 2) + centre.z, 1.0);
+        }
+
+        /*
+         * Colours are RGBA bytes
+         */
+        ByteBuffer colourBuffer = points.getColourBuffer();
+        assertEquals(12, colourBuffer.limit());
+        for (int i = 0; i < colours.length; i++) {
+            assertEquals((colours[i] >> 16) & 0xff, colourBuffer.get(4 * i) & 0xff);
+            assertEquals((colours[i] >> 8) & 0xff, colourBuffer.get(4 * i + 1) & 0xff);
+            assertEquals(colours[i] & 0xff, colourBuffer.get(4 * i + 2) & 0xff);
+            assertEquals((colours[i] >>> 24) & 0xff, colourBuffer.get(4 * i + 3) & 0xff);
+        }
+    }
+
+    @Test
+    public void testOnlyRebuildsOnChange() {
+        PointBuffer points = new PointBuffer();
+        points.add(1.0, 2.0, 0xff000000, 0);
+        points.add(3.0, 4.0, 0xff000000, 1);
+        assertTrue(points.update(globe));
+        assertFalse(points.update(globe));
+
+        /*
+         * The same points again
+         */
+        points.clear();
+        points.add(1.0, 2.0, 0xff000000, 0);
+        points.add(3.0, 4.0, 0xff000000, 1);
+        assertFalse(points.update(globe));
+
+        /*
+         * A colour change
+         */
+        points.clear();
+        points.add(1.0, 2.0, 0xff000000, 0);
+        points.add(3.0, 4.0, 0xffffffff, 1);
+        assertTrue(points.update(globe));
+        assertEquals(0xff, points.getColourBuffer().get(4) & 0xff);
+
+        /*
+         * Fewer points
+         */
+        points.clear();
+        points.add(1.0, 2.0, 0xff000000, 0);
+        assertTrue(points.update(globe));
+        assertEquals(1, points.getBuiltSize());
+        assertEquals(3, points.getVertexBuffer().limit());
+    }
+
+    @Test
+    public void testGrows() {
+        PointBuffer points = new PointBuffer();
+        int size = 5000;
+        for (int i = 0; i < size; i++) {
+            points.add(i % 180 - 89.5, i % 360 - 179.5, i, i);
+        }
+        assertEquals(size, points.size());
+        assertTrue(points.update(globe));
+        assertEquals(3 * size, points.getVertexBuffer().limit());
+        assertEquals(4 * size, points.getColourBuffer().limit());
+        assertEquals(size - 1, points.getId(size - 1));
+        assertEquals((size - 1) % 360 - 179.5, points.getLongitude(size - 1), 0.0);
+    }
+}
@@ -0,0 +1,184 @@
+/*******************************************************************************
+ * Copyright (c) 2014 The University of Reading
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+
+package uk.ac.rdg.resc.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Tests nearest-point lookups in {@link PointPickIndex}
+ * 
+ * @author Guy Griffiths
+ */
+public class PointPickIndexTest {
+    @Test
+    public void testEmpty() {
+        PointPickIndex index = new PointPickIndex();
+        assertEquals(-1, index.findNearest(0.0, 0.0, 10.0));
+        index.build(new PointBuffer());
+        assertEquals(-1, index.findNearest(0.0, 0.0, 10.0));
+    }
+
+    @Test
+    public void testOutsideRadius() {
+        PointBuffer points = new PointBuffer();
+        points.add(10.0, 10.0, 0, 0);
+        PointPickIndex index = new PointPickIndex();
+        index.build(points);
+        assertEquals(0, index.findNearest(10.5, 10.0, 1.0));
+        assertEquals(-1, index.findNearest(12.0, 10.0, 1.0));
+    }
+
+    @Test
+    public void testMatchesBruteForce() {
+        Random random = new Random(1234L);
+        PointBuffer points = new PointBuffer();
+        for (int i = 0; i < 5000; i++) {
+            points.add(random.nextDouble() * 170.0 - 85.0, random.nextDouble() * 360.0 - 180.0,
+                    0, i);
+        }
+        PointPickIndex index = new PointPickIndex();
+        index.build(points);
+
+        double radius = 3.0;
+        for (int n = 0; n < 2000; n++) {
+            double lat = random.nextDouble() * 170.0 - 85.0;
+            double lon = random.nextDouble() * 360.0 - 180.0;
+            double lonScale = Math.max(Math.cos(Math.toRadians(lat)), 1e-3);
+            int expected = -1;
+            double expectedDistanceSq = radius * radius;
+            for (int i = 0; i < points.size(); i++) {
+                double dLat = points.getLatitude(i) - lat;
+                double dLon = getLonDifference(points.getLongitude(i), lon) * lonScale;
+                double distanceSq = dLat * dLat + dLon * dLon;
+                if (distanceSq <= expectedDistanceSq) {
+                    expectedDistanceSq = distanceSq;
+                    expected = i;
+                }
+            }
+            int found = index.findNearest(lat, lon, radius);
+            if (expected < 0) {
+                assertEquals(-1, found);
+            } else {
+                assertTrue(found >= 0);
+                double dLat = points.getLatitude(found) - lat;
+                double dLon = getLonDifference(points.getLongitude(found), lon) * lonScale;
+                assertEquals(expectedDistanceSq, dLat * dLat + dLon * dLon, 1e-12);
+            }
+        }
+    }
+
+    /**
+     * @return The difference between two longitudes, the short way round
+     */
+    private static double getLonDifference(double lon1, double lon2) {
+        double difference = ((lon1 - lon2) % 360.0 + 360.0) % 360.0;
+        return difference >= 180.0 ? difference - 360.0 : difference;
+    }
+
+    @Test
+    public void testAcrossDateLine() {
+        PointBuffer points = new PointBuffer();
+        points.add(0.0, 179.9, 0, 0);
+        points.add(0.0, 170.0, 0, 1);
+        points.add(10.0, -179.5, 0, 2);
+        PointPickIndex index = new PointPickIndex();
+        index.build(points);
+
+        /*
+         * The nearest point is on the other side of the date line
+         */
+        assertEquals(0, index.findNearest(0.0, -179.9, 1.0));
+        assertEquals(2, index.findNearest(10.0, 179.8, 1.0));
+        /*
+         * Positions beyond 180 are wrapped
+         */
+        assertEquals(0, index.findNearest(0.0, 180.1, 1.0));
+        assertEquals(2, index.findNearest(10.0, 180.5, 1.0));
+    }
+
+    @Test
+    public void testZeroTo360Longitudes() {
+        PointBuffer points = new PointBuffer();
+        points.add(0.0, 350.0, 0, 0);
+        points.add(0.0, 10.0, 0, 1);
+        points.add(0.0, 190.0, 0, 2);
+        PointPickIndex index = new PointPickIndex();
+        index.build(points);
+
+        assertEquals(0, index.findNearest(0.0, -10.0, 1.0));
+        assertEquals(0, index.findNearest(0.0, 350.0, 1.0));
+        assertEquals(1, index.findNearest(0.0, 10.0, 1.0));
+        assertEquals(2, index.findNearest(0.0, -170.0, 1.0));
+        assertEquals(-1, index.findNearest(0.0, 100.0, 1.0));
+    }
+
+    @Test
+    public void testTies() {
+        /*
+         * Equidistant points, including two at the same position. One of the
+         * nearest must be returned.
+         */
+        PointBuffer points = new PointBuffer();
+        points.add(1.0, 0.0, 0, 0);
+        points.add(-1.0, 0.0, 0, 1);
+        points.add(0.0, 5.0, 0, 2);
+        points.add(0.0, 5.0, 0, 3);
+        PointPickIndex index = new PointPickIndex();
+        index.build(points);
+
+        int found = index.findNearest(0.0, 0.0, 2.0);
+        assertTrue(found == 0 || found == 1);
+        found = index.findNearest(0.0, 5.0, 2.0);
+        assertTrue(found == 2 || found == 3);
+    }
+
+    @Test
+    public void testSinglePointAndRebuild() {
+        PointBuffer points = new PointBuffer();
+        points.add(45.0, 90.0, 0, 7);
+        PointPickIndex index = new PointPickIndex();
+        index.build(points);
+        assertEquals(0, index.findNearest(45.0, 90.0, 0.1));
+
+        /*
+         * Rebuilding with different points must not find the old ones
+         */
+        points.clear();
+        points.add(-45.0, -90.0, 0, 8);
+        points.add(-46.0, -90.0, 0, 9);
+        index.build(points);
+        assertEquals(-1, index.findNearest(45.0, 90.0, 0.1));
+        assertEquals(1, index.findNearest(-45.9, -90.0, 0.5));
+    }
+}
@@ -0,0 +1,203 @@
+/*******************************************************************************
+ * Copyright (c) 2014 The University of Reading
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+package uk.ac.rdg.resc.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+/**
+ * Tests the eviction and sharing of slices in a {@link SliceCache}
+ * 
+ * @author Guy Griffiths
+ */
+public class SliceCacheTest {
+    /** The number of values in each test slice */
+    private static final int SLICE_SIZE = 100;
+    private static final long SLICE_BYTES = 4L * SLICE_SIZE;
+
+    /**
+     * An unpacker which counts how many times it is called
+     */
+    private static class CountingUnpacker implements Callable<float[]> {
+        private final AtomicInteger count = new AtomicInteger();
+        private final int size;
+
+        private CountingUnpacker(int size) {
+            this.size = size;
+        }
+
+        @Override
+        public float[] call() throws Exception {
+            count.incrementAndGet();
+            return new float[size];
+        }
+    }
+
+    @Test
+    public void testEvictsLeastRecentlyUsed() {
+        Object owner = new Object();
+        SliceCache cache = new SliceCache(3 * SLICE_BYTES);
+        CountingUnpacker unpacker = new CountingUnpacker(SLICE_SIZE);
+        cache.get(owner, 0, unpacker);
+        cache.get(owner, 1, unpacker);
+        cache.get(owner, 2, unpacker);
+        assertEquals(3, unpacker.count.get());
+        assertEquals(3, cache.size());
+        assertEquals(3 * SLICE_BYTES, cache.getBytes());
+
+        /*
+         * Using slice 0 again makes slice 1 the least recently used, so that
+         * is evicted to make room for slice 3
+         */
+        cache.get(owner, 0, unpacker);
+        assertEquals(3, unpacker.count.get());
+        cache.get(owner, 3, unpacker);
+        assertEquals(4, unpacker.count.get());
+        assertEquals(3, cache.size());
+        assertEquals(3 * SLICE_BYTES, cache.getBytes());
+
+        cache.get(owner, 0, unpacker);
+        cache.get(owner, 2, unpacker);
+        cache.get(owner, 3, unpacker);
+        assertEquals(4, unpacker.count.get());
+        cache.get(owner, 1, unpacker);
+        assertEquals(5, unpacker.count.get());
+    }
+
+    @Test
+    public void testEvictsByBytes() {
+        Object owner = new Object();
+        SliceCache cache = new SliceCache(3 * SLICE_BYTES);
+        cache.get(owner, 0, new CountingUnpacker(SLICE_SIZE));
+        cache.get(owner, 1, new CountingUnpacker(SLICE_SIZE));
+        cache.get(owner, 2, new CountingUnpacker(SLICE_SIZE));
+
+        /*
+         * A slice twice the size evicts the two least recently used
+         */
+        cache.get(owner, 3, new CountingUnpacker(2 * SLICE_SIZE));
+        assertEquals(2, cache.size());
+        assertEquals(3 * SLICE_BYTES, cache.getBytes());
+        CountingUnpacker unpacker = new CountingUnpacker(SLICE_SIZE);
+        cache.get(owner, 2, unpacker);
+        assertEquals(0, unpacker.count.get());
+    }
+
+    @Test
+    public void testKeepsNewestSliceWhenTooLarge() {
+        Object owner = new Object();
+        SliceCache cache = new SliceCache(SLICE_BYTES);
+        cache.get(owner, 0, new CountingUnpacker(SLICE_SIZE));
+        CountingUnpacker unpacker = new CountingUnpacker(10 * SLICE_SIZE);
+        float[] values = cache.get(owner, 1, unpacker);
+        assertEquals(1, cache.size());
+        assertEquals(10 * SLICE_BYTES, cache.getBytes());
+        assertSame(values, cache.get(owner, 1, unpacker));
+        assertEquals(1, unpacker.count.get());
+    }
+
+    @Test
+    public void testOwnersAreSeparate() {
+        SliceCache cache = new SliceCache(10 * SLICE_BYTES);
+        CountingUnpacker unpacker = new CountingUnpacker(SLICE_SIZE);
+        float[] first = cache.get(new Object(), 0, unpacker);
+        float[] second = cache.get(new Object(), 0, unpacker);
+        assertEquals(2, unpacker.count.get());
+        assertTrue(first != second);
+    }
+
+    @Test
+    public void testConcurrentRequestsUnpackOnce() throws InterruptedException {
+        final Object owner = new Object();
+        final SliceCache cache = new SliceCache(10 * SLICE_BYTES);
+        final AtomicInteger count = new AtomicInteger();
+        final CountDownLatch start = new CountDownLatch(1);
+        final Callable<float[]> unpacker = new Callable<float[]>() {
+            @Override
+            public float[] call() throws Exception {
+                count.incrementAndGet();
+                Thread.sleep(100L);
+                return new float[SLICE_SIZE];
+            }
+        };
+        final float[][] results = new float[8][];
+        Thread[] threads = new Thread[results.length];
+        for (int i = 0; i < threads.length; i++) {
+            final int thread = i;
+            threads[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    results[thread] = cache.get(owner, 0, unpacker);
+                }
+            });
+            threads[i].start();
+        }
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(1, count.get());
+        for (float[] result : results) {
+            assertSame(results[0], result);
+        }
+    }
+
+    @Test
+    public void testFailedUnpackIsNotCached() {
+        Object owner = new Object();
+        SliceCache cache = new SliceCache(10 * SLICE_BYTES);
+        try {
+            cache.get(owner, 0, new Callable<float[]>() {
+                @Override
+                public float[] call() throws Exception {
+                    throw new IllegalArgumentException("Failed");
+                }
+            });
+            fail();
+        } catch (IllegalArgumentException e) {
+            assertEquals("Failed", e.getMessage());
+        }
+        assertEquals(0, cache.size());
+        CountingUnpacker unpacker = new CountingUnpacker(SLICE_SIZE);
+        cache.get(owner, 0, unpacker);
+        assertEquals(1, unpacker.count.get());
+    }
+}
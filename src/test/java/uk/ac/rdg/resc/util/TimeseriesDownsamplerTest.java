@@ -0,0 +1,144 @@
+/*******************************************************************************
+ * Copyright (c) 2014 The University of Reading
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+
+package uk.ac.rdg.resc.util;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * Tests the point selection of {@link TimeseriesDownsampler}
+ * 
+ * @author Guy Griffiths
+ */
+public class TimeseriesDownsamplerTest {
+    private static double[] getX(int size) {
+        double[] x = new double[size];
+        for (int i = 0; i < size; i++) {
+            x[i] = i * 1000.0;
+        }
+        return x;
+    }
+
+    private static double[] getY(int size) {
+        double[] y = new double[size];
+        for (int i = 0; i < size; i++) {
+            y[i] = Math.sin(i / 10.0) + 0.1 * Math.cos(i * 7.3);
+        }
+        return y;
+    }
+
+    @Test
+    public void testKeepsEndpoints() {
+        int size = 1000;
+        int[] selected = TimeseriesDownsampler.largestTriangleThreeBuckets(getX(size),
+                getY(size), 50);
+        assertEquals(50, selected.length);
+        assertEquals(0, selected[0]);
+        assertEquals(size - 1, selected[selected.length - 1]);
+    }
+
+    @Test
+    public void testSelectionIsAscending() {
+        int size = 997;
+        int[] selected = TimeseriesDownsampler.largestTriangleThreeBuckets(getX(size),
+                getY(size), 31);
+        for (int i = 1; i < selected.length; i++) {
+            assertTrue(selected[i] > selected[i - 1]);
+        }
+    }
+
+    @Test
+    public void testKeepsSpike() {
+        int size = 1000;
+        double[] y = new double[size];
+        y[437] = 100.0;
+        int[] selected = TimeseriesDownsampler.largestTriangleThreeBuckets(getX(size), y, 20);
+        boolean found = false;
+        for (int index : selected) {
+            found |= index == 437;
+        }
+        assertTrue(found);
+    }
+
+    @Test
+    public void testSkipsNaN() {
+        int size = 500;
+        double[] y = getY(size);
+        y[0] = Double.NaN;
+        y[size - 1] = Double.NaN;
+        for (int i = 100; i < 200; i++) {
+            y[i] = Double.NaN;
+        }
+        int[] selected = TimeseriesDownsampler.largestTriangleThreeBuckets(getX(size), y, 40);
+        assertEquals(40, selected.length);
+        for (int index : selected) {
+            assertFalse(Double.isNaN(y[index]));
+        }
+        /*
+         * The endpoints are the first and last non-missing points
+         */
+        assertEquals(1, selected[0]);
+        assertEquals(size - 2, selected[selected.length - 1]);
+    }
+
+    @Test
+    public void testThresholdAtSize() {
+        int size = 100;
+        int[] all = new int[size];
+        for (int i = 0; i < size; i++) {
+            all[i] = i;
+        }
+        assertArrayEquals(all,
+                TimeseriesDownsampler.largestTriangleThreeBuckets(getX(size), getY(size), size));
+        assertArrayEquals(all, TimeseriesDownsampler.largestTriangleThreeBuckets(getX(size),
+                getY(size), size + 10));
+    }
+
+    @Test
+    public void testValidPointsBelowThreshold() {
+        /*
+         * Fewer valid points than the threshold, so all of them are kept
+         */
+        double[] y = new double[] { 1.0, Double.NaN, 2.0, Double.NaN, 3.0 };
+        assertArrayEquals(new int[] { 0, 2, 4 },
+                TimeseriesDownsampler.largestTriangleThreeBuckets(getX(5), y, 3));
+    }
+
+    @Test
+    public void testSmallThresholdKeepsAll() {
+        int size = 10;
+        int[] selected = TimeseriesDownsampler.largestTriangleThreeBuckets(getX(size),
+                getY(size), 2);
+        assertEquals(size, selected.length);
+    }
+}